@@ -9,7 +9,6 @@ import com.topcoder.shared.util.logging.Logger;
 import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.StringReader;
 
 public class HTMLRenderer {
 
@@ -20,8 +19,10 @@ public class HTMLRenderer {
 
     /**
      * Use the provided XML and file to generate html.
+     * The document goes to the transformer as SAX events, the cached
+     * template can be used by many threads at once.
      */
-    public synchronized String render(XMLDocument xmldocObject, String xsldocURLString)
+    public String render(XMLDocument xmldocObject, String xsldocURLString)
             throws TCException, FileNotFoundException {
 
         ByteArrayOutputStream baos = null;
@@ -33,7 +34,7 @@ public class HTMLRenderer {
             cache = XSLTransformerCache.getInstance();
             baos = new ByteArrayOutputStream();
             wrapper = cache.getXSLTransformerWrapper(xsldocURLString);
-            wrapper.transform(new StringReader(xmldocObject.getXML()), baos);
+            wrapper.transform(xmldocObject, baos);
             return baos.toString();
 
         } catch (FileNotFoundException e) {
@@ -16,6 +16,7 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.topcoder.security.TCSubject;
+import com.topcoder.shared.dataAccess.CommandExecutionTracker;
 import com.topcoder.shared.security.Authorization;
 import com.topcoder.shared.security.Resource;
 import com.topcoder.shared.security.SimpleResource;
@@ -123,6 +124,14 @@ public abstract class BaseServlet extends HttpServlet {
         log.info(buf);
     }
 
+    /**
+     * Stops the threads started on behalf of the application, so that they don't outlive it.
+     */
+    public void destroy() {
+        super.destroy();
+        CommandExecutionTracker.shutdown();
+    }
+
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         process(request, response);
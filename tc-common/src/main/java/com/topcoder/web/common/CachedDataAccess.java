@@ -7,6 +7,7 @@ import com.topcoder.shared.distCache.CacheClientFactory;
 
 import com.topcoder.shared.dataAccess.DataAccess;
 import com.topcoder.shared.dataAccess.DataRetrieverInt;
+import com.topcoder.shared.dataAccess.RequestCoalescer;
 import com.topcoder.shared.dataAccess.RequestInt;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.DBMS;
@@ -19,6 +20,7 @@ import com.topcoder.web.common.cache.address.CacheAddress;
 
 import java.sql.Connection;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * This bean processes a {@link com.topcoder.shared.dataAccess.RequestInt} and returns the data from either the cache if it's available
@@ -102,50 +104,67 @@ public class CachedDataAccess extends DataAccess {
      * @throws Exception if there was an error encountered while retrieving
      *                   the data from the EJB.
      */
-    public Map<String, ResultSetContainer> getData(RequestInt request) throws Exception {
-        Connection conn = null;
+    public Map<String, ResultSetContainer> getData(final RequestInt request) throws Exception {
+        boolean hasCacheConnection = true;
+        final CacheAddress address = AddressFactory.create(request, maxAge);
+        Map<String, ResultSetContainer> map = null;
+        CacheClient cc = null;
         try {
-            boolean hasCacheConnection = true;
-            CacheAddress address = AddressFactory.create(request, maxAge);
-            Map<String, ResultSetContainer> map = null;
-            DataRetrieverInt dr = null;
-            CacheClient cc = null;
-            try {
-                //cc = CacheClientFactory.createCacheClient();
-                cc = CacheClientFactory.create();
-                map = (Map<String, ResultSetContainer>) (cc.get(address));
-            } catch (Exception e) {
-
-                if (log.isDebugEnabled()) {
-                    log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: ", e);
-                } else {
-                    log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: " + e.getMessage());
-                }
-                hasCacheConnection = false;
+            //cc = CacheClientFactory.createCacheClient();
+            cc = CacheClientFactory.create();
+            map = (Map<String, ResultSetContainer>) (cc.get(address, maxAge));
+        } catch (Exception e) {
+
+            if (log.isDebugEnabled()) {
+                log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: ", e);
+            } else {
+                log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: " + e.getMessage());
             }
-            /* if it was not found in the cache */
-            if (map == null) {
-                conn = DBMS.getConnection(dataSourceName);
-                dr = getDataRetriever(conn);
-                map = dr.executeCommand(request.getProperties());
-                /* attempt to add this object to the cache */
-                if (hasCacheConnection) {
-                    try {
-                        cc.set(address, map, maxAge);
-                    } catch (Exception e) {
-
-                        if (log.isDebugEnabled()) {
-                            log.error("UNABLE TO INSERT INTO CACHE: ", e);
-                        } else {
-                            log.error("UNABLE TO INSERT INTO CACHE: " + e.getMessage());
-                        }
+            hasCacheConnection = false;
+        }
+        /* if it was not found in the cache, load it, letting concurrent requests for the same key share the load */
+        if (map == null) {
+            final CacheClient client = hasCacheConnection ? cc : null;
+            map = RequestCoalescer.getInstance().load(address.getKey(), new Callable<Map<String, ResultSetContainer>>() {
+                public Map<String, ResultSetContainer> call() throws Exception {
+                    return load(request, client, address);
+                }
+            });
+        }
+        return map;
+    }
 
+    /**
+     * Retrieve the data from the data source and add it to the cache.
+     *
+     * @param request the request to execute
+     * @param cc      the cache client to put the result in, null if we don't have a cache connection
+     * @param address where the result goes in the cache
+     * @return the query results
+     * @throws Exception if there was an error retrieving the data
+     */
+    private Map<String, ResultSetContainer> load(RequestInt request, CacheClient cc, CacheAddress address)
+            throws Exception {
+        Connection conn = null;
+        try {
+            conn = DBMS.getConnection(dataSourceName);
+            DataRetrieverInt dr = getDataRetriever(conn);
+            Map<String, ResultSetContainer> map = dr.executeCommand(request.getProperties());
+            /* attempt to add this object to the cache */
+            if (cc != null) {
+                try {
+                    cc.set(address, map, maxAge);
+                } catch (Exception e) {
+
+                    if (log.isDebugEnabled()) {
+                        log.error("UNABLE TO INSERT INTO CACHE: ", e);
+                    } else {
+                        log.error("UNABLE TO INSERT INTO CACHE: " + e.getMessage());
                     }
+
                 }
             }
             return map;
-        } catch (Exception e) {
-            throw e;
         } finally {
             if (conn != null && !conn.isClosed()) {
                 try {
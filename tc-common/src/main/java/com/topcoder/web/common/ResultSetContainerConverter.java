@@ -3,9 +3,7 @@
  */
 package com.topcoder.web.common;
 
-import com.topcoder.json.object.JSONArray;
-import com.topcoder.json.object.JSONObject;
-import com.topcoder.json.object.io.StandardJSONEncoder;
+import com.topcoder.shared.dataAccess.resultSet.ResultColumn;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.dataAccess.resultSet.TCResultItem;
 import com.topcoder.shared.util.logging.Logger;
@@ -19,11 +17,15 @@ import javax.xml.transform.TransformerConfigurationException;
 import javax.xml.transform.sax.SAXTransformerFactory;
 import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
+import java.io.BufferedWriter;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 /**
  * XML / JSON convertef for ResultSetContainer
@@ -31,8 +33,15 @@ import java.util.List;
  * Version 1.1 (BUGR-2949) changes:
  * - Added support for CDATA.
  * 
+ * Version 1.2 changes:
+ * - JSON is written to the stream row by row, with numbers and booleans typed.
+ * 
+ * Version 1.3 changes:
+ * - Added writers for cursors, which write rows as they are read from the database.
+ * - Added CSV.
+ * 
  * @author dok, pulky
- * @version 1.1
+ * @version 1.3
  */
 public class ResultSetContainerConverter {
     /**
@@ -49,55 +58,69 @@ public class ResultSetContainerConverter {
      */
     private static final String CDATA_SUFFIX = "]]>";
     
-    private static Logger log = Logger.getLogger(ResultSetContainerConverter.class);
-    public static void writeXML(ResultSetContainer rsc, String name, OutputStream os) throws TransformerConfigurationException, SAXException {
-
-        StreamResult streamResult = new StreamResult(os);
-        SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
-
-        TransformerHandler hd = tf.newTransformerHandler();
-        Transformer serializer = hd.getTransformer();
-        serializer.setOutputProperty(OutputKeys.ENCODING, "ISO-8859-1");
-        serializer.setOutputProperty(OutputKeys.INDENT, "no");
-        hd.setResult(streamResult);
-        hd.startDocument();
+    /**
+     * The formats {@link #write} knows.
+     *
+     * @since 1.3
+     */
+    public static final String XML = "xml";
+    public static final String JSON = "json";
+    public static final String CSV = "csv";
 
-        AttributesImpl emptyAtts = new AttributesImpl();
+    private static Logger log = Logger.getLogger(ResultSetContainerConverter.class);
 
-        hd.startElement("", "", name, emptyAtts);
+    /**
+     * Writes rows as they are read, in the given format, so that a large feed is neither
+     * held in memory nor kept from the client until its last row.
+     *
+     * @param format one of {@link #XML}, {@link #JSON} or {@link #CSV}, XML if it's none of them
+     * @param cursor the rows
+     * @param name the feed name
+     * @param os where to write it
+     * @throws Exception if reading the rows or writing fails
+     * @since 1.3
+     */
+    public static void write(String format, ResultSetContainer.Cursor cursor, String name, OutputStream os)
+            throws Exception {
+        if (JSON.equalsIgnoreCase(format)) {
+            writeJSON(cursor, name, os);
+        } else if (CSV.equalsIgnoreCase(format)) {
+            writeCSV(cursor, os);
+        } else {
+            writeXML(cursor, name, os);
+        }
+    }
 
+    public static void writeXML(ResultSetContainer rsc, String name, OutputStream os) throws TransformerConfigurationException, SAXException {
+        TransformerHandler hd = startXML(name, os);
+        String[] columnNames = getColumnNames(rsc.getColumns());
         for (ResultSetContainer.ResultSetRow row : rsc) {
-            hd.startElement("", "", "row", emptyAtts);
-            for (int i = 0; i < rsc.getColumnCount(); i++) {
-                addElement(hd, rsc.getColumnName(i), row.getStringItem(i), emptyAtts);
-            }
-            hd.endElement("", "", "row");
+            writeXMLRow(hd, columnNames, row);
         }
+        endXML(hd, name);
+    }
 
-        hd.endElement("", "", name);
-        hd.endDocument();
+    /**
+     * @since 1.3
+     */
+    public static void writeXML(ResultSetContainer.Cursor cursor, String name, OutputStream os) throws Exception {
+        TransformerHandler hd = startXML(name, os);
+        String[] columnNames = getColumnNames(cursor.getColumns());
+        while (cursor.next()) {
+            writeXMLRow(hd, columnNames, cursor.getRow());
+        }
+        endXML(hd, name);
     }
 
     public static void writeXMLhidingPayments(ResultSetContainer rsc, String name, String paymentCol, String keyColName, List<Long> hideKeyList, OutputStream os) throws TransformerConfigurationException, SAXException {
-
-        StreamResult streamResult = new StreamResult(os);
-        SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
-
-        TransformerHandler hd = tf.newTransformerHandler();
-        Transformer serializer = hd.getTransformer();
-        serializer.setOutputProperty(OutputKeys.ENCODING, "ISO-8859-1");
-        serializer.setOutputProperty(OutputKeys.INDENT, "no");
-        hd.setResult(streamResult);
-        hd.startDocument();
-
+        TransformerHandler hd = startXML(name, os);
         AttributesImpl emptyAtts = new AttributesImpl();
-
-        hd.startElement("", "", name, emptyAtts);
+        Set<Long> hideKeys = new HashSet<Long>(hideKeyList);
         boolean hidePaymentColumn;
         for (ResultSetContainer.ResultSetRow row: rsc) {
             hd.startElement("", "", "row", emptyAtts);
             Long keyCol = row.getLongItem(keyColName);
-            hidePaymentColumn = hideKeyList.contains(keyCol);
+            hidePaymentColumn = hideKeys.contains(keyCol);
             for (int i = 0; i < rsc.getColumnCount(); i++) {
                 if (!hidePaymentColumn || !rsc.getColumnName(i).equals(paymentCol)) {
                     addElement(hd, rsc.getColumnName(i), row.getStringItem(i), emptyAtts);
@@ -107,110 +130,329 @@ public class ResultSetContainerConverter {
             }
             hd.endElement("", "", "row");
         }
+        endXML(hd, name);
+    }
 
+    private static TransformerHandler startXML(String name, OutputStream os) throws TransformerConfigurationException, SAXException {
+        StreamResult streamResult = new StreamResult(os);
+        SAXTransformerFactory tf = (SAXTransformerFactory) SAXTransformerFactory.newInstance();
+
+        TransformerHandler hd = tf.newTransformerHandler();
+        Transformer serializer = hd.getTransformer();
+        serializer.setOutputProperty(OutputKeys.ENCODING, "ISO-8859-1");
+        serializer.setOutputProperty(OutputKeys.INDENT, "no");
+        hd.setResult(streamResult);
+        hd.startDocument();
+        hd.startElement("", "", name, new AttributesImpl());
+        return hd;
+    }
+
+    private static void endXML(TransformerHandler hd, String name) throws SAXException {
         hd.endElement("", "", name);
         hd.endDocument();
     }
 
+    private static void writeXMLRow(TransformerHandler hd, String[] columnNames, ResultSetContainer.ResultSetRow row) throws SAXException {
+        AttributesImpl emptyAtts = new AttributesImpl();
+        hd.startElement("", "", "row", emptyAtts);
+        for (int i = 0; i < columnNames.length; i++) {
+            addElement(hd, columnNames[i], row.getStringItem(i), emptyAtts);
+        }
+        hd.endElement("", "", "row");
+    }
+
 
     public static void writeJSONhidingPayments(ResultSetContainer rsc, String name,
                                                String paymentCol, String keyColName,
                                                List<Long> hideKeyList, OutputStream os) throws IOException {
-        JSONObject ret = new JSONObject();
-        JSONArray jsonArray = new JSONArray();
-        ret.setArray("data", jsonArray);
-        ret.setString("feedname", name);
+        long start = System.currentTimeMillis();
+        Set<Long> hideKeys = new HashSet<Long>(hideKeyList);
+        Writer out = startJSON(name, os);
         TCResultItem item;
-        JSONArray jrow;
-        JSONObject obj;
         boolean hidePaymentColumn;
+        boolean firstRow = true;
         for (ResultSetContainer.ResultSetRow row : rsc) {
-            jrow = new JSONArray();
-            jsonArray.addArray(jrow);
+            out.write(firstRow ? "[" : ",[");
+            firstRow = false;
             Long keyCol = row.getLongItem(keyColName);
+            hidePaymentColumn = hideKeys.contains(keyCol);
             for (int i=0; i<rsc.getColumnCount(); i++) {
                 item = row.getItem(i);
-                obj = new JSONObject();
-                jrow.addJSONObject(obj);
-                if (item.getResultData()==null) {
-                    obj.setNull(rsc.getColumnName(i));
+                out.write(i == 0 ? "{" : ",{");
+                writeJSONString(out, rsc.getColumnName(i));
+                out.write(':');
+                if (item.getResultData() != null && hidePaymentColumn && rsc.getColumnName(i).equals(paymentCol)) {
+                    writeJSONString(out, "*hidden*");
                 } else {
-                    hidePaymentColumn = hideKeyList.contains(keyCol);
-                    if (!hidePaymentColumn || !rsc.getColumnName(i).equals(paymentCol)) {
-                        obj.setString(rsc.getColumnName(i), row.getStringItem(i));
-                    } else {
-                        obj.setString(rsc.getColumnName(i), "*hidden*");
-                    }
-
-                    //we wont' deal with types right now.  not sure that it matters...we'll see as this evolves
-                    //probably the first thing we do is add a formatter for dates, times and datetimes
-/*
-                    switch (item.getType()) {
-                        case TCResultItem.INT: obj.setInt(rsc.getColumnName(i), row.getIntItem(i)); break;
-                        case TCResultItem.LONG: obj.setLong(rsc.getColumnName(i), row.getLongItem(i)); break;
-                        case TCResultItem.BIGINTEGER: obj.setBigInteger(rsc.getColumnName(i), (BigInteger)row.getItem(i).getResultData()); break;
-                        case TCResultItem.FLOAT: obj.setFloat(rsc.getColumnName(i), row.getFloatItem(i)); break;
-                        case TCResultItem.DOUBLE: obj.setDouble(rsc.getColumnName(i), row.getDoubleItem(i)); break;
-                        case TCResultItem.BIGDECIMAL: obj.setBigDecimal(rsc.getColumnName(i), (BigDecimal)row.getItem(i).getResultData()); break;
-                        case TCResultItem.BOOLEAN: obj.setBoolean(rsc.getColumnName(i), row.getBooleanItem(i)); break;
-                        case TCResultItem.STRING: obj.setString(rsc.getColumnName(i), row.getStringItem(i)); break;
-                        case TCResultItem.DATE: obj.setDate(rsc.getColumnName(i), row.getIntItem(i)); break;
-                        case TCResultItem.TIME: obj.setTime(rsc.getColumnName(i), row.getIntItem(i)); break;
-                        case TCResultItem.DATETIME: obj.setDateTime(rsc.getColumnName(i), row.getIntItem(i)); break;
-                    }
-*/
+                    writeJSONValue(out, item);
                 }
+                out.write('}');
             }
+            out.write(']');
+        }
+        endJSON(out);
+        if (log.isDebugEnabled()) {
+            log.debug("took " + (System.currentTimeMillis()-start) + " ms");
         }
-        String res = new StandardJSONEncoder().encode(ret);
-        DataOutputStream dos = new DataOutputStream(os);
-        dos.writeBytes(res);
-
-
     }
 
     
     public static void writeJSON(ResultSetContainer rsc, String name, OutputStream os) throws IOException {
         long start = System.currentTimeMillis();
-        JSONObject ret = new JSONObject();
-        JSONArray jsonArray = new JSONArray();
-        TCResultItem item;
-        JSONObject jrow;
-/*
-        JSONArray colNames = new JSONArray();
-        JSONObject obj;
-*/
-        ret.setArray("data", jsonArray);
-        ret.setString("feedname", name);
-/*
-        ret.setArray("columnNames", colNames);
+        Writer out = startJSON(name, os);
+        String[] columnNames = getColumnNames(rsc.getColumns());
+        boolean firstRow = true;
+        for (ResultSetContainer.ResultSetRow row : rsc) {
+            if (!firstRow) {
+                out.write(',');
+            }
+            firstRow = false;
+            writeJSONRow(out, columnNames, row);
+        }
+        endJSON(out);
+        if (log.isDebugEnabled()) {
+            log.debug("took " + (System.currentTimeMillis()-start) + " ms");
+        }
+
+    }
 
-        for (ResultColumn c : rsc.getColumns()) {
-            colNames.addString(c.getName());
+    /**
+     * @since 1.3
+     */
+    public static void writeJSON(ResultSetContainer.Cursor cursor, String name, OutputStream os) throws Exception {
+        long start = System.currentTimeMillis();
+        Writer out = startJSON(name, os);
+        String[] columnNames = getColumnNames(cursor.getColumns());
+        boolean firstRow = true;
+        while (cursor.next()) {
+            if (!firstRow) {
+                out.write(',');
+            }
+            firstRow = false;
+            writeJSONRow(out, columnNames, cursor.getRow());
         }
-*/
+        endJSON(out);
+        if (log.isDebugEnabled()) {
+            log.debug("took " + (System.currentTimeMillis()-start) + " ms");
+        }
+    }
 
-        for (ResultSetContainer.ResultSetRow row : rsc) {
-            jrow = new JSONObject();
-            jsonArray.addJSONObject(jrow);
-            for (int i=0; i<rsc.getColumnCount(); i++) {
-                item = row.getItem(i);
-                if (item.getResultData()==null) {
-                    jrow.setNull(rsc.getColumnName(i));
+    private static void writeJSONRow(Writer out, String[] columnNames, ResultSetContainer.ResultSetRow row) throws IOException {
+        out.write('{');
+        for (int i=0; i<columnNames.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeJSONString(out, columnNames[i]);
+            out.write(':');
+            writeJSONValue(out, row.getItem(i));
+        }
+        out.write('}');
+    }
+
+    /**
+     * Starts a feed, up to the opening of its data array.  The feed is written
+     * as it is built, row by row, rather than as one tree and one string.
+     * Characters outside of ASCII are escaped, so the output is the same
+     * whatever charset the client reads it in.
+     *
+     * @param name the feed name
+     * @param os where to write it
+     * @return a writer to write the rows to
+     * @throws IOException if writing fails
+     */
+    private static Writer startJSON(String name, OutputStream os) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, "US-ASCII"), 8192);
+        out.write("{\"feedname\":");
+        writeJSONString(out, name);
+        out.write(",\"data\":[");
+        return out;
+    }
+
+    private static void endJSON(Writer out) throws IOException {
+        out.write("]}");
+        // the stream belongs to the caller, leave it open
+        out.flush();
+    }
+
+    /**
+     * Writes the value of a cell in the type of its column: numbers and booleans as
+     * such, everything else, dates included, as the string the row would give for it.
+     *
+     * @param out the writer
+     * @param item the cell
+     * @throws IOException if writing fails
+     */
+    private static void writeJSONValue(Writer out, TCResultItem item) throws IOException {
+        Object value = item.getResultData();
+        if (value == null) {
+            out.write("null");
+            return;
+        }
+        switch (item.getType()) {
+            case TCResultItem.INT:
+            case TCResultItem.LONG:
+            case TCResultItem.BIGINTEGER:
+            case TCResultItem.BIGDECIMAL:
+            case TCResultItem.BOOLEAN:
+                out.write(value.toString());
+                break;
+            case TCResultItem.FLOAT:
+            case TCResultItem.DOUBLE:
+                double d = ((Number) value).doubleValue();
+                if (Double.isNaN(d) || Double.isInfinite(d)) {
+                    // JSON has no numbers for these
+                    writeJSONString(out, value.toString());
                 } else {
-                    //we wont' deal with types right now.  not sure that it matters...we'll see as this evolves
-                    jrow.setString(rsc.getColumnName(i), row.getStringItem(i));
+                    out.write(value.toString());
                 }
+                break;
+            default:
+                writeJSONString(out, value.toString());
+        }
+    }
+
+    private static void writeJSONString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.write("\\\"");
+                    break;
+                case '\\':
+                    out.write("\\\\");
+                    break;
+                case '\n':
+                    out.write("\\n");
+                    break;
+                case '\r':
+                    out.write("\\r");
+                    break;
+                case '\t':
+                    out.write("\\t");
+                    break;
+                case '\b':
+                    out.write("\\b");
+                    break;
+                case '\f':
+                    out.write("\\f");
+                    break;
+                default:
+                    if (c < 0x20 || c > 0x7e) {
+                        String hex = Integer.toHexString(c);
+                        out.write("\\u");
+                        for (int j = hex.length(); j < 4; j++) {
+                            out.write('0');
+                        }
+                        out.write(hex);
+                    } else {
+                        out.write(c);
+                    }
             }
         }
+        out.write('"');
+    }
 
-        String res = new StandardJSONEncoder().encode(ret);
-        DataOutputStream dos = new DataOutputStream(os);
-        dos.writeBytes(res);
-        if (log.isDebugEnabled()) {
-            log.debug("took " + (System.currentTimeMillis()-start) + " ms");
+    public static void writeCSV(ResultSetContainer rsc, OutputStream os) throws IOException {
+        String[] columnNames = getColumnNames(rsc.getColumns());
+        Writer out = startCSV(columnNames, os);
+        for (ResultSetContainer.ResultSetRow row : rsc) {
+            writeCSVRow(out, columnNames.length, row, -1);
+        }
+        out.flush();
+    }
+
+    /**
+     * Writes rows as comma separated values, with a header line of the column names.
+     * Nulls are left empty.
+     *
+     * @param cursor the rows
+     * @param os where to write them
+     * @throws Exception if reading the rows or writing fails
+     * @since 1.3
+     */
+    public static void writeCSV(ResultSetContainer.Cursor cursor, OutputStream os) throws Exception {
+        String[] columnNames = getColumnNames(cursor.getColumns());
+        Writer out = startCSV(columnNames, os);
+        while (cursor.next()) {
+            writeCSVRow(out, columnNames.length, cursor.getRow(), -1);
+        }
+        out.flush();
+    }
+
+    public static void writeCSVhidingPayments(ResultSetContainer rsc, String paymentCol, String keyColName,
+                                              List<Long> hideKeyList, OutputStream os) throws IOException {
+        String[] columnNames = getColumnNames(rsc.getColumns());
+        Set<Long> hideKeys = new HashSet<Long>(hideKeyList);
+        int paymentIndex = rsc.getColumnIndex(paymentCol);
+        Writer out = startCSV(columnNames, os);
+        for (ResultSetContainer.ResultSetRow row : rsc) {
+            boolean hidePaymentColumn = hideKeys.contains(row.getLongItem(keyColName));
+            writeCSVRow(out, columnNames.length, row, hidePaymentColumn ? paymentIndex : -1);
+        }
+        out.flush();
+    }
+
+    private static Writer startCSV(String[] columnNames, OutputStream os) throws IOException {
+        Writer out = new BufferedWriter(new OutputStreamWriter(os, "UTF-8"), 8192);
+        for (int i = 0; i < columnNames.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            writeCSVValue(out, columnNames[i]);
+        }
+        out.write("\r\n");
+        return out;
+    }
+
+    /**
+     * @param hiddenIndex the column to write as hidden, -1 for none
+     */
+    private static void writeCSVRow(Writer out, int columnCount, ResultSetContainer.ResultSetRow row, int hiddenIndex) throws IOException {
+        for (int i = 0; i < columnCount; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String value = row.getStringItem(i);
+            writeCSVValue(out, i == hiddenIndex && value != null ? "*hidden*" : value);
+        }
+        out.write("\r\n");
+    }
+
+    /**
+     * Writes a value, quoted if it has a comma, a quote or a line break.
+     */
+    private static void writeCSVValue(Writer out, String value) throws IOException {
+        if (value == null) {
+            return;
+        }
+        boolean quote = false;
+        for (int i = 0; i < value.length() && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == ',' || c == '"' || c == '\n' || c == '\r';
+        }
+        if (!quote) {
+            out.write(value);
+            return;
         }
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"') {
+                out.write('"');
+            }
+            out.write(c);
+        }
+        out.write('"');
+    }
 
+    private static String[] getColumnNames(ResultColumn[] columns) {
+        String[] names = new String[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            names[i] = columns[i].getName();
+        }
+        return names;
     }
 
     /**
@@ -2,6 +2,9 @@ package com.topcoder.web.common.cache;
 
 import com.topcoder.web.common.cache.address.CacheAddress;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * @author dok
  * @version $Revision: 60790 $ Date: 2005/01/01 00:00:00
@@ -17,6 +20,16 @@ public interface CacheClient {
      */
     public void set(String key, Object value) throws TCCacheException;
 
+    /**
+     * set a key/value pair
+     *
+     * @param key    the key for the cached value
+     * @param value  the value to be stored
+     * @param maxAge how long (at most) the value should exist in the cache
+     * @throws TCCacheException if there is a problem
+     */
+    public void set(String key, Object value, MaxAge maxAge) throws TCCacheException;
+
     /**
      * set a key/value pair
      *
@@ -55,6 +68,16 @@ public interface CacheClient {
      */
     public Object get(CacheAddress address) throws TCCacheException;
 
+    /**
+     * retrieve the value associated with a key.
+     *
+     * @param address where the value is in the cache
+     * @param maxAge  how long (at most) the value was set to exist in the cache
+     * @return the value
+     * @throws TCCacheException if there is a problem
+     */
+    public Object get(CacheAddress address, MaxAge maxAge) throws TCCacheException;
+
     /**
      * @param key the key to remove
      * @return the object removed
@@ -70,6 +93,50 @@ public interface CacheClient {
     public Object remove(CacheAddress address) throws TCCacheException;
 
 
+    /**
+     * retrieve the values associated with several keys, in one trip to the cache
+     * when the implementation allows it.
+     *
+     * @param keys the keys to query on
+     * @return the values that were found, by key
+     * @throws TCCacheException if there is a problem
+     */
+    public Map getAll(Collection keys) throws TCCacheException;
+
+    /**
+     * set several key/value pairs
+     *
+     * @param values the values to be stored, by key
+     * @param maxAge how long (at most) the values should exist in the cache
+     * @throws TCCacheException if there is a problem
+     */
+    public void setAll(Map values, MaxAge maxAge) throws TCCacheException;
+
+    /**
+     * @param keys the keys to remove
+     * @throws TCCacheException if there is a problem
+     */
+    public void removeAll(Collection keys) throws TCCacheException;
+
+    /**
+     * remove everything that was stored at an address with any of the given tags
+     *
+     * @param tags the tags to remove
+     * @return the number of values removed
+     * @throws TCCacheException if there is a problem, or the implementation doesn't keep tags
+     * @see com.topcoder.web.common.cache.address.TaggedAddress
+     */
+    public int invalidateByTag(String[] tags) throws TCCacheException;
+
+    /**
+     * remove every key that starts with any of the given prefixes
+     *
+     * @param prefixes the key prefixes to remove
+     * @return the number of values removed
+     * @throws TCCacheException if there is a problem, or the implementation can't do it
+     */
+    public int invalidateByPrefix(String[] prefixes) throws TCCacheException;
+
     /**
      * @throws TCCacheException if there is a problem
      */
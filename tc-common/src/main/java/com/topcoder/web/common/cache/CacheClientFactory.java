@@ -13,8 +13,13 @@ public class CacheClientFactory {
 
     public static CacheClient create() {
         try {
-            return (CacheClient)Class.forName(b.getProperty("cache_client_class",
+            CacheClient client = (CacheClient)Class.forName(b.getProperty("cache_client_class",
                     JbossCacheClient.class.getName())).newInstance();
+            if (client instanceof DistCacheClient && NearCache.isEnabled()) {
+                //the near cache is kept up to date by the distCache server, so it only goes in front of that
+                return new NearCacheClient(client, NearCache.getInstance());
+            }
+            return client;
         } catch (ClassNotFoundException e) {
             throw new RuntimeException(e);
         } catch (IllegalAccessException e) {
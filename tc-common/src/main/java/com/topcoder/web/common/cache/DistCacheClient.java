@@ -1,10 +1,14 @@
 package com.topcoder.web.common.cache;
 
+import com.topcoder.shared.dataAccess.RequestCoalescer;
 import com.topcoder.shared.distCache.CacheClientFactory;
 import com.topcoder.web.common.cache.address.CacheAddress;
+import com.topcoder.web.common.cache.address.TaggedAddress;
 
 import java.rmi.RemoteException;
+import java.util.Collection;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -37,16 +41,16 @@ public class DistCacheClient implements CacheClient {
     }
 
     public void set(CacheAddress address, Object value) throws TCCacheException {
-        try {
-            cache.set(address.getKey(), value, MaxAge.MAX.age());
-        } catch (RemoteException e) {
-            throw new TCCacheException(e);
-        }
+        set(address, value, MaxAge.MAX);
     }
 
     public void set(CacheAddress address, Object value, MaxAge maxAge) throws TCCacheException {
         try {
-            cache.set(address.getKey(), value, maxAge.age());
+            if (address instanceof TaggedAddress) {
+                cache.set(address.getKey(), value, maxAge.age(), ((TaggedAddress) address).getTags());
+            } else {
+                cache.set(address.getKey(), value, maxAge.age());
+            }
         } catch (RemoteException e) {
             throw new TCCacheException(e);
         }
@@ -68,12 +72,18 @@ public class DistCacheClient implements CacheClient {
         }
     }
 
+    public Object get(CacheAddress address, MaxAge maxAge) throws TCCacheException {
+        return get(address);
+    }
+
     public Object remove(String key) throws TCCacheException {
 
         try {
             return cache.remove(key);
         } catch (RemoteException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().invalidate(key);
         }
     }
 
@@ -82,6 +92,59 @@ public class DistCacheClient implements CacheClient {
             return cache.remove(address.getKey());
         } catch (RemoteException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().invalidate(address.getKey());
+        }
+    }
+
+    public Map getAll(Collection keys) throws TCCacheException {
+        try {
+            return cache.getAll(keys);
+        } catch (RemoteException e) {
+            throw new TCCacheException(e);
+        }
+    }
+
+    public void setAll(Map values, MaxAge maxAge) throws TCCacheException {
+        try {
+            cache.setAll(values, maxAge.age());
+        } catch (RemoteException e) {
+            throw new TCCacheException(e);
+        }
+    }
+
+    public void removeAll(Collection keys) throws TCCacheException {
+        try {
+            cache.removeAll(keys);
+        } catch (RemoteException e) {
+            throw new TCCacheException(e);
+        } finally {
+            for (Object key : keys) {
+                RequestCoalescer.getInstance().invalidate((String) key);
+            }
+        }
+    }
+
+    public int invalidateByTag(String[] tags) throws TCCacheException {
+        try {
+            return cache.invalidateByTag(tags);
+        } catch (RemoteException e) {
+            throw new TCCacheException(e);
+        } finally {
+            //we don't know which keys had the tags
+            RequestCoalescer.getInstance().clear();
+        }
+    }
+
+    public int invalidateByPrefix(String[] prefixes) throws TCCacheException {
+        try {
+            return cache.invalidateByPrefix(prefixes);
+        } catch (RemoteException e) {
+            throw new TCCacheException(e);
+        } finally {
+            for (int i = 0; i < prefixes.length; i++) {
+                RequestCoalescer.getInstance().invalidateLike(prefixes[i]);
+            }
         }
     }
 
@@ -90,6 +153,8 @@ public class DistCacheClient implements CacheClient {
             cache.clearCache();
         } catch (RemoteException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().clear();
         }
     }
 
@@ -1,5 +1,6 @@
 package com.topcoder.web.common.cache;
 
+import com.topcoder.shared.dataAccess.RequestCoalescer;
 import com.topcoder.shared.util.TCResourceBundle;
 import com.topcoder.web.common.cache.address.CacheAddress;
 import com.topcoder.web.common.cache.address.jboss.JbossCacheAddress;
@@ -8,6 +9,10 @@ import org.jboss.cache.Fqn;
 import org.jboss.cache.TreeCacheMBean;
 
 import javax.naming.NamingException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -46,13 +51,10 @@ public class JbossCacheClient implements CacheClient {
         }
     }
 
-/*    public void set(String key, Object value, MaxAge maxAge) throws TCCacheException {
-        try {
-            cache.put(Fqn.fromString("/" + maxAge.name() + "/" + key), key, value);
-        } catch (CacheException e) {
-            throw new TCCacheException(e);
-        }
-    }*/
+    public void set(String key, Object value, MaxAge maxAge) throws TCCacheException {
+        //kept where get(String) looks, how long it stays is up to the cache configuration
+        set(key, value);
+    }
 
     public void set(CacheAddress address, Object value) throws TCCacheException {
         try {
@@ -86,11 +88,17 @@ public class JbossCacheClient implements CacheClient {
         }
     }
 
+    public Object get(CacheAddress address, MaxAge maxAge) throws TCCacheException {
+        return get(address);
+    }
+
     public Object remove(String key) throws TCCacheException {
         try {
             return cache.remove(Fqn.fromString("/" + MaxAge.MAX.name() + "/" + key), key);
         } catch (CacheException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().invalidate(key);
         }
     }
 
@@ -99,7 +107,45 @@ public class JbossCacheClient implements CacheClient {
             return cache.remove(Fqn.fromString(((JbossCacheAddress) address).getFqn()), address.getKey());
         } catch (CacheException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().invalidate(address.getKey());
+        }
+    }
+
+    /**
+     * the tree cache is local, so there is no trip to save, the keys are just looked up one by one.
+     */
+    public Map getAll(Collection keys) throws TCCacheException {
+        Map ret = new HashMap();
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            String key = (String) it.next();
+            Object value = get(key);
+            if (value != null) {
+                ret.put(key, value);
+            }
         }
+        return ret;
+    }
+
+    public void setAll(Map values, MaxAge maxAge) throws TCCacheException {
+        for (Iterator it = values.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            set((String) entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void removeAll(Collection keys) throws TCCacheException {
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            remove((String) it.next());
+        }
+    }
+
+    public int invalidateByTag(String[] tags) throws TCCacheException {
+        throw new TCCacheException("tags are not kept in jboss cache, use CacheAdmin.removelike");
+    }
+
+    public int invalidateByPrefix(String[] prefixes) throws TCCacheException {
+        throw new TCCacheException("prefixes are not indexed in jboss cache, use CacheAdmin.removelike");
     }
 
     public void clearCache() throws TCCacheException {
@@ -107,6 +153,8 @@ public class JbossCacheClient implements CacheClient {
             cache.removeData(Fqn.ROOT);
         } catch (CacheException e) {
             throw new TCCacheException(e);
+        } finally {
+            RequestCoalescer.getInstance().clear();
         }
     }
 
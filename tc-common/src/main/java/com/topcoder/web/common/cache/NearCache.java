@@ -0,0 +1,429 @@
+package com.topcoder.web.common.cache;
+
+import com.topcoder.shared.dataAccess.RequestCoalescer;
+import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
+import com.topcoder.shared.distCache.CacheSubscriber;
+import com.topcoder.shared.util.TCResourceBundle;
+import com.topcoder.shared.util.logging.Logger;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A small cache kept in this JVM in front of the distCache server, so that values that are
+ * read over and over on a web node don't cost an RMI call each time.
+ * <p/>
+ * Copies are kept for a short time at most and are thrown away as soon as the cache server
+ * says their key changed.  For that, the near cache subscribes to the server as a
+ * {@link CacheSubscriber}, which means the server must be able to make RMI calls back to this
+ * JVM.  Until the subscription is in place nothing is kept, and if it is lost everything is
+ * thrown away.
+ * <p/>
+ * Copies are kept serialized, and every <code>get</code> returns a new object, because
+ * callers change what they get, sorting result sets in place for example.
+ * <p/>
+ * The size is limited by weight rather than by number of values.  A value weighs one, plus
+ * the number of cells (rows including the header, times columns) of each result set in it.
+ * <p/>
+ * Configured in cache.properties:
+ * <ul>
+ * <li><strong>near_cache_size</strong> - the total weight to keep, 0 (the default) turns the near cache off</li>
+ * <li><strong>near_cache_ttl</strong> - the longest a copy is kept, in milli</li>
+ * <li><strong>near_cache_resubscribe</strong> - how often to renew the subscription, in milli</li>
+ * </ul>
+ *
+ * @version $Revision: 85038 $
+ * @see NearCacheClient
+ */
+public class NearCache {
+    private static final Logger log = Logger.getLogger(NearCache.class);
+    private static final TCResourceBundle bundle = new TCResourceBundle("cache");
+    private static final long MAX_WEIGHT = bundle.getIntProperty("near_cache_size", 0);
+    private static final long TTL = bundle.getIntProperty("near_cache_ttl", 30000);
+    private static final long RESUBSCRIBE = bundle.getIntProperty("near_cache_resubscribe", 30000);
+    private static final int EVICTION_SAMPLE = 8;
+    private static final int STRIPES = 256;
+
+    private static NearCache instance = null;
+
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final AtomicLong weight = new AtomicLong();
+    /* bumped before keys are invalidated, so that a value fetched meanwhile isn't kept.
+       one per stripe of keys, so that invalidating a key doesn't stop the others being kept,
+       and one for all keys, for when we don't know which keys changed */
+    private final AtomicLongArray invalidations = new AtomicLongArray(STRIPES);
+    private final AtomicLong allInvalidations = new AtomicLong();
+    private final Map<MaxAge, Stats> stats = new EnumMap<MaxAge, Stats>(MaxAge.class);
+    private final Object evictLock = new Object();
+    private Iterator<Entry> sampler = null;
+    private volatile boolean subscribed = false;
+
+    private NearCache() {
+        for (MaxAge maxAge : MaxAge.values()) {
+            stats.put(maxAge, new Stats());
+        }
+        Thread t = new Thread(new Maintainer(), "NearCache");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return whether a near cache is configured
+     */
+    public static boolean isEnabled() {
+        return MAX_WEIGHT > 0;
+    }
+
+    /**
+     * @return the near cache of this JVM
+     */
+    public static synchronized NearCache getInstance() {
+        if (instance == null) {
+            instance = new NearCache();
+        }
+        return instance;
+    }
+
+    /**
+     * @param key    the key to look up
+     * @param maxAge the age the value was cached with, for the counters
+     * @return a copy of the value, or null if there is no good copy of it
+     */
+    Object get(String key, MaxAge maxAge) {
+        Entry e = entries.get(key);
+        if (e != null) {
+            if (e.expires > System.currentTimeMillis()) {
+                try {
+                    Object ret = deserialize(e.value);
+                    e.lastAccess = System.currentTimeMillis();
+                    stats.get(maxAge).hits.incrementAndGet();
+                    return ret;
+                } catch (Exception ex) {
+                    log.warn("could not read the near cache copy of " + key + ": " + ex.getMessage());
+                }
+            }
+            removeEntry(e);
+        }
+        stats.get(maxAge).misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * @param key the key that is going to be fetched
+     * @return a stamp to pass to <code>put</code>, take it before fetching the value
+     */
+    long getStamp(String key) {
+        //both only go up, so the sum changes whenever either does
+        return allInvalidations.get() + invalidations.get(stripe(key));
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % STRIPES;
+    }
+
+    /**
+     * Keep a copy of a value fetched from the cache server.
+     *
+     * @param key    the key of the value
+     * @param value  the value
+     * @param maxAge the age the value was cached with
+     * @param stamp  what <code>getStamp</code> returned before the value was fetched
+     */
+    void put(String key, Object value, MaxAge maxAge, long stamp) {
+        if (value == null || !subscribed || !(value instanceof Serializable)) {
+            return;
+        }
+        int w = weigh(value);
+        if (w > MAX_WEIGHT / 4) {
+            //not worth pushing everything else out for
+            return;
+        }
+        byte[] bytes;
+        try {
+            bytes = serialize(value);
+        } catch (IOException ex) {
+            log.warn("could not keep a near cache copy of " + key + ": " + ex.getMessage());
+            return;
+        }
+        Entry e = new Entry(key, bytes, maxAge, w, System.currentTimeMillis() + Math.min(TTL, maxAge.age()));
+        Entry prior = entries.put(key, e);
+        weight.addAndGet(prior == null ? w : w - prior.weight);
+        if (getStamp(key) != stamp) {
+            //something changed while we were fetching, it may have been this value
+            removeEntry(e);
+            return;
+        }
+        if (weight.get() > MAX_WEIGHT) {
+            evict();
+        }
+    }
+
+    /**
+     * Throw away the copy of a key.
+     *
+     * @param key the key
+     * @return whether there was a copy
+     */
+    boolean remove(String key) {
+        invalidations.incrementAndGet(stripe(key));
+        Entry e = entries.remove(key);
+        if (e != null) {
+            weight.addAndGet(-e.weight);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Throw away the copies of keys that start with any of the prefixes.
+     *
+     * @param prefixes the key prefixes
+     */
+    void removeByPrefix(String[] prefixes) {
+        allInvalidations.incrementAndGet();
+        for (Entry e : entries.values()) {
+            for (int i = 0; i < prefixes.length; i++) {
+                if (e.key.startsWith(prefixes[i])) {
+                    removeEntry(e);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Throw away all copies.
+     */
+    void clear() {
+        allInvalidations.incrementAndGet();
+        for (Entry e : entries.values()) {
+            removeEntry(e);
+        }
+    }
+
+    private boolean removeEntry(Entry e) {
+        if (entries.remove(e.key, e)) {
+            weight.addAndGet(-e.weight);
+            return true;
+        }
+        return false;
+    }
+
+    private void evict() {
+        synchronized (evictLock) {
+            while (weight.get() > MAX_WEIGHT && !entries.isEmpty()) {
+                Entry victim = null;
+                for (int i = 0; i < EVICTION_SAMPLE; i++) {
+                    if (sampler == null || !sampler.hasNext()) {
+                        sampler = entries.values().iterator();
+                        if (!sampler.hasNext()) {
+                            break;
+                        }
+                    }
+                    Entry e = sampler.next();
+                    if (victim == null || e.lastAccess < victim.lastAccess) {
+                        victim = e;
+                    }
+                }
+                if (victim != null && removeEntry(victim)) {
+                    stats.get(victim.maxAge).evictions.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private void expire() {
+        long now = System.currentTimeMillis();
+        for (Entry e : entries.values()) {
+            if (e.expires <= now) {
+                removeEntry(e);
+            }
+        }
+    }
+
+    private static byte[] serialize(Object value) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(baos);
+        oos.writeObject(value);
+        oos.close();
+        return baos.toByteArray();
+    }
+
+    private static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
+        try {
+            return ois.readObject();
+        } finally {
+            ois.close();
+        }
+    }
+
+    /**
+     * The weight of a value, one plus the number of cells of each result set in it.
+     *
+     * @param value the value
+     * @return its weight
+     */
+    static int weigh(Object value) {
+        int ret = 1;
+        if (value instanceof Map) {
+            for (Object o : ((Map) value).values()) {
+                if (o instanceof ResultSetContainer) {
+                    ResultSetContainer rsc = (ResultSetContainer) o;
+                    ret += (rsc.size() + 1) * Math.max(rsc.getColumnCount(), 1);
+                } else {
+                    ret++;
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * @return the number of copies kept
+     */
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the total weight of the copies kept
+     */
+    public long getWeight() {
+        return weight.get();
+    }
+
+    /**
+     * @return whether changes are currently being pushed to us by the cache server
+     */
+    public boolean isSubscribed() {
+        return subscribed;
+    }
+
+    /**
+     * @param maxAge the age values were cached with
+     * @return how many lookups found a copy
+     */
+    public long getHits(MaxAge maxAge) {
+        return stats.get(maxAge).hits.get();
+    }
+
+    /**
+     * @param maxAge the age values were cached with
+     * @return how many lookups had to go to the cache server
+     */
+    public long getMisses(MaxAge maxAge) {
+        return stats.get(maxAge).misses.get();
+    }
+
+    /**
+     * @param maxAge the age values were cached with
+     * @return how many copies were thrown away to make room
+     */
+    public long getEvictions(MaxAge maxAge) {
+        return stats.get(maxAge).evictions.get();
+    }
+
+    private static class Entry {
+        private final String key;
+        private final byte[] value;
+        private final MaxAge maxAge;
+        private final int weight;
+        private final long expires;
+        private volatile long lastAccess;
+
+        private Entry(String key, byte[] value, MaxAge maxAge, int weight, long expires) {
+            this.key = key;
+            this.value = value;
+            this.maxAge = maxAge;
+            this.weight = weight;
+            this.expires = expires;
+            this.lastAccess = System.currentTimeMillis();
+        }
+    }
+
+    private static class Stats {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+    }
+
+    /**
+     * Receives the changes pushed by the cache server.
+     */
+    private class Subscriber extends UnicastRemoteObject implements CacheSubscriber {
+        private Subscriber() throws RemoteException {
+            super();
+        }
+
+        public void keysChanged(String[] keys) {
+            for (int i = 0; i < keys.length; i++) {
+                remove(keys[i]);
+                //the change may have been made by another server, the stale values have to go too
+                RequestCoalescer.getInstance().invalidate(keys[i]);
+            }
+        }
+
+        public void cleared() {
+            clear();
+            RequestCoalescer.getInstance().clear();
+        }
+    }
+
+    /**
+     * Keeps the subscription alive and drops expired copies.
+     */
+    private class Maintainer implements Runnable {
+        private Subscriber subscriber = null;
+        private com.topcoder.shared.distCache.CacheClient server = null;
+
+        public void run() {
+            while (true) {
+                try {
+                    subscribe();
+                    expire();
+                } catch (Throwable t) {
+                    log.error("near cache maintenance failed", t);
+                }
+                try {
+                    Thread.sleep(RESUBSCRIBE);
+                } catch (InterruptedException e) {
+                    //keep going, we're a daemon
+                }
+            }
+        }
+
+        private void subscribe() {
+            try {
+                if (subscriber == null) {
+                    subscriber = new Subscriber();
+                }
+                if (server == null) {
+                    server = com.topcoder.shared.distCache.CacheClientFactory.createCacheClient();
+                }
+                if (server.subscribe(subscriber) && subscribed) {
+                    //the server forgot about us, we may have missed changes
+                    log.warn("near cache subscription was lost, clearing");
+                    clear();
+                }
+                subscribed = true;
+            } catch (Exception e) {
+                log.warn("near cache could not subscribe to the cache server: " + e.getMessage());
+                subscribed = false;
+                clear();
+            }
+        }
+    }
+}
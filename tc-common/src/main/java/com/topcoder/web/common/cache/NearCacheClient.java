@@ -0,0 +1,164 @@
+package com.topcoder.web.common.cache;
+
+import com.topcoder.web.common.cache.address.CacheAddress;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache client that looks in the {@link NearCache} of this JVM before going to the
+ * cache server.  Writes go straight through to the server, and the local copy of what
+ * was written is thrown away right away rather than waiting for the server to say so.
+ *
+ * @version $Revision: 85038 $
+ * @see CacheClientFactory
+ */
+public class NearCacheClient implements CacheClient {
+
+    private final CacheClient cache;
+    private final NearCache near;
+
+    /**
+     * @param cache the client for the cache server
+     * @param near  the near cache
+     */
+    public NearCacheClient(CacheClient cache, NearCache near) {
+        this.cache = cache;
+        this.near = near;
+    }
+
+    public void set(String key, Object value) throws TCCacheException {
+        cache.set(key, value);
+        near.remove(key);
+    }
+
+    public void set(String key, Object value, MaxAge maxAge) throws TCCacheException {
+        cache.set(key, value, maxAge);
+        near.remove(key);
+    }
+
+    public void set(CacheAddress address, Object value) throws TCCacheException {
+        cache.set(address, value);
+        near.remove(address.getKey());
+    }
+
+    public void set(CacheAddress address, Object value, MaxAge maxAge) throws TCCacheException {
+        cache.set(address, value, maxAge);
+        near.remove(address.getKey());
+    }
+
+    public Object get(String key) throws TCCacheException {
+        Object ret = near.get(key, MaxAge.MAX);
+        if (ret == null) {
+            long stamp = near.getStamp(key);
+            ret = cache.get(key);
+            near.put(key, ret, MaxAge.MAX, stamp);
+        }
+        return ret;
+    }
+
+    public Object get(CacheAddress address) throws TCCacheException {
+        return get(address, MaxAge.MAX);
+    }
+
+    public Object get(CacheAddress address, MaxAge maxAge) throws TCCacheException {
+        Object ret = near.get(address.getKey(), maxAge);
+        if (ret == null) {
+            long stamp = near.getStamp(address.getKey());
+            ret = cache.get(address, maxAge);
+            near.put(address.getKey(), ret, maxAge, stamp);
+        }
+        return ret;
+    }
+
+    public Object remove(String key) throws TCCacheException {
+        try {
+            return cache.remove(key);
+        } finally {
+            near.remove(key);
+        }
+    }
+
+    public Object remove(CacheAddress address) throws TCCacheException {
+        try {
+            return cache.remove(address);
+        } finally {
+            near.remove(address.getKey());
+        }
+    }
+
+    public Map getAll(Collection keys) throws TCCacheException {
+        Map ret = new HashMap();
+        List missing = new ArrayList();
+        Map<String, Long> stamps = new HashMap<String, Long>();
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            String key = (String) it.next();
+            Object value = near.get(key, MaxAge.MAX);
+            if (value == null) {
+                missing.add(key);
+                stamps.put(key, near.getStamp(key));
+            } else {
+                ret.put(key, value);
+            }
+        }
+        if (!missing.isEmpty()) {
+            Map fetched = cache.getAll(missing);
+            for (Iterator it = fetched.entrySet().iterator(); it.hasNext();) {
+                Map.Entry entry = (Map.Entry) it.next();
+                String key = (String) entry.getKey();
+                near.put(key, entry.getValue(), MaxAge.MAX, stamps.get(key));
+            }
+            ret.putAll(fetched);
+        }
+        return ret;
+    }
+
+    public void setAll(Map values, MaxAge maxAge) throws TCCacheException {
+        try {
+            cache.setAll(values, maxAge);
+        } finally {
+            for (Iterator it = values.keySet().iterator(); it.hasNext();) {
+                near.remove((String) it.next());
+            }
+        }
+    }
+
+    public void removeAll(Collection keys) throws TCCacheException {
+        try {
+            cache.removeAll(keys);
+        } finally {
+            for (Iterator it = keys.iterator(); it.hasNext();) {
+                near.remove((String) it.next());
+            }
+        }
+    }
+
+    public int invalidateByTag(String[] tags) throws TCCacheException {
+        try {
+            return cache.invalidateByTag(tags);
+        } finally {
+            //we don't know which keys had the tags, the server will say but don't wait for it
+            near.clear();
+        }
+    }
+
+    public int invalidateByPrefix(String[] prefixes) throws TCCacheException {
+        try {
+            return cache.invalidateByPrefix(prefixes);
+        } finally {
+            near.removeByPrefix(prefixes);
+        }
+    }
+
+    public void clearCache() throws TCCacheException {
+        try {
+            cache.clearCache();
+        } finally {
+            near.clear();
+        }
+    }
+}
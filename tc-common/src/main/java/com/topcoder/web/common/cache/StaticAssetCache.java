@@ -0,0 +1,85 @@
+package com.topcoder.web.common.cache;
+
+import com.topcoder.shared.util.ApplicationServer;
+import com.topcoder.shared.util.logging.Logger;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the static files of the site (images and such, under /i) that pages
+ * put in what they generate, so that they are downloaded once per server rather
+ * than on every use.
+ * <p/>
+ * A file is looked up on the classpath first, in case it is packaged with the
+ * application, then fetched from <code>ApplicationServer.SERVER_NAME</code>.
+ * Files are kept for an hour, so that changes to them show up.
+ *
+ * @version $Revision: 60470 $
+ */
+public class StaticAssetCache {
+    private static final Logger log = Logger.getLogger(StaticAssetCache.class);
+
+    private static final long MAX_AGE = 60 * 60 * 1000;
+
+    private static final Map<String, Asset> assets = new ConcurrentHashMap<String, Asset>();
+
+    private StaticAssetCache() {
+    }
+
+    /**
+     * @param path the path of the file on the site, for example /i/profiles/topcoder_logo_footer.jpg
+     * @return the content of the file, which must not be changed
+     * @throws IOException if the file can't be found or read
+     */
+    public static byte[] get(String path) throws IOException {
+        Asset asset = assets.get(path);
+        if (asset == null || asset.loaded + MAX_AGE < System.currentTimeMillis()) {
+            //two threads may both load it, that's fine
+            asset = new Asset(load(path));
+            assets.put(path, asset);
+        }
+        return asset.content;
+    }
+
+    /**
+     * Forget all the files, so that they are loaded again.
+     */
+    public static void clear() {
+        assets.clear();
+    }
+
+    private static byte[] load(String path) throws IOException {
+        InputStream is = StaticAssetCache.class.getResourceAsStream(path);
+        if (is == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("fetching " + path + " from " + ApplicationServer.SERVER_NAME);
+            }
+            is = new URL("http://" + ApplicationServer.SERVER_NAME + path).openStream();
+        }
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) >= 0) {
+                baos.write(buf, 0, n);
+            }
+            return baos.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+
+    private static class Asset {
+        private final byte[] content;
+        private final long loaded = System.currentTimeMillis();
+
+        private Asset(byte[] content) {
+            this.content = content;
+        }
+    }
+}
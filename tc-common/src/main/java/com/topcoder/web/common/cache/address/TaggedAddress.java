@@ -0,0 +1,16 @@
+package com.topcoder.web.common.cache.address;
+
+/**
+ * An address that also says what the value stored there is about, so that the cache can
+ * remove it together with everything else about the same thing.
+ *
+ * @version $Revision: 85038 $
+ * @see com.topcoder.web.common.cache.CacheClient#invalidateByTag
+ */
+public interface TaggedAddress extends CacheAddress {
+
+    /**
+     * @return the tags of the value at this address
+     */
+    String[] getTags();
+}
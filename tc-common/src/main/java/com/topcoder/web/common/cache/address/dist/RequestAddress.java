@@ -1,28 +1,44 @@
 package com.topcoder.web.common.cache.address.dist;
 
+import com.topcoder.shared.dataAccess.DataAccessConstants;
 import com.topcoder.shared.dataAccess.RequestInt;
-import com.topcoder.web.common.cache.address.CacheAddress;
+import com.topcoder.web.common.cache.address.TaggedAddress;
 
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 
 /**
+ * The address of the results of a request.  The key is made of the request's properties in
+ * order, the command first so that all the results of a command share a key prefix.  Each
+ * property value is a tag.
+ *
  * @author dok
  * @version $Revision: 60728 $ Date: 2005/01/01 00:00:00
  *          Create Date: May 8, 2007
  */
-public class RequestAddress implements CacheAddress {
+public class RequestAddress implements TaggedAddress {
 
     private String key;
+    private String[] tags;
 
     public RequestAddress(RequestInt request) {
         key = parseKey(request);
+        tags = parseTags(request);
     }
 
 
     private String parseKey(RequestInt request) {
         StringBuilder b = new StringBuilder(100);
         TreeMap t = new TreeMap(request.getProperties());
+        Object command = t.remove(DataAccessConstants.COMMAND);
+        if (command != null) {
+            b.append("/");
+            b.append(DataAccessConstants.COMMAND);
+            b.append("=");
+            b.append(command);
+        }
         Map.Entry entry;
         for (Object o : t.entrySet()) {
             entry = (Map.Entry) o;
@@ -34,8 +50,20 @@ public class RequestAddress implements CacheAddress {
         return b.toString();
     }
 
+    private String[] parseTags(RequestInt request) {
+        Set<String> ret = new HashSet<String>();
+        for (Object value : request.getProperties().values()) {
+            ret.add(String.valueOf(value));
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
 
     public String getKey() {
         return key;
     }
+
+    public String[] getTags() {
+        return tags;
+    }
 }
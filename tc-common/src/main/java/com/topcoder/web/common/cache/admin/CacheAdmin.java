@@ -1,5 +1,11 @@
 package com.topcoder.web.common.cache.admin;
 
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.naming.InitialContext;
@@ -10,6 +16,8 @@ import org.jboss.cache.Fqn;
 import org.jboss.cache.TreeCacheMBean;
 import org.jboss.system.ServiceMBeanSupport;
 
+import com.topcoder.shared.distCache.CacheClient;
+import com.topcoder.shared.distCache.CacheClientFactory;
 import com.topcoder.shared.util.TCContext;
 import com.topcoder.shared.util.TCResourceBundle;
 import com.topcoder.shared.util.logging.Logger;
@@ -243,6 +251,37 @@ public class CacheAdmin extends ServiceMBeanSupport implements CacheAdminMBean {
         }
     }
 
+    public String memoryOverview() {
+        try {
+            CacheClient cache = CacheClientFactory.createCacheClient();
+            List<Map.Entry<String, long[]>> usage =
+                    new ArrayList<Map.Entry<String, long[]>>(((Map<String, long[]>) cache.getMemoryUsage()).entrySet());
+            Collections.sort(usage, new Comparator<Map.Entry<String, long[]>>() {
+                public int compare(Map.Entry<String, long[]> a, Map.Entry<String, long[]> b) {
+                    return a.getValue()[1] > b.getValue()[1] ? -1 : a.getValue()[1] < b.getValue()[1] ? 1 : 0;
+                }
+            });
+            long count = 0;
+            long bytes = 0;
+            for (Map.Entry<String, long[]> e : usage) {
+                count += e.getValue()[0];
+                bytes += e.getValue()[1];
+            }
+            StringBuilder sb = new StringBuilder(100 + usage.size() * 60);
+            sb.append("total: ").append(count).append(" values, ").append(bytes / 1024).append(" KB\n");
+            for (Map.Entry<String, long[]> e : usage) {
+                sb.append(e.getKey()).append(": ").append(e.getValue()[0]).append(" values, ");
+                sb.append(e.getValue()[1] / 1024).append(" KB");
+                if (bytes > 0) {
+                    sb.append(" (").append(e.getValue()[1] * 100 / bytes).append("%)");
+                }
+                sb.append("\n");
+            }
+            return sb.toString();
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
     public String getName() {
         return "JBoss Cache Admin";
@@ -26,4 +26,11 @@ public interface CacheAdminMBean extends ServiceMBean {
 
     String sizeOverview();
 
+    /**
+     * The memory used in the distCache server(s), by key prefix, biggest first.
+     *
+     * @return one line per prefix with the number of values and their size
+     */
+    String memoryOverview();
+
 }
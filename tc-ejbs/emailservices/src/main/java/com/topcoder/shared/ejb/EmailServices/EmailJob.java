@@ -3,6 +3,7 @@ package com.topcoder.shared.ejb.EmailServices;
 import javax.ejb.EJBObject;
 import java.rmi.RemoteException;
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -294,6 +295,23 @@ public interface EmailJob extends EJBObject {
      */
     String getJobDetailData(int jobId, int jobDetailId) throws RemoteException;
 
+    /**
+     * Returns the next page of a job's detail records that haven't been
+     * sent yet, with their data, in jobDetailId order.  Passing the last
+     * jobDetailId of a page returns the page after it, so a job can be
+     * read through in pages without counting offsets, and a job that is
+     * started again picks up where it left off.
+     *
+     * Each element of the list is an array of {Integer jobDetailId, String data}.
+     *
+     * @param jobId
+     * @param afterJobDetailId only records after this one, 0 for the first page
+     * @param maxRecords the most records to return
+     * @return     the records, an empty list when there are no more
+     * @throws RemoteException
+     */
+    List getPendingJobDetails(int jobId, int afterJobDetailId, int maxRecords) throws RemoteException;
+
     /**
      * Returns true if the job's detail records have been archived.
      *
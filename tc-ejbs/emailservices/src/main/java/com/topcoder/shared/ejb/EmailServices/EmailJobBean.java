@@ -7,8 +7,10 @@ import com.topcoder.shared.util.IdGeneratorClient;
 import com.topcoder.shared.util.logging.Logger;
 
 import javax.ejb.EJBException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -913,6 +915,66 @@ public class EmailJobBean extends BaseEJB {
         return ret;
     }
 
+    /**
+     * @param jobId
+     * @param afterJobDetailId
+     * @param maxRecords
+     * @return
+     * @throws EJBException
+     */
+    public List getPendingJobDetails(int jobId, int afterJobDetailId, int maxRecords) throws EJBException {
+        javax.naming.Context ctx = null;
+        java.sql.Connection conn = null;
+        java.sql.PreparedStatement ps = null;
+        java.sql.ResultSet rs = null;
+        StringBuffer sqlStmt = new StringBuffer(500);
+        List ret = new ArrayList(maxRecords);
+
+        log.info("getPendingJobDetails requested for jobId " + jobId
+                + " after " + afterJobDetailId + " (" + maxRecords + ")");
+
+        try {
+            conn = DBMS.getConnection();
+
+            sqlStmt.setLength(0);
+            sqlStmt.append(" SELECT");
+            sqlStmt.append(" sched_job_detail_id");
+            sqlStmt.append(",");
+            sqlStmt.append(" data");
+            sqlStmt.append(" FROM");
+            sqlStmt.append(" sched_job_detail");
+            sqlStmt.append(" WHERE");
+            sqlStmt.append(" sched_job_id = ?");
+            sqlStmt.append(" AND");
+            sqlStmt.append(" sched_job_detail_id > ?");
+            sqlStmt.append(" AND");
+            sqlStmt.append(" sched_job_detail_status_id = ?");
+            sqlStmt.append(" ORDER BY");
+            sqlStmt.append(" sched_job_detail_id");
+            ps = conn.prepareStatement(sqlStmt.toString());
+            ps.setInt(1, jobId);
+            ps.setInt(2, afterJobDetailId);
+            ps.setInt(3, EmailServer.MSG_NONE);
+            ps.setMaxRows(maxRecords);
+            rs = ps.executeQuery();
+            for (; rs.next();) {
+                byte[] bytes = rs.getBytes(2);
+                ret.add(new Object[]{new Integer(rs.getInt(1)), bytes == null ? null : new String(bytes)});
+            }
+        } catch (Exception dberr) {
+            String err = "Failed to get pending details for job " + jobId;
+            log.error(err, dberr);
+            throw new EJBException(err, dberr);
+        } finally {
+            DBMS.close(rs);
+            DBMS.close(ps);
+            DBMS.close(conn);
+            ApplicationServer.close(ctx);
+        }
+
+        return ret;
+    }
+
     /**
      * @param jobId
      * @return
@@ -150,6 +150,17 @@ public interface EmailServer extends EJBObject {
      */
     public void setDetailStatus(int jobId, int detailId, int status, String reason) throws RemoteException;
 
+    /**
+     * Changes the status of several job detail records at once, in one
+     * batch of updates.  The arrays are parallel, one entry per record.
+     * @param jobId
+     * @param detailIds
+     * @param statuses
+     * @param reasons
+     * @throws RemoteException
+     */
+    public void setDetailStatuses(int jobId, int[] detailIds, int[] statuses, String[] reasons) throws RemoteException;
+
     /**
      * Marks the job as having been built so we don't try to build it again.
      * @param jobId
@@ -368,6 +368,61 @@ public class EmailServerBean extends BaseEJB {
         }
     }
 
+    /**
+     * @param jobId
+     * @param detailIds
+     * @param statuses
+     * @param reasons
+     * @throws EJBException
+     */
+    public void setDetailStatuses(int jobId, int[] detailIds, int[] statuses, String[] reasons) throws EJBException {
+        javax.naming.Context ctx = null;
+        java.sql.Connection conn = null;
+        java.sql.PreparedStatement ps = null;
+        StringBuffer sqlStmt = new StringBuffer(500);
+
+        log.debug("setDetailStatuses (jobId " + jobId + ", " + detailIds.length + " details)");
+
+        try {
+            conn = getConnection();
+
+            sqlStmt.setLength(0);
+            sqlStmt.append(" UPDATE");
+            sqlStmt.append(" sched_job_detail");
+            sqlStmt.append(" SET");
+            sqlStmt.append(" sched_job_detail_status_id = ?");
+            sqlStmt.append(",");
+            sqlStmt.append(" reason = ?");
+            sqlStmt.append(" WHERE");
+            sqlStmt.append(" sched_job_id = ?");
+            sqlStmt.append(" AND");
+            sqlStmt.append(" sched_job_detail_id = ?");
+            ps = conn.prepareStatement(sqlStmt.toString());
+            for (int i = 0; i < detailIds.length; i++) {
+                ps.setInt(1, statuses[i]);
+                ps.setString(2, reasons[i]);
+                ps.setInt(3, jobId);
+                ps.setInt(4, detailIds[i]);
+                ps.addBatch();
+            }
+            int[] rows = ps.executeBatch();
+            for (int i = 0; i < rows.length; i++) {
+                if (rows[i] == 0) {
+                    log.debug("The update of detail " + detailIds[i] + " had no effect."
+                            + " Most likely the job detail record does not exist.");
+                }
+            }
+        } catch (Exception dberr) {
+            String err = "Failed to update job statuses";
+            log.error(err, dberr);
+            throw new EJBException(err, dberr);
+        } finally {
+            DBMS.close(ps);
+            DBMS.close(conn);
+            ApplicationServer.close(ctx);
+        }
+    }
+
     /**
      * @param jobId
      * @throws EJBException
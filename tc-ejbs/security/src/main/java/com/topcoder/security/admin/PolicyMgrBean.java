@@ -2,6 +2,7 @@ package com.topcoder.security.admin;
 
 import com.topcoder.security.*;
 import com.topcoder.security.policy.GenericPermission;
+import com.topcoder.security.policy.PermissionCache;
 import com.topcoder.security.policy.PermissionCollection;
 import com.topcoder.security.policy.TCPermission;
 import org.apache.log4j.Logger;
@@ -117,6 +118,7 @@ public class PolicyMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateRoles();
             close(ps);
             close(ps2);
             close(conn);
@@ -160,6 +162,7 @@ public class PolicyMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateRoles();
             close(ps);
             close(conn);
             close(ctx);
@@ -6,6 +6,7 @@ package com.topcoder.security.admin;
 import com.topcoder.security.*;
 import com.topcoder.security.ldap.LDAPClient;
 import com.topcoder.security.ldap.LDAPClientException;
+import com.topcoder.security.policy.PermissionCache;
 import com.topcoder.util.idgenerator.IDGenerationException;
 import com.topcoder.util.idgenerator.IDGenerator;
 import com.topcoder.util.idgenerator.IDGeneratorFactory;
@@ -411,6 +412,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateUser(user.getId());
             close(ps1);
             close(ps2);
             close(ps3);
@@ -592,6 +594,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateRoles();
             close(ps1);
             close(ps2);
             close(ps3);
@@ -654,6 +657,7 @@ public class PrincipalMgrBean extends BaseEJB {
             e.printStackTrace();
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateUser(user.getId());
             close(ps);
             close(ps2);
             close(rs);
@@ -688,6 +692,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateUser(user.getId());
             close(ps);
             close(conn);
             close(ctx);
@@ -815,6 +820,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateAll();
             close(ps1);
             close(ps2);
             close(ps3);
@@ -864,6 +870,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (NamingException e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateUser(user.getId());
             close(ps);
             close(ps2);
             close(conn);
@@ -890,6 +897,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateUser(user.getId());
             close(ps);
             close(conn);
             close(ctx);
@@ -931,6 +939,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (NamingException e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateRoles();
             close(ps);
             close(ps2);
             close(conn);
@@ -957,6 +966,7 @@ public class PrincipalMgrBean extends BaseEJB {
         } catch (Exception e) {
             throw new GeneralSecurityException(e);
         } finally {
+            PermissionCache.invalidateRoles();
             close(ps);
             close(conn);
             close(ctx);
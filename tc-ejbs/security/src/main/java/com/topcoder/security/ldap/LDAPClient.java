@@ -19,6 +19,8 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static com.topcoder.security.ldap.LDAPConstants.MEMBER_PROFILE_PROPERTY_HANDLE;
 import static com.topcoder.security.ldap.LDAPConstants.MEMBER_PROFILE_PROPERTY_PASSWORD;
@@ -31,6 +33,8 @@ import static com.topcoder.security.ldap.LDAPConstants.BIND_DN;
 import static com.topcoder.security.ldap.LDAPConstants.BIND_PASSWORD;
 import static com.topcoder.security.ldap.LDAPConstants.CONNECTION_FACTORY;
 import static com.topcoder.security.ldap.LDAPConstants.TOPCODER_MEMBER_STATUS_ACTIVE;
+import static com.topcoder.security.ldap.LDAPConstants.MEMBER_CACHE_SIZE;
+import static com.topcoder.security.ldap.LDAPConstants.MEMBER_CACHE_TTL;
 import static com.topcoder.util.net.ldap.sdkinterface.LDAPSDKConnection.SCOPE_ONE;
 
 /**
@@ -57,8 +61,17 @@ import static com.topcoder.util.net.ldap.sdkinterface.LDAPSDKConnection.SCOPE_ON
  *   </ol>
  * </p>
  *
+ * <p>
+ * Version 1.2 Change notes:
+ *   <ol>
+ *     <li>Authentication uses the connections of {@link LDAPConnectionPool} instead of opening new ones.</li>
+ *     <li>The entries found for member handles are cached for <code>member_cache_ttl</code> milliseconds, and are
+ *     removed when this client changes them.</li>
+ *   </ol>
+ * </p>
+ *
  * @author isv
- * @version 1.1 (LDAP Authentication Release Assembly v1.0)
+ * @version 1.2 (LDAP Authentication Release Assembly v1.0)
  */
 public class LDAPClient {
 
@@ -122,6 +135,16 @@ public class LDAPClient {
      */
     private static final Logger log = Logger.getLogger(LDAPClient.class);
 
+    /**
+     * <p>A <code>Map</code> of the <code>LDAP</code> entries recently found for member handles.</p>
+     */
+    private static final Map<String, CachedEntry> memberCache = new ConcurrentHashMap<String, CachedEntry>();
+
+    /**
+     * <p>Counts the changes to member entries, so that an entry found while one was made isn't cached.</p>
+     */
+    private static final AtomicLong cacheGeneration = new AtomicLong();
+
     /**
      * <p>A <code>LDAPSDKConnection</code> providing connection to target <code>LDAP</code> server.</p>
      */
@@ -137,6 +160,9 @@ public class LDAPClient {
      * <p>Authenticates <code>TopCoder</code> member to <code>LDAP</code> server using the specified credentials. If
      * authentication is successful then member profile ID is returned otherwise an exception is raised.</p>
      *
+     * <p>The member entry is looked up with a connection from the service pool, or taken from the member cache, and
+     * the member is bound with a connection from the user pool, so that a login doesn't open new connections.</p>
+     *
      * @param handle a <code>String</code> providing the <code>TopCoder</code> member handle to be used for
      *        authentication.
      * @param password a <code>String</code> providing the password to be used for authentication.
@@ -146,55 +172,45 @@ public class LDAPClient {
      *         user account is authenticated successfully but account is not of <code>Active</code> status.
      */
     public static long authenticateTopCoderMember(String handle, String password) throws LDAPClientException {
-
-        LDAPSDKConnection ldapConnection = null;
-        try {
-            final LDAPClient client = new LDAPClient();
-            client.connect();
-            String userEntryDN;
-            Entry userEntry;
+        Entry userEntry = lookupTopCoderMember(handle);
+        LDAPConnectionPool pool = LDAPConnectionPool.getUserPool();
+        while (true) {
+            LDAPConnectionPool.Lease lease = pool.borrow();
+            boolean reuse = false;
             try {
-                userEntry = client.findTopCoderMemberEntryByUserHandle(handle);
-                userEntryDN = userEntry.getDn();
+                lease.getConnection().authenticate(userEntry.getDn(), password);
+                reuse = true;
+                break;
+            } catch (LDAPSDKAccessDeniedException e) {
+                if (LDAP_RESPONSE_CODE_INVALID_CREDENTIALS.equals(e.getErrorCode())) {
+                    reuse = true;
+                    // the cached entry may be out of date, e.g. the handle was given to another user
+                    memberCache.remove(handle);
+                    log.debug("User " + handle + " failed to pass authentication against LDAP server", e);
+                    throw LDAPClientException.createInvalidCredentialsException(handle);
+                } else {
+                    log.error("Failed to authenticate user " + handle + " due to unexpected error", e);
+                    throw LDAPClientException.createUnexpectedErrorException(e);
+                }
+            } catch (LDAPSDKException e) {
+                if (!lease.isReused()) {
+                    log.error("Failed to authenticate user " + handle + " due to unexpected error", e);
+                    throw LDAPClientException.createUnexpectedErrorException(e);
+                }
+                log.debug("Pooled LDAP connection failed, retrying with another one", e);
             } finally {
-                client.disconnect();
+                pool.release(lease, reuse);
             }
+        }
 
-            LDAPSDK sdk = new LDAPSDK(CONNECTION_FACTORY);
-            ldapConnection = sdk.createSSLConnection();
-            ldapConnection.connect(HOST, PORT);
-            ldapConnection.authenticate(userEntryDN, password);
-            String userStatus = getStatus(userEntry);
-            if (USER_STATUS_ACTIVE.equals(userStatus)) {
-                log.info("Authenticated user " + handle + " against LDAP server successfully");
-                return getUserID(userEntry);
-            } else {
-                log.debug("Rejected successful authentication against LDAP server for user " + handle
-                          + " due to not Active user account status");
-                throw LDAPClientException.createUserNotActiveException(handle);
-            }
-        } catch (ClassNotFoundException e) {
-            log.error("Failed to instantiate the LDAPSDKFactory instance", e);
-            throw LDAPClientException.createUnexpectedErrorException(e);
-        } catch (LDAPSDKAccessDeniedException e) {
-            if (LDAP_RESPONSE_CODE_INVALID_CREDENTIALS.equals(e.getErrorCode())) {
-                log.debug("User " + handle + " failed to pass authentication against LDAP server", e);
-                throw LDAPClientException.createInvalidCredentialsException(handle);
-            } else {
-                log.error("Failed to authenticate user " + handle + " due to unexpected error", e);
-                throw LDAPClientException.createUnexpectedErrorException(e);
-            }
-        } catch (LDAPSDKException e) {
-            log.error("Failed to authenticate user " + handle + " due to unexpected error", e);
-            throw LDAPClientException.createUnexpectedErrorException(e);
-        } finally {
-            if (ldapConnection != null) {
-                try {
-                    ldapConnection.disconnect();
-                } catch (LDAPSDKException e) {
-                    log.warn("Failed to disconnect from LDAP server successfully", e);
-                }
-            }
+        String userStatus = getStatus(userEntry);
+        if (USER_STATUS_ACTIVE.equals(userStatus)) {
+            log.info("Authenticated user " + handle + " against LDAP server successfully");
+            return getUserID(userEntry);
+        } else {
+            log.debug("Rejected successful authentication against LDAP server for user " + handle
+                      + " due to not Active user account status");
+            throw LDAPClientException.createUserNotActiveException(handle);
         }
     }
 
@@ -211,33 +227,89 @@ public class LDAPClient {
      * @since 1.1
      */
     public static long authenticateTopCoderMember(String handle) throws LDAPClientException {
-        LDAPSDKConnection ldapConnection = null;
-        try {
-            final LDAPClient client = new LDAPClient();
-            client.connect();
-            Entry userEntry;
+        Entry userEntry = lookupTopCoderMember(handle);
+        String userStatus = getStatus(userEntry);
+        if (USER_STATUS_ACTIVE.equals(userStatus)) {
+            log.info("Authenticated user " + handle + " based on just a username against LDAP server successfully");
+            return getUserID(userEntry);
+        } else {
+            log.debug("Rejected successful authentication just by username against LDAP server for user " + handle
+                      + " due to not Active user account status");
+            throw LDAPClientException.createUserNotActiveException(handle);
+        }
+    }
+
+    /**
+     * <p>Gets the <code>LDAP</code> entry for <code>TopCoder</code> member profile matching the specified handle,
+     * from the member cache if it was found recently, otherwise with a connection from the service pool.</p>
+     *
+     * @param handle a <code>String</code> providing the handle for the <code>TopCoder</code> member account.
+     * @return an <code>Entry</code> providing the data for <code>LDAP</code> entry matching the specified handle.
+     * @throws LDAPClientException if an unexpected error occurs or respective <code>LDAP</code> entry is not found.
+     */
+    private static Entry lookupTopCoderMember(String handle) throws LDAPClientException {
+        CachedEntry cached = memberCache.get(handle);
+        if (cached != null && cached.loaded + MEMBER_CACHE_TTL > System.currentTimeMillis()) {
+            return cached.entry;
+        }
+
+        long generation = cacheGeneration.get();
+        Entry userEntry;
+        LDAPConnectionPool pool = LDAPConnectionPool.getServicePool();
+        while (true) {
+            LDAPConnectionPool.Lease lease = pool.borrow();
+            boolean reuse = false;
             try {
-                userEntry = client.findTopCoderMemberEntryByUserHandle(handle);
+                userEntry = findTopCoderMemberEntryByUserHandle(lease.getConnection(), handle);
+                reuse = true;
+                break;
+            } catch (LDAPSDKException e) {
+                if (!lease.isReused()) {
+                    throw LDAPClientException.createUnexpectedErrorException(e);
+                }
+                log.debug("Pooled LDAP connection failed, retrying with another one", e);
             } finally {
-                client.disconnect();
+                pool.release(lease, reuse);
             }
+        }
+        if (userEntry == null) {
+            throw LDAPClientException.createUserHandleNotFoundException(handle);
+        }
 
-            String userStatus = getStatus(userEntry);
-            if (USER_STATUS_ACTIVE.equals(userStatus)) {
-                log.info("Authenticated user " + handle + " based on just a username against LDAP server successfully");
-                return getUserID(userEntry);
-            } else {
-                log.debug("Rejected successful authentication just by username against LDAP server for user " + handle
-                          + " due to not Active user account status");
-                throw LDAPClientException.createUserNotActiveException(handle);
+        if (memberCache.size() >= MEMBER_CACHE_SIZE) {
+            pruneMemberCache();
+        }
+        if (generation == cacheGeneration.get()) {
+            memberCache.put(handle, new CachedEntry(userEntry));
+        }
+        return userEntry;
+    }
+
+    /**
+     * <p>Removes the expired entries from the member cache, or all of them if that isn't enough.</p>
+     */
+    private static void pruneMemberCache() {
+        long oldest = System.currentTimeMillis() - MEMBER_CACHE_TTL;
+        for (Iterator<CachedEntry> it = memberCache.values().iterator(); it.hasNext();) {
+            if (it.next().loaded <= oldest) {
+                it.remove();
             }
-        } finally {
-            if (ldapConnection != null) {
-                try {
-                    ldapConnection.disconnect();
-                } catch (LDAPSDKException e) {
-                    log.warn("Failed to disconnect from LDAP server successfully", e);
-                }
+        }
+        if (memberCache.size() >= MEMBER_CACHE_SIZE) {
+            memberCache.clear();
+        }
+    }
+
+    /**
+     * <p>Removes the entry for the specified member from the member cache, after it has been changed.</p>
+     *
+     * @param userId a <code>long</code> providing the ID of a user.
+     */
+    private static void forgetTopCoderMember(long userId) {
+        cacheGeneration.incrementAndGet();
+        for (Iterator<CachedEntry> it = memberCache.values().iterator(); it.hasNext();) {
+            if (getUserID(it.next().entry) == userId) {
+                it.remove();
             }
         }
     }
@@ -349,6 +421,7 @@ public class LDAPClient {
             String entryDN = buildTopCoderMemberEntryDN(userId);
             this.ldapConnection.deleteEntry(entryDN);
             log.info("Deleted LDAP entry: " + entryDN);
+            forgetTopCoderMember(userId);
         } catch (LDAPSDKNoSuchObjectException e) {
             log.warn("LDAP entry not found for deletion: " + userId);
             // Ignore this exception.
@@ -396,6 +469,7 @@ public class LDAPClient {
         try {
             this.ldapConnection.updateEntry(userLDAPEntryDN, update);
             log.info("Successfully changed handle for LDAP entry " + userLDAPEntryDN + " to " + newHandle);
+            forgetTopCoderMember(userId);
         } catch (LDAPSDKException e) {
             log.error("Failed to change handle for LDAP entry " + userLDAPEntryDN + " due to unexpected error");
             throw LDAPClientException.createUnexpectedErrorException(e);
@@ -418,6 +492,7 @@ public class LDAPClient {
             this.ldapConnection.updateEntry(userLDAPEntryDN, update);
             log.info("Successfully changed status for LDAP entry " + userLDAPEntryDN + " to "
                      + TOPCODER_MEMBER_STATUS_ACTIVE);
+            forgetTopCoderMember(userId);
         } catch (LDAPSDKException e) {
             log.error("Failed to change status for LDAP entry " + userLDAPEntryDN + " due to unexpected error");
             throw LDAPClientException.createUnexpectedErrorException(e);
@@ -440,6 +515,7 @@ public class LDAPClient {
         try {
             this.ldapConnection.updateEntry(userLDAPEntryDN, update);
             log.info("Successfully changed status for LDAP entry " + userLDAPEntryDN + " to " + newStatus);
+            forgetTopCoderMember(userId);
         } catch (LDAPSDKException e) {
             log.error("Failed to change status for LDAP entry " + userLDAPEntryDN + " due to unexpected error");
             throw LDAPClientException.createUnexpectedErrorException(e);
@@ -449,31 +525,26 @@ public class LDAPClient {
     /**
      * <p>Finds the <code>LDAP</code> entry for <code>TopCoder</code> member profile matching the specified handle.</p>
      *
+     * @param ldapConnection a <code>LDAPSDKConnection</code> bound with the service account.
      * @param handle a <code>String</code> providing the handle for the <code>TopCoder</code> member account to find the
      *        matching <code>LDAP</code> entry for.
      * @return an <code>Entry</code> providing the data for <code>LDAP</code> entry matching the specified
-     *         <code>TopCoder</code> member profile ID.
-     * @throws LDAPClientException if an unexpected error occurs or respective <code>LDAP</code> entry is not found.
+     *         <code>TopCoder</code> member handle, or <code>null</code> if there is none.
+     * @throws LDAPSDKException if an unexpected error occurs.
      */
-    private Entry findTopCoderMemberEntryByUserHandle(String handle)
-        throws LDAPClientException {
+    private static Entry findTopCoderMemberEntryByUserHandle(LDAPSDKConnection ldapConnection, String handle)
+        throws LDAPSDKException {
 
-        Iterator iterator = null;
-        try {
-            String[] returnAttributes
-                = EXPORTED_MEMBER_PROFILE_ATTRIBUTES.toArray(new String[EXPORTED_MEMBER_PROFILE_ATTRIBUTES.size()]);
+        String[] returnAttributes
+            = EXPORTED_MEMBER_PROFILE_ATTRIBUTES.toArray(new String[EXPORTED_MEMBER_PROFILE_ATTRIBUTES.size()]);
 
-            iterator = this.ldapConnection.search(TOPCODER_MEMBER_BASE_DN, SCOPE_ONE,
+        Iterator iterator = ldapConnection.search(TOPCODER_MEMBER_BASE_DN, SCOPE_ONE,
                                                   MEMBER_PROFILE_PROPERTY_HANDLE + "=" + escapeLDAPSearchFilter(handle),
                                                   returnAttributes);
-            if (iterator.hasNext()) {
-                Entry userEntry = (Entry) iterator.next();
-                return userEntry;
-            } else {
-                throw LDAPClientException.createUserHandleNotFoundException(handle);
-            }
-        } catch (LDAPSDKException e) {
-            throw LDAPClientException.createUnexpectedErrorException(e);
+        if (iterator.hasNext()) {
+            return (Entry) iterator.next();
+        } else {
+            return null;
         }
     }
 
@@ -605,4 +676,29 @@ public class LDAPClient {
         }
         return b.toString();
     }
+
+    /**
+     * <p>An <code>LDAP</code> entry found for a member handle, and when it was found.</p>
+     */
+    private static class CachedEntry {
+
+        /**
+         * <p>The entry.</p>
+         */
+        private final Entry entry;
+
+        /**
+         * <p>When the entry was found.</p>
+         */
+        private final long loaded = System.currentTimeMillis();
+
+        /**
+         * <p>Constructs new <code>CachedEntry</code> instance.</p>
+         *
+         * @param entry the entry.
+         */
+        private CachedEntry(Entry entry) {
+            this.entry = entry;
+        }
+    }
 }
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2010 TopCoder Inc., All Rights Reserved.
+ */
+package com.topcoder.security.ldap;
+
+import com.topcoder.shared.util.logging.Logger;
+import com.topcoder.util.net.ldap.sdkinterface.LDAPSDK;
+import com.topcoder.util.net.ldap.sdkinterface.LDAPSDKConnection;
+import com.topcoder.util.net.ldap.sdkinterface.LDAPSDKException;
+
+import java.util.LinkedList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.topcoder.security.ldap.LDAPConstants.BIND_DN;
+import static com.topcoder.security.ldap.LDAPConstants.BIND_PASSWORD;
+import static com.topcoder.security.ldap.LDAPConstants.CONNECTION_FACTORY;
+import static com.topcoder.security.ldap.LDAPConstants.HOST;
+import static com.topcoder.security.ldap.LDAPConstants.POOL_IDLE_TIME;
+import static com.topcoder.security.ldap.LDAPConstants.POOL_SIZE;
+import static com.topcoder.security.ldap.LDAPConstants.POOL_WAIT;
+import static com.topcoder.security.ldap.LDAPConstants.PORT;
+
+/**
+ * <p>A bounded pool of SSL connections to <code>LDAP</code> server, used by {@link LDAPClient} for authenticating
+ * <code>TopCoder</code> members without opening new connections for every login.</p>
+ *
+ * <p>There are two pools. The connections of the <code>service</code> pool are bound with the configured
+ * <code>bind_dn</code> and are used for looking up member entries. The connections of the <code>user</code> pool
+ * are bound as a member for checking their password, and are bound again as the next member when reused. At most
+ * <code>pool_size</code> connections of a pool are in use at a time, a caller waits up to <code>pool_wait</code>
+ * milliseconds for one. A connection unused for <code>pool_idle_time</code> milliseconds is closed.</p>
+ *
+ * <p>The pools count the connections they open, how often they are used, and how long callers wait for them, so
+ * that these can be monitored.</p>
+ *
+ * <p><b>Thread safety:</b> This class is thread-safe.</p>
+ *
+ * @version 1.0
+ */
+public class LDAPConnectionPool {
+
+    /**
+     * <p>A <code>Logger</code> to be used for logging the events.</p>
+     */
+    private static final Logger log = Logger.getLogger(LDAPConnectionPool.class);
+
+    /**
+     * <p>The pool of connections bound with the configured service account.</p>
+     */
+    private static final LDAPConnectionPool servicePool = new LDAPConnectionPool("service", true);
+
+    /**
+     * <p>The pool of connections used for binding as members.</p>
+     */
+    private static final LDAPConnectionPool userPool = new LDAPConnectionPool("user", false);
+
+    /**
+     * <p>A <code>String</code> naming this pool in logs.</p>
+     */
+    private final String name;
+
+    /**
+     * <p>Whether new connections are bound with the configured service account.</p>
+     */
+    private final boolean service;
+
+    /**
+     * <p>A <code>Semaphore</code> with a permit for each connection which may be in use.</p>
+     */
+    private final Semaphore permits;
+
+    /**
+     * <p>The connections not in use, the most recently used first.</p>
+     */
+    private final LinkedList<Lease> idle = new LinkedList<Lease>();
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong discards = new AtomicLong();
+
+    /**
+     * <p>Constructs new <code>LDAPConnectionPool</code> instance.</p>
+     *
+     * @param name a <code>String</code> naming the pool in logs.
+     * @param service <code>true</code> if connections are to be bound with the service account.
+     */
+    private LDAPConnectionPool(String name, boolean service) {
+        this.name = name;
+        this.service = service;
+        this.permits = new Semaphore(Math.max(POOL_SIZE, 1), true);
+    }
+
+    /**
+     * <p>Gets the pool of connections bound with the configured service account.</p>
+     *
+     * @return the service pool.
+     */
+    public static LDAPConnectionPool getServicePool() {
+        return servicePool;
+    }
+
+    /**
+     * <p>Gets the pool of connections used for binding as members.</p>
+     *
+     * @return the user pool.
+     */
+    public static LDAPConnectionPool getUserPool() {
+        return userPool;
+    }
+
+    /**
+     * <p>Takes a connection from this pool, opening a new one if none is idle. The connection must be given back
+     * with {@link #release(Lease, boolean)}.</p>
+     *
+     * @return a <code>Lease</code> for the connection.
+     * @throws LDAPClientException if no connection becomes available in time or a new connection could not be
+     *         opened.
+     */
+    Lease borrow() throws LDAPClientException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(POOL_WAIT, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                log.warn("No connection available in " + name + " LDAP pool after " + POOL_WAIT + " ms");
+                throw LDAPClientException.createUnexpectedErrorException(
+                    new IllegalStateException("Timed out waiting for LDAP connection"));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw LDAPClientException.createUnexpectedErrorException(e);
+        } finally {
+            waitNanos.addAndGet(System.nanoTime() - start);
+        }
+        borrows.incrementAndGet();
+
+        Lease lease = takeIdle();
+        if (lease != null) {
+            return lease;
+        }
+        try {
+            return new Lease(open());
+        } catch (LDAPClientException e) {
+            permits.release();
+            throw e;
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Gives a connection back to this pool.</p>
+     *
+     * @param lease the <code>Lease</code> returned by {@link #borrow()}.
+     * @param reuse <code>true</code> if the connection may be used again; <code>false</code> if it failed and is to
+     *        be closed.
+     */
+    void release(Lease lease, boolean reuse) {
+        try {
+            if (reuse) {
+                lease.reused = true;
+                lease.released = System.currentTimeMillis();
+                synchronized (idle) {
+                    idle.addFirst(lease);
+                }
+            } else {
+                discards.incrementAndGet();
+                close(lease.connection);
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * <p>Takes the most recently used idle connection, closing the ones unused for too long.</p>
+     *
+     * @return a <code>Lease</code> for an idle connection, or <code>null</code> if there is none.
+     */
+    private Lease takeIdle() {
+        LinkedList<Lease> expired = null;
+        Lease lease = null;
+        long oldest = System.currentTimeMillis() - POOL_IDLE_TIME;
+        synchronized (idle) {
+            while (!idle.isEmpty() && idle.getLast().released < oldest) {
+                if (expired == null) {
+                    expired = new LinkedList<Lease>();
+                }
+                expired.add(idle.removeLast());
+            }
+            if (!idle.isEmpty()) {
+                lease = idle.removeFirst();
+            }
+        }
+        if (expired != null) {
+            for (Lease l : expired) {
+                close(l.connection);
+            }
+        }
+        return lease;
+    }
+
+    /**
+     * <p>Opens a new SSL connection to <code>LDAP</code> server, bound with the service account for the service
+     * pool.</p>
+     *
+     * @return the connection.
+     * @throws LDAPClientException if the connection could not be opened.
+     */
+    private LDAPSDKConnection open() throws LDAPClientException {
+        LDAPSDKConnection connection = null;
+        try {
+            LDAPSDK sdk = new LDAPSDK(CONNECTION_FACTORY);
+            connection = sdk.createSSLConnection();
+            connection.connect(HOST, PORT);
+            handshakes.incrementAndGet();
+            if (service) {
+                connection.authenticate(BIND_DN, BIND_PASSWORD);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("Opened connection for " + name + " LDAP pool: " + this);
+            }
+            return connection;
+        } catch (ClassNotFoundException e) {
+            log.error("Failed to instantiate the LDAPSDKFactory instance", e);
+            throw LDAPClientException.createUnexpectedErrorException(e);
+        } catch (LDAPSDKException e) {
+            log.error("Failed to connect to LDAP server due to unexpected error : " + e);
+            close(connection);
+            throw LDAPClientException.createUnexpectedErrorException(e);
+        }
+    }
+
+    /**
+     * <p>Disconnects the specified connection, ignoring errors.</p>
+     *
+     * @param connection the connection, may be <code>null</code>.
+     */
+    private static void close(LDAPSDKConnection connection) {
+        if (connection != null) {
+            try {
+                connection.disconnect();
+            } catch (LDAPSDKException e) {
+                log.warn("Failed to disconnect from LDAP server successfully", e);
+            }
+        }
+    }
+
+    /**
+     * <p>Gets the number of connections this pool has opened, each costing an SSL handshake.</p>
+     *
+     * @return the number of connections opened.
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * <p>Gets the number of times a connection was taken from this pool.</p>
+     *
+     * @return the number of borrows.
+     */
+    public long getBorrows() {
+        return borrows.get();
+    }
+
+    /**
+     * <p>Gets the total time callers have waited for connections of this pool.</p>
+     *
+     * @return the wait time in milliseconds.
+     */
+    public long getWaitTime() {
+        return waitNanos.get() / 1000000;
+    }
+
+    /**
+     * <p>Gets the number of times a caller gave up waiting for a connection of this pool.</p>
+     *
+     * @return the number of timeouts.
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * <p>Gets the number of connections closed after failing.</p>
+     *
+     * @return the number of discarded connections.
+     */
+    public long getDiscards() {
+        return discards.get();
+    }
+
+    /**
+     * <p>Gets the number of connections of this pool in use.</p>
+     *
+     * @return the number of connections in use.
+     */
+    public int getActive() {
+        return Math.max(POOL_SIZE, 1) - permits.availablePermits();
+    }
+
+    /**
+     * <p>Gets the number of open connections of this pool not in use.</p>
+     *
+     * @return the number of idle connections.
+     */
+    public int getIdle() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    /**
+     * <p>Gets the statistics of this pool.</p>
+     *
+     * @return a <code>String</code> with the statistics.
+     */
+    public String toString() {
+        long n = Math.max(getBorrows(), 1);
+        return name + " pool: " + getActive() + " active, " + getIdle() + " idle, " + getHandshakes()
+               + " handshakes, " + getBorrows() + " borrows, " + getWaitTime() / n + " ms average wait, "
+               + getTimeouts() + " timeouts, " + getDiscards() + " discards";
+    }
+
+    /**
+     * <p>A connection taken from a pool.</p>
+     */
+    static class Lease {
+
+        /**
+         * <p>The connection to <code>LDAP</code> server.</p>
+         */
+        private final LDAPSDKConnection connection;
+
+        /**
+         * <p>Whether the connection was used before, and so may have been closed by the server since.</p>
+         */
+        private boolean reused = false;
+
+        /**
+         * <p>When the connection was last given back to the pool.</p>
+         */
+        private long released;
+
+        /**
+         * <p>Constructs new <code>Lease</code> instance.</p>
+         *
+         * @param connection the connection.
+         */
+        private Lease(LDAPSDKConnection connection) {
+            this.connection = connection;
+        }
+
+        /**
+         * @return the connection.
+         */
+        LDAPSDKConnection getConnection() {
+            return connection;
+        }
+
+        /**
+         * @return <code>true</code> if the connection was used before.
+         */
+        boolean isReused() {
+            return reused;
+        }
+    }
+}
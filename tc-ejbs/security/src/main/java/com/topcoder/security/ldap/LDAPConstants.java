@@ -92,6 +92,36 @@ public class LDAPConstants {
      */
     public static String TOPCODER_MEMBER_STATUS_ACTIVE;
 
+    /**
+     * <p>An <code>int</code> providing the maximum number of connections kept open to <code>LDAP</code> server by
+     * each of the pools used for authenticating <code>TopCoder</code> members.</p>
+     */
+    public static int POOL_SIZE = 8;
+
+    /**
+     * <p>An <code>int</code> providing the number of milliseconds to wait for a pooled connection to become
+     * available before giving up.</p>
+     */
+    public static int POOL_WAIT = 5000;
+
+    /**
+     * <p>An <code>int</code> providing the number of milliseconds a pooled connection may stay unused before it is
+     * closed.</p>
+     */
+    public static int POOL_IDLE_TIME = 60000;
+
+    /**
+     * <p>An <code>int</code> providing the number of milliseconds the <code>LDAP</code> entry found for a member
+     * handle is kept for authenticating that member again.</p>
+     */
+    public static int MEMBER_CACHE_TTL = 30000;
+
+    /**
+     * <p>An <code>int</code> providing the maximum number of <code>LDAP</code> entries kept for authenticating
+     * members.</p>
+     */
+    public static int MEMBER_CACHE_SIZE = 10000;
+
     /**
      * <p>Initializes non-final static fields for this class with values for the same-named properties from the resource
      * bundle.</p>
@@ -0,0 +1,409 @@
+package com.topcoder.security.policy;
+
+import com.topcoder.security.BaseEJB;
+import com.topcoder.security.GeneralSecurityException;
+import com.topcoder.security.SecurityDB;
+import com.topcoder.security.Util;
+import com.topcoder.shared.util.ApplicationServer;
+import org.apache.log4j.Logger;
+
+import javax.naming.InitialContext;
+import javax.naming.NamingException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps what <code>Policy</code> needs to answer permission checks in memory,
+ * so that a check doesn't cost a query.
+ *
+ * The permissions of each role and the roles of each group are few, and are
+ * loaded all at once.  The roles and groups of a user are loaded the first time
+ * the user is checked.  Both are kept for <code>permission_cache_ttl</code>
+ * milliseconds (5 minutes by default), and are thrown away sooner when
+ * <code>PrincipalMgrBean</code> or <code>PolicyMgrBean</code> change them, through
+ * the <code>invalidate</code> methods.  Those only reach the caches in the same
+ * server, changes made elsewhere show up when the ttl runs out.  Within a
+ * transaction they also run again once it's over, as until it commits a check
+ * would load and keep what the changes replace.
+ *
+ * There is a cache per data source.  The methods in this class are only intended
+ * to be used by classes within the Security Manager component.
+ *
+ * @version 1.0
+ */
+public class PermissionCache {
+
+    private static final Logger log = Logger.getLogger(PermissionCache.class);
+
+    private static final long DEFAULT_TTL = 5 * 60 * 1000;
+    private static final int DEFAULT_SIZE = 10000;
+
+    private static final Map<String, PermissionCache> caches = new ConcurrentHashMap<String, PermissionCache>();
+
+    /**
+     * counts every invalidation, so that a load that raced with one
+     * isn't kept
+     */
+    private static final AtomicLong generation = new AtomicLong();
+
+    private static final String ROLE_QUERY =
+            "SELECT role_id, permission FROM security_perms WHERE security_status_id = ?";
+    private static final String GROUP_QUERY =
+            "SELECT group_id, role_id FROM group_role_xref WHERE security_status_id = ?";
+    private static final String USER_QUERY =
+            "SELECT 1, role_id FROM user_role_xref WHERE login_id = ? AND security_status_id = ?" +
+            " UNION ALL SELECT 2, group_id FROM user_group_xref WHERE login_id = ? AND security_status_id = ?";
+
+    private static volatile TransactionManager transactionManager = null;
+
+    private final String dataSource;
+    private final long ttl;
+    private final int maxUsers;
+    private volatile Model model = null;
+    private final Map<Long, UserRoles> users = new ConcurrentHashMap<Long, UserRoles>();
+
+    private PermissionCache(String dataSource) {
+        this.dataSource = dataSource;
+        this.ttl = getConfig("permission_cache_ttl", DEFAULT_TTL);
+        this.maxUsers = (int) getConfig("permission_cache_size", DEFAULT_SIZE);
+    }
+
+    /**
+     * @param dataSource
+     * @return the cache for the data source
+     */
+    public static PermissionCache getCache(String dataSource) {
+        PermissionCache cache = caches.get(dataSource);
+        if (cache == null) {
+            synchronized (caches) {
+                cache = caches.get(dataSource);
+                if (cache == null) {
+                    cache = new PermissionCache(dataSource);
+                    caches.put(dataSource, cache);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Forget the roles and groups of a user, after they have been changed.
+     *
+     * @param userId
+     */
+    public static void invalidateUser(final long userId) {
+        invalidateAfterCompletion(new Runnable() {
+            public void run() {
+                generation.incrementAndGet();
+                for (PermissionCache cache : caches.values()) {
+                    cache.users.remove(userId);
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget the permissions of the roles and the roles of the groups,
+     * after they have been changed.
+     */
+    public static void invalidateRoles() {
+        invalidateAfterCompletion(new Runnable() {
+            public void run() {
+                generation.incrementAndGet();
+                for (PermissionCache cache : caches.values()) {
+                    cache.model = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Forget everything, after a change that affects many users.
+     */
+    public static void invalidateAll() {
+        invalidateAfterCompletion(new Runnable() {
+            public void run() {
+                generation.incrementAndGet();
+                for (PermissionCache cache : caches.values()) {
+                    cache.model = null;
+                    cache.users.clear();
+                }
+            }
+        });
+    }
+
+    /**
+     * Run an invalidation now, and again once the transaction of the caller is
+     * over, when the changes can be seen by the connections checks load with.
+     *
+     * @param invalidation
+     */
+    private static void invalidateAfterCompletion(final Runnable invalidation) {
+        invalidation.run();
+        try {
+            Transaction tx = getTransactionManager().getTransaction();
+            if (tx != null && tx.getStatus() == Status.STATUS_ACTIVE) {
+                tx.registerSynchronization(new Synchronization() {
+                    public void beforeCompletion() {
+                    }
+
+                    public void afterCompletion(int status) {
+                        invalidation.run();
+                    }
+                });
+            }
+        } catch (Exception e) {
+            log.warn("couldn't invalidate the permission cache after the transaction, " +
+                    "changes may take until the ttl runs out to show up: " + e.getMessage());
+        }
+    }
+
+    private static TransactionManager getTransactionManager() throws NamingException {
+        if (transactionManager == null) {
+            InitialContext ctx = new InitialContext();
+            try {
+                transactionManager = (TransactionManager) ctx.lookup(ApplicationServer.TRANS_MANAGER);
+            } finally {
+                BaseEJB.close(ctx);
+            }
+        }
+        return transactionManager;
+    }
+
+    /**
+     * Check whether the user has all of the permissions, through their roles
+     * or the roles of their groups.
+     *
+     * @param ctx used to reach the data source if something has to be loaded,
+     * if null a context is created for it
+     * @param userId
+     * @param permissions the names of the permissions
+     * @return true if the user has every one of them
+     * @throws GeneralSecurityException if loading fails
+     */
+    public boolean hasPermissions(InitialContext ctx, long userId, Collection<String> permissions)
+            throws GeneralSecurityException {
+        Model m = getModel(ctx);
+        UserRoles user = getUser(ctx, userId);
+
+        Set<Long> roles = new HashSet<Long>(user.roles);
+        for (Long groupId : user.groups) {
+            Set<Long> groupRoles = m.rolesByGroup.get(groupId);
+            if (groupRoles != null) {
+                roles.addAll(groupRoles);
+            }
+        }
+
+        Set<String> missing = new HashSet<String>(permissions);
+        for (Iterator<Long> it = roles.iterator(); it.hasNext() && !missing.isEmpty();) {
+            Set<String> rolePermissions = m.permissionsByRole.get(it.next());
+            if (rolePermissions != null) {
+                missing.removeAll(rolePermissions);
+            }
+        }
+        return missing.isEmpty();
+    }
+
+    private Model getModel(InitialContext ctx) throws GeneralSecurityException {
+        Model m = model;
+        if (m != null && m.loaded + ttl > System.currentTimeMillis()) {
+            return m;
+        }
+        synchronized (this) {
+            m = model;
+            if (m != null && m.loaded + ttl > System.currentTimeMillis()) {
+                return m;
+            }
+            long gen = generation.get();
+            m = loadModel(ctx);
+            if (gen == generation.get()) {
+                model = m;
+            }
+            return m;
+        }
+    }
+
+    private UserRoles getUser(InitialContext ctx, long userId) throws GeneralSecurityException {
+        UserRoles user = users.get(userId);
+        if (user != null && user.loaded + ttl > System.currentTimeMillis()) {
+            return user;
+        }
+        long gen = generation.get();
+        user = loadUser(ctx, userId);
+        if (users.size() >= maxUsers) {
+            prune();
+        }
+        if (gen == generation.get()) {
+            users.put(userId, user);
+        }
+        return user;
+    }
+
+    /**
+     * Drops the users that have expired, or everyone if that isn't enough.
+     */
+    private void prune() {
+        long now = System.currentTimeMillis();
+        for (Iterator<UserRoles> it = users.values().iterator(); it.hasNext();) {
+            if (it.next().loaded + ttl <= now) {
+                it.remove();
+            }
+        }
+        if (users.size() >= maxUsers) {
+            users.clear();
+        }
+    }
+
+    private Model loadModel(InitialContext ctx) throws GeneralSecurityException {
+        Map<Long, Set<String>> permissionsByRole = new HashMap<Long, Set<String>>();
+        Map<Long, Set<Long>> rolesByGroup = new HashMap<Long, Set<Long>>();
+        boolean closeCtx = false;
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            if (ctx == null) {
+                ctx = new InitialContext();
+                closeCtx = true;
+            }
+            conn = Util.getConnection(ctx, dataSource);
+            ps = conn.prepareStatement(ROLE_QUERY);
+            ps.setInt(1, SecurityDB.STATUS_ACTIVE);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Long roleId = new Long(rs.getLong(1));
+                Set<String> permissions = permissionsByRole.get(roleId);
+                if (permissions == null) {
+                    permissions = new HashSet<String>();
+                    permissionsByRole.put(roleId, permissions);
+                }
+                permissions.add(rs.getString(2));
+            }
+            BaseEJB.close(rs);
+            BaseEJB.close(ps);
+
+            ps = conn.prepareStatement(GROUP_QUERY);
+            ps.setInt(1, SecurityDB.STATUS_ACTIVE);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                Long groupId = new Long(rs.getLong(1));
+                Set<Long> roles = rolesByGroup.get(groupId);
+                if (roles == null) {
+                    roles = new HashSet<Long>();
+                    rolesByGroup.put(groupId, roles);
+                }
+                roles.add(new Long(rs.getLong(2)));
+            }
+        } catch (SQLException e) {
+            throw new GeneralSecurityException(e);
+        } catch (NamingException e) {
+            throw new GeneralSecurityException(e);
+        } finally {
+            BaseEJB.close(rs);
+            BaseEJB.close(ps);
+            BaseEJB.close(conn);
+            if (closeCtx) {
+                BaseEJB.close(ctx);
+            }
+        }
+        log.debug("loaded permissions of " + permissionsByRole.size() + " roles and roles of "
+                + rolesByGroup.size() + " groups from " + dataSource);
+        return new Model(permissionsByRole, rolesByGroup);
+    }
+
+    private UserRoles loadUser(InitialContext ctx, long userId) throws GeneralSecurityException {
+        Set<Long> roles = new HashSet<Long>();
+        Set<Long> groups = new HashSet<Long>();
+        boolean closeCtx = false;
+        Connection conn = null;
+        PreparedStatement ps = null;
+        ResultSet rs = null;
+        try {
+            if (ctx == null) {
+                ctx = new InitialContext();
+                closeCtx = true;
+            }
+            conn = Util.getConnection(ctx, dataSource);
+            ps = conn.prepareStatement(USER_QUERY);
+            ps.setLong(1, userId);
+            ps.setInt(2, SecurityDB.STATUS_ACTIVE);
+            ps.setLong(3, userId);
+            ps.setInt(4, SecurityDB.STATUS_ACTIVE);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                if (rs.getInt(1) == 1) {
+                    roles.add(new Long(rs.getLong(2)));
+                } else {
+                    groups.add(new Long(rs.getLong(2)));
+                }
+            }
+        } catch (SQLException e) {
+            throw new GeneralSecurityException(e);
+        } catch (NamingException e) {
+            throw new GeneralSecurityException(e);
+        } finally {
+            BaseEJB.close(rs);
+            BaseEJB.close(ps);
+            BaseEJB.close(conn);
+            if (closeCtx) {
+                BaseEJB.close(ctx);
+            }
+        }
+        return new UserRoles(roles, groups);
+    }
+
+    private static long getConfig(String property, long defaultValue) {
+        try {
+            String value = Util.getProperty(property);
+            if (value != null) {
+                return Long.parseLong(value.trim());
+            }
+        } catch (Exception e) {
+            // not configured, use the default
+        }
+        return defaultValue;
+    }
+
+    /**
+     * The permissions of the roles and the roles of the groups.
+     */
+    private static class Model {
+        private final Map<Long, Set<String>> permissionsByRole;
+        private final Map<Long, Set<Long>> rolesByGroup;
+        private final long loaded = System.currentTimeMillis();
+
+        private Model(Map<Long, Set<String>> permissionsByRole, Map<Long, Set<Long>> rolesByGroup) {
+            this.permissionsByRole = permissionsByRole;
+            this.rolesByGroup = rolesByGroup;
+        }
+    }
+
+    /**
+     * The roles given to a user directly, and the groups the user is in.
+     */
+    private static class UserRoles {
+        private final Set<Long> roles;
+        private final Set<Long> groups;
+        private final long loaded = System.currentTimeMillis();
+
+        private UserRoles(Set<Long> roles, Set<Long> groups) {
+            this.roles = Collections.unmodifiableSet(roles);
+            this.groups = Collections.unmodifiableSet(groups);
+        }
+    }
+}
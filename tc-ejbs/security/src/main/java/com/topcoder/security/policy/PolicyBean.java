@@ -4,9 +4,6 @@ import com.topcoder.security.BaseEJB;
 import com.topcoder.security.GeneralSecurityException;
 import com.topcoder.security.TCSubject;
 
-import javax.naming.InitialContext;
-import javax.naming.NamingException;
-
 /**
  * The Session EJB is a proxy to the Policy object. This should be used by EJB clients.
  *
@@ -31,19 +28,8 @@ public class PolicyBean extends BaseEJB {
                                    TCPermission permission)
             throws GeneralSecurityException {
 
-        InitialContext ctx = null;
-        Policy p = null;
-        boolean ret = false;
-        try {
-            ctx = new InitialContext();
-            p = new Policy(ctx, DATA_SOURCE);
-            ret = p.checkPermission(subject, permission);
-        } catch (NamingException e) {
-            throw new GeneralSecurityException(e);
-        } finally {
-            close(ctx);
-        }
-        return ret;
+        // the cache only looks up the data source when it has to load something
+        return new Policy(DATA_SOURCE).checkPermission(subject, permission);
     }
 
     /**
@@ -58,19 +44,8 @@ public class PolicyBean extends BaseEJB {
                                     PermissionCollection permissions)
             throws GeneralSecurityException {
 
-        InitialContext ctx = null;
-        Policy p = null;
-        boolean ret = false;
-        try {
-            ctx = new InitialContext();
-            p = new Policy(ctx, DATA_SOURCE);
-            ret = p.checkPermissions(subject, permissions);
-        } catch (NamingException e) {
-            throw new GeneralSecurityException(e);
-        } finally {
-            close(ctx);
-        }
-        return ret;
+        // the cache only looks up the data source when it has to load something
+        return new Policy(DATA_SOURCE).checkPermissions(subject, permissions);
     }
 
 }
@@ -0,0 +1,78 @@
+package com.topcoder.shared.email;
+
+import com.topcoder.shared.ejb.EmailServices.EmailServer;
+
+import java.rmi.RemoteException;
+
+/**
+ * The DetailStatusWriter collects the statuses of a job's detail
+ * records and writes them in batches.
+ *
+ * Statuses that haven't been written when a job stops are lost, and
+ * those recipients are sent to again when the job runs again, so the
+ * writer should be flushed before giving up the job and every so often.
+ *
+ * @version  $Revision: 85038 $
+ * @see EmailServer#setDetailStatuses
+ */
+class DetailStatusWriter {
+
+    private final EmailServer server;
+    private final int jobId;
+    private final int[] detailIds;
+    private final int[] statuses;
+    private final String[] reasons;
+    private int count = 0;
+
+    /**
+     * @param server
+     * @param jobId
+     * @param batchSize how many statuses to write at a time
+     */
+    DetailStatusWriter(EmailServer server, int jobId, int batchSize) {
+        this.server = server;
+        this.jobId = jobId;
+        this.detailIds = new int[batchSize];
+        this.statuses = new int[batchSize];
+        this.reasons = new String[batchSize];
+    }
+
+    /**
+     * Adds a status, writing the batch if it is full.
+     * @param detailId
+     * @param status
+     * @param reason
+     * @throws RemoteException
+     */
+    synchronized void add(int detailId, int status, String reason) throws RemoteException {
+        if (count == detailIds.length) {
+            // the last write failed, try it again before there's room
+            flush();
+        }
+        detailIds[count] = detailId;
+        statuses[count] = status;
+        reasons[count] = reason;
+        count++;
+        if (count == detailIds.length) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes the statuses added since the last write.
+     * @throws RemoteException
+     */
+    synchronized void flush() throws RemoteException {
+        if (count == 0) {
+            return;
+        }
+        int[] ids = new int[count];
+        int[] st = new int[count];
+        String[] rs = new String[count];
+        System.arraycopy(detailIds, 0, ids, 0, count);
+        System.arraycopy(statuses, 0, st, 0, count);
+        System.arraycopy(reasons, 0, rs, 0, count);
+        server.setDetailStatuses(jobId, ids, st, rs);
+        count = 0;
+    }
+}
@@ -15,7 +15,9 @@ import java.util.*;
  * remains resident until it is requested that it stop.
  *
  * Email jobs are run in separate threads from the scheduler, so
- * multiple jobs may be processed in parallel.
+ * multiple jobs may be processed in parallel.  Each job sends with
+ * several threads of its own, and all of them share the scheduler's
+ * send rate, see SendRateLimiter.
  *
  * @author   Eric Ellingson
  * @version  $Revision: 37166 $
@@ -28,8 +30,15 @@ public class EmailJobScheduler {
     private String contextProvider = "t3://172.16.20.140:8020";
     private int pollingInterval_msec = 60000;   // how often to recheck the database for new work
     private int maxWorkerThreads = 10;          // how many different tasks to run simultaneously
-    private int maxEmailsPerSec = 100;          // throttle limiter on how many emails to push send in one second
+    private int maxEmailsPerSec = 100;          // throttle limiter on how many emails one job may send in one second
+    private int maxEmailsPerSecTotal = 100;     // throttle limiter on how many emails all jobs together may send in one second
+    private int sendThreads = 4;                // how many threads send the emails of a job
+    private int smtpBackoff_msec = 1000;        // how long a job waits when sending fails repeatedly, doubled each time
+    private int smtpMaxBackoff_msec = 60000;    // the longest a job waits when sending fails
     private int jobTimeout_msec = 300000;       // minimum amount of time to wait before taking over a previously scheduled task
+    private int detailPageSize = 500;           // how many job detail records to read at a time
+    private int statusBatchSize = 100;          // how many job detail statuses to write at a time
+    private final SendRateLimiter rateLimiter = new SendRateLimiter();
 
     // the following are state variables that keep track of the current state of the scheduler
     private long schedulerId = 0;                // used to mark tasks as being worked on, read from the database
@@ -139,6 +148,18 @@ public class EmailJobScheduler {
                 maxEmailsPerSec);
         int newJobTimeout_msec = readConfig(resource, "job_timeout_msec",
                 jobTimeout_msec);
+        int newDetailPageSize = readConfig(resource, "detail_page_size",
+                detailPageSize);
+        int newStatusBatchSize = readConfig(resource, "status_batch_size",
+                statusBatchSize);
+        int newMaxEmailsPerSecTotal = readConfig(resource, "max_emails_per_second",
+                maxEmailsPerSecTotal);
+        int newSendThreads = readConfig(resource, "job_send_threads",
+                sendThreads);
+        int newSmtpBackoff_msec = readConfig(resource, "smtp_backoff_msec",
+                smtpBackoff_msec);
+        int newSmtpMaxBackoff_msec = readConfig(resource, "smtp_max_backoff_msec",
+                smtpMaxBackoff_msec);
 
         // force values into a resonable range or warn for values that don't seem right.
         if (newPollingInterval < 1000)
@@ -178,12 +199,58 @@ public class EmailJobScheduler {
         if (newMaxEmailsPerSec < 1)
             newMaxEmailsPerSec = 1;
 
+        if (newMaxEmailsPerSecTotal < 1)
+            newMaxEmailsPerSecTotal = 1;
+
+        if (newSendThreads < 1)
+            newSendThreads = 1;
+
+        if (newSmtpBackoff_msec < 1)
+            newSmtpBackoff_msec = 1;
+
+        if (newSmtpMaxBackoff_msec < newSmtpBackoff_msec)
+            newSmtpMaxBackoff_msec = newSmtpBackoff_msec;
+
+        if (newDetailPageSize < 1)
+            newDetailPageSize = 1;
+
+        if (newStatusBatchSize < 1)
+            newStatusBatchSize = 1;
+
+        // these are picked up by the next job to start, no restart needed
+        if (newDetailPageSize != detailPageSize
+                || newStatusBatchSize != statusBatchSize) {
+            detailPageSize = newDetailPageSize;
+            statusBatchSize = newStatusBatchSize;
+            log.info("Email detail_page_size: " + detailPageSize);
+            log.info("Email status_batch_size: " + statusBatchSize);
+        }
+
+        // the rate limiter is shared by the running jobs, and they pick up changes as they go
+        if (!configRead
+                || newMaxEmailsPerSec != maxEmailsPerSec
+                || newMaxEmailsPerSecTotal != maxEmailsPerSecTotal
+                || newSendThreads != sendThreads
+                || newSmtpBackoff_msec != smtpBackoff_msec
+                || newSmtpMaxBackoff_msec != smtpMaxBackoff_msec) {
+            maxEmailsPerSec = newMaxEmailsPerSec;
+            maxEmailsPerSecTotal = newMaxEmailsPerSecTotal;
+            sendThreads = newSendThreads;
+            smtpBackoff_msec = newSmtpBackoff_msec;
+            smtpMaxBackoff_msec = newSmtpMaxBackoff_msec;
+            rateLimiter.setRates(maxEmailsPerSecTotal, maxEmailsPerSec, smtpBackoff_msec, smtpMaxBackoff_msec);
+            log.info("Email max_emails_per_second: " + maxEmailsPerSecTotal);
+            log.info("Email max_emails_per_second_per_job: " + maxEmailsPerSec);
+            log.info("Email job_send_threads: " + sendThreads);
+            log.info("Email smtp_backoff_msec: " + smtpBackoff_msec);
+            log.info("Email smtp_max_backoff_msec: " + smtpMaxBackoff_msec);
+        }
+
         if (!configRead
                 || !newContextFactory.equals(contextFactory)
                 || !newContextProvider.equals(contextProvider)
                 || newWorkerThreads != maxWorkerThreads
                 || newPollingInterval != pollingInterval_msec
-                || newMaxEmailsPerSec != maxEmailsPerSec
                 || newJobTimeout_msec != jobTimeout_msec) {
             // profile changed
             if (configRead)
@@ -193,14 +260,12 @@ public class EmailJobScheduler {
             contextProvider = newContextProvider;
             maxWorkerThreads = newWorkerThreads;
             pollingInterval_msec = newPollingInterval;
-            maxEmailsPerSec = newMaxEmailsPerSec;
             jobTimeout_msec = newJobTimeout_msec;
             log.info("Email configuration updated.");
             log.info("Email context_factory: " + contextFactory);
             log.info("Email context_provider: " + contextProvider);
             log.info("Email polling_interval_msec: " + pollingInterval_msec);
             log.info("Email max_worker_threads: " + maxWorkerThreads);
-            log.info("Email max_emails_per_second_per_job: " + maxEmailsPerSec);
             log.info("Email job_timeout_msec: " + jobTimeout_msec);
             startup();
         }
@@ -214,6 +279,38 @@ public class EmailJobScheduler {
         return maxEmailsPerSec;
     }
 
+    /**
+     * Access member for EmailJobScheduler to get the sendThreads config variable
+     * @return
+     */
+    public int getSendThreads() {
+        return sendThreads;
+    }
+
+    /**
+     * Access member for EmailJobScheduler to get the limiter shared by the jobs it runs
+     * @return
+     */
+    SendRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Access member for EmailJobScheduler to get the detailPageSize config variable
+     * @return
+     */
+    public int getDetailPageSize() {
+        return detailPageSize;
+    }
+
+    /**
+     * Access member for EmailJobScheduler to get the statusBatchSize config variable
+     * @return
+     */
+    public int getStatusBatchSize() {
+        return statusBatchSize;
+    }
+
     /**
      * Access member for EmailJobScheduler to get the current schedulerId
      * @return
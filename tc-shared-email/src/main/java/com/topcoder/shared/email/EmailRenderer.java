@@ -0,0 +1,110 @@
+package com.topcoder.shared.email;
+
+import com.topcoder.shared.util.TCSEmailMessage;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.w3c.dom.Text;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Templates;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerConfigurationException;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import javax.xml.transform.stream.StreamSource;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+
+/**
+ * The EmailRenderer turns the XML data of a recipient into the
+ * body of their email, using the XSL template of a job.
+ *
+ * The template is compiled once, when the renderer is created, and the
+ * recipient's XML is parsed once for both the TO address and the
+ * transformation.  A renderer is not thread safe, the compiled template
+ * can be shared by creating renderers with <code>newRenderer</code>.
+ *
+ * @version  $Revision: 85038 $
+ * @see SendEmailTask
+ */
+class EmailRenderer {
+
+    private final Templates templates;
+    private final DocumentBuilder builder;
+
+    /**
+     * Compiles the template.
+     * @param templateXSL
+     * @throws TransformerConfigurationException if the template doesn't compile
+     * @throws ParserConfigurationException
+     */
+    EmailRenderer(String templateXSL)
+            throws TransformerConfigurationException, ParserConfigurationException {
+        this(TransformerFactory.newInstance().newTemplates(new StreamSource(new StringReader(templateXSL))));
+    }
+
+    private EmailRenderer(Templates templates) throws ParserConfigurationException {
+        this.templates = templates;
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        this.builder = factory.newDocumentBuilder();
+    }
+
+    /**
+     * @return another renderer for the same template, for another thread
+     * @throws ParserConfigurationException
+     */
+    EmailRenderer newRenderer() throws ParserConfigurationException {
+        return new EmailRenderer(templates);
+    }
+
+    /**
+     * Sets the TO address and the body of the message from the recipient's data.
+     * @param message
+     * @param memberXML
+     * @throws Exception if the data can't be parsed or transformed
+     */
+    void render(TCSEmailMessage message, String memberXML) throws Exception {
+        Document document = parse(memberXML);
+        message.setToAddress(getEmailAddress(document), TCSEmailMessage.TO);
+
+        Transformer transformer = templates.newTransformer();
+        transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
+        StringWriter msg = new StringWriter();
+        transformer.transform(new DOMSource(document), new StreamResult(msg));
+        message.setBody(msg.toString());
+    }
+
+    private Document parse(String memberXML) throws Exception {
+        try {
+            builder.reset();
+            return builder.parse(new InputSource(new StringReader(memberXML)));
+        } catch (SAXException sxe) {
+            // Error generated during parsing
+            Exception x = sxe;
+            if (sxe.getException() != null)
+                x = sxe.getException();
+            throw new Exception("Failed to parse to address : " + x.toString());
+        } catch (IOException ioe) {
+            throw new Exception("Failed to parse to address : " + ioe.toString());
+        }
+    }
+
+    private static String getEmailAddress(Document document) throws Exception {
+        try {
+            NodeList nodes = document.getElementsByTagName("member");
+            nodes = ((Element) (nodes.item(0))).getElementsByTagName("email_address");
+            return ((Text) (((nodes.item(0))).getFirstChild())).getData();
+        } catch (Exception e) {
+            throw new Exception("Failed to parse TO address : " + e.toString());
+        }
+    }
+}
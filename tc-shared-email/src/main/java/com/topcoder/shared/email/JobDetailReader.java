@@ -0,0 +1,60 @@
+package com.topcoder.shared.email;
+
+import com.topcoder.shared.ejb.EmailServices.EmailJob;
+
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * The JobDetailReader reads the detail records of a job that haven't
+ * been sent yet, a page at a time, so that a job costs a call per page
+ * rather than a call per recipient.
+ *
+ * Pages are read by detail id, so records sent meanwhile and records
+ * whose status hasn't been written yet are not read again.
+ *
+ * @version  $Revision: 85038 $
+ * @see EmailJob#getPendingJobDetails
+ */
+class JobDetailReader {
+
+    private final EmailJob job;
+    private final int jobId;
+    private final int pageSize;
+    private int lastDetailId = 0;
+    private Iterator page = null;
+    private boolean done = false;
+
+    /**
+     * @param job
+     * @param jobId
+     * @param pageSize how many records to read at a time
+     */
+    JobDetailReader(EmailJob job, int jobId, int pageSize) {
+        this.job = job;
+        this.jobId = jobId;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the next record, {Integer jobDetailId, String data}, or null if there are no more
+     * @throws RemoteException
+     */
+    Object[] next() throws RemoteException {
+        if (page == null || !page.hasNext()) {
+            if (done) {
+                return null;
+            }
+            List records = job.getPendingJobDetails(jobId, lastDetailId, pageSize);
+            done = records.size() < pageSize;
+            page = records.iterator();
+            if (!page.hasNext()) {
+                return null;
+            }
+        }
+        Object[] record = (Object[]) page.next();
+        lastDetailId = ((Integer) record[0]).intValue();
+        return record;
+    }
+}
@@ -0,0 +1,64 @@
+package com.topcoder.shared.email;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts what a run of an email job did and how long it took, to
+ * report the rate it sent at.
+ *
+ * @version  $Revision: 85038 $
+ * @see SendEmailTask
+ */
+class JobMetrics {
+
+    private final int jobId;
+    private final long started = System.currentTimeMillis();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong renderNanos = new AtomicLong();
+    private final AtomicLong sendNanos = new AtomicLong();
+
+    JobMetrics(int jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @param renderNanos how long building the message took
+     * @param sendNanos   how long handing it to the SMTP server took
+     * @return the number of messages sent so far
+     */
+    long sent(long renderNanos, long sendNanos) {
+        this.renderNanos.addAndGet(renderNanos);
+        this.sendNanos.addAndGet(sendNanos);
+        return sent.incrementAndGet();
+    }
+
+    void failed() {
+        failed.incrementAndGet();
+    }
+
+    long getSent() {
+        return sent.get();
+    }
+
+    long getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * @return messages sent per second since the run started
+     */
+    double getRate() {
+        long elapsed = Math.max(System.currentTimeMillis() - started, 1);
+        return sent.get() * 1000d / elapsed;
+    }
+
+    public String toString() {
+        long n = Math.max(sent.get(), 1);
+        return "Job " + jobId + ": sent " + sent.get() + ", failed " + failed.get()
+                + " in " + (System.currentTimeMillis() - started) / 1000 + "s, "
+                + ((long) (getRate() * 10)) / 10d + " msgs/sec, render "
+                + renderNanos.get() / n / 1000 + "us/msg, send "
+                + sendNanos.get() / n / 1000 + "us/msg";
+    }
+}
@@ -8,20 +8,15 @@ import com.topcoder.shared.util.EmailEngine;
 import com.topcoder.shared.util.TCSEmailMessage;
 import com.topcoder.shared.util.sql.InformixSimpleDataSource;
 import com.topcoder.shared.util.logging.Logger;
-import org.w3c.dom.*;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 import javax.ejb.CreateException;
 import javax.naming.Context;
 import javax.naming.NamingException;
-import javax.xml.parsers.*;
-import javax.xml.transform.*;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.transform.stream.StreamSource;
-import java.io.*;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * The SendEmailTask is responsible for building the list of email
@@ -39,6 +34,9 @@ public class SendEmailTask extends EmailTask implements Runnable {
 
     private static Logger log = Logger.getLogger(SendEmailTask.class);
 
+    /** how often (in messages sent) to log the progress of a job */
+    private static final int REPORT_INTERVAL = 1000;
+
     /**
      * Creates a new object.  The object will be able to send a set of emails
      * when the run method is called (probably from a new thread).
@@ -59,10 +57,15 @@ public class SendEmailTask extends EmailTask implements Runnable {
      * partial results and then builds the job detail records from the data source,
      * clearing the data source if successful.
      *
-     * Then it scans the detail records, sending an email for each record it finds.
+     * Then it scans the detail records, handing each record it finds to
+     * a pool of sender threads that build and send the emails at the rate
+     * the scheduler allows the job.
      */
     public void doWork() {
         boolean incomplete = true;
+        DetailStatusWriter statuses = null;
+        SendRateLimiter.Share share = null;
+        Senders senders = null;
         try {
             EmailJob job = ((EmailJobHome) ctx.lookup("com.topcoder.shared.ejb.EmailServices.EmailJobHome")).create();
             //EmailList list = ((EmailListHome) ctx.lookup("com.topcoder.shared.ejb.EmailServices.EmailList")).create();
@@ -80,9 +83,6 @@ public class SendEmailTask extends EmailTask implements Runnable {
             String subject = job.getSubject(jobId);
             String templateXSL = template.getData(templateId);
 
-            // The jobThrottle limits how many emails will be sent per second.
-            int jobThrottle = scheduler.getMaxEmailsPerSecond();
-
             // verify that the job is still scheduled for this instance.
             // if not, quit without updating anything.
             if (!verifyJob(server)) {
@@ -90,9 +90,9 @@ public class SendEmailTask extends EmailTask implements Runnable {
                 return;
             }
 
-            TCSEmailMessage message = new TCSEmailMessage();
-            message.setFromAddress(fromAddress, fromPersonal);
-            message.setSubject(subject);
+            // compiled once for the whole job
+            EmailRenderer renderer = new EmailRenderer(templateXSL);
+            JobMetrics metrics = new JobMetrics(jobId);
 
             /* Email jobs have two stages. The first stage builds the job from
              * a list resource (either a static list or a command query).
@@ -107,30 +107,29 @@ public class SendEmailTask extends EmailTask implements Runnable {
                 }
             }
 
-            /* Fetch the job results from the database.
-             * For each receipient that hasn't been sent an email, fetch the
-             * receipient's data from the database and send them an email.
+            /* Read the receipients that haven't been sent an email from the
+             * database, a page at a time, and send them an email.  Their
+             * statuses are written in batches, so the batch is written out
+             * before leaving the job for any reason.
              */
-            Map results = job.getJobDetailResults(jobId);
-            Set detailIds = results.keySet();
-            Iterator detailItr = detailIds.iterator();
-            for (int cycleCount = 0; detailItr.hasNext(); cycleCount++) {
-                if (cycleCount >= jobThrottle) {
-                    long now = new Date().getTime();
-                    long sleepTime = 0;
-                    if (lastCheck < now) sleepTime = now - lastCheck;
-                    if (sleepTime > 1000) sleepTime = 1000; // sleepTime should *NEVER* be more than a second, so just in case the clock got changed, limit it to a 1 second wait.
-                    try {
-                        Thread.sleep(sleepTime);
-                    } catch (InterruptedException e) {
-                        // since catching the exception clears the status. Re-interrupt the thread.
-                        Thread.currentThread().interrupt();
-                    }
-                    cycleCount = 0; // this should also get set to zero in the following check, but to be safe set it here also.
-                }
-
+            JobDetailReader details = new JobDetailReader(job, jobId, scheduler.getDetailPageSize());
+            statuses = new DetailStatusWriter(server, jobId, scheduler.getStatusBatchSize());
+            share = scheduler.getRateLimiter().join(jobId);
+            int threads = scheduler.getSendThreads();
+            senders = new Senders(threads);
+            for (int i = 0; i < threads; i++) {
+                TCSEmailMessage message = new TCSEmailMessage();
+                message.setFromAddress(fromAddress, fromPersonal);
+                message.setSubject(subject);
+                senders.start(new Sender(senders, i == 0 ? renderer : renderer.newRenderer(),
+                        message, share, statuses, metrics));
+            }
+            Object[] detail = null;
+            while (true) {
                 // Check if the thread has been asked to stop.
                 if (Thread.currentThread().isInterrupted()) {
+                    senders.stop();
+                    statuses.flush();
                     server.setJobStatus(jobId, server.READY);
                     incomplete = false;
                     return;
@@ -141,55 +140,61 @@ public class SendEmailTask extends EmailTask implements Runnable {
                 long now = new Date().getTime();
                 if (lastCheck + 1000 < now) {
                     lastCheck = now;
+                    statuses.flush();
                     status = job.getStatusId(jobId);
                     if (status != server.ACTIVE) {
+                        senders.stop();
+                        statuses.flush();
                         incomplete = false;
                         return;
                     }
-                    cycleCount = 0;
 
                     // verify that the job is still scheduled for this instance...
                     if (!verifyJob(server)) {
+                        senders.stop();
+                        statuses.flush();
                         incomplete = false;
                         return;
                     }
                 }
 
-                Object key = detailItr.next();
-                int detailId = 0;
+                if (detail == null) {
+                    detail = details.next();
+                    if (detail == null) break;
+                }
                 try {
-                    // check the status of the next receipient and send an email if necessary
-                    detailId = ((Integer) key).intValue();
-                    int detailStatus = ((Integer) results.get(key)).intValue();
-                    if (detailStatus == server.MSG_NONE) {
-                        String memberXML = job.getJobDetailData(jobId, detailId);
-                        sendMessage(message, templateXSL, memberXML);
-                        server.setDetailStatus(jobId, detailId, server.MSG_SENT, "Sent");
-                        log.info("Job " + jobId + ", Detail " + detailId
-                                + ": sent to ("
-                                + message.getToAddress(TCSEmailMessage.TO)[0]
-                                + ")");
-                    } else {
-                        // no work to do, don't count this receipient in the cycleCount
-                        cycleCount--;
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                    log.warn("Failed to send email to " + key + " (" + e.toString() + ")");
-                    if (detailId != 0) {
-                        // mark as failed for unknown reasons
-                        server.setDetailStatus(jobId, detailId, server.MSG_FAILED, e.toString());
+                    if (senders.offer(detail)) {
+                        detail = null;
                     }
+                } catch (InterruptedException e) {
+                    // since catching the exception clears the status. Re-interrupt the thread.
+                    Thread.currentThread().interrupt();
                 }
             }
+            senders.finish();
+            statuses.flush();
             server.setJobStatus(jobId, server.COMPLETE);
             incomplete = false;
+            log.info(metrics.toString());
 
             // archive records now that the job is done
             server.archiveDetail(jobId);
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
+            if (senders != null) {
+                senders.stop();
+            }
+            if (share != null) {
+                share.leave();
+            }
+            if (incomplete && statuses != null) {
+                // keep what was sent from being sent again
+                try {
+                    statuses.flush();
+                } catch (Exception ignore) {
+                }
+            }
             if (incomplete && ctx != null) {
                 try {
                     EmailServer server = ((EmailServerHome) ctx.lookup("com.topcoder.shared.ejb.EmailServices.EmailServerHome")).create();
@@ -201,96 +206,6 @@ public class SendEmailTask extends EmailTask implements Runnable {
     }
 
 
-    /**
-     * This function assembles and sends a single email for an email job.
-     * @param message
-     * @param templateXSL
-     * @param memberXML
-     * @throws TransformerConfigurationException
-     * @throws Exception
-     */
-    private void sendMessage(TCSEmailMessage message, String templateXSL, String memberXML)
-            throws TransformerConfigurationException, Exception {
-        Reader memberReader = null;
-        Reader templateReader = null;
-        try {
-            TransformerFactory tFactory = TransformerFactory.newInstance();
-            // Get the XML input document and the stylesheet, both in the servlet
-            // engine document directory.
-            memberReader = new StringReader(memberXML);
-            templateReader = new StringReader(templateXSL);
-            Source memberSource = new StreamSource(memberReader);
-            Source templateSource = new StreamSource(templateReader);
-            // Generate the transformer.
-            Transformer transformer = tFactory.newTransformer(templateSource);
-            transformer.setOutputProperty(OutputKeys.ENCODING, "utf-8");
-            // Perform the transformation, sending the output to the response.
-            StringWriter msg = new StringWriter();
-            Result xmlResult = new StreamResult(msg);
-            transformer.transform(memberSource, xmlResult);
-            parseEmail(message, memberXML);
-            message.setBody(msg.toString());
-            EmailEngine.send(message);
-        } finally {
-            try {
-                if (memberReader != null) memberReader.close();
-            } catch (Exception e) {
-            }
-            try {
-                if (templateReader != null) templateReader.close();
-            } catch (Exception e) {
-            }
-        }
-    }
-
-    /**
-     * This function parses the source XML data and fills in the appropriate message
-     * fields (like the TO address).
-     * @param message
-     * @param memberXML
-     * @throws Exception
-     */
-    private void parseEmail(TCSEmailMessage message, String memberXML)
-            throws Exception {
-        //String ret = null;
-        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
-        Reader reader = null;
-        try {
-            DocumentBuilder builder = factory.newDocumentBuilder();
-            reader = new StringReader(memberXML);
-            InputSource source = new InputSource(reader);
-            Document document = builder.parse(source);
-
-            NodeList nodes = document.getElementsByTagName("member");
-            nodes = ((Element) (nodes.item(0))).getElementsByTagName("email_address");
-            String emailAddress = ((Text) (((nodes.item(0))).getFirstChild())).getData();
-            message.setToAddress(emailAddress, TCSEmailMessage.TO);
-        } catch (SAXException sxe) {
-            // Error generated during parsing
-            Exception x = sxe;
-            if (sxe.getException() != null)
-                x = sxe.getException();
-            x.printStackTrace();
-            throw new Exception("Failed to parse to address : " + x.toString());
-        } catch (ParserConfigurationException pce) {
-            // Parser with specified options can't be built
-            pce.printStackTrace();
-            throw new Exception("Failed to parse to address : " + pce.toString());
-        } catch (IOException ioe) {
-            // I/O error
-            ioe.printStackTrace();
-            throw new Exception("Failed to parse to address : " + ioe.toString());
-        } catch (Exception e) {
-            e.printStackTrace();
-            throw new Exception("Failed to parse TO address : " + e.toString());
-        } finally {
-            try {
-                if (reader != null) reader.close();
-            } catch (Exception e) {
-            }
-        }
-    }
-
     /**
      * This function copys the data from a email list to the job detail records.
      * Once it succeeds, the listId is cleared and the job detail records become the
@@ -428,5 +343,175 @@ public class SendEmailTask extends EmailTask implements Runnable {
         }
         server.setJobType(jobId, EmailServer.EMAIL_JOB_TYPE_POST);
     }
-}
 
+    /**
+     * The threads sending the emails of a job, and the queue of
+     * recipients they take their work from.
+     */
+    private static class Senders {
+        /** tells a sender there are no more recipients */
+        private static final Object[] END = new Object[0];
+
+        private final BlockingQueue<Object[]> queue;
+        private final List<Thread> threads = new ArrayList<Thread>();
+
+        Senders(int count) {
+            // enough for each sender to have one waiting
+            queue = new ArrayBlockingQueue<Object[]>(count * 2);
+        }
+
+        void start(Sender sender) {
+            Thread thread = new Thread(sender);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+
+        /**
+         * @param detail a recipient to send to
+         * @return false if the senders are all busy
+         * @throws InterruptedException
+         */
+        boolean offer(Object[] detail) throws InterruptedException {
+            return queue.offer(detail, 100, TimeUnit.MILLISECONDS);
+        }
+
+        Object[] take() throws InterruptedException {
+            return queue.take();
+        }
+
+        /**
+         * Waits for the senders to send to the recipients they have been given.
+         * @throws InterruptedException
+         */
+        void finish() throws InterruptedException {
+            for (int i = 0; i < threads.size(); i++) {
+                queue.put(END);
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            threads.clear();
+        }
+
+        /**
+         * Stops the senders, leaving the recipients they haven't sent to yet.
+         * Returns only once every sender has exited, so that the statuses of
+         * what they sent can all be written out after.  A sender in the middle
+         * of sending an email finishes it first.
+         */
+        void stop() {
+            queue.clear();
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            // we are often stopping because we were interrupted, wait anyway
+            boolean interrupted = Thread.interrupted();
+            for (Thread thread : threads) {
+                while (thread.isAlive()) {
+                    try {
+                        thread.join();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+            threads.clear();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Builds and sends emails for the recipients it takes from the queue,
+     * waiting its turn with the rate limiter before each one.
+     */
+    private class Sender implements Runnable {
+        private final Senders senders;
+        private final EmailRenderer renderer;
+        private final TCSEmailMessage message;
+        private final SendRateLimiter.Share share;
+        private final DetailStatusWriter statuses;
+        private final JobMetrics metrics;
+
+        Sender(Senders senders, EmailRenderer renderer, TCSEmailMessage message,
+               SendRateLimiter.Share share, DetailStatusWriter statuses, JobMetrics metrics) {
+            this.senders = senders;
+            this.renderer = renderer;
+            this.message = message;
+            this.share = share;
+            this.statuses = statuses;
+            this.metrics = metrics;
+        }
+
+        public void run() {
+            try {
+                while (true) {
+                    Object[] detail = senders.take();
+                    if (detail == Senders.END) {
+                        return;
+                    }
+                    try {
+                        send(((Integer) detail[0]).intValue(), (String) detail[1]);
+                    } catch (RuntimeException e) {
+                        // keep going, the job waits for this thread to finish its recipients
+                        log.error("Job " + jobId + ": sender failed on detail " + detail[0], e);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // asked to stop
+            }
+        }
+
+        private void send(int detailId, String memberXML) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                renderer.render(message, memberXML);
+            } catch (Exception e) {
+                failed(detailId, e);
+                return;
+            }
+            long rendered = System.nanoTime();
+
+            share.acquire();
+            long acquired = System.nanoTime();
+            try {
+                EmailEngine.send(message);
+            } catch (Exception e) {
+                long backoff = share.failed();
+                if (backoff > 0) {
+                    log.warn("Job " + jobId + ": sending keeps failing, backing off for " + backoff + " msec");
+                }
+                failed(detailId, e);
+                return;
+            }
+            share.succeeded();
+            long count = metrics.sent(rendered - start, System.nanoTime() - acquired);
+            if (count % REPORT_INTERVAL == 0) {
+                log.info(metrics.toString());
+            }
+            try {
+                log.info("Job " + jobId + ", Detail " + detailId
+                        + ": sent to ("
+                        + message.getToAddress(TCSEmailMessage.TO)[0]
+                        + ")");
+                statuses.add(detailId, EmailServer.MSG_SENT, "Sent");
+            } catch (Exception e) {
+                log.warn("Job " + jobId + ": failed to save the status of detail " + detailId + " (" + e.toString() + ")");
+            }
+        }
+
+        private void failed(int detailId, Exception e) {
+            e.printStackTrace();
+            log.warn("Failed to send email to " + detailId + " (" + e.toString() + ")");
+            metrics.failed();
+            try {
+                // mark as failed for unknown reasons
+                statuses.add(detailId, EmailServer.MSG_FAILED, e.toString());
+            } catch (Exception e1) {
+                log.warn("Job " + jobId + ": failed to save the status of detail " + detailId + " (" + e1.toString() + ")");
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package com.topcoder.shared.email;
+
+import java.util.LinkedList;
+
+/**
+ * The SendRateLimiter holds the emails sent by every job on a scheduler
+ * to one rate, using a token bucket that fills at <code>max_emails_per_second</code>.
+ *
+ * Jobs take turns at the tokens, so each running job gets an even share
+ * of the rate, and a job that isn't using its share leaves it to the
+ * others.  A job is also held to <code>max_emails_per_second_per_job</code>,
+ * and backs off when its messages fail to send, since that usually means
+ * the SMTP server is down or refusing us, and pushing harder doesn't help.
+ *
+ * @version  $Revision: 85038 $
+ * @see SendEmailTask
+ */
+class SendRateLimiter {
+
+    private double rate = 100;
+    private double jobRate = 100;
+    private long backoff = 1000;
+    private long maxBackoff = 60000;
+
+    private double tokens = rate;
+    private long lastFill = System.nanoTime();
+
+    /** the jobs with threads waiting for a token, in the order they get their turn */
+    private final LinkedList<Share> turns = new LinkedList<Share>();
+
+    /**
+     * @param rate        emails per second for the scheduler
+     * @param jobRate     emails per second for a single job
+     * @param backoff     how long a job waits after its second failure in a row, doubled for each one after
+     * @param maxBackoff  the longest a job waits
+     */
+    synchronized void setRates(int rate, int jobRate, long backoff, long maxBackoff) {
+        fill(System.nanoTime());
+        this.rate = rate;
+        this.jobRate = jobRate;
+        this.backoff = backoff;
+        this.maxBackoff = maxBackoff;
+        tokens = Math.min(tokens, rate);
+        notifyAll();
+    }
+
+    /**
+     * @param jobId
+     * @return the job's share of the rate
+     */
+    Share join(int jobId) {
+        return new Share(jobId);
+    }
+
+    private void fill(long now) {
+        tokens = Math.min(rate, tokens + (now - lastFill) * rate / 1e9);
+        lastFill = now;
+    }
+
+    /**
+     * @return the first job in line that may send now, or null if none may
+     */
+    private Share next(long now) {
+        for (Share s : turns) {
+            if (s.ready(now) <= now) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return how long to wait, in nanos, before a token comes in or a job
+     * in line may send again, whichever is first
+     */
+    private long delay(long now) {
+        long delay = tokens >= 1 ? Long.MAX_VALUE : (long) ((1 - tokens) * 1e9 / rate);
+        for (Share s : turns) {
+            long ready = s.ready(now);
+            if (ready > now) {
+                delay = Math.min(delay, ready - now);
+            }
+        }
+        return Math.min(Math.max(delay, 1000000), 1000000000);
+    }
+
+    /**
+     * A job's use of the limiter, shared by the threads sending for it.
+     */
+    class Share {
+        private final int jobId;
+        private int waiting = 0;
+        private double jobTokens = 1;
+        private long jobFill = System.nanoTime();
+        private int failures = 0;
+        private long backoffUntil;
+
+        private Share(int jobId) {
+            this.jobId = jobId;
+        }
+
+        /**
+         * @return when this job may send next, in nanos
+         */
+        private long ready(long now) {
+            jobTokens = Math.min(jobRate, jobTokens + (now - jobFill) * jobRate / 1e9);
+            jobFill = now;
+            long ready = jobTokens >= 1 ? now : now + (long) ((1 - jobTokens) * 1e9 / jobRate);
+            return failures < 2 ? ready : Math.max(ready, backoffUntil);
+        }
+
+        /**
+         * Waits for this job's turn and a token to send one email with.
+         * @throws InterruptedException
+         */
+        void acquire() throws InterruptedException {
+            synchronized (SendRateLimiter.this) {
+                if (waiting++ == 0) {
+                    turns.addLast(this);
+                }
+                try {
+                    while (true) {
+                        long now = System.nanoTime();
+                        fill(now);
+                        Share next = next(now);
+                        if (tokens >= 1 && next == this) {
+                            tokens--;
+                            jobTokens--;
+                            return;
+                        }
+                        // if it's another job's turn, it wakes us when it has taken it
+                        long delay = delay(now);
+                        SendRateLimiter.this.wait(delay / 1000000, (int) (delay % 1000000));
+                    }
+                } finally {
+                    // to the back of the line, whether we got a token or gave up
+                    turns.remove(this);
+                    if (--waiting > 0) {
+                        turns.addLast(this);
+                    }
+                    SendRateLimiter.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * An email was sent, the SMTP server is fine.
+         */
+        void succeeded() {
+            synchronized (SendRateLimiter.this) {
+                if (failures > 0) {
+                    failures = 0;
+                    SendRateLimiter.this.notifyAll();
+                }
+            }
+        }
+
+        /**
+         * An email failed to send.  A failure on its own may be a bad address,
+         * so the job backs off from the second failure in a row.
+         * @return how long the job backs off, in milli
+         */
+        long failed() {
+            synchronized (SendRateLimiter.this) {
+                failures++;
+                if (failures < 2) {
+                    return 0;
+                }
+                long wait = backoff << Math.min(failures - 2, 16);
+                if (wait > maxBackoff || wait <= 0) {
+                    wait = maxBackoff;
+                }
+                backoffUntil = System.nanoTime() + wait * 1000000;
+                return wait;
+            }
+        }
+
+        /**
+         * The job is done with the limiter.
+         */
+        void leave() {
+            synchronized (SendRateLimiter.this) {
+                turns.remove(this);
+                waiting = 0;
+                SendRateLimiter.this.notifyAll();
+            }
+        }
+
+        public String toString() {
+            return "job " + jobId;
+        }
+    }
+}
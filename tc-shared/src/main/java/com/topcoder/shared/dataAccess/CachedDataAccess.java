@@ -7,7 +7,10 @@ import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 
 import java.sql.Connection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 /**
  * This bean processes a {@link com.topcoder.shared.dataAccess.RequestInt} and returns the data from either the cache if it's available
@@ -73,49 +76,80 @@ public class CachedDataAccess extends DataAccess {
      * @throws  Exception if there was an error encountered while retrieving
      * the data from the EJB.
      */
-    public Map<String, ResultSetContainer> getData(RequestInt request) throws Exception {
+    public Map<String, ResultSetContainer> getData(final RequestInt request) throws Exception {
+        boolean hasCacheConnection = true;
+        final String key = request.getCacheKey();
+        Map<String, ResultSetContainer> map = null;
+        CacheClient cc = null;
+        try {
+            cc = CacheClientFactory.createCacheClient();
+            map = (Map<String, ResultSetContainer>) (cc.get(key));
+        } catch (Exception e) {
+            log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: " + e.getMessage());
+            hasCacheConnection = false;
+        }
+        /* if it was not found in the cache, load it, letting concurrent requests for the same key share the load */
+        if (map == null) {
+            final CacheClient client = hasCacheConnection ? cc : null;
+            map = RequestCoalescer.getInstance().load(key, new Callable<Map<String, ResultSetContainer>>() {
+                public Map<String, ResultSetContainer> call() throws Exception {
+                    return load(request, client, key);
+                }
+            });
+        }
+        return map;
+    }
+
+    /**
+     * Retrieve the data from the data source and add it to the cache.
+     *
+     * @param request the request to execute
+     * @param cc the cache client to put the result in, null if we don't have a cache connection
+     * @param key the cache key of the request
+     * @return the query results
+     * @throws Exception if there was an error retrieving the data
+     */
+    private Map<String, ResultSetContainer> load(RequestInt request, CacheClient cc, String key) throws Exception {
         Connection conn = null;
         try {
-            boolean hasCacheConnection = true;
-            String key = request.getCacheKey();
-            Map<String, ResultSetContainer> map = null;
-            DataRetrieverInt dr = null;
-            CacheClient cc = null;
-            try {
-                cc = CacheClientFactory.createCacheClient();
-                map = (Map<String, ResultSetContainer>) (cc.get(key));
-            } catch (Exception e) {
-                log.error("UNABLE TO ESTABLISH A CONNECTION TO THE CACHE: " + e.getMessage());
-                hasCacheConnection = false;
-            }
-            /* if it was not found in the cache */
-            if (map == null) {
-                conn = DBMS.getConnection(dataSourceName);
-                dr = getDataRetriever(conn);
-                map = dr.executeCommand(request.getProperties());
-                /* attempt to add this object to the cache */
-                if (hasCacheConnection) {
-                    try {
-                        cc.set(key, map, expireTime);
-                    } catch (Exception e) {
-                        log.error("UNABLE TO INSERT INTO CACHE: " + e.getMessage());
-                    }
+            conn = DBMS.getConnection(dataSourceName);
+            DataRetrieverInt dr = getDataRetriever(conn);
+            Map<String, ResultSetContainer> map = dr.executeCommand(request.getProperties());
+            /* attempt to add this object to the cache */
+            if (cc != null) {
+                try {
+                    cc.set(key, map, expireTime, getTags(request));
+                } catch (Exception e) {
+                    log.error("UNABLE TO INSERT INTO CACHE: " + e.getMessage());
                 }
             }
             return map;
-        } catch (Exception e) {
-            throw e;
         } finally {
             if (conn != null && !conn.isClosed()) {
                 try {
                     conn.close();
                 } catch (Exception ce) {
-                log.error("Failed to close connection");
-               }
+                    log.error("Failed to close connection");
+                }
             }
         }
     }
 
+    /**
+     * Each property value is a tag, like the web cache does, so that the results can be
+     * removed by the values they were loaded for.
+     *
+     * @param request the request
+     * @return the tags of its results
+     */
+    private static String[] getTags(RequestInt request) {
+        Set<String> ret = new HashSet<String>();
+        for (Object value : request.getProperties().values()) {
+            ret.add(String.valueOf(value));
+        }
+        return ret.toArray(new String[ret.size()]);
+    }
+
     /**
      *
      * @param expireTime
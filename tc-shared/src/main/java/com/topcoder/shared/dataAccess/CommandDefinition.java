@@ -0,0 +1,157 @@
+package com.topcoder.shared.dataAccess;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The definition of a command as it is set up in the command, query, command_query_xref,
+ * input_lu and query_input_xref tables.  Instances are immutable once loaded so that they
+ * can be shared between threads through the {@link CommandDefinitionCache}.
+ *
+ * @version $Revision: 85038 $
+ * @see DataRetriever
+ */
+class CommandDefinition {
+    private final long commandId;
+    private final List<QueryDefinition> queries;
+    private final List<InputDefinition> inputs;
+
+    /**
+     * @param commandId the id of the command
+     * @param queries   the queries of the command in sort order
+     * @param inputs    the inputs of the queries, ordered by query id and sort order
+     */
+    CommandDefinition(long commandId, List<QueryDefinition> queries, List<InputDefinition> inputs) {
+        this.commandId = commandId;
+        this.inputs = Collections.unmodifiableList(new ArrayList<InputDefinition>(inputs));
+        List<QueryDefinition> compiled = new ArrayList<QueryDefinition>(queries.size());
+        for (QueryDefinition q : queries) {
+            Map<String, Integer> inputTypes = new HashMap<String, Integer>();
+            for (InputDefinition input : inputs) {
+                if (input.getQueryId().equals(q.getQueryId())) {
+                    inputTypes.put(input.getInputCode(), new Integer(input.getDataType()));
+                }
+            }
+            compiled.add(new QueryDefinition(q.getQueryId(), QueryTemplate.compile(q.getText(), inputTypes),
+                    q.getName(), q.getRankingColumn()));
+        }
+        this.queries = Collections.unmodifiableList(compiled);
+    }
+
+    long getCommandId() {
+        return commandId;
+    }
+
+    List<QueryDefinition> getQueries() {
+        return queries;
+    }
+
+    List<InputDefinition> getInputs() {
+        return inputs;
+    }
+
+    /**
+     * A query that is part of a command.
+     */
+    static class QueryDefinition {
+        private final Integer queryId;
+        private final String text;
+        private final QueryTemplate template;
+        private final String name;
+        private final Integer rankingColumn;
+
+        /**
+         * @param queryId       the id of the query
+         * @param text          the query template, with inputs surrounded by the INPUT_DELIMITER
+         * @param name          the name the results of the query are stored under
+         * @param rankingColumn the column to rank on, null if this is not a ranking query
+         */
+        QueryDefinition(Integer queryId, String text, String name, Integer rankingColumn) {
+            this.queryId = queryId;
+            this.text = text;
+            this.template = null;
+            this.name = name;
+            this.rankingColumn = rankingColumn;
+        }
+
+        private QueryDefinition(Integer queryId, QueryTemplate template, String name, Integer rankingColumn) {
+            this.queryId = queryId;
+            this.text = template.getText();
+            this.template = template;
+            this.name = name;
+            this.rankingColumn = rankingColumn;
+        }
+
+        Integer getQueryId() {
+            return queryId;
+        }
+
+        String getText() {
+            return text;
+        }
+
+        /**
+         * @return the compiled query text, only available for queries that are part of a <code>CommandDefinition</code>
+         */
+        QueryTemplate getTemplate() {
+            return template;
+        }
+
+        String getName() {
+            return name;
+        }
+
+        Integer getRankingColumn() {
+            return rankingColumn;
+        }
+    }
+
+    /**
+     * An input of one of the queries of a command.
+     */
+    static class InputDefinition {
+        private final String inputCode;
+        private final boolean optional;
+        private final int dataType;
+        private final String defaultValue;
+        private final Integer queryId;
+
+        /**
+         * @param inputCode    the code used for the input in the query text
+         * @param optional     whether a default should be used if the input is not specified
+         * @param dataType     the data type of the input, one of the *_INPUT constants in {@link DataAccessConstants}
+         * @param defaultValue the default value, or the id of a default input query
+         * @param queryId      the id of the query this input belongs to
+         */
+        InputDefinition(String inputCode, boolean optional, int dataType, String defaultValue, Integer queryId) {
+            this.inputCode = inputCode;
+            this.optional = optional;
+            this.dataType = dataType;
+            this.defaultValue = defaultValue;
+            this.queryId = queryId;
+        }
+
+        String getInputCode() {
+            return inputCode;
+        }
+
+        boolean isOptional() {
+            return optional;
+        }
+
+        int getDataType() {
+            return dataType;
+        }
+
+        String getDefaultValue() {
+            return defaultValue;
+        }
+
+        Integer getQueryId() {
+            return queryId;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.topcoder.shared.dataAccess;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * An in memory cache of command definitions, so that executing a command doesn't have
+ * to look up its queries and inputs in the database every time.  Definitions only
+ * change when someone edits them with the query tool, which calls {@link #invalidateAll()}.
+ * Since other servers don't hear about that, entries also expire after
+ * <code>COMMAND_CACHE_TIME</code> milliseconds (0 turns the cache off).
+ * <p/>
+ * The cache is versioned: a definition that was being loaded while the cache was
+ * invalidated is not stored, so an edit can't be undone by a load that read the old data.
+ *
+ * @version $Revision: 85038 $
+ * @see DataRetriever
+ */
+public class CommandDefinitionCache {
+    private static final Logger log = Logger.getLogger(CommandDefinitionCache.class);
+
+    private static final ConcurrentHashMap<String, Entry> definitions = new ConcurrentHashMap<String, Entry>();
+    private static volatile int version = 0;
+
+    private CommandDefinitionCache() {
+    }
+
+    /**
+     * Throw away all the cached command definitions.
+     */
+    public static void invalidateAll() {
+        synchronized (definitions) {
+            version++;
+            definitions.clear();
+        }
+        log.info("command definitions invalidated, version is now " + version);
+    }
+
+    /**
+     * @return the current version of the cache, to be passed to {@link #put} once a definition is loaded
+     */
+    static int getVersion() {
+        return version;
+    }
+
+    /**
+     * @param key the key of the definition, it should identify the database as well as the command
+     * @return the cached definition, null if there is none or it has expired
+     */
+    static CommandDefinition get(String key) {
+        if (DataAccessConstants.COMMAND_CACHE_TIME <= 0) {
+            return null;
+        }
+        Entry entry = definitions.get(key);
+        if (entry == null) {
+            return null;
+        } else if (entry.expires < System.currentTimeMillis()) {
+            definitions.remove(key, entry);
+            return null;
+        } else {
+            return entry.definition;
+        }
+    }
+
+    /**
+     * Cache a definition, unless the cache was invalidated since it started loading.
+     *
+     * @param key        the key of the definition
+     * @param definition the definition
+     * @param version    the version of the cache when the definition started loading
+     */
+    static void put(String key, CommandDefinition definition, int version) {
+        if (DataAccessConstants.COMMAND_CACHE_TIME <= 0) {
+            return;
+        }
+        synchronized (definitions) {
+            if (version == CommandDefinitionCache.version) {
+                definitions.put(key, new Entry(definition,
+                        System.currentTimeMillis() + DataAccessConstants.COMMAND_CACHE_TIME));
+            }
+        }
+    }
+
+    private static class Entry {
+        private final CommandDefinition definition;
+        private final long expires;
+
+        private Entry(CommandDefinition definition, long expires) {
+            this.definition = definition;
+            this.expires = expires;
+        }
+    }
+}
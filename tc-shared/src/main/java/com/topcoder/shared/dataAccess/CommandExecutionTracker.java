@@ -0,0 +1,281 @@
+package com.topcoder.shared.dataAccess;
+
+import com.topcoder.shared.util.DBMS;
+import com.topcoder.shared.util.TCResourceBundle;
+import com.topcoder.shared.util.logging.Logger;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records command executions in the command_execution table without holding up the
+ * request that ran the command.  Executions are put on a bounded queue that a background
+ * thread writes out with batch inserts, one batch per data source.
+ * <p/>
+ * Configured in DataAccess.properties:
+ * <ul>
+ * <li><strong>TRACKING_ASYNC</strong> - false to go back to inserting each execution on the
+ * connection that ran the command</li>
+ * <li><strong>TRACKING_QUEUE_SIZE</strong> - how many executions can wait to be written; when
+ * the queue is full new executions are dropped rather than slowing down requests</li>
+ * <li><strong>TRACKING_BATCH_SIZE</strong> - the most rows written in one batch</li>
+ * <li><strong>TRACKING_SAMPLE_RATE</strong> - the fraction of executions to record, 1 for all of them</li>
+ * </ul>
+ * The thread is started by the first execution tracked and stopped by {@link #shutdown()}, which
+ * the web application calls when it's destroyed.
+ *
+ * @version $Revision: 85038 $
+ * @see DataRetriever
+ */
+public class CommandExecutionTracker {
+    private static final Logger log = Logger.getLogger(CommandExecutionTracker.class);
+    private static final String INSERT =
+            "insert into command_execution (command_id, execution_time, inputs) values (?, ?, ?)";
+
+    private static final TCResourceBundle bundle = new TCResourceBundle("DataAccess");
+    static final boolean ASYNC = "true".equalsIgnoreCase(bundle.getProperty("TRACKING_ASYNC", "true"));
+    private static final int BATCH_SIZE = bundle.getIntProperty("TRACKING_BATCH_SIZE", 100);
+    private static final long SHUTDOWN_WAIT = 30 * 1000;
+    private static final double SAMPLE_RATE = bundle.getDoubleProperty("TRACKING_SAMPLE_RATE", 1.0);
+    private static final BlockingQueue<Execution> queue =
+            new ArrayBlockingQueue<Execution>(bundle.getIntProperty("TRACKING_QUEUE_SIZE", 10000));
+    private static final Random random = new Random();
+
+    private static final AtomicLong queued = new AtomicLong();
+    private static final AtomicLong skipped = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong written = new AtomicLong();
+    private static final AtomicLong failed = new AtomicLong();
+
+    /* the thread writing the executions out, null when it isn't running */
+    private static volatile Thread writer = null;
+
+    private CommandExecutionTracker() {
+    }
+
+    /**
+     * Queue an execution to be recorded.
+     *
+     * @param commandId      the command that was executed
+     * @param time           how long it took, in milli
+     * @param inputs         the inputs of the execution, it must not be changed afterwards
+     * @param dataSourceName the name of the data source to record it in
+     * @param dataSource     the data source to record it in, used instead of the name if not null
+     */
+    static void track(long commandId, long time, Map inputs, String dataSourceName, DataSource dataSource) {
+        if (SAMPLE_RATE < 1.0 && random.nextDouble() >= SAMPLE_RATE) {
+            skipped.incrementAndGet();
+        } else if (queue.offer(new Execution(commandId, time, inputs, dataSourceName, dataSource))) {
+            queued.incrementAndGet();
+            if (writer == null) {
+                startWriter();
+            }
+        } else {
+            if (dropped.incrementAndGet() % 1000 == 1) {
+                log.warn("command execution tracking queue is full, " + dropped.get() + " executions dropped so far");
+            }
+        }
+    }
+
+    private static synchronized void startWriter() {
+        if (writer == null) {
+            writer = new Thread(new Writer(), "CommandExecutionTracker");
+            writer.setDaemon(true);
+            writer.start();
+        }
+    }
+
+    /**
+     * Write out the executions still queued and stop the thread writing them, so that it doesn't
+     * hold on to this class loader and its data sources once the application is undeployed.  If
+     * more executions are tracked afterwards the thread is started again.
+     */
+    public static void shutdown() {
+        Thread t;
+        synchronized (CommandExecutionTracker.class) {
+            t = writer;
+            writer = null;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join(SHUTDOWN_WAIT);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (t.isAlive()) {
+            log.warn("command execution tracking didn't finish writing in " + SHUTDOWN_WAIT + " ms, "
+                    + queue.size() + " executions still queued");
+        } else {
+            log.info("command execution tracking stopped, " + written.get() + " executions written, "
+                    + failed.get() + " failed, " + dropped.get() + " dropped");
+        }
+    }
+
+    /**
+     * @return the number of executions that were queued to be written
+     */
+    public static long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return the number of executions that were not recorded because of sampling
+     */
+    public static long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * @return the number of executions that were not recorded because the queue was full
+     */
+    public static long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of executions written to the database
+     */
+    public static long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * @return the number of executions that couldn't be written to the database
+     */
+    public static long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * @return the number of executions waiting to be written
+     */
+    public static int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Build the inputs column the same way the synchronous tracking always has.
+     *
+     * @param inputs the inputs of the execution
+     * @return the inputs, as key:value|key:value|
+     */
+    static String formatInputs(Map inputs) {
+        if (inputs == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder(inputs.size() * 16);
+        Iterator i = inputs.keySet().iterator();
+        while (i.hasNext()) {
+            String key = (String) i.next();
+            sb.append(key);
+            sb.append(':');
+            sb.append((String) inputs.get(key));
+            sb.append('|');
+        }
+        return sb.toString();
+    }
+
+    private static class Writer implements Runnable {
+        public void run() {
+            List<Execution> batch = new ArrayList<Execution>(BATCH_SIZE);
+            while (true) {
+                try {
+                    Execution first = queue.poll(5, TimeUnit.SECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                    queue.drainTo(batch, BATCH_SIZE - 1);
+                    write(batch);
+                } catch (InterruptedException e) {
+                    //shutting down
+                    break;
+                } catch (Throwable t) {
+                    log.error("command execution tracking failed", t);
+                } finally {
+                    batch.clear();
+                }
+            }
+            //write out what was queued before we were stopped
+            while (queue.drainTo(batch, BATCH_SIZE) > 0) {
+                try {
+                    write(batch);
+                } catch (Throwable t) {
+                    log.error("command execution tracking failed", t);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        private void write(List<Execution> batch) {
+            //executions of different data sources go to different databases
+            Map<Object, List<Execution>> byDataSource = new HashMap<Object, List<Execution>>();
+            for (Execution e : batch) {
+                Object key = e.dataSource != null ? e.dataSource : e.dataSourceName;
+                List<Execution> l = byDataSource.get(key);
+                if (l == null) {
+                    l = new ArrayList<Execution>();
+                    byDataSource.put(key, l);
+                }
+                l.add(e);
+            }
+
+            for (List<Execution> executions : byDataSource.values()) {
+                Execution first = executions.get(0);
+                Connection conn = null;
+                PreparedStatement ps = null;
+                try {
+                    conn = first.dataSource != null ? first.dataSource.getConnection() :
+                            DBMS.getConnection(first.dataSourceName);
+                    ps = conn.prepareStatement(INSERT);
+                    for (Execution e : executions) {
+                        ps.setLong(1, e.commandId);
+                        ps.setLong(2, e.time);
+                        ps.setString(3, formatInputs(e.inputs));
+                        ps.addBatch();
+                    }
+                    ps.executeBatch();
+                    written.addAndGet(executions.size());
+                } catch (Exception e) {
+                    failed.addAndGet(executions.size());
+                    log.error("Couldn't insert " + executions.size() + " rows to track command executions: " +
+                            e.getMessage());
+                } finally {
+                    DBMS.close(ps);
+                    DBMS.close(conn);
+                }
+            }
+        }
+    }
+
+    private static class Execution {
+        private final long commandId;
+        private final long time;
+        private final Map inputs;
+        private final String dataSourceName;
+        private final DataSource dataSource;
+
+        private Execution(long commandId, long time, Map inputs, String dataSourceName, DataSource dataSource) {
+            this.commandId = commandId;
+            this.time = time;
+            this.inputs = inputs;
+            this.dataSourceName = dataSourceName;
+            this.dataSource = dataSource;
+        }
+    }
+}
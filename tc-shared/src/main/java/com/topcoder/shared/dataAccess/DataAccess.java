@@ -72,6 +72,50 @@ public class DataAccess implements DataAccessInt {
             }
         }
     }
+
+    /**
+     * This method passes a query command request and a connection
+     * to the data retriever, which hands the rows of the queries to
+     * <tt>handler</tt> as it reads them.  Use it to write out results
+     * too large to keep in memory.  Nothing is cached.
+     *
+     * @param   request A <tt>RequestInt</tt> request object containing a number
+     * of input property values.
+     * @param   handler receives the rows of each query
+     * @throws  Exception if there was an error encountered while retrieving
+     * or handling the data.
+     */
+    public void getData(RequestInt request, ResultSetHandler handler) throws Exception {
+        Connection conn = null;
+        try {
+            if (dataSource!=null) {
+                conn = dataSource.getConnection();
+            } else {
+                conn = DBMS.getConnection(dataSourceName);
+            }
+            log.debug(conn.getMetaData().getURL());
+            DataRetrieverInt dr = getDataRetriever(conn);
+            if (dr instanceof DataRetriever) {
+                ((DataRetriever) dr).executeCommand(request.getProperties(), handler);
+            } else {
+                //this retriever can only give us whole results
+                for (Map.Entry<String, ResultSetContainer> e : dr.executeCommand(request.getProperties()).entrySet()) {
+                    handler.handle(e.getKey(), e.getValue().cursor());
+                }
+            }
+        } catch (Exception e) {
+            throw new Exception(e.getMessage());
+        } finally {
+            if (conn != null && !conn.isClosed()) {
+                try {
+                    conn.close();
+                } catch (Exception ce) {
+                    log.error("Failed to close connection");
+                }
+            }
+        }
+    }
+
     /**
      * @param dataSourceName
      */
@@ -87,7 +131,9 @@ public class DataAccess implements DataAccessInt {
     }
 
     protected DataRetrieverInt getDataRetriever(Connection conn) {
-        return new DataRetriever(conn);
+        DataRetriever dr = new DataRetriever(conn);
+        dr.setDataSource(dataSource == null ? dataSourceName : null, dataSource);
+        return dr;
     }
 }
 
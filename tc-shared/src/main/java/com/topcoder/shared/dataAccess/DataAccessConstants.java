@@ -28,5 +28,13 @@ public class DataAccessConstants {
     public static String SPECIAL_DEFAULT_MARKER = bundle.getProperty("SPECIAL_DEFAULT_MARKER", "$");
     public static String DATE_FORMAT = bundle.getProperty("DATE_FORMAT", "yyyy-MM-dd");
     public static int DEFAULT_EXPIRE_TIME = bundle.getIntProperty("DEFAULT_EXPIRE_TIME", 1000 * 60 * 60 * 24 * 3);
+    public static boolean BIND_INPUTS = "true".equalsIgnoreCase(bundle.getProperty("BIND_INPUTS", "true"));
+    public static int COMMAND_CACHE_TIME = bundle.getIntProperty("COMMAND_CACHE_TIME", 1000 * 60 * 10);
+    public static boolean COALESCE_LOADS = "true".equalsIgnoreCase(bundle.getProperty("COALESCE_LOADS", "true"));
+    public static int STALE_CACHE_SIZE = bundle.getIntProperty("STALE_CACHE_SIZE", 0);
+    public static int STALE_MAX_AGE = bundle.getIntProperty("STALE_MAX_AGE", 1000 * 60 * 60);
+    public static int STALE_REFRESH_THREADS = bundle.getIntProperty("STALE_REFRESH_THREADS", 2);
+    public static int COLUMNAR_ROWS = bundle.getIntProperty("COLUMNAR_ROWS", 1000);
+    public static int COMPRESS_SIZE = bundle.getIntProperty("COMPRESS_SIZE", 1024 * 64);
 
 }
@@ -3,8 +3,10 @@ package com.topcoder.shared.dataAccess;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.DBMS;
 import com.topcoder.shared.util.StringUtil;
+import com.topcoder.shared.util.TCResourceBundle;
 import com.topcoder.shared.util.logging.Logger;
 
+import javax.sql.DataSource;
 import java.math.BigDecimal;
 import java.math.BigInteger;
 import java.sql.Connection;
@@ -16,7 +18,17 @@ import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Retrieves data from the database.<p>
@@ -121,6 +133,20 @@ import java.util.Map;
  * <br/>
  * </li>
  * </ul>
+ * <p/>
+ * Command definitions (the rows of the tables above) are cached in memory by
+ * {@link CommandDefinitionCache}, so generally a command execution only runs its own queries.
+ * <p/>
+ * The queries of a command normally run one after the other on the connection we were given.
+ * Setting <code>PARALLEL_QUERIES.&lt;command_desc&gt;</code> (or <code>PARALLEL_QUERIES</code> for
+ * all commands) in DataAccess.properties to more than 1 lets that many of them run at the same
+ * time, on extra connections from the same data source.  The extra connections are opened by a
+ * pool of at most <code>PARALLEL_QUERY_THREADS</code> threads shared by all commands; when it is
+ * busy the queries simply run on our own connection.  A command waits at most
+ * <code>PARALLEL_QUERY_TIMEOUT</code> milliseconds for the queries it handed out.
+ * <p/>
+ * {@link #executeCommand(Map, ResultSetHandler)} hands the rows of the queries over as they are
+ * read instead, for callers that write out large results.
  *
  * @author Dave Pecora
  * @author Greg Paul
@@ -130,7 +156,25 @@ import java.util.Map;
 
 public class DataRetriever implements DataRetrieverInt {
     private static Logger log = Logger.getLogger(DataRetriever.class);
+    private static final TCResourceBundle bundle = new TCResourceBundle("DataAccess");
+    private static final int DEFAULT_PARALLEL_QUERIES = bundle.getIntProperty("PARALLEL_QUERIES", 1);
+    private static final int PARALLEL_QUERY_TIMEOUT = bundle.getIntProperty("PARALLEL_QUERY_TIMEOUT", 1000 * 30);
+    private static final int STREAM_FETCH_SIZE = bundle.getIntProperty("STREAM_FETCH_SIZE", 1000);
+    private static final ConcurrentHashMap<String, Integer> parallelQueries = new ConcurrentHashMap<String, Integer>();
+    private static final ThreadPoolExecutor parallelExecutor = new ThreadPoolExecutor(0,
+            bundle.getIntProperty("PARALLEL_QUERY_THREADS", 20), 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "DataRetriever-query");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
     private Connection conn;
+    /* Where to get more connections from to run queries in parallel, both null if we can't */
+    private String dataSourceName;
+    private DataSource dataSource;
     /* Keeps track of the most recent query run, for exception handling purposes */
     private StringBuffer query;
 
@@ -143,6 +187,18 @@ public class DataRetriever implements DataRetrieverInt {
         this.conn = conn;
     }
 
+    /**
+     * Set the data source that <code>conn</code> came from, so that queries can be run in parallel
+     * on other connections from it.  Only one of the arguments should be given.
+     *
+     * @param dataSourceName the name of the data source
+     * @param dataSource     the data source
+     */
+    void setDataSource(String dataSourceName, DataSource dataSource) {
+        this.dataSourceName = dataSourceName;
+        this.dataSource = dataSource;
+    }
+
     private void handleException(Exception e, String lastQuery, Map inputs) {
         try {
             log.error("Exception caught: " + e.toString());
@@ -316,114 +372,136 @@ public class DataRetriever implements DataRetrieverInt {
         //create a new map to avoid mutating the passed in version.
         //log.debug("input: " + inputMap.toString());
         Map inputs = new HashMap(inputMap);
-        String commandDesc = (String) inputs.get(DataAccessConstants.COMMAND);
-        if (commandDesc == null)
-            throw new Exception("Missing command description");
-
-        int i, rowcount;
-        query = null;
-        ArrayList qid;
-        int queryIdList[];
-        HashMap queryTextMap, queryNameMap, querySortMap, queryStartRow, queryEndRow;
+        HashMap<String, String> rawValues = new HashMap<String, String>();
+        List<QueryExecution> executions = new ArrayList<QueryExecution>();
+        CommandDefinition command = prepareQueries(inputs, executions, rawValues);
         HashMap<String, ResultSetContainer> resultMap;
 
-        // Get the list of queries to execute, and the names and texts of the queries
-        ResultSet rs = null;
-        PreparedStatement ps = null;
-        long commandId = 0;
+        // At this point we've built all queries to run.
+        // Execute them and fill the ResultSetContainers.
+        String queryText = "", queryName = "";
         try {
-            query = new StringBuffer(300);
-            query.append("SELECT cqx.query_id, ");
-            query.append(" q.text, ");
-            query.append(" q.name, ");
-            query.append(" q.ranking, ");
-            query.append(" q.column_index, ");
-            query.append(" cqx.sort_order, ");
-            query.append(" c.command_id ");
-            query.append("FROM command c, query q, command_query_xref cqx ");
-            query.append("WHERE c.command_desc = ? ");
-            query.append("AND cqx.command_id = c.command_id ");
-            query.append("AND q.query_id = cqx.query_id ");
-            query.append("ORDER BY cqx.sort_order ASC ");
-            ps = conn.prepareStatement(query.toString());
-            ps.setString(1, commandDesc);
-            rs = ps.executeQuery();
-            rowcount = 0;
-            qid = new ArrayList();
-            queryTextMap = new HashMap();
-            queryNameMap = new HashMap();
-            querySortMap = new HashMap();
-            boolean tracked = false;
-            while (rs.next()) {
-                commandId = rs.getLong("command_id");
-                rowcount++;
-                Integer tempId = new Integer(rs.getInt(1));
-                qid.add(tempId);
-                queryTextMap.put(tempId, DBMS.getTextString(rs, 2));
-                queryNameMap.put(tempId, rs.getString(3));
-                int isRanking = rs.getInt(4);
-                if (isRanking == 1)
-                    querySortMap.put(tempId, new Integer(rs.getInt(5)));
+            resultMap = new HashMap();
+            long start = System.currentTimeMillis();
+            int parallelism = getParallelism((String) inputs.get(DataAccessConstants.COMMAND), executions.size());
+            if (parallelism > 1) {
+                runParallel(executions, rawValues, parallelism);
+            } else {
+                for (QueryExecution execution : executions) {
+                    queryText = execution.queryText;
+                    execution.run(conn, rawValues, 0);
+                }
             }
-            queryIdList = new int[rowcount];
-            for (i = 0; i < rowcount; i++) {
-                queryIdList[i] = ((Integer) qid.get(i)).intValue();
+
+            for (QueryExecution execution : executions) {
+                queryText = execution.queryText;
+                queryName = execution.query.getName();
+                if (execution.error != null) {
+                    throw execution.error;
+                } else if (execution.result == null) {
+                    throw new Exception("Query did not complete within " + PARALLEL_QUERY_TIMEOUT + "ms");
+                }
+                ResultSetContainer rsc = execution.result;
+
+                // Sort if necessary
+                if (isSortQuery(queryName, inputs))
+                    sort(rsc, inputs);
+
+                resultMap.put(queryName, rsc);
             }
+            trackExecution(command.getCommandId(), conn, System.currentTimeMillis()-start, inputs);
+
         } catch (Exception e) {
-            handleException(e, query.toString(), inputs);
-            throw new Exception("Invalid command: " + commandDesc);
-        } finally {
-            DBMS.close(rs);
-            DBMS.close(ps);
+            handleException(e, queryText, inputs);
+            throw new Exception("Error while retrieving query data:" + queryText);
         }
 
-        ResultSet rs1 = null;
-        PreparedStatement ps1 = null;
+        return resultMap;
+    }
 
-        // Now get the inputs of the queries
+    /**
+     * Retrieves the data of a command like {@link #executeCommand(Map)}, but hands the rows
+     * of each query to <code>handler</code> as they are read instead of keeping them, so that
+     * they can be written out without holding them all in memory.  The queries run one after
+     * the other on our connection, with forward only statements fetching
+     * <code>STREAM_FETCH_SIZE</code> rows at a time (see DataAccess.properties).  The rows
+     * of the query to be sorted (see <code>SORT_QUERY</code>) are still all read first, to
+     * sort them.
+     *
+     * @param inputMap A map of inputs to this command, as for {@link #executeCommand(Map)}.
+     * @param handler  receives the rows of each query
+     * @throws Exception If some problem is encountered while executing
+     *                   the queries, or handling their rows.
+     */
+    public void executeCommand(Map inputMap, ResultSetHandler handler) throws Exception {
+        Map inputs = new HashMap(inputMap);
+        HashMap<String, String> rawValues = new HashMap<String, String>();
+        List<QueryExecution> executions = new ArrayList<QueryExecution>();
+        CommandDefinition command = prepareQueries(inputs, executions, rawValues);
+
+        String queryText = "";
         try {
-            if (queryIdList.length == 0) {
-                throw new Exception("Query information for command " + commandDesc +
-                        " missing from DB");
+            long start = System.currentTimeMillis();
+            for (QueryExecution execution : executions) {
+                queryText = execution.queryText;
+                String queryName = execution.query.getName();
+                if (isSortQuery(queryName, inputs)) {
+                    execution.run(conn, rawValues, 0);
+                    sort(execution.result, inputs);
+                    handler.handle(queryName, execution.result.cursor());
+                } else {
+                    execution.stream(conn, rawValues, STREAM_FETCH_SIZE, handler);
+                }
             }
-            queryStartRow = new HashMap();
-            queryEndRow = new HashMap();
+            trackExecution(command.getCommandId(), conn, System.currentTimeMillis()-start, inputs);
 
-            // Get all at once to avoid multiple DB hits.
-            query = new StringBuffer(300);
-            query.append("SELECT i.input_code, ");
-            query.append(" qi.optional, ");
-            query.append(" i.data_type_id, ");
-            query.append(" qi.default_value, ");
-            query.append(" qi.query_id, ");
-            query.append(" qi.sort_order ");
-            query.append("FROM command c, command_query_xref cqx, input_lu i, query_input_xref qi ");
-            query.append("WHERE c.command_desc = ? ");
-            query.append("AND cqx.command_id = c.command_id ");
-            query.append("AND cqx.query_id = qi.query_id ");
-            query.append("AND qi.input_id = i.input_id ");
-            query.append("ORDER BY qi.query_id ASC, qi.sort_order ASC ");
-            ps1 = conn.prepareStatement(query.toString());
-            ps1.setString(1, commandDesc);
-            rs1 = ps1.executeQuery();
+        } catch (Exception e) {
+            handleException(e, queryText, inputs);
+            throw new Exception("Error while retrieving query data:" + queryText);
+        }
+    }
 
-            // Put these in a result set container to avoid requiring the
-            // connection to have two open prepared statements at the same
-            // time.
-            ResultSetContainer rsc = new ResultSetContainer(rs1);
+    /**
+     * Get the definition of a command, fill in the inputs of its queries and build their SQL.
+     *
+     * @param inputs     the inputs of this execution, the defaults of the inputs that weren't given
+     *                   are added to it
+     * @param executions the queries to run are added to it
+     * @param rawValues  the values of the inputs to bind are put in it
+     * @return the definition of the command
+     * @throws Exception if the command can not be found or the inputs are missing or invalid
+     */
+    private CommandDefinition prepareQueries(Map inputs, List<QueryExecution> executions,
+                                             Map<String, String> rawValues) throws Exception {
+        String commandDesc = (String) inputs.get(DataAccessConstants.COMMAND);
+        if (commandDesc == null)
+            throw new Exception("Missing command description");
+
+        query = null;
+        HashMap queryTextMap, queryStartRow, queryEndRow;
+        HashMap<String, String> textValues;
+
+        // Get the list of queries to execute and their inputs, usually from the cache
+        CommandDefinition command = getCommandDefinition(commandDesc, inputs);
+        List<CommandDefinition.QueryDefinition> queries = command.getQueries();
+        List<CommandDefinition.InputDefinition> queryInputs = command.getInputs();
 
-            rowcount = rsc.getRowCount();
+        // Now fill in the inputs of the queries
+        try {
+            queryStartRow = new HashMap();
+            queryEndRow = new HashMap();
+            queryTextMap = new HashMap();
+            textValues = new HashMap<String, String>();
 
-            for (i = 0; i < rowcount; i++) {
-                String inputCode = rsc.getItem(i, 0).toString();
-                String optional = rsc.getItem(i, 1).toString();
-                int dataType = Integer.parseInt(rsc.getItem(i, 2).toString());
-                String defaultValue = rsc.getItem(i, 3).toString();
-                Integer tempId = new Integer(rsc.getItem(i, 4).toString());
+            for (CommandDefinition.InputDefinition queryInput : queryInputs) {
+                String inputCode = queryInput.getInputCode();
+                int dataType = queryInput.getDataType();
+                String defaultValue = queryInput.getDefaultValue();
+                Integer tempId = queryInput.getQueryId();
                 String input = (String) inputs.get(inputCode);
 
                 if (input == null) {
-                    if (!optional.equals("Y")) {
+                    if (!queryInput.isOptional()) {
                         throw new Exception("Missing required query input: " + inputCode);
                     }
 
@@ -442,6 +520,7 @@ public class DataRetriever implements DataRetrieverInt {
 
                 // Remove leading/trailing input whitespace
                 input = input.trim();
+                String rawInput = input;
                 if (dataType == DataAccessConstants.STRING_INPUT) {
                     //escape single quotes for informix
                     input = StringUtil.replace(input, "\'", "\'\'");
@@ -484,126 +563,377 @@ public class DataRetriever implements DataRetrieverInt {
                     input = String.valueOf(colValue);
                 }
 
-                String old = DataAccessConstants.INPUT_DELIMITER + inputCode +
-                        DataAccessConstants.INPUT_DELIMITER;
-                String queryText = (String) queryTextMap.get(tempId);
-                queryText = StringUtilities.replace(queryText, old, input);
-                queryTextMap.put(tempId, queryText);
+                textValues.put(inputCode, input);
+                rawValues.put(inputCode, rawInput);
             } // end loop over query inputs
 
+            // Build the SQL for the queries, with ?'s for the inputs that can be bound
+            for (CommandDefinition.QueryDefinition q : queries) {
+                queryTextMap.put(q.getQueryId(), q.getTemplate().getSQL(textValues, DataAccessConstants.BIND_INPUTS));
+            }
+
             /* Check we filled in all the inputs.
              * this should be fine unless input was filled in with
              * itself surrounded by the INPUT_DELIMITER.  example:
              * input code = cr, and value = @cr@
              */
-            for (i = 0; i < queryIdList.length; i++) {
-                String queryText = (String) queryTextMap.get(new Integer(queryIdList[i]));
-                for (int j = 0; j < rowcount; j++) {
+            for (CommandDefinition.QueryDefinition q : queries) {
+                String queryText = (String) queryTextMap.get(q.getQueryId());
+                for (CommandDefinition.InputDefinition queryInput : queryInputs) {
                     if (queryText.indexOf(DataAccessConstants.INPUT_DELIMITER +
-                            rsc.getItem(j, "input_code").toString() +
+                            queryInput.getInputCode() +
                             DataAccessConstants.INPUT_DELIMITER) > -1) {
                         throw new Exception("Query input entries missing from database: " + queryText);
                     }
                 }
             }
+
+            for (CommandDefinition.QueryDefinition q : queries) {
+                Integer lookup = q.getQueryId();
+                int startRow, endRow;
+                Integer tempInt = (Integer) queryStartRow.get(lookup);
+                if (tempInt == null)
+                    startRow = 1;
+                else
+                    startRow = tempInt.intValue();
+                tempInt = (Integer) queryEndRow.get(lookup);
+                if (tempInt == null)
+                    endRow = Integer.MAX_VALUE;
+                else
+                    endRow = tempInt.intValue();
+                executions.add(new QueryExecution(q, (String) queryTextMap.get(lookup), startRow, endRow));
+            }
         } catch (Exception e) {
-            handleException(e, query.toString(), inputs);
+            handleException(e, query == null ? "" : query.toString(), inputs);
             throw e;
-        } finally {
-            DBMS.close(rs1);
-            DBMS.close(ps1);
         }
+        return command;
+    }
 
-        // At this point we've built all queries to run.
-        // Execute them and fill the ResultSetContainers.
-        String queryText = "", queryName = "";
+    /**
+     * @param queryName the name of a query of the command
+     * @param inputs    the inputs of this execution
+     * @return whether the results of the query are to be sorted
+     */
+    private static boolean isSortQuery(String queryName, Map inputs) {
         String sortQueryName = (String) inputs.get(DataAccessConstants.SORT_QUERY);
         String sortQueryCol = (String) inputs.get(DataAccessConstants.SORT_COLUMN);
+        return sortQueryName != null && sortQueryCol != null && queryName.equals(sortQueryName);
+    }
+
+    /**
+     * Sort the results of a query by the column and in the direction given in the inputs.
+     *
+     * @param rsc    the results of the query
+     * @param inputs the inputs of this execution
+     */
+    private static void sort(ResultSetContainer rsc, Map inputs) {
+        int col = Integer.parseInt((String) inputs.get(DataAccessConstants.SORT_COLUMN));
         String sortDir = (String) inputs.get(DataAccessConstants.SORT_DIRECTION);
-        boolean sortCalled = (sortQueryName != null && sortQueryCol != null);
-        try {
-            //todo we can improve this and solve sql injection hacks
-            //todo by replacing the inputs with ?'s and keeping track of
-            //todo what goes where and then calling setXXX on the preparedstatement
-            resultMap = new HashMap();
-            long start = System.currentTimeMillis();
-            for (i = 0; i < queryIdList.length; i++) {
-                try {
-                    Integer lookup = new Integer(queryIdList[i]);
-                    queryText = (String) queryTextMap.get(lookup);
-                    queryName = (String) queryNameMap.get(lookup);
-                    Integer ranklistCol = (Integer) querySortMap.get(lookup);
-                    int startRow, endRow;
-                    Integer tempInt = (Integer) queryStartRow.get(lookup);
-                    if (tempInt == null)
-                        startRow = 1;
-                    else
-                        startRow = tempInt.intValue();
-                    tempInt = (Integer) queryEndRow.get(lookup);
-                    if (tempInt == null)
-                        endRow = Integer.MAX_VALUE;
-                    else
-                        endRow = tempInt.intValue();
-                    ps = conn.prepareStatement(queryText);
-                    rs = ps.executeQuery();
-                    //log.debug("startrow: " + startRow + " endRow: " + endRow);
-                    // Call different constructors depending on if we have to
-                    // generate a ranklist column or not.
-                    ResultSetContainer rsc;
-                    if (ranklistCol == null)
-                        rsc = new ResultSetContainer(rs, startRow, endRow, false);
-                    else
-                        rsc = new ResultSetContainer(rs, startRow, endRow, ranklistCol.intValue(), false);
-
-                    // Sort if necessary
-                    if (sortCalled && queryName.equals(sortQueryName)) {
-                        int col = Integer.parseInt(sortQueryCol);
-                        boolean ascending = true;
-                        if (sortDir != null && sortDir.equals("desc"))
-                            ascending = false;
-                        if (rsc.isValidColumn(col))
-                            rsc.sortByColumn(col, ascending);
+        boolean ascending = true;
+        if (sortDir != null && sortDir.equals("desc"))
+            ascending = false;
+        if (rsc.isValidColumn(col))
+            rsc.sortByColumn(col, ascending);
+    }
+
+    /**
+     * @param commandDesc the name of the command
+     * @param queryCount  the number of queries in the command
+     * @return how many queries of the command to run at the same time
+     */
+    private int getParallelism(String commandDesc, int queryCount) {
+        if (queryCount < 2 || (dataSourceName == null && dataSource == null)) {
+            return 1;
+        }
+        Integer parallelism = parallelQueries.get(commandDesc);
+        if (parallelism == null) {
+            parallelism = new Integer(bundle.getIntProperty("PARALLEL_QUERIES." + commandDesc, DEFAULT_PARALLEL_QUERIES));
+            parallelQueries.put(commandDesc, parallelism);
+        }
+        return Math.min(parallelism.intValue(), queryCount);
+    }
+
+    /**
+     * Run queries on up to <code>parallelism</code> connections at once.  This thread works through
+     * the queries on our own connection while helpers from the pool do the same on connections of their
+     * own, so if no helpers are available everything still gets done here.  Failures are recorded in the
+     * executions, queries that a helper didn't finish in time are left without a result.  Returns as
+     * soon as every query has a result or an error, helpers that are still around are then cancelled.
+     *
+     * @param executions  the queries to run
+     * @param rawValues   the values of the inputs to bind
+     * @param parallelism the most queries to run at once
+     */
+    private void runParallel(List<QueryExecution> executions, final Map<String, String> rawValues, int parallelism) {
+        final ConcurrentLinkedQueue<QueryExecution> pending = new ConcurrentLinkedQueue<QueryExecution>(executions);
+        final CountDownLatch done = new CountDownLatch(executions.size());
+        final int queryTimeout = (PARALLEL_QUERY_TIMEOUT + 999) / 1000;
+        List<Future<?>> helpers = new ArrayList<Future<?>>(parallelism - 1);
+        for (int i = 1; i < parallelism; i++) {
+            try {
+                helpers.add(parallelExecutor.submit(new Runnable() {
+                    public void run() {
+                        if (pending.isEmpty()) {
+                            return;
+                        }
+                        Connection c = null;
+                        try {
+                            c = dataSource != null ? dataSource.getConnection() : DBMS.getConnection(dataSourceName);
+                            runPending(pending, c, rawValues, queryTimeout, done);
+                        } catch (Exception e) {
+                            log.error("Couldn't get a connection to run queries in parallel: " + e.getMessage());
+                        } finally {
+                            DBMS.close(c);
+                        }
                     }
+                }));
+            } catch (RejectedExecutionException e) {
+                //the pool is busy, we'll do the rest ourselves
+                break;
+            }
+        }
+        runPending(pending, conn, rawValues, 0, done);
 
-                    resultMap.put(queryName, rsc);
-                } finally {
-                    DBMS.close(rs);
-                    DBMS.close(ps);
+        //wait for the queries the helpers took, not for the helpers, which may still be getting a connection
+        try {
+            if (!done.await(PARALLEL_QUERY_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                log.warn("Parallel queries did not complete within " + PARALLEL_QUERY_TIMEOUT + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Future<?> helper : helpers) {
+            helper.cancel(true);
+        }
+    }
 
-                }
+    private static void runPending(ConcurrentLinkedQueue<QueryExecution> pending, Connection c,
+                                   Map<String, String> rawValues, int queryTimeout, CountDownLatch done) {
+        QueryExecution execution;
+        while ((execution = pending.poll()) != null) {
+            try {
+                execution.run(c, rawValues, queryTimeout);
+            } catch (Exception e) {
+                execution.error = e;
+            } finally {
+                done.countDown();
             }
-            trackExecution(commandId, conn, System.currentTimeMillis()-start, inputs);
+        }
+    }
+
+    /**
+     * Get the queries and inputs of a command, from the cache if we can.
+     *
+     * @param commandDesc the name of the command
+     * @param inputs      the inputs of this execution, for error reporting
+     * @return the definition of the command
+     * @throws Exception if the command can not be found
+     */
+    private CommandDefinition getCommandDefinition(String commandDesc, Map inputs) throws Exception {
+        //definitions can differ between databases, so the key includes the database
+        String key = conn.getMetaData().getURL() + DataAccessConstants.INPUT_DELIMITER + commandDesc;
+        CommandDefinition command = CommandDefinitionCache.get(key);
+        if (command == null) {
+            int version = CommandDefinitionCache.getVersion();
+            command = loadCommandDefinition(commandDesc, inputs);
+            CommandDefinitionCache.put(key, command, version);
+        }
+        return command;
+    }
+
+    /**
+     * Load the queries and inputs of a command from the database.
+     *
+     * @param commandDesc the name of the command
+     * @param inputs      the inputs of this execution, for error reporting
+     * @return the definition of the command
+     * @throws Exception if the command can not be found
+     */
+    private CommandDefinition loadCommandDefinition(String commandDesc, Map inputs) throws Exception {
+        ArrayList<CommandDefinition.QueryDefinition> queries = new ArrayList<CommandDefinition.QueryDefinition>();
+        ArrayList<CommandDefinition.InputDefinition> queryInputs = new ArrayList<CommandDefinition.InputDefinition>();
 
+        // Get the list of queries to execute, and the names and texts of the queries
+        ResultSet rs = null;
+        PreparedStatement ps = null;
+        long commandId = 0;
+        try {
+            query = new StringBuffer(300);
+            query.append("SELECT cqx.query_id, ");
+            query.append(" q.text, ");
+            query.append(" q.name, ");
+            query.append(" q.ranking, ");
+            query.append(" q.column_index, ");
+            query.append(" cqx.sort_order, ");
+            query.append(" c.command_id ");
+            query.append("FROM command c, query q, command_query_xref cqx ");
+            query.append("WHERE c.command_desc = ? ");
+            query.append("AND cqx.command_id = c.command_id ");
+            query.append("AND q.query_id = cqx.query_id ");
+            query.append("ORDER BY cqx.sort_order ASC ");
+            ps = conn.prepareStatement(query.toString());
+            ps.setString(1, commandDesc);
+            rs = ps.executeQuery();
+            while (rs.next()) {
+                commandId = rs.getLong("command_id");
+                Integer tempId = new Integer(rs.getInt(1));
+                String text = DBMS.getTextString(rs, 2);
+                String name = rs.getString(3);
+                Integer ranklistCol = null;
+                if (rs.getInt(4) == 1)
+                    ranklistCol = new Integer(rs.getInt(5));
+                queries.add(new CommandDefinition.QueryDefinition(tempId, text, name, ranklistCol));
+            }
         } catch (Exception e) {
-            handleException(e, queryText, inputs);
-            throw new Exception("Error while retrieving query data:" + queryText);
+            handleException(e, query.toString(), inputs);
+            throw new Exception("Invalid command: " + commandDesc);
+        } finally {
+            DBMS.close(rs);
+            DBMS.close(ps);
         }
 
-        return resultMap;
+        // Now get the inputs of the queries
+        try {
+            if (queries.isEmpty()) {
+                throw new Exception("Query information for command " + commandDesc +
+                        " missing from DB");
+            }
+
+            // Get all at once to avoid multiple DB hits.
+            query = new StringBuffer(300);
+            query.append("SELECT i.input_code, ");
+            query.append(" qi.optional, ");
+            query.append(" i.data_type_id, ");
+            query.append(" qi.default_value, ");
+            query.append(" qi.query_id, ");
+            query.append(" qi.sort_order ");
+            query.append("FROM command c, command_query_xref cqx, input_lu i, query_input_xref qi ");
+            query.append("WHERE c.command_desc = ? ");
+            query.append("AND cqx.command_id = c.command_id ");
+            query.append("AND cqx.query_id = qi.query_id ");
+            query.append("AND qi.input_id = i.input_id ");
+            query.append("ORDER BY qi.query_id ASC, qi.sort_order ASC ");
+            ps = conn.prepareStatement(query.toString());
+            ps.setString(1, commandDesc);
+            rs = ps.executeQuery();
+
+            // Put these in a result set container to avoid requiring the
+            // connection to have two open prepared statements at the same
+            // time.
+            ResultSetContainer rsc = new ResultSetContainer(rs);
+
+            for (int i = 0; i < rsc.getRowCount(); i++) {
+                queryInputs.add(new CommandDefinition.InputDefinition(
+                        rsc.getItem(i, 0).toString(),
+                        rsc.getItem(i, 1).toString().equals("Y"),
+                        Integer.parseInt(rsc.getItem(i, 2).toString()),
+                        rsc.getItem(i, 3).toString(),
+                        new Integer(rsc.getItem(i, 4).toString())));
+            }
+        } catch (Exception e) {
+            handleException(e, query.toString(), inputs);
+            throw e;
+        } finally {
+            DBMS.close(rs);
+            DBMS.close(ps);
+        }
+        return new CommandDefinition(commandId, queries, queryInputs);
+    }
+
+    /**
+     * One query of a command execution, with its result once it has run.
+     */
+    private static class QueryExecution {
+        private final CommandDefinition.QueryDefinition query;
+        private final String queryText;
+        private final int startRow;
+        private final int endRow;
+        private volatile ResultSetContainer result;
+        private volatile Exception error;
+
+        private QueryExecution(CommandDefinition.QueryDefinition query, String queryText, int startRow, int endRow) {
+            this.query = query;
+            this.queryText = queryText;
+            this.startRow = startRow;
+            this.endRow = endRow;
+        }
+
+        /**
+         * @param c            the connection to run the query on
+         * @param rawValues    the values of the inputs to bind
+         * @param queryTimeout the statement timeout in seconds, 0 for none
+         * @throws Exception if the query fails
+         */
+        private void run(Connection c, Map<String, String> rawValues, int queryTimeout) throws Exception {
+            ResultSet rs = null;
+            PreparedStatement ps = null;
+            try {
+                ps = c.prepareStatement(queryText);
+                if (queryTimeout > 0) {
+                    ps.setQueryTimeout(queryTimeout);
+                }
+                if (DataAccessConstants.BIND_INPUTS) {
+                    query.getTemplate().bind(ps, rawValues);
+                }
+                rs = ps.executeQuery();
+                //log.debug("startrow: " + startRow + " endRow: " + endRow);
+                // Call different constructors depending on if we have to
+                // generate a ranklist column or not.
+                Integer ranklistCol = query.getRankingColumn();
+                if (ranklistCol == null)
+                    result = new ResultSetContainer(rs, startRow, endRow, false);
+                else
+                    result = new ResultSetContainer(rs, startRow, endRow, ranklistCol.intValue(), false);
+            } finally {
+                DBMS.close(rs);
+                DBMS.close(ps);
+            }
+        }
+
+        /**
+         * Run the query and hand its rows to a handler as they are read.
+         *
+         * @param c         the connection to run the query on
+         * @param rawValues the values of the inputs to bind
+         * @param fetchSize how many rows the driver should fetch at a time, 0 for its default
+         * @param handler   receives the rows
+         * @throws Exception if the query or the handler fails
+         */
+        private void stream(Connection c, Map<String, String> rawValues, int fetchSize,
+                            ResultSetHandler handler) throws Exception {
+            ResultSet rs = null;
+            PreparedStatement ps = null;
+            try {
+                ps = c.prepareStatement(queryText, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                if (fetchSize > 0) {
+                    ps.setFetchSize(fetchSize);
+                }
+                if (DataAccessConstants.BIND_INPUTS) {
+                    query.getTemplate().bind(ps, rawValues);
+                }
+                rs = ps.executeQuery();
+                handler.handle(query.getName(),
+                        ResultSetContainer.openCursor(rs, startRow, endRow, query.getRankingColumn(), false));
+            } finally {
+                DBMS.close(rs);
+                DBMS.close(ps);
+            }
+        }
     }
 
     private void trackExecution(long commandId, Connection conn, long time, Map inputs) {
+        if (CommandExecutionTracker.ASYNC && (dataSourceName != null || dataSource != null)) {
+            CommandExecutionTracker.track(commandId, time, inputs, dataSourceName, dataSource);
+            return;
+        }
         PreparedStatement ps = null;
 
         try {
             ps = conn.prepareStatement("insert into command_execution (command_id, execution_time, inputs) values (?, ?, ?)");
             ps.setLong(1, commandId);
             ps.setLong(2, time);
-            StringBuffer sb = new StringBuffer();
-            if(inputs != null) {
-                Iterator i = inputs.keySet().iterator();
-                while (i.hasNext()) {
-                    String key = (String) i.next();
-                    sb.append(key);
-                    sb.append(':');
-                    sb.append((String) inputs.get(key));
-                    sb.append('|');
-                }
-                ps.setString(3, sb.toString());
-            } else {
-                ps.setString(3, null);
-            }
-
+            ps.setString(3, CommandExecutionTracker.formatInputs(inputs));
             ps.executeUpdate();
         } catch (Exception e) {
             log.error("Couldn't insert row to track the execution of command " + commandId);
@@ -613,5 +943,3 @@ public class DataRetriever implements DataRetrieverInt {
         }
     }
 }
-
-
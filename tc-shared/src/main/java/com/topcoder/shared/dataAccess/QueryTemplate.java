@@ -0,0 +1,304 @@
+package com.topcoder.shared.dataAccess;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A query text compiled so that its inputs can be passed to the database as bind
+ * parameters rather than being pasted into the SQL.  That way the SQL text is the
+ * same for every execution of a query, so the database doesn't have to parse it
+ * again and the statement can be reused from the statement cache of the connection.
+ * <p/>
+ * An input is only turned into a <code>?</code> where that is known to be safe: a
+ * numeric input used as a value in a condition (<code>coder_id = @cr@</code>,
+ * <code>in (@rd@, @rd2@)</code>), or any input that makes up an entire string literal
+ * in a condition (<code>handle = '@ha@'</code>).  Everything else (inputs in the select
+ * list, in <code>ORDER BY</code>, <code>FIRST @nr@</code>, inside a larger literal like
+ * <code>'%@ha@%'</code>, sort columns and directions, unquoted strings and dates) is
+ * still substituted into the text the old way, and so are inputs inside comments
+ * (<code>--</code>, <code>/* *&#47;</code> and <code>{ }</code>), which the database
+ * doesn't see as parameters.
+ *
+ * @version $Revision: 85038 $
+ * @see DataRetriever
+ */
+class QueryTemplate {
+    private static final String BIND_PREFIX_CHARS = "=<>(,";
+    private static final String[] BIND_PREFIX_WORDS = {"AND", "BETWEEN", "LIKE", "MATCHES", "OR"};
+    private static final String ARITHMETIC_CHARS = "+-*/|";
+
+    /* an input substituted into the text */
+    private static final int TEXT = 0;
+    /* a numeric input that is bound with its numeric type */
+    private static final int BIND_NUMBER = 1;
+    /* a string literal that is bound as a string */
+    private static final int BIND_STRING = 2;
+
+    /* where a character of the query text is, see scan */
+    private static final int IN_CODE = 0;
+    private static final int IN_LITERAL = 1;
+    private static final int IN_COMMENT = 2;
+
+    private final String text;
+    private final List<String> literals;
+    private final List<Parameter> parameters;
+
+    private QueryTemplate(String text, List<String> literals, List<Parameter> parameters) {
+        this.text = text;
+        this.literals = Collections.unmodifiableList(literals);
+        this.parameters = Collections.unmodifiableList(parameters);
+    }
+
+    /**
+     * Compile a query text.
+     *
+     * @param text       the query text, with inputs surrounded by the INPUT_DELIMITER
+     * @param inputTypes the input codes of the query mapped to their data types
+     * @return the compiled query
+     */
+    static QueryTemplate compile(String text, Map<String, Integer> inputTypes) {
+        String delimiter = DataAccessConstants.INPUT_DELIMITER;
+        String upper = text.toUpperCase();
+        List<String> literals = new ArrayList<String>();
+        List<Parameter> parameters = new ArrayList<Parameter>();
+        int[] context = scan(text);
+        int pos = 0;
+        int start = text.indexOf(delimiter);
+        while (start >= 0) {
+            int end = text.indexOf(delimiter, start + delimiter.length());
+            if (end < 0) {
+                break;
+            }
+            String inputCode = text.substring(start + delimiter.length(), end);
+            Integer dataType = inputTypes.get(inputCode);
+            if (dataType == null || isRankInput(inputCode)) {
+                //not one of our inputs, leave it alone
+                start = text.indexOf(delimiter, start + 1);
+                continue;
+            }
+            int tokenEnd = end + delimiter.length();
+
+            int mode = TEXT;
+            if (!inSelectList(upper, start) && !inOrderBy(upper, start)
+                    && !inputCode.equals(DataAccessConstants.SORT_COLUMN)
+                    && dataType.intValue() != DataAccessConstants.SORT_DIRECTION_INPUT) {
+                if (start > 0 && text.charAt(start - 1) == '\'' && tokenEnd < text.length()
+                        && text.charAt(tokenEnd) == '\'' && context[start - 1] == IN_CODE) {
+                    //the input is an entire string literal
+                    if (isBindContext(text, upper, start - 1, tokenEnd + 1)) {
+                        mode = BIND_STRING;
+                    }
+                } else if (context[start] == IN_CODE
+                        && (dataType.intValue() == DataAccessConstants.INTEGER_INPUT
+                        || dataType.intValue() == DataAccessConstants.DECIMAL_INPUT)) {
+                    if (isBindContext(text, upper, start, tokenEnd)) {
+                        mode = BIND_NUMBER;
+                    }
+                }
+            }
+
+            if (mode == BIND_STRING) {
+                literals.add(text.substring(pos, start - 1));
+                pos = tokenEnd + 1;
+            } else {
+                literals.add(text.substring(pos, start));
+                pos = tokenEnd;
+            }
+            parameters.add(new Parameter(inputCode, dataType.intValue(), mode));
+            start = text.indexOf(delimiter, pos);
+        }
+        literals.add(text.substring(pos));
+        return new QueryTemplate(text, literals, parameters);
+    }
+
+    /**
+     * @return the query text this template was compiled from
+     */
+    String getText() {
+        return text;
+    }
+
+    /**
+     * Build the SQL to prepare for an execution of this query.
+     *
+     * @param textValues the input values to substitute into the text, escaped for use in SQL
+     * @param bind       whether inputs should be bound where possible, if not they are all substituted
+     * @return the SQL
+     */
+    String getSQL(Map<String, String> textValues, boolean bind) {
+        StringBuffer sql = new StringBuffer(text.length() + 50);
+        for (int i = 0; i < parameters.size(); i++) {
+            sql.append(literals.get(i));
+            Parameter p = parameters.get(i);
+            if (bind && p.mode != TEXT) {
+                sql.append('?');
+            } else if (p.mode == BIND_STRING) {
+                sql.append('\'').append(textValues.get(p.inputCode)).append('\'');
+            } else {
+                sql.append(textValues.get(p.inputCode));
+            }
+        }
+        sql.append(literals.get(literals.size() - 1));
+        return sql.toString();
+    }
+
+    /**
+     * Set the bind parameters of a statement prepared with <code>getSQL(textValues, true)</code>.
+     *
+     * @param ps        the statement
+     * @param rawValues the input values, validated but not escaped
+     * @throws SQLException if a parameter can't be set
+     */
+    void bind(PreparedStatement ps, Map<String, String> rawValues) throws SQLException {
+        int index = 1;
+        for (Parameter p : parameters) {
+            if (p.mode == BIND_STRING) {
+                ps.setString(index++, rawValues.get(p.inputCode));
+            } else if (p.mode == BIND_NUMBER) {
+                String value = rawValues.get(p.inputCode);
+                if (p.dataType == DataAccessConstants.INTEGER_INPUT) {
+                    BigInteger i = new BigInteger(value);
+                    if (i.bitLength() < 64) {
+                        ps.setLong(index++, i.longValue());
+                    } else {
+                        ps.setBigDecimal(index++, new BigDecimal(i));
+                    }
+                } else {
+                    ps.setBigDecimal(index++, new BigDecimal(value));
+                }
+            }
+        }
+    }
+
+    private static boolean isRankInput(String inputCode) {
+        return inputCode.equals(DataAccessConstants.START_RANK) || inputCode.equals(DataAccessConstants.END_RANK)
+                || inputCode.equals(DataAccessConstants.NUMBER_RECORDS);
+    }
+
+    /**
+     * A value can be bound if it's compared to something (or is a function argument or
+     * list element) and isn't part of an arithmetic expression.
+     */
+    private static boolean isBindContext(String text, String upper, int start, int end) {
+        int before = start - 1;
+        while (before >= 0 && Character.isWhitespace(text.charAt(before))) {
+            before--;
+        }
+        int after = end;
+        while (after < text.length() && Character.isWhitespace(text.charAt(after))) {
+            after++;
+        }
+        if (after < text.length() && ARITHMETIC_CHARS.indexOf(text.charAt(after)) >= 0
+                && !text.startsWith("--", after) && !text.startsWith("/*", after)) {
+            return false;
+        } else if (upper.startsWith("UNITS", after) && isWordEnd(upper, after + 5)) {
+            //current - @n@ units day
+            return false;
+        }
+        if (before < 0) {
+            return false;
+        } else if (text.charAt(before) == '(') {
+            //interval(@n@) day to day and datetime(@d@) year to day need literals
+            return !(endsWithWord(upper, "INTERVAL", before) || endsWithWord(upper, "DATETIME", before));
+        } else if (BIND_PREFIX_CHARS.indexOf(text.charAt(before)) >= 0) {
+            return true;
+        } else {
+            for (String word : BIND_PREFIX_WORDS) {
+                if (endsWithWord(upper, word, before + 1)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static boolean endsWithWord(String upper, String word, int before) {
+        int end = before;
+        while (end > 0 && Character.isWhitespace(upper.charAt(end - 1))) {
+            end--;
+        }
+        int wordStart = end - word.length();
+        return wordStart >= 0 && upper.startsWith(word, wordStart) && isWordStart(upper, wordStart);
+    }
+
+    private static boolean inSelectList(String upper, int pos) {
+        return lastWord(upper, "SELECT", pos) > lastWord(upper, "FROM", pos);
+    }
+
+    private static boolean inOrderBy(String upper, int pos) {
+        int clause = Math.max(lastWord(upper, "ORDER", pos), lastWord(upper, "GROUP", pos));
+        return clause > Math.max(lastWord(upper, "WHERE", pos), Math.max(lastWord(upper, "HAVING", pos),
+                lastWord(upper, "SELECT", pos)));
+    }
+
+    private static int lastWord(String upper, String word, int before) {
+        int i = upper.lastIndexOf(word, before - word.length());
+        while (i >= 0 && !(isWordStart(upper, i) && isWordEnd(upper, i + word.length()))) {
+            i = upper.lastIndexOf(word, i - 1);
+        }
+        return i;
+    }
+
+    private static boolean isWordStart(String s, int i) {
+        return i == 0 || !Character.isJavaIdentifierPart(s.charAt(i - 1));
+    }
+
+    private static boolean isWordEnd(String s, int i) {
+        return i >= s.length() || !Character.isJavaIdentifierPart(s.charAt(i));
+    }
+
+    /**
+     * @return for each character of the query text, and for its end, whether it's in code,
+     * in a string literal (the quotes are, the one opening it is in code) or in a comment
+     */
+    private static int[] scan(String s) {
+        int[] ret = new int[s.length() + 1];
+        int state = IN_CODE;
+        String commentEnd = null;
+        for (int i = 0; i < s.length(); i++) {
+            ret[i] = state;
+            char c = s.charAt(i);
+            if (state == IN_CODE) {
+                if (c == '\'') {
+                    state = IN_LITERAL;
+                } else if (s.startsWith("--", i) || s.startsWith("/*", i)) {
+                    commentEnd = c == '-' ? "\n" : "*/";
+                    state = IN_COMMENT;
+                    ret[++i] = state;
+                } else if (c == '{') {
+                    commentEnd = "}";
+                    state = IN_COMMENT;
+                }
+            } else if (state == IN_LITERAL) {
+                //a doubled quote closes and opens again
+                if (c == '\'') {
+                    state = IN_CODE;
+                }
+            } else if (s.startsWith(commentEnd, i)) {
+                i += commentEnd.length() - 1;
+                ret[i] = state;
+                state = IN_CODE;
+            }
+        }
+        ret[s.length()] = state;
+        return ret;
+    }
+
+    private static class Parameter {
+        private final String inputCode;
+        private final int dataType;
+        private final int mode;
+
+        private Parameter(String inputCode, int dataType, int mode) {
+            this.inputCode = inputCode;
+            this.dataType = dataType;
+            this.mode = mode;
+        }
+    }
+}
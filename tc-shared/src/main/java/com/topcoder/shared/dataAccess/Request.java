@@ -166,7 +166,8 @@ public class Request implements RequestInt {
 
     /**
      * Generate a string from this object sutable for using
-     * as a key for some key/value pair construct.
+     * as a key for some key/value pair construct.  The command
+     * comes first so that all the keys of a command share a prefix.
      *
      * @return
      */
@@ -176,6 +177,13 @@ public class Request implements RequestInt {
         //using a tree map so that the keys are always in the same order
         //we want the cache to pick it up regardless of order
         TreeMap t = new TreeMap(mProp);
+        Object command = t.remove(DataAccessConstants.COMMAND);
+        if (command != null) {
+            sb.append(DataAccessConstants.COMMAND);
+            sb.append("=");
+            sb.append(command.toString());
+            sb.append("|");
+        }
 
         for (Iterator it = t.entrySet().iterator(); it.hasNext();) {
             me = (Map.Entry) it.next();
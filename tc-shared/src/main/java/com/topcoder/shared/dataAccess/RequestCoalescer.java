@@ -0,0 +1,269 @@
+package com.topcoder.shared.dataAccess;
+
+import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
+import com.topcoder.shared.util.logging.Logger;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes sure that only one loader runs per cache key within this JVM.  When a popular
+ * key falls out of the cache, every concurrent request for it would otherwise go to
+ * the database on its own.  With this class the first caller runs the load and the
+ * others wait for its result.
+ * <p/>
+ * Optionally (<code>STALE_CACHE_SIZE</code> &gt; 0 in DataAccess.properties) the last
+ * value loaded for a key is remembered locally, so once the cached copy expires callers
+ * get the stale value right away while a single background refresh reloads it.  Stale
+ * values older than <code>STALE_MAX_AGE</code> milliseconds are never served.  The cache
+ * clients and {@link com.topcoder.shared.util.dwload.CacheClearer} forget stale values
+ * when keys are removed from the cache.
+ * <p/>
+ * Callers may change what they get, sorting result sets in place for example, so every
+ * caller other than the one that ran the load gets its own copy.
+ *
+ * @version $Revision: 85038 $
+ */
+public class RequestCoalescer {
+    private static final Logger log = Logger.getLogger(RequestCoalescer.class);
+
+    private static final RequestCoalescer instance = new RequestCoalescer(DataAccessConstants.COALESCE_LOADS,
+            DataAccessConstants.STALE_CACHE_SIZE, DataAccessConstants.STALE_MAX_AGE,
+            DataAccessConstants.STALE_REFRESH_THREADS);
+
+    private final boolean enabled;
+    private final long staleMaxAge;
+    private final ConcurrentHashMap<String, FutureTask<Map<String, ResultSetContainer>>> inFlight =
+            new ConcurrentHashMap<String, FutureTask<Map<String, ResultSetContainer>>>();
+    private final Map<String, StaleValue> staleValues;
+    /* bumped when stale values are forgotten, so that a load running meanwhile doesn't keep its value */
+    private final AtomicLong invalidations = new AtomicLong();
+    private final ThreadPoolExecutor refresher;
+
+    /**
+     * @param enabled        whether loads should be coalesced at all
+     * @param staleSize      the number of stale values to keep around, 0 to disable stale-while-revalidate
+     * @param staleMaxAge    how long (in milli) after it was loaded a stale value may still be served
+     * @param refreshThreads the number of threads doing background refreshes
+     */
+    RequestCoalescer(boolean enabled, final int staleSize, long staleMaxAge, int refreshThreads) {
+        this.enabled = enabled;
+        this.staleMaxAge = staleMaxAge;
+        if (enabled && staleSize > 0) {
+            staleValues = new LinkedHashMap<String, StaleValue>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, StaleValue> eldest) {
+                    return size() > staleSize;
+                }
+            };
+            refresher = new ThreadPoolExecutor(refreshThreads, refreshThreads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(staleSize), new ThreadFactory() {
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "RequestCoalescer-refresh");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+        } else {
+            staleValues = null;
+            refresher = null;
+        }
+    }
+
+    /**
+     * @return the coalescer shared by all the data access objects in this JVM
+     */
+    public static RequestCoalescer getInstance() {
+        return instance;
+    }
+
+    /**
+     * Load the value for the given key.  If another thread is already loading the same key,
+     * wait for it and return its result rather than running <code>loader</code> again.
+     *
+     * @param key    the cache key of the value
+     * @param loader retrieves the value from the data source (and typically puts it in the cache)
+     * @return the loaded value, or a stale copy of it if stale values are enabled and one is available,
+     * in either case only this caller's
+     * @throws Exception if the loader failed
+     */
+    public Map<String, ResultSetContainer> load(String key, Callable<Map<String, ResultSetContainer>> loader)
+            throws Exception {
+        if (!enabled) {
+            return loader.call();
+        }
+        if (staleValues != null) {
+            Map<String, ResultSetContainer> stale = getStale(key);
+            if (stale != null) {
+                refresh(key, loader);
+                return stale;
+            }
+        }
+
+        FutureTask<Map<String, ResultSetContainer>> task = new FutureTask<Map<String, ResultSetContainer>>(loader);
+        FutureTask<Map<String, ResultSetContainer>> existing = inFlight.putIfAbsent(key, task);
+        boolean ours = existing == null;
+        if (ours) {
+            run(key, task);
+            existing = task;
+        } else if (log.isDebugEnabled()) {
+            log.debug("waiting on in flight load of " + key);
+        }
+        try {
+            return ours ? existing.get() : copy(existing.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Forget the stale value for a key, for example because it was explicitly removed from the cache.
+     *
+     * @param key the cache key
+     */
+    public void invalidate(String key) {
+        if (staleValues != null) {
+            invalidations.incrementAndGet();
+            synchronized (staleValues) {
+                staleValues.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Forget the stale values for the keys that contain a string, like
+     * <code>removelike</code> does in the cache.
+     *
+     * @param s the string to look for
+     */
+    public void invalidateLike(String s) {
+        if (staleValues != null) {
+            invalidations.incrementAndGet();
+            synchronized (staleValues) {
+                for (Iterator<String> it = staleValues.keySet().iterator(); it.hasNext();) {
+                    if (it.next().indexOf(s) >= 0) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget all the stale values, for example because the cache was cleared.
+     */
+    public void clear() {
+        if (staleValues != null) {
+            invalidations.incrementAndGet();
+            synchronized (staleValues) {
+                staleValues.clear();
+            }
+        }
+    }
+
+    /**
+     * @param value query results
+     * @return a copy of the results that can be changed without changing <code>value</code>
+     */
+    private static Map<String, ResultSetContainer> copy(Map<String, ResultSetContainer> value) throws Exception {
+        if (value == null) {
+            return null;
+        }
+        Map<String, ResultSetContainer> ret = new LinkedHashMap<String, ResultSetContainer>();
+        for (Map.Entry<String, ResultSetContainer> e : value.entrySet()) {
+            ret.put(e.getKey(), e.getValue() == null ? null : new ResultSetContainer(e.getValue().cursor()));
+        }
+        return ret;
+    }
+
+    private void run(String key, FutureTask<Map<String, ResultSetContainer>> task) {
+        long stamp = invalidations.get();
+        try {
+            task.run();
+        } finally {
+            inFlight.remove(key, task);
+        }
+        if (staleValues != null && task.isDone()) {
+            try {
+                Map<String, ResultSetContainer> value = task.get();
+                if (value != null) {
+                    StaleValue stale = new StaleValue(copy(value));
+                    synchronized (staleValues) {
+                        //something may have been removed while we were loading, it may have been this
+                        if (invalidations.get() == stamp) {
+                            staleValues.put(key, stale);
+                        }
+                    }
+                }
+            } catch (Exception e) {
+                //the caller gets the exception from the task
+            }
+        }
+    }
+
+    private Map<String, ResultSetContainer> getStale(String key) throws Exception {
+        StaleValue stale;
+        synchronized (staleValues) {
+            stale = staleValues.get(key);
+        }
+        if (stale == null) {
+            return null;
+        } else if (System.currentTimeMillis() - stale.loaded > staleMaxAge) {
+            synchronized (staleValues) {
+                if (staleValues.get(key) == stale) {
+                    staleValues.remove(key);
+                }
+            }
+            return null;
+        } else {
+            return copy(stale.value);
+        }
+    }
+
+    private void refresh(final String key, Callable<Map<String, ResultSetContainer>> loader) {
+        final FutureTask<Map<String, ResultSetContainer>> task = new FutureTask<Map<String, ResultSetContainer>>(loader);
+        if (inFlight.putIfAbsent(key, task) == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("serving stale value and refreshing " + key);
+            }
+            try {
+                refresher.execute(new Runnable() {
+                    public void run() {
+                        RequestCoalescer.this.run(key, task);
+                        try {
+                            task.get();
+                        } catch (Exception e) {
+                            log.error("background refresh of " + key + " failed: " + e.getMessage());
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                //too many refreshes queued up, a later request will try again
+                inFlight.remove(key, task);
+            }
+        }
+    }
+
+    private static class StaleValue {
+        private final Map<String, ResultSetContainer> value;
+        private final long loaded = System.currentTimeMillis();
+
+        private StaleValue(Map<String, ResultSetContainer> value) {
+            this.value = value;
+        }
+    }
+}
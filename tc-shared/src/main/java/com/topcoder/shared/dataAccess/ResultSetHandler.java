@@ -0,0 +1,22 @@
+package com.topcoder.shared.dataAccess;
+
+import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
+
+/**
+ * This interface needs to be implemented to receive the results of a command
+ * row by row, as they are read from the database, instead of in a Map of
+ * <tt>ResultSetContainer</tt>s.  See {@link DataAccess#getData(RequestInt, ResultSetHandler)}.
+ *
+ * @version $Revision: 85038 $
+ */
+public interface ResultSetHandler {
+    /**
+     * Called once for each query of the command, in the order of the queries.
+     * The cursor can only be used during the call.
+     *
+     * @param queryName the name of the query
+     * @param cursor    the rows of the query
+     * @throws Exception if the rows can not be handled, this stops the command
+     */
+    public void handle(String queryName, ResultSetContainer.Cursor cursor) throws Exception;
+}
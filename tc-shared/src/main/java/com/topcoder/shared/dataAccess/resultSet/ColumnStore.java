@@ -0,0 +1,767 @@
+package com.topcoder.shared.dataAccess.resultSet;
+
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Column oriented storage for the rows of a large <tt>ResultSetContainer</tt>.
+ * Rather than a <tt>TCResultItem</tt> per cell, each column keeps its values in
+ * a single array: ints, longs, floats and doubles as primitives with a bitmap
+ * marking the nulls, and strings as codes into a dictionary of the distinct
+ * values of the column.  Any other kind of item (dates, booleans, big numbers)
+ * is kept as is.
+ * <p/>
+ * Items are rebuilt from the arrays when they are asked for, so callers see the
+ * same <tt>TCResultItem</tt> types they would without this storage.  Once the
+ * container is built the store is never modified.
+ * <p/>
+ * The store is also the wire format of a <tt>ResultSetContainer</tt>: {@link #write}
+ * puts each column out as one block of values of its type.
+ *
+ * @version $Revision: 85038 $
+ * @see ResultSetContainer
+ */
+class ColumnStore implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final byte EMPTY_COLUMN = 0;
+    private static final byte INT_COLUMN = 1;
+    private static final byte LONG_COLUMN = 2;
+    private static final byte DOUBLE_COLUMN = 3;
+    private static final byte FLOAT_COLUMN = 4;
+    private static final byte STRING_COLUMN = 5;
+    private static final byte ITEM_COLUMN = 6;
+
+    private Column[] columns;
+    private int size;
+
+    /**
+     * @param columnCount the number of columns in every row
+     */
+    ColumnStore(int columnCount) {
+        columns = new Column[columnCount];
+        size = 0;
+    }
+
+    /**
+     * Add a row to the end of the store.
+     *
+     * @param items the items of the row, one for each column
+     * @return the index of the new row
+     */
+    int add(TCResultItem[] items) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] == null) {
+                columns[i] = Column.create(items[i]);
+            } else if (!columns[i].accepts(items[i])) {
+                //the column doesn't always hold the same kind of item, fall back to storing them
+                columns[i] = new ItemColumn(columns[i], size);
+            }
+            columns[i].add(size, items[i]);
+        }
+        return size++;
+    }
+
+    /**
+     * Release the spare room in the arrays, called once all the rows have been added.
+     */
+    void trim() {
+        for (Column column : columns) {
+            if (column != null) {
+                column.trim(size);
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    TCResultItem getItem(int row, int column) {
+        return columns[column].getItem(row);
+    }
+
+    /**
+     * @return the value of the cell, what <tt>getItem(row, column).getResultData()</tt> would return
+     */
+    Object getData(int row, int column) {
+        return columns[column].getData(row);
+    }
+
+    TCResultItem[] getItems(int row) {
+        TCResultItem[] items = new TCResultItem[columns.length];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = columns[i].getItem(row);
+        }
+        return items;
+    }
+
+    /**
+     * Write out the store, a column at a time.
+     *
+     * @param out where to write it
+     * @throws IOException if writing fails
+     */
+    void write(ObjectOutput out) throws IOException {
+        out.writeInt(columns.length);
+        out.writeInt(size);
+        for (Column column : columns) {
+            if (column == null) {
+                out.writeByte(EMPTY_COLUMN);
+            } else {
+                out.writeByte(column.getKind());
+                column.write(out, size);
+            }
+        }
+    }
+
+    /**
+     * Read a store written by {@link #write}.
+     *
+     * @param in where to read it from
+     * @return the store
+     * @throws IOException            if reading fails
+     * @throws ClassNotFoundException if an item of an unknown class was written
+     */
+    static ColumnStore read(ObjectInput in) throws IOException, ClassNotFoundException {
+        ColumnStore store = new ColumnStore(in.readInt());
+        store.size = in.readInt();
+        for (int i = 0; i < store.columns.length; i++) {
+            byte kind = in.readByte();
+            Column column;
+            switch (kind) {
+                case EMPTY_COLUMN:
+                    continue;
+                case INT_COLUMN:
+                    column = new IntColumn();
+                    break;
+                case LONG_COLUMN:
+                    column = new LongColumn();
+                    break;
+                case DOUBLE_COLUMN:
+                    column = new DoubleColumn();
+                    break;
+                case FLOAT_COLUMN:
+                    column = new FloatColumn();
+                    break;
+                case STRING_COLUMN:
+                    column = new StringColumn();
+                    break;
+                case ITEM_COLUMN:
+                    column = new ItemColumn();
+                    break;
+                default:
+                    throw new IOException("Unknown column kind " + kind);
+            }
+            column.read(in, store.size);
+            store.columns[i] = column;
+        }
+        return store;
+    }
+
+    private static void writeString(ObjectOutput out, String s) throws IOException {
+        //not writeUTF, text columns can be longer than it allows
+        byte[] b = s.getBytes("UTF-8");
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    private static String readString(ObjectInput in) throws IOException {
+        byte[] b = new byte[in.readInt()];
+        in.readFully(b);
+        return new String(b, "UTF-8");
+    }
+
+    /**
+     * Storage for the values of one column.
+     */
+    abstract static class Column implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        static Column create(TCResultItem item) {
+            Class c = item.getClass();
+            if (c == TCIntResult.class) {
+                return new IntColumn();
+            } else if (c == TCLongResult.class) {
+                return new LongColumn();
+            } else if (c == TCDoubleResult.class) {
+                return new DoubleColumn();
+            } else if (c == TCFloatResult.class) {
+                return new FloatColumn();
+            } else if (c == TCStringResult.class) {
+                return new StringColumn();
+            } else {
+                return new ItemColumn();
+            }
+        }
+
+        abstract boolean accepts(TCResultItem item);
+
+        abstract void add(int row, TCResultItem item);
+
+        abstract TCResultItem getItem(int row);
+
+        abstract Object getData(int row);
+
+        abstract void trim(int size);
+
+        abstract byte getKind();
+
+        abstract void write(ObjectOutput out, int size) throws IOException;
+
+        abstract void read(ObjectInput in, int size) throws IOException, ClassNotFoundException;
+
+        static int grow(int length, int row) {
+            return Math.max(row + 1, length < 8 ? 16 : length + (length >> 1));
+        }
+    }
+
+    /**
+     * Base class of the columns that keep primitives, remembering which cells are null.
+     */
+    abstract static class PrimitiveColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        private final BitSet nulls = new BitSet();
+
+        void add(int row, TCResultItem item) {
+            Object data = item.getResultData();
+            if (data == null) {
+                nulls.set(row);
+            } else {
+                set(row, (Number) data);
+            }
+        }
+
+        TCResultItem getItem(int row) {
+            return newItem(nulls.get(row) ? null : getValue(row));
+        }
+
+        Object getData(int row) {
+            return nulls.get(row) ? null : getValue(row);
+        }
+
+        void write(ObjectOutput out, int size) throws IOException {
+            //the null bitmap, then the values of the cells that aren't null
+            for (int i = 0; i < size; i += 8) {
+                int b = 0;
+                for (int j = 0; j < 8; j++) {
+                    if (nulls.get(i + j)) {
+                        b |= 1 << j;
+                    }
+                }
+                out.writeByte(b);
+            }
+            for (int i = 0; i < size; i++) {
+                if (!nulls.get(i)) {
+                    writeValue(out, i);
+                }
+            }
+        }
+
+        void read(ObjectInput in, int size) throws IOException {
+            for (int i = 0; i < size; i += 8) {
+                int b = in.readUnsignedByte();
+                for (int j = 0; j < 8; j++) {
+                    if ((b & (1 << j)) != 0) {
+                        nulls.set(i + j);
+                    }
+                }
+            }
+            allocate(size);
+            for (int i = 0; i < size; i++) {
+                if (!nulls.get(i)) {
+                    readValue(in, i);
+                }
+            }
+        }
+
+        abstract void set(int row, Number value);
+
+        abstract Number getValue(int row);
+
+        abstract TCResultItem newItem(Number value);
+
+        abstract void allocate(int size);
+
+        abstract void writeValue(ObjectOutput out, int row) throws IOException;
+
+        abstract void readValue(ObjectInput in, int row) throws IOException;
+    }
+
+    static class IntColumn extends PrimitiveColumn {
+        private static final long serialVersionUID = 1L;
+        private int[] values = new int[0];
+
+        boolean accepts(TCResultItem item) {
+            return item.getClass() == TCIntResult.class;
+        }
+
+        void set(int row, Number value) {
+            if (row >= values.length) {
+                int[] temp = new int[grow(values.length, row)];
+                System.arraycopy(values, 0, temp, 0, values.length);
+                values = temp;
+            }
+            values[row] = value.intValue();
+        }
+
+        Number getValue(int row) {
+            return new Integer(values[row]);
+        }
+
+        TCResultItem newItem(Number value) {
+            return new TCIntResult((Integer) value);
+        }
+
+        void trim(int size) {
+            if (values.length > size) {
+                int[] temp = new int[size];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+        }
+
+        byte getKind() {
+            return INT_COLUMN;
+        }
+
+        void allocate(int size) {
+            values = new int[size];
+        }
+
+        void writeValue(ObjectOutput out, int row) throws IOException {
+            out.writeInt(values[row]);
+        }
+
+        void readValue(ObjectInput in, int row) throws IOException {
+            values[row] = in.readInt();
+        }
+    }
+
+    static class LongColumn extends PrimitiveColumn {
+        private static final long serialVersionUID = 1L;
+        private long[] values = new long[0];
+
+        boolean accepts(TCResultItem item) {
+            return item.getClass() == TCLongResult.class;
+        }
+
+        void set(int row, Number value) {
+            if (row >= values.length) {
+                long[] temp = new long[grow(values.length, row)];
+                System.arraycopy(values, 0, temp, 0, values.length);
+                values = temp;
+            }
+            values[row] = value.longValue();
+        }
+
+        Number getValue(int row) {
+            return new Long(values[row]);
+        }
+
+        TCResultItem newItem(Number value) {
+            return new TCLongResult((Long) value);
+        }
+
+        void trim(int size) {
+            if (values.length > size) {
+                long[] temp = new long[size];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+        }
+
+        byte getKind() {
+            return LONG_COLUMN;
+        }
+
+        void allocate(int size) {
+            values = new long[size];
+        }
+
+        void writeValue(ObjectOutput out, int row) throws IOException {
+            out.writeLong(values[row]);
+        }
+
+        void readValue(ObjectInput in, int row) throws IOException {
+            values[row] = in.readLong();
+        }
+    }
+
+    static class DoubleColumn extends PrimitiveColumn {
+        private static final long serialVersionUID = 1L;
+        private double[] values = new double[0];
+
+        boolean accepts(TCResultItem item) {
+            return item.getClass() == TCDoubleResult.class;
+        }
+
+        void set(int row, Number value) {
+            if (row >= values.length) {
+                double[] temp = new double[grow(values.length, row)];
+                System.arraycopy(values, 0, temp, 0, values.length);
+                values = temp;
+            }
+            values[row] = value.doubleValue();
+        }
+
+        Number getValue(int row) {
+            return new Double(values[row]);
+        }
+
+        TCResultItem newItem(Number value) {
+            return new TCDoubleResult((Double) value);
+        }
+
+        void trim(int size) {
+            if (values.length > size) {
+                double[] temp = new double[size];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+        }
+
+        byte getKind() {
+            return DOUBLE_COLUMN;
+        }
+
+        void allocate(int size) {
+            values = new double[size];
+        }
+
+        void writeValue(ObjectOutput out, int row) throws IOException {
+            out.writeDouble(values[row]);
+        }
+
+        void readValue(ObjectInput in, int row) throws IOException {
+            values[row] = in.readDouble();
+        }
+    }
+
+    static class FloatColumn extends PrimitiveColumn {
+        private static final long serialVersionUID = 1L;
+        private float[] values = new float[0];
+
+        boolean accepts(TCResultItem item) {
+            return item.getClass() == TCFloatResult.class;
+        }
+
+        void set(int row, Number value) {
+            if (row >= values.length) {
+                float[] temp = new float[grow(values.length, row)];
+                System.arraycopy(values, 0, temp, 0, values.length);
+                values = temp;
+            }
+            values[row] = value.floatValue();
+        }
+
+        Number getValue(int row) {
+            return new Float(values[row]);
+        }
+
+        TCResultItem newItem(Number value) {
+            return new TCFloatResult((Float) value);
+        }
+
+        void trim(int size) {
+            if (values.length > size) {
+                float[] temp = new float[size];
+                System.arraycopy(values, 0, temp, 0, size);
+                values = temp;
+            }
+        }
+
+        byte getKind() {
+            return FLOAT_COLUMN;
+        }
+
+        void allocate(int size) {
+            values = new float[size];
+        }
+
+        void writeValue(ObjectOutput out, int row) throws IOException {
+            out.writeFloat(values[row]);
+        }
+
+        void readValue(ObjectInput in, int row) throws IOException {
+            values[row] = in.readFloat();
+        }
+    }
+
+    /**
+     * Strings are stored as codes into a dictionary of the distinct values, -1 being null.
+     * Columns like country, school or language only have a handful of them.
+     */
+    static class StringColumn extends Column {
+        private static final long serialVersionUID = 1L;
+        private int[] codes = new int[0];
+        private List<String> dictionary = new ArrayList<String>();
+        private transient HashMap<String, Integer> lookup = new HashMap<String, Integer>();
+
+        boolean accepts(TCResultItem item) {
+            return item.getClass() == TCStringResult.class;
+        }
+
+        void add(int row, TCResultItem item) {
+            if (row >= codes.length) {
+                int[] temp = new int[grow(codes.length, row)];
+                System.arraycopy(codes, 0, temp, 0, codes.length);
+                codes = temp;
+            }
+            String value = (String) item.getResultData();
+            if (value == null) {
+                codes[row] = -1;
+            } else {
+                Integer code = lookup.get(value);
+                if (code == null) {
+                    code = new Integer(dictionary.size());
+                    dictionary.add(value);
+                    lookup.put(value, code);
+                }
+                codes[row] = code.intValue();
+            }
+        }
+
+        TCResultItem getItem(int row) {
+            return new TCStringResult((String) getData(row));
+        }
+
+        Object getData(int row) {
+            int code = codes[row];
+            return code < 0 ? null : dictionary.get(code);
+        }
+
+        void trim(int size) {
+            if (codes.length > size) {
+                int[] temp = new int[size];
+                System.arraycopy(codes, 0, temp, 0, size);
+                codes = temp;
+            }
+            ((ArrayList<String>) dictionary).trimToSize();
+            //only needed while rows are being added
+            lookup = null;
+        }
+
+        byte getKind() {
+            return STRING_COLUMN;
+        }
+
+        void write(ObjectOutput out, int size) throws IOException {
+            //the dictionary, then the codes in as few bytes as will do
+            out.writeInt(dictionary.size());
+            for (String value : dictionary) {
+                writeString(out, value);
+            }
+            int width = getCodeWidth(dictionary.size());
+            for (int i = 0; i < size; i++) {
+                if (width == 1) {
+                    out.writeByte(codes[i]);
+                } else if (width == 2) {
+                    out.writeShort(codes[i]);
+                } else {
+                    out.writeInt(codes[i]);
+                }
+            }
+        }
+
+        void read(ObjectInput in, int size) throws IOException {
+            int count = in.readInt();
+            dictionary = new ArrayList<String>(count);
+            for (int i = 0; i < count; i++) {
+                dictionary.add(readString(in));
+            }
+            lookup = null;
+            int width = getCodeWidth(count);
+            codes = new int[size];
+            for (int i = 0; i < size; i++) {
+                if (width == 1) {
+                    codes[i] = in.readByte();
+                } else if (width == 2) {
+                    codes[i] = in.readShort();
+                } else {
+                    codes[i] = in.readInt();
+                }
+            }
+        }
+
+        // -1 (null) has to fit as well, which is why these are one short of the maximum
+        private static int getCodeWidth(int count) {
+            return count < Byte.MAX_VALUE ? 1 : count < Short.MAX_VALUE ? 2 : 4;
+        }
+    }
+
+    /**
+     * Keeps the items themselves, for the types that don't have a compact form.
+     */
+    static class ItemColumn extends Column {
+        private static final long serialVersionUID = 1L;
+
+        // how the items are written, depending on their type
+        private static final byte OBJECT_ITEMS = 0;
+        private static final byte TIMESTAMP_ITEMS = 1;
+        private static final byte DATE_ITEMS = 2;
+        private static final byte TIME_ITEMS = 3;
+        private static final byte BOOLEAN_ITEMS = 4;
+        private static final byte BIG_DECIMAL_ITEMS = 5;
+        private static final byte BIG_INTEGER_ITEMS = 6;
+
+        private TCResultItem[] items = new TCResultItem[0];
+
+        ItemColumn() {
+        }
+
+        /**
+         * @param column the column to copy
+         * @param size   the number of rows in it
+         */
+        ItemColumn(Column column, int size) {
+            items = new TCResultItem[grow(0, size)];
+            for (int i = 0; i < size; i++) {
+                items[i] = column.getItem(i);
+            }
+        }
+
+        boolean accepts(TCResultItem item) {
+            return true;
+        }
+
+        void add(int row, TCResultItem item) {
+            if (row >= items.length) {
+                TCResultItem[] temp = new TCResultItem[grow(items.length, row)];
+                System.arraycopy(items, 0, temp, 0, items.length);
+                items = temp;
+            }
+            items[row] = item;
+        }
+
+        TCResultItem getItem(int row) {
+            return items[row];
+        }
+
+        Object getData(int row) {
+            return items[row].getResultData();
+        }
+
+        void trim(int size) {
+            if (items.length > size) {
+                TCResultItem[] temp = new TCResultItem[size];
+                System.arraycopy(items, 0, temp, 0, size);
+                items = temp;
+            }
+        }
+
+        byte getKind() {
+            return ITEM_COLUMN;
+        }
+
+        void write(ObjectOutput out, int size) throws IOException {
+            byte type = getItemType(size);
+            out.writeByte(type);
+            for (int i = 0; i < size; i++) {
+                Object data = items[i].getResultData();
+                if (type == OBJECT_ITEMS) {
+                    out.writeObject(items[i]);
+                    continue;
+                }
+                out.writeBoolean(data == null);
+                if (data == null) {
+                    continue;
+                }
+                switch (type) {
+                    case TIMESTAMP_ITEMS:
+                        out.writeLong(((Timestamp) data).getTime());
+                        out.writeInt(((Timestamp) data).getNanos());
+                        break;
+                    case DATE_ITEMS:
+                    case TIME_ITEMS:
+                        out.writeLong(((java.util.Date) data).getTime());
+                        break;
+                    case BOOLEAN_ITEMS:
+                        out.writeBoolean(((Boolean) data).booleanValue());
+                        break;
+                    default:
+                        //big decimals and integers
+                        writeString(out, data.toString());
+                }
+            }
+        }
+
+        void read(ObjectInput in, int size) throws IOException, ClassNotFoundException {
+            byte type = in.readByte();
+            items = new TCResultItem[size];
+            for (int i = 0; i < size; i++) {
+                if (type == OBJECT_ITEMS) {
+                    items[i] = (TCResultItem) in.readObject();
+                    continue;
+                }
+                boolean isNull = in.readBoolean();
+                switch (type) {
+                    case TIMESTAMP_ITEMS:
+                        Timestamp ts = null;
+                        if (!isNull) {
+                            ts = new Timestamp(in.readLong());
+                            ts.setNanos(in.readInt());
+                        }
+                        items[i] = new TCTimestampResult(ts);
+                        break;
+                    case DATE_ITEMS:
+                        items[i] = new TCDateResult(isNull ? null : new java.sql.Date(in.readLong()));
+                        break;
+                    case TIME_ITEMS:
+                        items[i] = new TCTimeResult(isNull ? null : new Time(in.readLong()));
+                        break;
+                    case BOOLEAN_ITEMS:
+                        items[i] = new TCBooleanResult(isNull ? null : Boolean.valueOf(in.readBoolean()));
+                        break;
+                    case BIG_DECIMAL_ITEMS:
+                        items[i] = new TCBigDecimalResult(isNull ? null : new BigDecimal(readString(in)));
+                        break;
+                    case BIG_INTEGER_ITEMS:
+                        items[i] = new TCBigIntegerResult(isNull ? null : new BigInteger(readString(in)));
+                        break;
+                    default:
+                        throw new IOException("Unknown item type " + type);
+                }
+            }
+        }
+
+        // the type of all the items in the column, OBJECT_ITEMS if they're mixed or there's no compact form
+        private byte getItemType(int size) {
+            if (size == 0) {
+                return OBJECT_ITEMS;
+            }
+            Class c = items[0].getClass();
+            for (int i = 1; i < size; i++) {
+                if (items[i].getClass() != c) {
+                    return OBJECT_ITEMS;
+                }
+            }
+            if (c == TCTimestampResult.class) {
+                return TIMESTAMP_ITEMS;
+            } else if (c == TCDateResult.class) {
+                return DATE_ITEMS;
+            } else if (c == TCTimeResult.class) {
+                return TIME_ITEMS;
+            } else if (c == TCBooleanResult.class) {
+                return BOOLEAN_ITEMS;
+            } else if (c == TCBigDecimalResult.class) {
+                return BIG_DECIMAL_ITEMS;
+            } else if (c == TCBigIntegerResult.class) {
+                return BIG_INTEGER_ITEMS;
+            } else {
+                return OBJECT_ITEMS;
+            }
+        }
+    }
+}
@@ -1,5 +1,14 @@
 package com.topcoder.shared.dataAccess.resultSet;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInput;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutput;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.math.BigDecimal;
 import java.math.BigInteger;
@@ -19,7 +28,10 @@ import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
 
+import com.topcoder.shared.dataAccess.DataAccessConstants;
 import com.topcoder.shared.dataAccess.StringUtilities;
 import com.topcoder.shared.docGen.xml.RecordTag;
 import com.topcoder.shared.docGen.xml.ValueTag;
@@ -68,17 +80,30 @@ import com.topcoder.shared.util.logging.Logger;
  * Smallint - SMALLINT <br>
  * Text - LONGVARCHAR <br>
  * Varchar - VARCHAR
+ * <p/>
+ * Once a container built from a <tt>ResultSet</tt> reaches <tt>COLUMNAR_ROWS</tt>
+ * rows (see DataAccess.properties) its data is moved to a {@link ColumnStore},
+ * which keeps each column in a primitive array instead of an item object per
+ * cell.  The rows are then views over the store, so nothing changes for callers.
+ * <p/>
+ * Containers serialize themselves (they are mostly sent to and from the cache)
+ * in the same column oriented form: the column information once, then the values
+ * of each column in a block, compressed if it comes to more than
+ * <tt>COMPRESS_SIZE</tt> bytes.
  *
  * @author Dave Pecora
  * @author Tony Barrile
  * @version 1.01, 02/14/2002
  */
-public class ResultSetContainer implements Serializable, List<ResultSetContainer.ResultSetRow>, Cloneable {
+public class ResultSetContainer implements Externalizable, List<ResultSetContainer.ResultSetRow>, Cloneable {
 
     /**
      * 
      */
-    private static final long serialVersionUID = -6750551108318797975L;
+    private static final long serialVersionUID = -6750551108318797976L;
+
+    // The version of the format written by writeExternal
+    private static final int EXTERNAL_VERSION = 1;
 
     private static Logger log = Logger.getLogger(ResultSetContainer.class);
 
@@ -88,6 +113,8 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
     private HashMap<String, Integer> columnNameMap;
     private int startRow;
     private int endRow;
+    // Column oriented copy of the data, null unless the container is large
+    private ColumnStore store;
 
     // Variables indicating whether there is other relevant data which
     // was not placed in this ResultSetContainer because the row numbers
@@ -132,6 +159,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         while (rs.next()) {
             addRow(rs);
         }
+        finishRows();
         endRow = data.size();
 
     }
@@ -157,6 +185,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
                 addRowWithNulls(rs);
             }
         }
+        finishRows();
         endRow = data.size();
     }
 
@@ -202,6 +231,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
             }
             addRow(rs);
         }
+        finishRows();
         startRow = start;
         endRow = end;
     }
@@ -251,6 +281,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
                 addRowWithNulls(rs);
             }
         }
+        finishRows();
         startRow = start;
         endRow = end;
     }
@@ -320,6 +351,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
             }
             addRanklistRow(rs, rank);
         }
+        finishRows();
         startRow = start;
         endRow = end;
     }
@@ -391,6 +423,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
                 addRanklistRowWithNulls(rs, rank);
             }
         }
+        finishRows();
         startRow = start;
         endRow = end;
     }
@@ -505,6 +538,75 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         }
     }
 
+    /**
+     * Builds a container holding the rows left in a cursor, the same rows a
+     * container built from the arguments the cursor was opened with would hold.
+     *
+     * @param cursor the rows
+     * @throws Exception If there is some problem retrieving the data
+     */
+    public ResultSetContainer(Cursor cursor) throws Exception {
+        this();
+        log.debug("ResultSetContainer(Cursor) called...");
+        ResultSetContainer rs = cursor.getContainer();
+        initializeMetaData(rs);
+        while (cursor.next()) {
+            addItems(cursor.getRow().getItems());
+        }
+        finishRows();
+        dataBefore = rs.dataBefore;
+        dataAfter = rs.dataAfter;
+        startRow = rs.startRow;
+        endRow = rs.endRow;
+    }
+
+    /**
+     * Opens a cursor over the rows of a <tt>ResultSet</tt>, which reads them one at a
+     * time instead of keeping them all the way a container does.  The arguments are
+     * those of the constructors.  The rows belong to a container that has the columns
+     * but no rows.  The result set has to stay open while the cursor is used, closing
+     * it is up to the caller.
+     *
+     * @param rs           A ResultSet containing the data
+     * @param start        The 1-based row number of the first row
+     * @param end          The 1-based row number of the last row
+     * @param ranklistCol  The 1-based index of the column to assign ranks by, null
+     *                     if the rows are not ranked
+     * @param replaceNulls whether or not to replace nulls with default values
+     * @return the cursor, before the first row
+     * @throws Exception If there is some problem retrieving the column information
+     */
+    public static Cursor openCursor(ResultSet rs, int start, int end,
+                                    Integer ranklistCol, boolean replaceNulls) throws Exception {
+        if (start > end)
+            throw new IllegalArgumentException("Start row cannot exceed end row");
+        ResultSetContainer rsc = new ResultSetContainer();
+        rsc.initializeMetaData(rs);
+        int rankIndex = -1;
+        if (ranklistCol != null) {
+            rankIndex = ranklistCol.intValue() - 1;
+            if (!rsc.isValidColumn(rankIndex))
+                throw new IllegalArgumentException("Ranklist column index " + rankIndex + " out of range");
+
+            // Build the extra ranklist column
+            ResultColumn tempColumns[] = new ResultColumn[rsc.columns.length + 1];
+            System.arraycopy(rsc.columns, 0, tempColumns, 0, rsc.columns.length);
+            tempColumns[rsc.columns.length] = new ResultColumn(Types.INTEGER, "rank", 9, 0, "");
+            rsc.columnNameMap.put("rank", rsc.columns.length);
+            rsc.columns = tempColumns;
+        }
+        rsc.startRow = start;
+        rsc.endRow = end;
+        return rsc.new Cursor(rs, start, end, rankIndex, replaceNulls);
+    }
+
+    /**
+     * @return a cursor over the rows of this container
+     */
+    public Cursor cursor() {
+        return new Cursor(iterator());
+    }
+
     // Data item retrieval
     private TCResultItem getItem(ResultSet rs, int i) throws Exception {
         String s;
@@ -788,7 +890,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         TCResultItem ri[] = new TCResultItem[columns.length];
         for (int i = 0; i < columns.length; i++)
             ri[i] = getItem(rs, i);
-        data.add(new ResultSetRow(ri));
+        addItems(ri);
     }
 
     private void addRow(ResultSetRow rsr) {
@@ -801,7 +903,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         TCResultItem ri[] = new TCResultItem[columns.length];
         for (int i = 0; i < columns.length; i++)
             ri[i] = getItemWithNulls(rs, i);
-        data.add(new ResultSetRow(ri));
+        addItems(ri);
     }
 
     // Data addition routine, called from constructor only.
@@ -810,7 +912,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         for (int i = 0; i < columns.length - 1; i++)
             ri[i] = getItem(rs, i);
         ri[columns.length - 1] = new TCIntResult(rank);
-        data.add(new ResultSetRow(ri));
+        addItems(ri);
     }
 
     // Data addition routine, called from constructor only.
@@ -819,7 +921,30 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         for (int i = 0; i < columns.length - 1; i++)
             ri[i] = getItemWithNulls(rs, i);
         ri[columns.length - 1] = new TCIntResult(rank);
-        data.add(new ResultSetRow(ri));
+        addItems(ri);
+    }
+
+    // Data addition routine, called from constructor only.  Once there are
+    // COLUMNAR_ROWS rows the data moves to column storage.
+    private void addItems(TCResultItem[] ri) {
+        if (store != null) {
+            data.add(new ResultSetRow(store.add(ri)));
+        } else {
+            data.add(new ResultSetRow(ri));
+            if (DataAccessConstants.COLUMNAR_ROWS > 0 && data.size() >= DataAccessConstants.COLUMNAR_ROWS) {
+                store = new ColumnStore(columns.length);
+                for (int i = 0; i < data.size(); i++) {
+                    data.set(i, new ResultSetRow(store.add(data.get(i).mtcItems)));
+                }
+            }
+        }
+    }
+
+    // Called from constructor only, once all the rows have been added.
+    private void finishRows() {
+        if (store != null) {
+            store.trim();
+        }
     }
 
     // Metadata construction routine, called from constructor only.
@@ -1053,12 +1178,16 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
     /**
      * This class is meant to be a container for specific rows of data.
      * It provides methods for getting specific elements out.
+     * <p/>
+     * A row either holds its items or, in a container using column storage,
+     * is a view of one row of the store.
      */
     public class ResultSetRow implements Cloneable, Serializable {
         private static final long serialVersionUID = 1242749104807930817L;
 
         private TCResultItem[] mtcItems;
-        private Map<String, Object> itemMap;
+        private int storeIndex = -1;
+        private transient Map<String, Object> itemMap;
 
         /**
          * Constructor to initialize the row data container
@@ -1069,12 +1198,26 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          */
         public ResultSetRow(TCResultItem tcri[]) {
             mtcItems = tcri;
-            itemMap = new HashMap<String, Object>();
-            for (int i = 0; i < columns.length; i++) {
-                itemMap.put(columns[i].getName(), mtcItems[i].getResultData());
-            }
+        }
+
+        /**
+         * Constructs a view of a row of the column store of the container.
+         *
+         * @param storeIndex the index of the row in the store
+         */
+        private ResultSetRow(int storeIndex) {
+            this.storeIndex = storeIndex;
+        }
 
+        // Whether this is the view of the given row of the given store
+        private boolean isViewOf(ColumnStore s, int index) {
+            return mtcItems == null && store == s && storeIndex == index;
+        }
 
+        // The value of the item at the given (valid) index, without creating the item
+        // if the row is a view
+        private Object getData(int iIndex) {
+            return mtcItems == null ? store.getData(storeIndex, iIndex) : mtcItems[iIndex].getResultData();
         }
 
         /**
@@ -1088,7 +1231,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         public TCResultItem getItem(int iIndex) {
             if (!isValidColumn(iIndex))
                 throw new IllegalArgumentException("Index " + iIndex + " out of range");
-            return mtcItems[iIndex];
+            return mtcItems == null ? store.getItem(storeIndex, iIndex) : mtcItems[iIndex];
         }
 
 
@@ -1104,7 +1247,19 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
             if (!isValidColumn(sCol))
                 throw new IllegalArgumentException("Column name " + sCol + " is not valid");
             int iCol = getColumnIndex(sCol);
-            return mtcItems[iCol];
+            return mtcItems == null ? store.getItem(storeIndex, iCol) : mtcItems[iCol];
+        }
+
+        private Object getValue(int index) {
+            if (!isValidColumn(index))
+                throw new IllegalArgumentException("Index " + index + " out of range");
+            return getData(index);
+        }
+
+        private Object getValue(String col) {
+            if (!isValidColumn(col))
+                throw new IllegalArgumentException("Column name " + col + " is not valid");
+            return getData(getColumnIndex(col));
         }
 
         /**
@@ -1113,7 +1268,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @throws NullPointerException if the item is null
          */
         public int getIntItem(int index) throws NullPointerException {
-            return ((Number) getItem(index).getResultData()).intValue();
+            return ((Number) getValue(index)).intValue();
         }
 
         /**
@@ -1122,31 +1277,31 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @throws NullPointerException if the item is null
          */
         public int getIntItem(String col) throws NullPointerException {
-            return ((Number) getItem(col).getResultData()).intValue();
+            return ((Number) getValue(col)).intValue();
         }
 
         public float getFloatItem(int index) throws NullPointerException {
-            return ((Number) getItem(index).getResultData()).floatValue();
+            return ((Number) getValue(index)).floatValue();
         }
 
         public float getFloatItem(String col) throws NullPointerException {
-            return ((Number) getItem(col).getResultData()).floatValue();
+            return ((Number) getValue(col)).floatValue();
         }
 
         public double getDoubleItem(int index) throws NullPointerException {
-            return ((Number) getItem(index).getResultData()).doubleValue();
+            return ((Number) getValue(index)).doubleValue();
         }
 
         public double getDoubleItem(String col) throws NullPointerException {
-            return ((Number) getItem(col).getResultData()).doubleValue();
+            return ((Number) getValue(col)).doubleValue();
         }
 
         public boolean getBooleanItem(int index) throws NullPointerException {
-            return ((Boolean) getItem(index).getResultData()).booleanValue();
+            return ((Boolean) getValue(index)).booleanValue();
         }
 
         public boolean getBooleanItem(String col) throws NullPointerException {
-            return ((Boolean) getItem(col).getResultData()).booleanValue();
+            return ((Boolean) getValue(col)).booleanValue();
         }
 
         /**
@@ -1155,7 +1310,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @throws NullPointerException if the item is null
          */
         public long getLongItem(int index) throws NullPointerException {
-            return ((Number) getItem(index).getResultData()).longValue();
+            return ((Number) getValue(index)).longValue();
         }
 
         /**
@@ -1164,7 +1319,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @throws NullPointerException if the item is null
          */
         public long getLongItem(String col) throws NullPointerException {
-            return ((Number) getItem(col).getResultData()).longValue();
+            return ((Number) getValue(col)).longValue();
         }
 
         /**
@@ -1172,7 +1327,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @return String
          */
         public String getStringItem(int index) {
-            Object ret = getItem(index).getResultData();
+            Object ret = getValue(index);
             return ret == null ? null : ret.toString();
         }
 
@@ -1181,12 +1336,12 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @return String
          */
         public Timestamp getTimestampItem(String col) {
-            Object ret = getItem(col).getResultData();
+            Object ret = getValue(col);
             return ret == null ? null : (Timestamp) ret;
         }
 
         public Timestamp getTimestampItem(int index) {
-            Object ret = getItem(index).getResultData();
+            Object ret = getValue(index);
             return ret == null ? null : (Timestamp) ret;
         }
 
@@ -1195,7 +1350,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          * @return String
          */
         public String getStringItem(String col) {
-            Object ret = getItem(col).getResultData();
+            Object ret = getValue(col);
             return ret == null ? null : ret.toString();
         }
 
@@ -1208,8 +1363,10 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         public Object clone() {
             try {
                 ResultSetRow rsr = (ResultSetRow) super.clone();
-                rsr.mtcItems = new TCResultItem[this.mtcItems.length];
-                System.arraycopy(mtcItems, 0, rsr.mtcItems, 0, mtcItems.length);
+                if (mtcItems != null) {
+                    rsr.mtcItems = new TCResultItem[this.mtcItems.length];
+                    System.arraycopy(mtcItems, 0, rsr.mtcItems, 0, mtcItems.length);
+                }
                 return rsr;
             } catch (CloneNotSupportedException cnse) {
                 //Should never get here because we implement Cloneable
@@ -1236,7 +1393,7 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
          */
         public String toString(String colDelim) {
             StringBuffer sbReturn = new StringBuffer();
-            for (TCResultItem mtcItem : mtcItems) {
+            for (TCResultItem mtcItem : getItems()) {
                 sbReturn.append(mtcItem.toString()).append(colDelim);
             }
             sbReturn.setLength(sbReturn.length() - colDelim.length());
@@ -1265,10 +1422,25 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
 
 
         public Map<String, Object> getMap() {
+            // built the first time it's asked for, most rows never need it
+            if (itemMap == null) {
+                Map<String, Object> map = new HashMap<String, Object>();
+                for (int i = 0; i < columns.length; i++) {
+                    map.put(columns[i].getName(), getData(i));
+                }
+                itemMap = map;
+            }
             return Collections.unmodifiableMap(itemMap);
         }
         
         public TCResultItem[] getItems() {
+            if (mtcItems == null) {
+                TCResultItem[] items = new TCResultItem[columns.length];
+                for (int i = 0; i < items.length; i++) {
+                    items[i] = store.getItem(storeIndex, i);
+                }
+                return items;
+            }
             TCResultItem[] items = new TCResultItem[mtcItems.length];
             System.arraycopy(mtcItems, 0, items, 0, mtcItems.length);
             return items;
@@ -1276,6 +1448,137 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
 
     }
 
+    /**
+     * Goes through rows one at a time.  A cursor opened by {@link #openCursor}
+     * reads them from a <tt>ResultSet</tt> as it goes, so only the current row is
+     * kept; one from {@link #cursor()} goes through the rows of a container.
+     * <p/>
+     * The column methods answer for the rows, which include the rank column of a
+     * ranked query.
+     */
+    public class Cursor {
+        private final ResultSet rs;
+        private final Iterator<ResultSetRow> rows;
+        private final int start;
+        private final int end;
+        // 0-based, -1 if the rows are not ranked
+        private final int ranklistCol;
+        private final boolean replaceNulls;
+        private int row = 0, rank = 1;
+        private TCResultItem lastItem = null;
+        private ResultSetRow current = null;
+        private boolean done = false;
+
+        private Cursor(ResultSet rs, int start, int end, int ranklistCol, boolean replaceNulls) {
+            this.rs = rs;
+            this.rows = null;
+            this.start = start;
+            this.end = end;
+            this.ranklistCol = ranklistCol;
+            this.replaceNulls = replaceNulls;
+        }
+
+        private Cursor(Iterator<ResultSetRow> rows) {
+            this.rs = null;
+            this.rows = rows;
+            this.start = 1;
+            this.end = Integer.MAX_VALUE;
+            this.ranklistCol = -1;
+            this.replaceNulls = false;
+        }
+
+        /**
+         * Moves to the next row.
+         *
+         * @return true if there is one, false once the rows have run out
+         * @throws Exception If there is some problem retrieving the data
+         */
+        public boolean next() throws Exception {
+            current = null;
+            if (rows != null) {
+                if (rows.hasNext()) {
+                    current = rows.next();
+                }
+                return current != null;
+            }
+            while (!done && rs.next()) {
+                row++;
+                if (ranklistCol >= 0) {
+                    if (row == 1) {
+                        lastItem = getItem(rs, ranklistCol);
+                    } else {
+                        TCResultItem thisItem = getItem(rs, ranklistCol);
+                        if (lastItem.compareTo(thisItem) != 0) {
+                            lastItem = thisItem;
+                            rank = row;
+                        }
+                    }
+                }
+                if (row < start) {
+                    dataBefore = true;
+                    continue;
+                }
+                if (row > end) {
+                    dataAfter = true;
+                    break;
+                }
+                TCResultItem ri[] = new TCResultItem[columns.length];
+                int count = ranklistCol >= 0 ? columns.length - 1 : columns.length;
+                for (int i = 0; i < count; i++)
+                    ri[i] = replaceNulls ? getItem(rs, i) : getItemWithNulls(rs, i);
+                if (ranklistCol >= 0)
+                    ri[count] = new TCIntResult(rank);
+                current = new ResultSetRow(ri);
+                return true;
+            }
+            done = true;
+            return false;
+        }
+
+        /**
+         * @return the current row, null before the first call to <tt>next</tt> and
+         *         after the last row
+         */
+        public ResultSetRow getRow() {
+            return current;
+        }
+
+        /**
+         * @return the column information of the rows
+         */
+        public ResultColumn[] getColumns() {
+            return columns;
+        }
+
+        /**
+         * @return the number of columns of the rows
+         */
+        public int getColumnCount() {
+            return columns.length;
+        }
+
+        /**
+         * @param name Column name to look up
+         * @return the index of the column, or -1 if there is no such column
+         */
+        public int getColumnIndex(String name) {
+            return ResultSetContainer.this.getColumnIndex(name);
+        }
+
+        /**
+         * @param i the index of the column
+         * @return the name of the column
+         */
+        public String getColumnName(int i) {
+            return ResultSetContainer.this.getColumnName(i);
+        }
+
+        // The container the rows belong to
+        private ResultSetContainer getContainer() {
+            return ResultSetContainer.this;
+        }
+    }
+
     /**********************************************************************/
     // List interface implementation section
     /**********************************************************************/
@@ -1889,6 +2192,127 @@ public class ResultSetContainer implements Serializable, List<ResultSetContainer
         return sbReturn.toString();
     }
 
+    /**
+     * Writes the container out in column order, see the class description.
+     *
+     * @param out the stream to write to
+     * @throws IOException if writing fails
+     */
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeInt(EXTERNAL_VERSION);
+        out.writeBoolean(dataBefore);
+        out.writeBoolean(dataAfter);
+        out.writeInt(startRow);
+        out.writeInt(endRow);
+        out.writeInt(columns.length);
+        for (ResultColumn column : columns) {
+            out.writeInt(column.getType());
+            out.writeObject(column.getName());
+            out.writeInt(column.getPrecision());
+            out.writeInt(column.getScale());
+            out.writeObject(column.getSourceType());
+        }
+
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(buf);
+        getStoreForWrite().write(oos);
+        oos.close();
+        boolean compress = DataAccessConstants.COMPRESS_SIZE > 0 && buf.size() > DataAccessConstants.COMPRESS_SIZE;
+        if (compress) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(buf.size() / 4);
+            DeflaterOutputStream dos = new DeflaterOutputStream(compressed);
+            buf.writeTo(dos);
+            dos.close();
+            buf = compressed;
+        }
+        out.writeBoolean(compress);
+        out.writeInt(buf.size());
+        buf.writeTo(new ObjectOutputAdapter(out));
+    }
+
+    /**
+     * Reads a container written by <tt>writeExternal</tt>.
+     *
+     * @param in the stream to read from
+     * @throws IOException            if reading fails
+     * @throws ClassNotFoundException if the class of an item can't be found
+     */
+    public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
+        int version = in.readInt();
+        if (version != EXTERNAL_VERSION) {
+            throw new InvalidObjectException("Unknown ResultSetContainer format " + version);
+        }
+        dataBefore = in.readBoolean();
+        dataAfter = in.readBoolean();
+        startRow = in.readInt();
+        endRow = in.readInt();
+        columns = new ResultColumn[in.readInt()];
+        for (int i = 0; i < columns.length; i++) {
+            int type = in.readInt();
+            String name = (String) in.readObject();
+            int precision = in.readInt();
+            int scale = in.readInt();
+            columns[i] = new ResultColumn(type, name, precision, scale, (String) in.readObject());
+            columnNameMap.put(name, i);
+        }
+
+        boolean compressed = in.readBoolean();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        ObjectInputStream ois = new ObjectInputStream(compressed ?
+                new InflaterInputStream(new ByteArrayInputStream(bytes)) : new ByteArrayInputStream(bytes));
+        ColumnStore s = ColumnStore.read(ois);
+        ois.close();
+
+        data = new ArrayList<ResultSetRow>(s.size());
+        if (DataAccessConstants.COLUMNAR_ROWS > 0 && s.size() >= DataAccessConstants.COLUMNAR_ROWS) {
+            store = s;
+            for (int i = 0; i < s.size(); i++) {
+                data.add(new ResultSetRow(i));
+            }
+        } else {
+            for (int i = 0; i < s.size(); i++) {
+                data.add(new ResultSetRow(s.getItems(i)));
+            }
+        }
+    }
+
+    // The data in a column store, in the order of the rows.  That's the store of the
+    // container itself unless the rows were sorted or came from somewhere else.
+    private ColumnStore getStoreForWrite() {
+        if (store != null && store.size() == data.size()) {
+            boolean inOrder = true;
+            for (int i = 0; i < data.size() && inOrder; i++) {
+                inOrder = data.get(i).isViewOf(store, i);
+            }
+            if (inOrder) {
+                return store;
+            }
+        }
+        ColumnStore s = new ColumnStore(columns.length);
+        for (ResultSetRow row : data) {
+            s.add(row.getItems());
+        }
+        return s;
+    }
+
+    // Lets a ByteArrayOutputStream write straight to an ObjectOutput
+    private static class ObjectOutputAdapter extends java.io.OutputStream {
+        private final ObjectOutput out;
+
+        private ObjectOutputAdapter(ObjectOutput out) {
+            this.out = out;
+        }
+
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+    }
+
     /**
      * Returns a RecordTag that will allow us to get XML for
      * this ResultSetContainer
@@ -3,12 +3,41 @@ package com.topcoder.shared.distCache;
 import com.topcoder.shared.util.logging.Logger;
 
 import java.io.Serializable;
-import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ *  the cache engine.  Reads go straight to a concurrent map without
+ *  taking any lock.  Writes lock only the stripe their key hashes to,
+ *  so writes of different keys rarely wait on each other.
+ *
+ *  Rather than keeping every value ordered by priority and expiration
+ *  (which made every write pay for two tree updates under one global
+ *  lock) eviction and expiration are approximate:
+ *  <ul>
+ *  <li>when the cache is over its maximum size, a handful of values is
+ *  sampled and the one with the lowest priority, least recently read,
+ *  is evicted</li>
+ *  <li>values are filed in a wheel of buckets by the time they expire,
+ *  so expiring only looks at the buckets that are due</li>
+ *  </ul>
+ *
+ *  Values are weighed (their serialized size) so that the cache can also
+ *  be held to a number of bytes.  Values over a size are kept compressed,
+ *  and values that are still too big are refused.  See {@link #setByteLimits}.
+ *  Values are weighed when they are set if the byte limits, compression or
+ *  a replication log need it, otherwise the first time their size is asked.
+ *
+ *  Values can be given tags when they are set.  The keys of each tag,
+ *  and of each key prefix, are kept in an index so that everything with
+ *  a tag or a prefix can be removed at once without going through every
+ *  key.  See {@link #removeByTag} and {@link #removeByPrefix}.
+ *
  * @author orb
  * @version  $Revision: 37105 $
  */
@@ -17,17 +46,34 @@ public class Cache
     static final int DEFAULT_PRIORITY = 5;
     static final int INITIAL_MAP_SIZE = 10000;
 
+    /** the number of locks writes are spread over, a power of 2 */
+    static final int STRIPES = 64;
+    /** how many values are looked at to pick one to evict */
+    static final int EVICTION_SAMPLE = 8;
+    /** the span of time covered by a bucket of the expiration wheel */
+    static final long WHEEL_RESOLUTION = 10000;
+
     private static final Logger log = Logger.getLogger(Cache.class);
-    Object _lock = new Integer(0); // can't serialize Object :)
-    HashMap _keymap = new HashMap(INITIAL_MAP_SIZE);
-    //TreeMap _keymap = new TreeMap();
-    TreeSet _timeset = new TreeSet(new CachedValue.TimeComparator());
-    TreeSet _prioset = new TreeSet(new CachedValue.PriorityComparator());
+    ConcurrentHashMap<String, CachedValue> _keymap = new ConcurrentHashMap<String, CachedValue>(INITIAL_MAP_SIZE);
+
+    /** expiration wheel, values by the bucket of their expiration time */
+    ConcurrentHashMap<Long, ConcurrentHashMap<String, CachedValue>> _wheel =
+            new ConcurrentHashMap<Long, ConcurrentHashMap<String, CachedValue>>();
 
     int _max = -1;
 
-    long getCount = 0;
-    long putCount = 0;
+    /** the most bytes of values to keep, -1 for no limit */
+    long _maxBytes = -1;
+    /** values that weigh more than this are refused, -1 for no limit */
+    int _maxValueBytes = -1;
+    /** values that weigh more than this are compressed, -1 to never compress */
+    int _compressBytes = -1;
+    /** the total weight of the values */
+    AtomicLong _bytes = new AtomicLong();
+    AtomicLong refusedCount = new AtomicLong();
+
+    AtomicLong getCount = new AtomicLong();
+    AtomicLong putCount = new AtomicLong();
 
     Object _locklistlock = new Integer(1);
 
@@ -35,7 +81,27 @@ public class Cache
     transient TreeSet _locklist = new TreeSet();
 
     /** not serialized */
-    transient CacheUpdateListener _listener = null;
+    transient volatile CacheUpdateListener _listener = null;
+
+    /** not serialized, whether a replication log is listening, it needs the weight of the values it keeps */
+    transient volatile boolean _replicated = false;
+
+    /** not serialized, the locks writes synchronize on */
+    transient Object[] _stripes = createStripes();
+
+    /** not serialized, taken to evict so that only one thread samples at a time */
+    transient Object _evictlock = new Object();
+
+    /** not serialized, where eviction sampling carries on from */
+    transient Iterator<CachedValue> _sampler = null;
+
+    /** not serialized, rebuilt from the key map: the keys of each tag */
+    transient ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> _tagIndex =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+
+    /** not serialized, rebuilt from the key map: the keys of each prefix (see {@link #getPrefix}) */
+    transient ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> _prefixIndex =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
 
     /**
      *
@@ -52,36 +118,170 @@ public class Cache
         _max = max;
     }
 
+    private static Object[] createStripes() {
+        Object[] stripes = new Object[STRIPES];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new Object();
+        }
+        return stripes;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        _locklist = new TreeSet();
+        _stripes = createStripes();
+        _evictlock = new Object();
+        _tagIndex = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+        _prefixIndex = new ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>>();
+        for (CachedValue cached : _keymap.values()) {
+            addIndex(cached);
+        }
+    }
+
+    /**
+     *  hold the cache to a number of bytes as well as a number of values
+     * @param maxBytes      the most bytes of values to keep, -1 for no limit
+     * @param maxValueBytes values that weigh more than this (after compression) are not kept, -1 for no limit
+     * @param compressBytes values that weigh more than this are kept compressed, -1 to never compress
+     */
+    public void setByteLimits(long maxBytes, int maxValueBytes, int compressBytes) {
+        _maxBytes = maxBytes;
+        _maxValueBytes = maxValueBytes;
+        _compressBytes = compressBytes;
+        log.info("byte limits: max=" + maxBytes + " value=" + maxValueBytes + " compress=" + compressBytes);
+    }
+
+    /**
+     *
+     * @return the total weight of the values in the cache, in bytes
+     */
+    public long getBytes() {
+        return _bytes.get();
+    }
+
+    /**
+     *
+     * @return how many values were refused for being too big
+     */
+    public long getRefusedCount() {
+        return refusedCount.get();
+    }
+
+    /**
+     *  the number of values and bytes used by each key prefix.  the
+     *  prefix of a key is what comes before the first '/', '.' or ':'
+     *  that isn't at the start, so "/c=some_command/cr=1" is counted
+     *  under "/c=some_command" and "users.user1" under "users".
+     *  values that haven't been weighed yet are weighed now.
+     * @return {count, bytes} by prefix
+     */
+    public HashMap<String, long[]> getMemoryUsage() {
+        HashMap<String, long[]> ret = new HashMap<String, long[]>();
+        for (CachedValue cached : _keymap.values()) {
+            String prefix = getPrefix(cached.getKey());
+            long[] usage = ret.get(prefix);
+            if (usage == null) {
+                usage = new long[2];
+                ret.put(prefix, usage);
+            }
+            usage[0]++;
+            usage[1] += cached.getSize() > 0 ? cached.getSize() : Math.max(getSize(cached.getKey()), 0);
+        }
+        return ret;
+    }
+
+    /**
+     * @return whether values have to be weighed when they are set, for the byte limits, compression
+     * or a replication log
+     */
+    private boolean isWeighing() {
+        return _maxBytes > 0 || _maxValueBytes > 0 || _compressBytes > 0 || _replicated;
+    }
+
+    static String getPrefix(String key) {
+        for (int i = 1; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '/' || c == '.' || c == ':' || c == '|') {
+                return key.substring(0, i);
+            }
+        }
+        return key;
+    }
+
+    /**
+     *  the lock to hold while changing the given key
+     * @param key
+     * @return
+     */
+    Object stripe(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return _stripes[h & (STRIPES - 1)];
+    }
+
     /**
      *  query the number of items in the cache
      * @return
      */
     public int size() {
-        synchronized (_lock) {
-            return _keymap.size();
-        }
+        return _keymap.size();
     }
 
+    /**
+     *  the serialized size of a cached value, measured the first time
+     *  it's asked for and remembered until the value changes
+     * @param key
+     * @return
+     */
     public int getSize(String key) {
-        Object o = get(key);
-        return getSize(o);
+        CachedValue cached = findKey(key);
+        if (cached == null) {
+            return getSize(null);
+        }
+        int size = cached.getSize();
+        if (size <= 0) {
+            size = getSize(cached.getValue());
+            if (size > 0) {
+                synchronized (stripe(key)) {
+                    if (findKey(key) == cached && cached.getSize() <= 0) {
+                        cached.setSize(size);
+                        _bytes.addAndGet(size);
+                    }
+                }
+            }
+        }
+        return size;
     }
 
 	private int getSize(Object o) {
 		try {
-			ByteArrayOutputStream baos = new ByteArrayOutputStream();
-			ObjectOutputStream oos = new ObjectOutputStream(baos);
+			ByteCounter counter = new ByteCounter();
+			ObjectOutputStream oos = new ObjectOutputStream(counter);
 			oos.writeObject(o);
-			oos.flush();
-			int size = baos.size();
 			oos.close();
-			return size;
+			return counter.count;
 		} catch (IOException e) {
 
 		}
 		return -1;
 	}
 
+    /**
+     *  counts what is written to it rather than keeping it
+     */
+    private static class ByteCounter extends OutputStream {
+        int count = 0;
+
+        public void write(int b) {
+            count++;
+        }
+
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
     /**
      *  set a cached value
      * @param key
@@ -133,7 +333,8 @@ public class Cache
 
 
     /**
-     *  set a cached value
+     *  set a cached value.  The value replaces the CachedValue for the key
+     *  rather than changing it, so readers never see half an update.
      * @param key
      * @param value
      * @param priority
@@ -141,40 +342,71 @@ public class Cache
      * @param expire
      */
     public void update(String key, Object value, int priority, long time, long expire) {
+        update(key, value, priority, time, expire, null);
+    }
+
+    /**
+     *  set a cached value with tags
+     * @param key
+     * @param value
+     * @param priority
+     * @param time
+     * @param expire
+     * @param tags what the value is about, null for nothing
+     */
+    public void update(String key, Object value, int priority, long time, long expire, String[] tags) {
         CachedValue cached = null;
 
-        synchronized (_lock) {
-            if (value == null) {
-                cached = remove(key);
-            } else {
-                cached = findKey(key);
-                if (cached != null) {
-                    removeTime(cached);
-                    removePrio(cached);
-                    cached.setValue(value);
-                } else {
-                    cached = new CachedValue(key, value, expire);
-                    storeKey(cached);
+        if (value == null) {
+            cached = remove(key);
+        } else {
+            // weigh it before taking the lock, it can take a while for big values.
+            // only when something needs the weight now, otherwise getSize(key) weighs it when asked
+            int size = isWeighing() ? Math.max(getSize(value), 0) : 0;
+            if (_compressBytes > 0 && size > _compressBytes) {
+                try {
+                    CompressedValue compressed = CompressedValue.compress(value);
+                    if (compressed.size() < size) {
+                        value = compressed;
+                        size = compressed.size();
+                    }
+                } catch (IOException e) {
+                    log.warn("couldn't compress " + key + ": " + e.getMessage());
                 }
+            }
+            if (_maxValueBytes > 0 && size > _maxValueBytes) {
+                refusedCount.incrementAndGet();
+                log.warn("REFUSED: " + key + " weighs " + size + " bytes");
+                // don't leave an older value behind in its place
+                remove(key);
+                return;
+            }
 
+            synchronized (stripe(key)) {
+                CachedValue current = findKey(key);
+                cached = new CachedValue(key, value, expire);
+                cached.setSize(size);
                 cached.setPriority(priority);
                 cached.setLastUsed(time);
+                cached.setTags(tags);
+                cached.setVersion(current == null ? 0 : current.getVersion());
                 cached.bumpVersion();
 
-                addTime(cached);
-                addPrio(cached);
-
-                // maybe purge first to ensure the last op is not wasted?
-                if (_max > 0) {
-                    purgeInternal(_max);
+                storeKey(cached);
+                if (current != null) {
+                    removeTime(current);
                 }
+                addTime(cached);
+                // under the lock so that the listener sees the changes of a key in order
+                sendUpdateEvent(cached);
             }
-            //if (log.isDebugEnabled()) log.debug("updated in " + (System.currentTimeMillis()-start));
             incrementPut();
-        }
 
-
-        sendUpdateEvent(cached);
+            // maybe purge first to ensure the last op is not wasted?
+            if (_max > 0 || _maxBytes > 0) {
+                purgeInternal(_max);
+            }
+        }
     }
 
 
@@ -184,23 +416,28 @@ public class Cache
      * @return
      */
     public CachedValue remove(String key) {
-        CachedValue cached = findKey(key);
-        if (cached != null) {
-            removeCached(cached);
-            sendUpdateEvent(cached);
+        CachedValue cached;
+        synchronized (stripe(key)) {
+            cached = findKey(key);
+            if (cached != null) {
+                removeCached(cached);
+                sendUpdateEvent(cached);
+            }
         }
 
         return cached;
     }
 
     /**
-     *
+     *  remove a value, the caller holds the stripe lock of its key
      * @param cached
      */
     void removeCached(CachedValue cached) {
-        removePrio(cached);
         removeTime(cached);
-        removeKey(cached.getKey());
+        if (_keymap.remove(cached.getKey(), cached)) {
+            _bytes.addAndGet(-cached.getSize());
+            removeIndex(cached, null);
+        }
         cached.setValue(null);
     }
 
@@ -217,9 +454,11 @@ public class Cache
      */
     void clear() {
         log.info("CLEARING");
-        _keymap = new HashMap(INITIAL_MAP_SIZE);
-        _timeset = new TreeSet(new CachedValue.TimeComparator());
-        _prioset = new TreeSet(new CachedValue.PriorityComparator());
+        _keymap.clear();
+        _wheel.clear();
+        _tagIndex.clear();
+        _prefixIndex.clear();
+        _bytes.set(0);
     }
 
     /**
@@ -228,15 +467,7 @@ public class Cache
      * @return
      */
     public boolean exists(String key) {
-        boolean exists = false;
-
-        synchronized (_lock) {
-            if (findKey(key) != null) {
-                exists = true;
-            }
-        }
-
-        return exists;
+        return findKey(key) != null;
     }
 
     /**
@@ -247,36 +478,139 @@ public class Cache
     public Object get(String key) {
         Object retval = null;
 
-        synchronized (_lock) {
-            //if (log.isDebugEnabled()) log.debug("look for " + key);
-            CachedValue cached = findKey(key);
-            if (cached != null) {
-                retval = cached.getValue();
+        CachedValue cached = findKey(key);
+        if (cached != null) {
+            cached.touch();
+            retval = cached.getValue();
+            if (retval instanceof CompressedValue) {
+                retval = ((CompressedValue) retval).inflate();
             }
-            //if (log.isDebugEnabled()) log.debug("looked for " + key);
-            incrementGet();
         }
+        incrementGet();
 
         return retval;
     }
 
 
     /**
-     *  check the version number associated with a key item
-     * @param key
-     * @return
+     *  lookup several cached values at once
+     * @param keys the keys to look up
+     * @return the values that were found, by key
      */
-    public int getVersion(String key) {
-        int version = -1;
+    public HashMap getAll(Collection keys) {
+        HashMap found = new HashMap(keys.size() * 2);
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            String key = (String) it.next();
+            Object value = get(key);
+            if (value != null) {
+                found.put(key, value);
+            }
+        }
+        return found;
+    }
 
-        synchronized (_lock) {
-            CachedValue cached = findKey(key);
-            if (cached != null) {
-                version = cached.getVersion();
+    /**
+     *  set several cached values at once, a null value removes its key
+     * @param values the values to set, by key
+     * @param priority
+     * @param time
+     * @param expire
+     */
+    public void updateAll(Map values, int priority, long time, long expire) {
+        for (Iterator it = values.entrySet().iterator(); it.hasNext();) {
+            Map.Entry entry = (Map.Entry) it.next();
+            update((String) entry.getKey(), entry.getValue(), priority, time, expire);
+        }
+    }
+
+    /**
+     *  remove several keys at once
+     * @param keys the keys to remove
+     * @return how many of the keys were in the cache
+     */
+    public int removeAll(Collection keys) {
+        int removed = 0;
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            if (remove((String) it.next()) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     *  remove every value that has any of the given tags, in one go
+     * @param tags
+     * @return how many values were removed
+     */
+    public int removeByTag(String[] tags) {
+        int removed = 0;
+        for (int i = 0; i < tags.length; i++) {
+            // take the tag out first, anything tagged with it from now on is newer and stays
+            ConcurrentHashMap<String, Boolean> keys = _tagIndex.remove(tags[i]);
+            if (keys == null) {
+                continue;
+            }
+            for (String key : keys.keySet()) {
+                synchronized (stripe(key)) {
+                    CachedValue cached = findKey(key);
+                    if (cached != null && hasTag(cached, tags[i])) {
+                        removeCached(cached);
+                        sendUpdateEvent(cached);
+                        removed++;
+                    }
+                }
             }
         }
+        log.info("removed " + removed + " values by tag");
+        return removed;
+    }
 
-        return version;
+    /**
+     *  remove every value whose key starts with any of the given prefixes
+     * @param prefixes
+     * @return how many values were removed
+     */
+    public int removeByPrefix(String[] prefixes) {
+        int removed = 0;
+        for (int i = 0; i < prefixes.length; i++) {
+            String prefix = prefixes[i];
+            for (Map.Entry<String, ConcurrentHashMap<String, Boolean>> e : _prefixIndex.entrySet()) {
+                // only the keys filed under something that overlaps the prefix can start with it
+                if (!e.getKey().startsWith(prefix) && !prefix.startsWith(e.getKey())) {
+                    continue;
+                }
+                for (String key : e.getValue().keySet()) {
+                    if (key.startsWith(prefix) && remove(key) != null) {
+                        removed++;
+                    }
+                }
+            }
+        }
+        log.info("removed " + removed + " values by prefix");
+        return removed;
+    }
+
+    private static boolean hasTag(CachedValue cached, String tag) {
+        String[] tags = cached.getTags();
+        if (tags != null) {
+            for (int i = 0; i < tags.length; i++) {
+                if (tag.equals(tags[i])) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     *  check the version number associated with a key item
+     * @param key
+     * @return
+     */
+    public int getVersion(String key) {
+        CachedValue cached = findKey(key);
+        return cached == null ? -1 : cached.getVersion();
     }
 
     /**
@@ -285,44 +619,101 @@ public class Cache
      * @param time
      */
     public void expire(long time) {
-        synchronized (_lock) {
-            while (true) {
-                if (_timeset.isEmpty()) {
-                    break;
-                }
-
-                CachedValue value = (CachedValue) _timeset.first();
-                log.info(value.getKey() + " - " + new Date(value.getExpireTime()));
+        long due = time / WHEEL_RESOLUTION;
+        int count = 0;
+        for (Long bucket : _wheel.keySet()) {
+            if (bucket.longValue() > due) {
+                continue;
+            }
+            Map<String, CachedValue> values = _wheel.get(bucket);
+            if (values == null) {
+                continue;
+            }
+            for (CachedValue value : values.values()) {
                 if (value.getExpireTime() > time) {
-                    break;
+                    continue;
+                }
+                synchronized (stripe(value.getKey())) {
+                    if (findKey(value.getKey()) == value) {
+                        removeCached(value);
+                        sendUpdateEvent(value);
+                        count++;
+                    } else {
+                        values.remove(value.getKey(), value);
+                    }
                 }
-
-                removeCached(value);
+            }
+            if (bucket.longValue() < due && values.isEmpty()) {
+                _wheel.remove(bucket, values);
             }
         }
-
+        log.info("expired " + count + " values");
     }
 
     /**
      *  purge least relevant items in cache to make cache size
-     *  <= the given size
+     *  <= the given size, and the weight within the byte limit
      * @param size
      */
     public void purge(int size) {
-        synchronized (_lock) {
-            purgeInternal(size);
-        }
+        purgeInternal(size);
+    }
+
+    private boolean isOver(int size) {
+        return (size > 0 && _keymap.size() > size) || (_maxBytes > 0 && _bytes.get() > _maxBytes);
     }
 
     /**
      *
-     * @param size
+     * @param size the number of values to get down to, 0 or less for no limit
      */
     void purgeInternal(int size) {
-        while (_prioset.size() > size) {
-            CachedValue value = (CachedValue) _prioset.first();
-            removeCached(value);
+        while (isOver(size)) {
+            synchronized (_evictlock) {
+                if (!isOver(size)) {
+                    break;
+                }
+                CachedValue victim = sampleVictim();
+                if (victim == null) {
+                    break;
+                }
+                synchronized (stripe(victim.getKey())) {
+                    if (findKey(victim.getKey()) == victim) {
+                        removeCached(victim);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  look at the next few values and pick the one that is least worth
+     *  keeping: lowest priority first, then least recently read.  The
+     *  caller holds the eviction lock.
+     * @return
+     */
+    private CachedValue sampleVictim() {
+        CachedValue victim = null;
+        boolean restarted = false;
+        for (int i = 0; i < EVICTION_SAMPLE; i++) {
+            if (_sampler == null || !_sampler.hasNext()) {
+                if (restarted) {
+                    break;
+                }
+                _sampler = _keymap.values().iterator();
+                restarted = true;
+                if (!_sampler.hasNext()) {
+                    break;
+                }
+            }
+            CachedValue value = _sampler.next();
+            if (victim == null || value.getPriority() < victim.getPriority() ||
+                    (value.getPriority() == victim.getPriority() &&
+                            value.getLastAccess() < victim.getLastAccess())) {
+                victim = value;
+            }
         }
+        return victim;
     }
 
     /**
@@ -331,45 +722,33 @@ public class Cache
      */
     public void integrateChanges(CachedValue[] values) {
         log.info("TO INTEGRATE: " + values.length);
-        synchronized (_lock) {
-            for (int i = 0; i < values.length; i++) {
-                CachedValue val = values[i];
-                CachedValue current = null;
-
-                // System.out.println("* " + val.getKey() + "=" + val.getValue());
+        for (int i = 0; i < values.length; i++) {
+            CachedValue val = values[i];
 
-                int presize = size();
+            synchronized (stripe(val.getKey())) {
+                CachedValue current = findKey(val.getKey());
                 if (val.getValue() == null) {
-                    log.info("REMOVE: " + val.getKey());
-                    removeCached(val);
+                    if (log.isDebugEnabled()) {
+                        log.debug("REMOVE: " + val.getKey());
+                    }
+                    // don't let the removal of an old value take out a newer one
+                    if (current != null && current.getVersion() <= val.getVersion()) {
+                        removeCached(current);
+                    }
                 } else {
-                    current = findKey(val.getKey());
+                    // in reality - check version
+                    storeKey(val);
                     if (current != null) {
-                        // in reality - check version
                         removeTime(current);
-                        removePrio(current);
                     }
-
-                    storeKey(val);
                     addTime(val);
-                    addPrio(val);
-                }
-
-                int postsize = size();
-
-                if (postsize - presize != 1) {
-                    log.info("pre=" + presize + " post=" + postsize);
-                    log.info("new= " + val.getKey() + " current=" +
-                            ((current == null) ?
-                            "null" : current.getKey()));
                 }
             }
-
-            if (_max > 0) {
-                purgeInternal(_max);
-            }
         }
 
+        if (_max > 0 || _maxBytes > 0) {
+            purgeInternal(_max);
+        }
     }
 
 
@@ -381,9 +760,42 @@ public class Cache
      * @param listener
      */
     public void setUpdateListener(CacheUpdateListener listener) {
+        _replicated = listener instanceof ReplicationLog;
         _listener = listener;
     }
 
+    /**
+     *  add a listener without replacing the one already set
+     * @param listener
+     */
+    public synchronized void addUpdateListener(CacheUpdateListener listener) {
+        _replicated = _replicated || listener instanceof ReplicationLog;
+        _listener = _listener == null ? listener : new ListenerPair(_listener, listener);
+    }
+
+    /**
+     *  passes events on to two listeners
+     */
+    private static class ListenerPair implements CacheUpdateListener {
+        private final CacheUpdateListener first;
+        private final CacheUpdateListener second;
+
+        private ListenerPair(CacheUpdateListener first, CacheUpdateListener second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        public void valueUpdated(CachedValue value) {
+            first.valueUpdated(value);
+            second.valueUpdated(value);
+        }
+
+        public void clear() {
+            first.clear();
+            second.clear();
+        }
+    }
+
 
     void sendUpdateEvent(CachedValue value) {
         if ((value == null) || (_listener == null)) {
@@ -410,7 +822,7 @@ public class Cache
      * @return
      */
     CachedValue findKey(String key) {
-        return (CachedValue) _keymap.get(key);
+        return _keymap.get(key);
     }
 
 
@@ -419,7 +831,11 @@ public class Cache
      * @param key
      */
     void removeKey(String key) {
-        _keymap.remove(key);
+        CachedValue removed = _keymap.remove(key);
+        if (removed != null) {
+            _bytes.addAndGet(-removed.getSize());
+            removeIndex(removed, null);
+        }
     }
 
 
@@ -428,46 +844,118 @@ public class Cache
      * @param value
      */
     void storeKey(CachedValue value) {
-        _keymap.put(value.getKey(), value);
+        CachedValue replaced = _keymap.put(value.getKey(), value);
+        _bytes.addAndGet(value.getSize() - (replaced == null ? 0 : replaced.getSize()));
+        addIndex(value);
+        if (replaced != null) {
+            removeIndex(replaced, value);
+        }
     }
 
 
     // --------------------------------------------------
-    // timemap operations
+    // tag and prefix index operations, the caller holds the stripe lock
+    // of the key (or the key isn't shared yet)
+
+    private void addIndex(CachedValue cached) {
+        index(_prefixIndex, getPrefix(cached.getKey()), cached.getKey());
+        String[] tags = cached.getTags();
+        if (tags != null) {
+            for (int i = 0; i < tags.length; i++) {
+                index(_tagIndex, tags[i], cached.getKey());
+            }
+        }
+    }
 
     /**
-     *
-     * @param cached
+     *  take a value out of the indexes
+     * @param cached the value
+     * @param replacement the value replacing it under the same key, its entries stay; null if it's removed
      */
-    void removeTime(CachedValue cached) {
-        _timeset.remove(cached);
+    private void removeIndex(CachedValue cached, CachedValue replacement) {
+        if (replacement == null) {
+            unindex(_prefixIndex, getPrefix(cached.getKey()), cached.getKey());
+        }
+        String[] tags = cached.getTags();
+        if (tags != null) {
+            for (int i = 0; i < tags.length; i++) {
+                if (replacement == null || !hasTag(replacement, tags[i])) {
+                    unindex(_tagIndex, tags[i], cached.getKey());
+                }
+            }
+        }
     }
 
-    /**
-     *
-     * @param cached
-     */
-    void addTime(CachedValue cached) {
-        _timeset.add(cached);
+    private static void index(ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> index,
+                              String name, String key) {
+        while (true) {
+            ConcurrentHashMap<String, Boolean> keys = index.get(name);
+            if (keys == null) {
+                keys = new ConcurrentHashMap<String, Boolean>();
+                ConcurrentHashMap<String, Boolean> existing = index.putIfAbsent(name, keys);
+                if (existing != null) {
+                    keys = existing;
+                }
+            }
+            keys.put(key, Boolean.TRUE);
+            // make sure unindex() didn't just drop the set as empty
+            if (index.get(name) == keys) {
+                break;
+            }
+        }
     }
 
+    private static void unindex(ConcurrentHashMap<String, ConcurrentHashMap<String, Boolean>> index,
+                                String name, String key) {
+        ConcurrentHashMap<String, Boolean> keys = index.get(name);
+        if (keys == null) {
+            return;
+        }
+        keys.remove(key);
+        if (keys.isEmpty() && index.remove(name, keys) && !keys.isEmpty()) {
+            // another key was added while the set was dropped, put it back
+            for (String other : keys.keySet()) {
+                index(index, name, other);
+            }
+        }
+    }
+
+
     // --------------------------------------------------
-    // priomap operations
+    // expiration wheel operations, the caller holds the stripe lock
 
     /**
      *
      * @param cached
      */
-    void removePrio(CachedValue cached) {
-        _prioset.remove(cached);
+    void removeTime(CachedValue cached) {
+        Map<String, CachedValue> values = _wheel.get(new Long(cached.getExpireTime() / WHEEL_RESOLUTION));
+        if (values != null) {
+            values.remove(cached.getKey(), cached);
+        }
     }
 
     /**
      *
      * @param cached
      */
-    void addPrio(CachedValue cached) {
-        _prioset.add(cached);
+    void addTime(CachedValue cached) {
+        Long bucket = new Long(cached.getExpireTime() / WHEEL_RESOLUTION);
+        while (true) {
+            ConcurrentHashMap<String, CachedValue> values = _wheel.get(bucket);
+            if (values == null) {
+                values = new ConcurrentHashMap<String, CachedValue>();
+                ConcurrentHashMap<String, CachedValue> existing = _wheel.putIfAbsent(bucket, values);
+                if (existing != null) {
+                    values = existing;
+                }
+            }
+            values.put(cached.getKey(), cached);
+            // make sure expire() didn't just drop the bucket as empty
+            if (_wheel.get(bucket) == values) {
+                break;
+            }
+        }
     }
 
     /**
@@ -475,21 +963,11 @@ public class Cache
      * @return
      */
     public ArrayList getEntries() {
-        ArrayList al = new ArrayList();
-
-        Iterator it = _keymap.values().iterator();
-        while (it.hasNext()) al.add(it.next());
-        return al;
+        return new ArrayList(_keymap.values());
     }
 
     public ArrayList getKeys() {
-        ArrayList al = new ArrayList();
-
-        Iterator it = _keymap.values().iterator();
-        while (it.hasNext()) {
-            al.add(((CachedValue)it.next()).getKey());
-        }
-        return al;
+        return new ArrayList(_keymap.keySet());
     }
 
     public ArrayList getValues() {
@@ -497,18 +975,19 @@ public class Cache
 
         Iterator it = _keymap.values().iterator();
         while (it.hasNext()) {
-            al.add(((CachedValue)it.next()).getValue());
+            Object value = ((CachedValue) it.next()).getValue();
+            al.add(value instanceof CompressedValue ? ((CompressedValue) value).inflate() : value);
         }
         return al;
     }
 
     void incrementGet() {
-        getCount++;
-        if ((getCount%500)==0) log.info("" + getCount + " get requests processed");
+        long count = getCount.incrementAndGet();
+        if ((count%500)==0) log.info("" + count + " get requests processed");
     }
     void incrementPut() {
-        putCount++;
-        if ((putCount%500)==0) log.info("" + putCount + " put requests processed");
+        long count = putCount.incrementAndGet();
+        if ((count%500)==0) log.info("" + count + " put requests processed");
     }
 
 }
@@ -3,6 +3,8 @@ package com.topcoder.shared.distCache;
 import java.rmi.Remote;
 import java.rmi.RemoteException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  *  The cache client is the interface by which clients connect to
@@ -54,6 +56,21 @@ public interface CacheClient
     public void set(String key, Object value, int prio, long expire)
             throws RemoteException;
 
+    /**
+     * set a key/value pair with tags, so that it can be removed along
+     * with everything else about the same thing (priority will be set
+     * to default value)
+     * @param key   the key for the cached value
+     * @param value the value to be stored
+     * @param expire
+     * @param tags  what the value is about, for instance the ids it was
+     *              built from
+     * @throws RemoteException
+     * @see #invalidateByTag
+     */
+    public void set(String key, Object value, long expire, String[] tags)
+            throws RemoteException;
+
     /**
      *  release the lock associated with a given key
      * @param key
@@ -92,6 +109,74 @@ public interface CacheClient
     public CachedValue remove(String key)
             throws RemoteException;
 
+    /**
+     * retrieve the values associated with several keys in one call.
+     * @param keys  the keys to query on
+     * @return the values that were found, by key.  keys that are not
+     *         cached are left out.
+     * @throws RemoteException
+     */
+    public Map getAll(Collection keys)
+            throws RemoteException;
+
+    /**
+     * set several key/value pairs in one call (priority will be set
+     * to default value)
+     * @param values the values to be stored, by key
+     * @param expire
+     * @throws RemoteException
+     */
+    public void setAll(Map values, long expire)
+            throws RemoteException;
+
+    /**
+     * remove several keys in one call
+     * @param keys the keys to remove
+     * @throws RemoteException
+     */
+    public void removeAll(Collection keys)
+            throws RemoteException;
+
+    /**
+     * remove everything set with any of the given tags, in one call
+     * @param tags
+     * @return the number of values removed
+     * @throws RemoteException
+     */
+    public int invalidateByTag(String[] tags)
+            throws RemoteException;
+
+    /**
+     * remove every key that starts with any of the given prefixes, in
+     * one call
+     * @param prefixes
+     * @return the number of values removed
+     * @throws RemoteException
+     */
+    public int invalidateByPrefix(String[] prefixes)
+            throws RemoteException;
+
+    /**
+     * register to be told which keys change, so that copies of cached
+     * values kept by the subscriber can be thrown away.  a subscriber
+     * that can't be reached is dropped, so subscribers should call
+     * this periodically.
+     * @param subscriber
+     * @return true if the subscriber was not registered before, in
+     *         which case it may have missed changes
+     * @throws RemoteException
+     */
+    public boolean subscribe(CacheSubscriber subscriber)
+            throws RemoteException;
+
+    /**
+     *
+     * @param subscriber
+     * @throws RemoteException
+     */
+    public void unsubscribe(CacheSubscriber subscriber)
+            throws RemoteException;
+
     /**
      *
      * @throws RemoteException
@@ -134,6 +219,15 @@ public interface CacheClient
     public int getSize(String key)
             throws RemoteException;
 
+    /**
+     * the memory used by the cache, by key prefix.  the prefix of a key
+     * is what comes before the first '/', '.' or ':' that isn't at the start.
+     * @return a long[] of {number of values, bytes} by prefix
+     * @throws RemoteException
+     */
+    public Map getMemoryUsage()
+            throws RemoteException;
+
     public boolean containsKey(String key)
             throws RemoteException;
 }
@@ -18,6 +18,9 @@ public class CacheClientFactory {
      *  @return the client
      */
     public static CacheClient createCacheClient() {
+        if (CacheConfiguration.isSharded()) {
+            return getShardedClient();
+        }
         Class iface = CacheClient.class;
         return (CacheClient) java.lang.reflect.Proxy.newProxyInstance(
                 iface.getClassLoader(),
@@ -25,5 +28,27 @@ public class CacheClientFactory {
                 new GenericRMIProxy(CacheConfiguration.getURLS()));
     }
 
+    private static CacheClient shardedClient = null;
 
+    /**
+     *  the sharded client is shared so that the ring is only built once
+     *  and all callers know which shards are down
+     *  @return the client
+     */
+    private static synchronized CacheClient getShardedClient() {
+        if (shardedClient == null) {
+            String[] shards = CacheConfiguration.getShards();
+            CacheClient[] clients = new CacheClient[shards.length];
+            Class iface = CacheClient.class;
+            for (int i = 0; i < shards.length; i++) {
+                clients[i] = (CacheClient) java.lang.reflect.Proxy.newProxyInstance(
+                        iface.getClassLoader(),
+                        new Class[]{iface},
+                        new GenericRMIProxy(CacheConfiguration.getShardClientURLs(i)));
+            }
+            log.info("spreading keys over " + shards.length + " shards");
+            shardedClient = ShardedRMIProxy.create(shards, clients, CacheConfiguration.getVirtualNodes());
+        }
+        return shardedClient;
+    }
 }
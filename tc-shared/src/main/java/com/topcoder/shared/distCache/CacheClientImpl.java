@@ -3,6 +3,8 @@ package com.topcoder.shared.distCache;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
 
 /**
  * @author orb
@@ -12,10 +14,12 @@ public class CacheClientImpl
         extends UnicastRemoteObject
         implements CacheClient {
     Cache _cache;
+    CachePublisher _publisher;
 
     CacheClientImpl(Cache cache)
             throws RemoteException {
         _cache = cache;
+        _publisher = new CachePublisher(cache);
     }
 
 
@@ -44,6 +48,19 @@ public class CacheClientImpl
         _cache.update(key, value, prio, System.currentTimeMillis(), expire);
     }
 
+    /**
+     *
+     * @param key
+     * @param value
+     * @param expire
+     * @param tags
+     * @throws RemoteException
+     */
+    public void set(String key, Object value, long expire, String[] tags)
+            throws RemoteException {
+        _cache.update(key, value, Cache.DEFAULT_PRIORITY, System.currentTimeMillis(), expire, tags);
+    }
+
     /**
      *
      * @param key
@@ -102,6 +119,81 @@ public class CacheClientImpl
         return null;
     }
 
+    /**
+     *
+     * @param keys
+     * @return
+     * @throws RemoteException
+     */
+    public Map getAll(Collection keys)
+            throws RemoteException {
+        return _cache.getAll(keys);
+    }
+
+    /**
+     *
+     * @param values
+     * @param expire
+     * @throws RemoteException
+     */
+    public void setAll(Map values, long expire)
+            throws RemoteException {
+        _cache.updateAll(values, Cache.DEFAULT_PRIORITY, System.currentTimeMillis(), expire);
+    }
+
+    /**
+     *
+     * @param keys
+     * @throws RemoteException
+     */
+    public void removeAll(Collection keys)
+            throws RemoteException {
+        _cache.removeAll(keys);
+    }
+
+    /**
+     *
+     * @param tags
+     * @return
+     * @throws RemoteException
+     */
+    public int invalidateByTag(String[] tags)
+            throws RemoteException {
+        return _cache.removeByTag(tags);
+    }
+
+    /**
+     *
+     * @param prefixes
+     * @return
+     * @throws RemoteException
+     */
+    public int invalidateByPrefix(String[] prefixes)
+            throws RemoteException {
+        return _cache.removeByPrefix(prefixes);
+    }
+
+    /**
+     *
+     * @param subscriber
+     * @return
+     * @throws RemoteException
+     */
+    public boolean subscribe(CacheSubscriber subscriber)
+            throws RemoteException {
+        return _publisher.subscribe(subscriber);
+    }
+
+    /**
+     *
+     * @param subscriber
+     * @throws RemoteException
+     */
+    public void unsubscribe(CacheSubscriber subscriber)
+            throws RemoteException {
+        _publisher.unsubscribe(subscriber);
+    }
+
     /**
      *
      * @throws RemoteException
@@ -156,6 +248,11 @@ public class CacheClientImpl
         return _cache.getSize(key);
     }
 
+    public Map getMemoryUsage()
+            throws RemoteException {
+        return _cache.getMemoryUsage();
+    }
+
     public boolean containsKey(String key)
             throws RemoteException {
         return _cache.exists(key);
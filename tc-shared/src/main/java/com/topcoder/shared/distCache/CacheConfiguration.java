@@ -16,9 +16,21 @@ public class CacheConfiguration {
     static final String PROP_PRIMARY = "cache.primary";
     static final String PROP_SECONDARY = "cache.secondary";
     static final String PROP_SIZE = "cache.size";
+    static final String PROP_MAXBYTES = "cache.maxbytes";
+    static final String PROP_MAXVALUEBYTES = "cache.maxvaluebytes";
+    static final String PROP_COMPRESSBYTES = "cache.compressbytes";
     static final String PROP_SYNC = "cache.synctime";
+    static final String PROP_REPLOG_SIZE = "cache.replog.size";
+    static final String PROP_REPLOG_BYTES = "cache.replog.bytes";
+    static final String PROP_SYNC_BATCH = "cache.sync.batch";
+    static final String PROP_SYNC_BATCH_BYTES = "cache.sync.batchbytes";
 
     static final String PROP_EXPIREDELAY = "cache.expirecheck";
+    static final String PROP_PUBLISH = "cache.publishtime";
+    static final String PROP_SHARDS = "cache.shards";
+    static final String PROP_VNODES = "cache.vnodes";
+    static final String PROP_SNAPSHOT_FILE = "cache.snapshot.file";
+    static final String PROP_SNAPSHOT_DELAY = "cache.snapshot.time";
 //    static final String PROP_EXPIRETIME  = "cache.expiretime";
 
     private static TCResourceBundle _bundle = null;
@@ -33,6 +45,32 @@ public class CacheConfiguration {
         return getBundle().getIntProperty(PROP_SIZE, -1);
     }
 
+    /**
+     *  the most bytes of values to keep, -1 means no limit
+     * @return
+     */
+    public static long getMaxBytes() {
+        return Long.parseLong(getBundle().getProperty(PROP_MAXBYTES, "-1").trim());
+    }
+
+    /**
+     *  values bigger than this, in bytes, are refused.  by default a
+     *  tenth of the byte limit, -1 means no limit
+     * @return
+     */
+    public static int getMaxValueBytes() {
+        long max = getMaxBytes();
+        return getBundle().getIntProperty(PROP_MAXVALUEBYTES, max > 0 ? (int) Math.min(max / 10, Integer.MAX_VALUE) : -1);
+    }
+
+    /**
+     *  values bigger than this, in bytes, are kept compressed, -1 means never
+     * @return
+     */
+    public static int getCompressBytes() {
+        return getBundle().getIntProperty(PROP_COMPRESSBYTES, 1024 * 1024);
+    }
+
     /**
      *  time between syncrhonization attempts with peer
      * @return
@@ -41,6 +79,38 @@ public class CacheConfiguration {
         return getBundle().getIntProperty(PROP_SYNC, 10000);
     }
 
+    /**
+     *  how many changes the replication log keeps for the peer
+     * @return
+     */
+    public static int getReplicationLogSize() {
+        return getBundle().getIntProperty(PROP_REPLOG_SIZE, 100000);
+    }
+
+    /**
+     *  how many bytes of values the replication log keeps for the peer
+     * @return
+     */
+    public static long getReplicationLogBytes() {
+        return Long.parseLong(getBundle().getProperty(PROP_REPLOG_BYTES, String.valueOf(256L * 1024 * 1024)).trim());
+    }
+
+    /**
+     *  the most changes the peer gets in one pull
+     * @return
+     */
+    public static int getSyncBatchSize() {
+        return getBundle().getIntProperty(PROP_SYNC_BATCH, 1000);
+    }
+
+    /**
+     *  roughly the most bytes of values the peer gets in one pull
+     * @return
+     */
+    public static long getSyncBatchBytes() {
+        return getBundle().getIntProperty(PROP_SYNC_BATCH_BYTES, 8 * 1024 * 1024);
+    }
+
     /**
      *
      * @return
@@ -49,6 +119,32 @@ public class CacheConfiguration {
         return getBundle().getIntProperty(PROP_EXPIREDELAY, 60000);
     }
 
+    /**
+     *  where the cache is saved to and reloaded from on restart, null if
+     *  it isn't
+     * @return
+     */
+    public static String getSnapshotFile() {
+        String file = getBundle().getProperty(PROP_SNAPSHOT_FILE, "").trim();
+        return file.length() == 0 ? null : file;
+    }
+
+    /**
+     *  time between snapshots
+     * @return
+     */
+    public static int getSnapshotDelay() {
+        return getBundle().getIntProperty(PROP_SNAPSHOT_DELAY, 300000);
+    }
+
+    /**
+     *  time between pushes of changed keys to subscribers
+     * @return
+     */
+    public static int getPublishDelay() {
+        return getBundle().getIntProperty(PROP_PUBLISH, 250);
+    }
+
     /**
      *
      * @return
@@ -67,6 +163,22 @@ public class CacheConfiguration {
         }
     }
 
+    /**
+     *
+     * @return host:port of the primary
+     */
+    public static String getPrimaryAddress() {
+        return getBundle().getProperty(PROP_PRIMARY, "");
+    }
+
+    /**
+     *
+     * @return host:port of the secondary
+     */
+    public static String getSecondaryAddress() {
+        return getBundle().getProperty(PROP_SECONDARY, "");
+    }
+
      /**
      *
      * @return
@@ -131,6 +243,100 @@ public class CacheConfiguration {
         return extractPort(getBundle().getProperty(PROP_SECONDARY, ""));
     }
 
+    // --------------------------------------------------
+    // sharding.  cache.shards lists the shards, separated by commas, each
+    // as host:port of its primary, optionally followed by |host:port of
+    // its replica.  the primary of a shard is also its name on the ring,
+    // so changing it moves the shard's keys.
+
+    /**
+     *  whether keys are spread over several shards rather than all kept
+     *  by cache.primary
+     * @return
+     */
+    public static boolean isSharded() {
+        return getBundle().getProperty(PROP_SHARDS, "").trim().length() > 0;
+    }
+
+    /**
+     *
+     * @return the number of virtual nodes each shard has on the ring
+     */
+    public static int getVirtualNodes() {
+        return getBundle().getIntProperty(PROP_VNODES, 160);
+    }
+
+    /**
+     *
+     * @return the host:port of the primary of each shard
+     */
+    public static String[] getShards() {
+        String[] shards = getBundle().getProperty(PROP_SHARDS, "").split(",");
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = getShardPrimary(shards, i);
+        }
+        return shards;
+    }
+
+    /**
+     *
+     * @param shard
+     * @return the host:port of the primary of the shard
+     */
+    public static String getShardPrimary(int shard) {
+        return getShardPrimary(getBundle().getProperty(PROP_SHARDS, "").split(","), shard);
+    }
+
+    /**
+     *
+     * @param shard
+     * @return the host:port of the replica of the shard, null if it has none
+     */
+    public static String getShardReplica(int shard) {
+        String[] shards = getBundle().getProperty(PROP_SHARDS, "").split(",");
+        int pos = shards[shard].indexOf('|');
+        return pos == -1 ? null : shards[shard].substring(pos + 1).trim();
+    }
+
+    private static String getShardPrimary(String[] shards, int shard) {
+        int pos = shards[shard].indexOf('|');
+        return (pos == -1 ? shards[shard] : shards[shard].substring(0, pos)).trim();
+    }
+
+    /**
+     *
+     * @param shard
+     * @return the client urls of the shard, primary first
+     */
+    public static String[] getShardClientURLs(int shard) {
+        String replica = getShardReplica(shard);
+        if (replica == null) {
+            return new String[]{getClientURL(getShardPrimary(shard), true)};
+        } else {
+            return new String[]{getClientURL(getShardPrimary(shard), true), getClientURL(replica, false)};
+        }
+    }
+
+    /**
+     *
+     * @param address host:port of the server
+     * @param primary
+     * @return
+     */
+    static String getClientURL(String address, boolean primary) {
+        return "rmi://" + address + (primary ? "/client/primary" : "/client/secondary");
+    }
+
+    /**
+     *
+     * @param address host:port of the server
+     * @param primary
+     * @return
+     */
+    static String getServerURL(String address, boolean primary) {
+        return "rmi://" + address + (primary ? "/server/primary" : "/server/secondary");
+    }
+
     public static boolean hasSecondary() {
         boolean ret = true;
         try {
@@ -143,7 +349,7 @@ public class CacheConfiguration {
 
 
     // --------------------------------------------------
-    private static int extractPort(String hostname) {
+    static int extractPort(String hostname) {
         if (hostname == null) {
             return Registry.REGISTRY_PORT;
         }
@@ -158,7 +364,7 @@ public class CacheConfiguration {
     }
 
 
-    private static String extractHost(String hostname) {
+    static String extractHost(String hostname) {
         if (hostname == null) {
             return "";
         }
@@ -0,0 +1,155 @@
+package com.topcoder.shared.distCache;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ *  pushes the keys that change in a cache to the subscribers that
+ *  registered for them.  Changes are only collected while someone is
+ *  subscribed.  They are gathered up and pushed every
+ *  <code>cache.publishtime</code> milli by a background thread so that
+ *  writers never wait on a subscriber.  A subscriber that can't be
+ *  reached is dropped; subscribers are expected to subscribe again
+ *  from time to time and throw away what they have when they find
+ *  out they had been dropped.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CacheSubscriber
+ */
+public class CachePublisher
+        implements CacheUpdateListener, Runnable {
+    private static final Logger log = Logger.getLogger(CachePublisher.class);
+
+    private final CopyOnWriteArrayList<CacheSubscriber> _subscribers = new CopyOnWriteArrayList<CacheSubscriber>();
+    private final ConcurrentHashMap<String, Boolean> _changed = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicBoolean _cleared = new AtomicBoolean(false);
+    private final int _delay;
+    private Thread _thread = null;
+
+    /**
+     *  create a publisher for the given cache
+     * @param cache
+     */
+    public CachePublisher(Cache cache) {
+        _delay = CacheConfiguration.getPublishDelay();
+        cache.addUpdateListener(this);
+    }
+
+    /**
+     *  register a subscriber
+     * @param subscriber
+     * @return true if it wasn't already registered
+     */
+    public boolean subscribe(CacheSubscriber subscriber) {
+        boolean added = _subscribers.addIfAbsent(subscriber);
+        if (added) {
+            log.info("SUBSCRIBED: " + subscriber + " now " + _subscribers.size());
+            start();
+        }
+        return added;
+    }
+
+    /**
+     *
+     * @param subscriber
+     */
+    public void unsubscribe(CacheSubscriber subscriber) {
+        if (_subscribers.remove(subscriber)) {
+            log.info("UNSUBSCRIBED: " + subscriber + " now " + _subscribers.size());
+        }
+    }
+
+    private synchronized void start() {
+        if (_thread == null) {
+            _thread = new Thread(this, "CachePublisher");
+            _thread.setDaemon(true);
+            _thread.start();
+        }
+    }
+
+    /**
+     *  called under the lock of the key, so just note it
+     * @param value
+     */
+    public void valueUpdated(CachedValue value) {
+        if (!_subscribers.isEmpty()) {
+            _changed.put(value.getKey(), Boolean.TRUE);
+        }
+    }
+
+    /**
+     *
+     */
+    public void clear() {
+        if (!_subscribers.isEmpty()) {
+            _cleared.set(true);
+        }
+    }
+
+    /**
+     *
+     */
+    public void run() {
+        while (true) {
+            try {
+                Thread.sleep(_delay);
+            } catch (InterruptedException e) {
+            }
+            try {
+                publish();
+            } catch (Throwable t) {
+                log.error("publish failed", t);
+            }
+        }
+    }
+
+    /**
+     *  push what changed since the last time to each subscriber
+     */
+    void publish() {
+        boolean cleared = _cleared.getAndSet(false);
+        String[] keys = null;
+        if (cleared) {
+            // everything goes anyway
+            _changed.clear();
+        } else if (!_changed.isEmpty()) {
+            keys = drainChanged();
+        }
+        if (!cleared && (keys == null || keys.length == 0)) {
+            return;
+        }
+
+        for (CacheSubscriber subscriber : _subscribers) {
+            try {
+                if (cleared) {
+                    subscriber.cleared();
+                } else {
+                    subscriber.keysChanged(keys);
+                }
+            } catch (RemoteException e) {
+                log.warn("dropping subscriber " + subscriber + ": " + e.getMessage());
+                _subscribers.remove(subscriber);
+            }
+        }
+    }
+
+    private String[] drainChanged() {
+        String[] keys = new String[_changed.size()];
+        int count = 0;
+        for (Iterator<String> it = _changed.keySet().iterator(); it.hasNext() && count < keys.length;) {
+            keys[count++] = it.next();
+            it.remove();
+        }
+        if (count < keys.length) {
+            String[] temp = new String[count];
+            System.arraycopy(keys, 0, temp, 0, count);
+            keys = temp;
+        }
+        return keys;
+    }
+}
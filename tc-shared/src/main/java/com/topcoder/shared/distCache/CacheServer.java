@@ -2,6 +2,7 @@ package com.topcoder.shared.distCache;
 
 import com.topcoder.shared.util.logging.Logger;
 
+import java.io.File;
 import java.net.MalformedURLException;
 import java.rmi.*;
 import java.rmi.registry.LocateRegistry;
@@ -19,12 +20,20 @@ public class CacheServer {
     private Cache _cache = null;
     private int _mode = MODE_PRIMARY;
     private int _size = -1;
+    private int _shard = -1;
+    /** where the peer's replication log was when its cache was copied */
+    private long[] _peerPosition = null;
+    private CacheSnapshot _snapshot = null;
 
     /**
      *
      */
     public CacheServer() {
         _size = CacheConfiguration.getSize();
+        String snapshot = CacheConfiguration.getSnapshotFile();
+        if (snapshot != null) {
+            _snapshot = new CacheSnapshot(new File(snapshot));
+        }
 
     }
 
@@ -51,47 +60,69 @@ public class CacheServer {
         _size = size;
     }
 
+    /**
+     *  run as one of the shards listed in cache.shards rather than as
+     *  cache.primary / cache.secondary.  the mode then says whether this
+     *  is the primary or the replica of the shard.
+     * @param shard
+     */
+    public void setShard(int shard) {
+        if (shard < 0 || shard >= CacheConfiguration.getShards().length) {
+            throw new RuntimeException("invalid shard: " + shard);
+        }
+        _shard = shard;
+    }
+
     // --------------------------------------------------
 
-    private String getLocalHost() {
-        if (_mode == MODE_PRIMARY) {
-            return CacheConfiguration.getPrimaryServerHost();
+    /**
+     *  host:port of the server running in the given mode
+     */
+    private String getAddress(int mode) {
+        if (_shard >= 0) {
+            if (mode == MODE_PRIMARY) {
+                return CacheConfiguration.getShardPrimary(_shard);
+            } else {
+                return CacheConfiguration.getShardReplica(_shard);
+            }
+        }
+        if (mode == MODE_PRIMARY) {
+            return CacheConfiguration.getPrimaryAddress();
         } else {
-            return CacheConfiguration.getSecondaryServerHost();
+            return CacheConfiguration.getSecondaryAddress();
         }
     }
 
-    private int getLocalPort() {
-        if (_mode == MODE_PRIMARY) {
-            return CacheConfiguration.getPrimaryServerPort();
-        } else {
-            return CacheConfiguration.getSecondaryServerPort();
+    private int getRemoteMode() {
+        return _mode == MODE_PRIMARY ? MODE_SECONDARY : MODE_PRIMARY;
+    }
+
+    private boolean hasPeer() {
+        if (_shard >= 0) {
+            return CacheConfiguration.getShardReplica(_shard) != null;
         }
+        return CacheConfiguration.hasSecondary();
+    }
+
+    private String getLocalHost() {
+        return CacheConfiguration.extractHost(getAddress(_mode));
+    }
+
+    private int getLocalPort() {
+        return CacheConfiguration.extractPort(getAddress(_mode));
     }
 
     private String getLocalClientURL() {
-        if (_mode == MODE_PRIMARY) {
-            return CacheConfiguration.getPrimaryClientURL();
-        } else {
-            return CacheConfiguration.getSecondaryClientURL();
-        }
+        return CacheConfiguration.getClientURL(getAddress(_mode), _mode == MODE_PRIMARY);
     }
 
     private String getLocalServerURL() {
-        if (_mode == MODE_PRIMARY) {
-            return CacheConfiguration.getPrimaryServerURL();
-        } else {
-            return CacheConfiguration.getSecondaryServerURL();
-        }
+        return CacheConfiguration.getServerURL(getAddress(_mode), _mode == MODE_PRIMARY);
     }
 
 
     private String getRemoteServerURL() {
-        if (_mode == MODE_PRIMARY) {
-            return CacheConfiguration.getSecondaryServerURL();
-        } else {
-            return CacheConfiguration.getPrimaryServerURL();
-        }
+        return CacheConfiguration.getServerURL(getAddress(getRemoteMode()), getRemoteMode() == MODE_PRIMARY);
     }
 
     /**
@@ -108,9 +139,11 @@ public class CacheServer {
     public void startCache() {
         initRegistry();
 
-        boolean hasPeer = CacheConfiguration.hasSecondary();
+        boolean hasPeer = hasPeer();
         long start = System.currentTimeMillis();
         _cache = findCache();
+        _cache.setByteLimits(CacheConfiguration.getMaxBytes(), CacheConfiguration.getMaxValueBytes(),
+                CacheConfiguration.getCompressBytes());
         long end = System.currentTimeMillis();
 
         log.info("CACHE xfer took " + (end - start) + "ms");
@@ -123,8 +156,9 @@ public class CacheServer {
             Naming.rebind(clienturl, client);
             log.info("registered " + clienturl);
 
-            if (hasPeer) {
-                CacheServerSyncImpl server = new CacheServerSyncImpl(this);
+            if (hasPeer || _shard >= 0) {
+                // shards also need it for handing keys over to each other
+                CacheServerSyncImpl server = new CacheServerSyncImpl(this, hasPeer);
                 String serverurl = getLocalServerURL();
 
                 log.info("BINDING @ " + serverurl);
@@ -139,12 +173,13 @@ public class CacheServer {
 
         if (hasPeer) startSync();
         startExpiration();
+        if (_snapshot != null) startSnapshots();
 
     }
 
     private void startSync() {
         log.info("starting synchronization thread");
-        (new Thread(new CacheSynchronizer(this))).start();
+        (new Thread(new CacheSynchronizer(this, _peerPosition))).start();
     }
 
     private void startExpiration() {
@@ -152,6 +187,21 @@ public class CacheServer {
         (new Thread(new CacheManager(this))).start();
     }
 
+    private void startSnapshots() {
+        log.info("starting snapshot thread");
+        Thread t = new Thread(new CacheSnapshotter(this, _snapshot));
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     *
+     * @return the snapshot the cache is saved to, null if there is none
+     */
+    public CacheSnapshot snapshot() {
+        return _snapshot;
+    }
+
     /**
      *
      * @return
@@ -176,10 +226,14 @@ public class CacheServer {
 
     Cache findCache() {
         try {
-            if (CacheConfiguration.hasSecondary()) {
+            if (hasPeer()) {
                 CacheServerSync sync = getPeer(getRemoteServerURL());
                 log.info("located peer, getting cache");
-                return sync.getCache();
+                // position first, changes made while the cache is copied are pulled again afterwards
+                long[] position = sync.getPosition();
+                Cache cache = sync.getCache();
+                _peerPosition = position;
+                return cache;
             }
 
         } catch (MalformedURLException e) {
@@ -192,7 +246,50 @@ public class CacheServer {
 
 
         log.info("No peer located");
-        return new Cache(_size);
+        Cache cache = new Cache(_size);
+        if (_snapshot != null) {
+            // what we had before going down, anything newer the other shards have comes after
+            try {
+                _snapshot.load(cache);
+            } catch (Exception e) {
+                log.error("couldn't load snapshot " + _snapshot.getFile() + " - " + e.getMessage());
+                cache.clear();
+            }
+        }
+        if (_shard >= 0) {
+            joinRing(cache);
+        }
+        return cache;
+    }
+
+    /**
+     *  take over the keys that the other shards have been holding for
+     *  this one, while it was down or before it was added to the ring
+     * @param cache
+     */
+    private void joinRing(Cache cache) {
+        String[] shards = CacheConfiguration.getShards();
+        int vnodes = CacheConfiguration.getVirtualNodes();
+        for (int i = 0; i < shards.length; i++) {
+            if (i == _shard) {
+                continue;
+            }
+            String replica = CacheConfiguration.getShardReplica(i);
+            String[] urls = replica == null ?
+                    new String[]{CacheConfiguration.getServerURL(shards[i], true)} :
+                    new String[]{CacheConfiguration.getServerURL(shards[i], true),
+                            CacheConfiguration.getServerURL(replica, false)};
+            for (int j = 0; j < urls.length; j++) {
+                try {
+                    CachedValue[] values = getPeer(urls[j]).handOff(shards, vnodes, _shard);
+                    log.info("took over " + values.length + " values from " + urls[j]);
+                    cache.integrateChanges(values);
+                    break;
+                } catch (Exception e) {
+                    log.info("no hand off from " + urls[j] + " - " + e.getMessage());
+                }
+            }
+        }
     }
 
     void initRegistry() {
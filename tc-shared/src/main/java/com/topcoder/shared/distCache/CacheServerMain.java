@@ -16,6 +16,7 @@ public class CacheServerMain {
     public static void main(String[] args) {
         log.debug("CACHE STARTING");
         int mode = CacheServer.MODE_PRIMARY;
+        int shard = -1;
         for (int i = 0; i < args.length; i++) {
             if (args[i].equals("-primary")) {
                 mode = CacheServer.MODE_PRIMARY;
@@ -23,6 +24,9 @@ public class CacheServerMain {
             } else if (args[i].equals("-secondary")) {
                 mode = CacheServer.MODE_SECONDARY;
 
+            } else if (args[i].equals("-shard") && i + 1 < args.length) {
+                shard = Integer.parseInt(args[++i]);
+
             } else {
                 log.info("INVALID ARGUMENT: " + args[i]);
                 return;
@@ -30,6 +34,9 @@ public class CacheServerMain {
         }
         CacheServer server = new CacheServer();
         server.setMode(mode);
+        if (shard >= 0) {
+            server.setShard(shard);
+        }
         server.startCache();
     }
 
@@ -14,13 +14,11 @@ import java.rmi.RemoteException;
  *  peer is already up, transfer the remote cache locally.  If the
  *  peer is not yet up, periodically retry until it is up.
  *
- *  At a synchronization point, call the remote synchronize() method.
- *  The remote side will queue up changes for transfer and pass them
- *  at this point.  (if the remote server is not connected, we don't
- *  need to queue)  The change list will be merged locally according
- *  to version number.  The if the remote side has a higher version
- *  of the object, that version is used.  If the versions are identical,
- *  the value from the primary will be used.
+ *  Each side keeps a {@link ReplicationLog} of its changes.  At a
+ *  synchronization point, call the remote pull() method with the last
+ *  sequence number read, and keep pulling while there is more.  If
+ *  the remote side no longer has what we need, it says to resync, and
+ *  we start over from getPosition() and getCache().
  *
  *  The interface and behaviours will be refined during the development
  *  process as I get a better understanding of the expected cache sizes
@@ -41,20 +39,36 @@ public interface CacheServerSync
             throws RemoteException;
 
     /**
-     *  return a list of cached values representing changes since the
-     *  last synchronize event.  (or since the initial getCache()
-     *  query.
-     *  @return an array of CachedValue objects
+     *  where the replication log is, call it before getCache() to know
+     *  where to pull from afterwards
+     *  @return {epoch, next sequence number}
      *  @throws RemoteException
      */
-    public CachedValue[] synchronize()
+    public long[] getPosition()
             throws RemoteException;
 
     /**
+     *  return the changes from a sequence number on
+     *  @param epoch the epoch of the log last read, 0 if none
+     *  @param from  the first sequence number wanted
+     *  @param max   the most changes to return
+     *  @return the changes, or a batch saying to resync
+     *  @throws RemoteException
+     */
+    public ReplicationLog.Batch pull(long epoch, long from, int max)
+            throws RemoteException;
+
+    /**
+     *  used when a shard joins the ring: return the values this server
+     *  holds that belong to the given shard on the given ring, and drop
+     *  them here since they no longer belong to us.
      *
-     * @return
+     * @param shards the names of the shards on the ring
+     * @param vnodes the number of virtual nodes per shard
+     * @param shard  the shard asking
+     * @return the values that belong to the shard
      * @throws RemoteException
      */
-    public boolean getCleared()
+    public CachedValue[] handOff(String[] shards, int vnodes, int shard)
             throws RemoteException;
 }
@@ -1,7 +1,11 @@
 package com.topcoder.shared.distCache;
 
+import com.topcoder.shared.util.logging.Logger;
+
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Iterator;
 
 /**
  * @author orb
@@ -10,8 +14,10 @@ import java.rmi.server.UnicastRemoteObject;
 public class CacheServerSyncImpl
         extends UnicastRemoteObject
         implements CacheServerSync {
+    private static final Logger log = Logger.getLogger(CacheServerSyncImpl.class);
     CacheServer _server;
-    ListSyncImpl _listener = new ListSyncImpl();
+    ReplicationLog _log = new ReplicationLog(CacheConfiguration.getReplicationLogSize(),
+            CacheConfiguration.getReplicationLogBytes());
 
     /**
      *
@@ -20,8 +26,22 @@ public class CacheServerSyncImpl
      */
     public CacheServerSyncImpl(CacheServer server)
             throws RemoteException {
+        this(server, true);
+    }
+
+    /**
+     *
+     * @param server
+     * @param hasPeer whether a peer will be synchronizing with us, if
+     *                not changes aren't collected for it
+     * @throws RemoteException
+     */
+    public CacheServerSyncImpl(CacheServer server, boolean hasPeer)
+            throws RemoteException {
         _server = server;
-        getCache().setUpdateListener(_listener);
+        if (hasPeer) {
+            getCache().addUpdateListener(_log);
+        }
     }
 
     /**
@@ -39,19 +59,49 @@ public class CacheServerSyncImpl
      * @return
      * @throws RemoteException
      */
-    public CachedValue[] synchronize()
+    public long[] getPosition()
+            throws RemoteException {
+        return _log.getPosition();
+    }
+
+    /**
+     *
+     * @param epoch
+     * @param from
+     * @param max
+     * @return
+     * @throws RemoteException
+     */
+    public ReplicationLog.Batch pull(long epoch, long from, int max)
             throws RemoteException {
-        CachedValue[] result = _listener.getChanged();
-        return result;
+        return _log.read(epoch, from, max, CacheConfiguration.getSyncBatchBytes());
     }
 
     /**
      *
+     * @param shards
+     * @param vnodes
+     * @param shard
      * @return
      * @throws RemoteException
      */
-    public boolean getCleared()
+    public CachedValue[] handOff(String[] shards, int vnodes, int shard)
             throws RemoteException {
-        return _listener.getCleared();
+        ConsistentHash ring = new ConsistentHash(shards, vnodes);
+        Cache cache = getCache();
+        ArrayList moving = new ArrayList();
+        for (Iterator it = cache.getEntries().iterator(); it.hasNext();) {
+            CachedValue cached = (CachedValue) it.next();
+            if (ring.shardFor(cached.getKey()) == shard) {
+                // removing empties the cached value, so hand over a copy
+                CachedValue copy = cached.copy();
+                if (copy.getValue() != null) {
+                    moving.add(copy);
+                    cache.remove(cached.getKey());
+                }
+            }
+        }
+        log.info("HANDOFF to shard " + shard + ": " + moving.size());
+        return (CachedValue[]) moving.toArray(new CachedValue[moving.size()]);
     }
 }
@@ -0,0 +1,384 @@
+package com.topcoder.shared.distCache;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ *  a copy of a cache on disk, so that a server that restarts without a
+ *  peer to copy from can come back with what it had rather than empty.
+ *
+ *  the file is written to the side and then renamed over the old one,
+ *  so there is always a whole snapshot to load.  it is a header followed
+ *  by one record per value: key, times, priority, version, tags, the class
+ *  of the value and the value serialized on its own.  because each value
+ *  stands alone, expired values are skipped without being read, a value
+ *  that can't be read doesn't spoil the rest, and the contents can be
+ *  looked at without the classes of the values (see {@link #main}).
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CacheSnapshotter
+ */
+public class CacheSnapshot {
+    private static Logger log = Logger.getLogger(CacheSnapshot.class);
+    private static final int MAGIC = 0x54434353;
+    /** 2 added tags */
+    private static final int FORMAT = 2;
+    private static final int BATCH = 1000;
+
+    private final File _file;
+
+    private long _lastSave = 0;
+    private long _saveMillis = 0;
+    private int _saveCount = 0;
+    private long _saveBytes = 0;
+    private long _loadMillis = 0;
+    private int _loadCount = 0;
+    private int _loadSkipped = 0;
+
+    /**
+     *
+     * @param file where the snapshot is kept
+     */
+    public CacheSnapshot(File file) {
+        _file = file;
+    }
+
+    /**
+     *
+     * @return where the snapshot is kept
+     */
+    public File getFile() {
+        return _file;
+    }
+
+    /**
+     *  write the cache out, replacing the last snapshot
+     * @param cache
+     * @throws IOException
+     */
+    public synchronized void save(Cache cache) throws IOException {
+        long start = System.currentTimeMillis();
+        File temp = new File(_file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+        int count = 0;
+        int failed = 0;
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(start);
+            ByteArrayOutputStream buf = new ByteArrayOutputStream(8192);
+            for (Iterator it = cache.getEntries().iterator(); it.hasNext();) {
+                CachedValue cached = (CachedValue) it.next();
+                Object value = cached.getValue();
+                if (value == null) {
+                    // removed since we got the list
+                    continue;
+                }
+                buf.reset();
+                try {
+                    ObjectOutputStream oos = new ObjectOutputStream(buf);
+                    oos.writeObject(value);
+                    oos.close();
+                } catch (IOException e) {
+                    failed++;
+                    continue;
+                }
+                out.writeByte(1);
+                out.writeUTF(cached.getKey());
+                out.writeLong(cached.getLastUsed());
+                out.writeLong(cached.getExpireTime() - cached.getLastUsed());
+                out.writeInt(cached.getPriority());
+                out.writeInt(cached.getVersion());
+                String[] tags = cached.getTags();
+                out.writeShort(tags == null ? 0 : tags.length);
+                for (int i = 0; tags != null && i < tags.length; i++) {
+                    out.writeUTF(tags[i]);
+                }
+                out.writeUTF(value.getClass().getName());
+                out.writeInt(buf.size());
+                buf.writeTo(out);
+                count++;
+            }
+            out.writeByte(0);
+            out.writeInt(count);
+        } finally {
+            out.close();
+        }
+        // the rename replaces the old snapshot in one step where it can (unix).  where it can't,
+        // the old one is moved aside rather than deleted, and load falls back to it
+        if (!temp.renameTo(_file)) {
+            File old = getOldFile();
+            if (old.exists() && !old.delete()) {
+                throw new IOException("couldn't delete " + old);
+            }
+            if (_file.exists() && !_file.renameTo(old)) {
+                throw new IOException("couldn't rename " + _file + " to " + old);
+            }
+            if (!temp.renameTo(_file)) {
+                throw new IOException("couldn't rename " + temp + " to " + _file);
+            }
+            old.delete();
+        }
+        _lastSave = start;
+        _saveMillis = System.currentTimeMillis() - start;
+        _saveCount = count;
+        _saveBytes = _file.length();
+        log.info("SNAPSHOT saved " + count + " values, " + _saveBytes + " bytes in " + _saveMillis + "ms" +
+                (failed > 0 ? ", " + failed + " couldn't be serialized" : ""));
+    }
+
+    private File getOldFile() {
+        return new File(_file.getPath() + ".old");
+    }
+
+    /**
+     *  load the last snapshot into the cache, leaving out what has expired
+     * @param cache
+     * @return the number of values loaded, 0 if there is no snapshot
+     * @throws IOException if the snapshot can't be read at all
+     */
+    public int load(Cache cache) throws IOException {
+        // a save that didn't finish replacing the snapshot leaves the old one aside
+        File file = _file.exists() ? _file : getOldFile();
+        if (!file.exists()) {
+            log.info("no snapshot at " + _file);
+            return 0;
+        }
+        long start = System.currentTimeMillis();
+        int count = 0;
+        int skipped = 0;
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536));
+        try {
+            int format = readFormat(in);
+            long saved = in.readLong();
+            log.info("loading snapshot of " + new Date(saved) + " from " + file);
+            List<CachedValue> batch = new ArrayList<CachedValue>(BATCH);
+            try {
+                while (in.readByte() == 1) {
+                    String key = in.readUTF();
+                    long lastused = in.readLong();
+                    long expire = in.readLong();
+                    int priority = in.readInt();
+                    int version = in.readInt();
+                    String[] tags = readTags(in, format);
+                    in.readUTF();
+                    int length = in.readInt();
+                    if (lastused + expire <= start) {
+                        in.skipBytes(length);
+                        skipped++;
+                        continue;
+                    }
+                    byte[] bytes = new byte[length];
+                    in.readFully(bytes);
+                    Object value;
+                    try {
+                        value = new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                    } catch (Exception e) {
+                        log.warn("couldn't read " + key + " from snapshot: " + e.getMessage());
+                        skipped++;
+                        continue;
+                    }
+                    CachedValue cached = new CachedValue(key, value, expire);
+                    cached.setLastUsed(lastused);
+                    cached.setPriority(priority);
+                    cached.setVersion(version);
+                    cached.setSize(length);
+                    cached.setTags(tags);
+                    batch.add(cached);
+                    count++;
+                    if (batch.size() == BATCH) {
+                        cache.integrateChanges(batch.toArray(new CachedValue[batch.size()]));
+                        batch.clear();
+                    }
+                }
+            } catch (EOFException e) {
+                log.warn("snapshot " + file + " is cut short, keeping the " + count + " values read");
+            }
+            cache.integrateChanges(batch.toArray(new CachedValue[batch.size()]));
+        } finally {
+            in.close();
+        }
+        _loadMillis = System.currentTimeMillis() - start;
+        _loadCount = count;
+        _loadSkipped = skipped;
+        log.info("SNAPSHOT loaded " + count + " values in " + _loadMillis + "ms, skipped " + skipped);
+        return count;
+    }
+
+    private static int readFormat(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("not a cache snapshot");
+        }
+        int format = in.readInt();
+        if (format < 1 || format > FORMAT) {
+            throw new IOException("unknown snapshot format " + format);
+        }
+        return format;
+    }
+
+    private static String[] readTags(DataInputStream in, int format) throws IOException {
+        int count = format < 2 ? 0 : in.readShort();
+        if (count == 0) {
+            return null;
+        }
+        String[] tags = new String[count];
+        for (int i = 0; i < count; i++) {
+            tags[i] = in.readUTF();
+        }
+        return tags;
+    }
+
+    /**
+     *
+     * @return when the last snapshot was started, 0 if none was saved
+     */
+    public long getLastSaveTime() {
+        return _lastSave;
+    }
+
+    /**
+     *
+     * @return how long the last save took, in milli
+     */
+    public long getSaveMillis() {
+        return _saveMillis;
+    }
+
+    /**
+     *
+     * @return how many values the last save wrote
+     */
+    public int getSaveCount() {
+        return _saveCount;
+    }
+
+    /**
+     *
+     * @return the size of the last snapshot saved, in bytes
+     */
+    public long getSaveBytes() {
+        return _saveBytes;
+    }
+
+    /**
+     *
+     * @return how long loading took, in milli
+     */
+    public long getLoadMillis() {
+        return _loadMillis;
+    }
+
+    /**
+     *
+     * @return how many values were loaded
+     */
+    public int getLoadCount() {
+        return _loadCount;
+    }
+
+    /**
+     *
+     * @return how many values were left out when loading, expired or unreadable
+     */
+    public int getLoadSkipped() {
+        return _loadSkipped;
+    }
+
+    /**
+     *  print what is in a snapshot:
+     *  <pre>CacheSnapshot file [-v] [prefix]</pre>
+     *  by default a summary by key prefix, with -v a line per value.
+     *  a prefix only looks at keys that start with it.
+     * @param args
+     */
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("usage: CacheSnapshot file [-v] [prefix]");
+            return;
+        }
+        boolean verbose = false;
+        String only = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("-v")) {
+                verbose = true;
+            } else {
+                only = args[i];
+            }
+        }
+        long now = System.currentTimeMillis();
+        // {count, bytes, expired} by prefix
+        Map<String, long[]> summary = new TreeMap<String, long[]>();
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(args[0]), 65536));
+            try {
+                int format = readFormat(in);
+                System.out.println("saved " + new Date(in.readLong()));
+                try {
+                    while (in.readByte() == 1) {
+                        String key = in.readUTF();
+                        long lastused = in.readLong();
+                        long expire = in.readLong();
+                        in.readInt();
+                        in.readInt();
+                        String[] tags = readTags(in, format);
+                        String type = in.readUTF();
+                        int length = in.readInt();
+                        in.skipBytes(length);
+                        if (only != null && !key.startsWith(only)) {
+                            continue;
+                        }
+                        boolean expired = lastused + expire <= now;
+                        if (verbose) {
+                            System.out.println(key + "  " + type + "  " + length + " bytes  " +
+                                    (expired ? "expired" : "expires " + new Date(lastused + expire)) +
+                                    (tags == null ? "" : "  " + Arrays.asList(tags)));
+                        }
+                        String prefix = Cache.getPrefix(key);
+                        long[] s = summary.get(prefix);
+                        if (s == null) {
+                            s = new long[3];
+                            summary.put(prefix, s);
+                        }
+                        s[0]++;
+                        s[1] += length;
+                        if (expired) {
+                            s[2]++;
+                        }
+                    }
+                    System.out.println("snapshot has " + in.readInt() + " values");
+                } catch (EOFException e) {
+                    System.out.println("snapshot is cut short");
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("couldn't read " + args[0] + ": " + e.getMessage());
+            return;
+        }
+        for (Map.Entry<String, long[]> e : summary.entrySet()) {
+            System.out.println(e.getKey() + ": " + e.getValue()[0] + " values, " + e.getValue()[1] / 1024 +
+                    " KB, " + e.getValue()[2] + " expired");
+        }
+    }
+}
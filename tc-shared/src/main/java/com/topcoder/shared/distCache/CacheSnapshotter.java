@@ -0,0 +1,58 @@
+package com.topcoder.shared.distCache;
+
+import com.topcoder.shared.util.logging.Logger;
+
+/**
+ *  saves a snapshot of the cache every so often, and once more when
+ *  the server is shut down
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CacheSnapshot
+ */
+public class CacheSnapshotter
+        implements Runnable {
+    private static Logger log = Logger.getLogger(CacheSnapshotter.class);
+    private CacheServer _server;
+    private CacheSnapshot _snapshot;
+
+    /**
+     *
+     * @param server
+     * @param snapshot
+     */
+    public CacheSnapshotter(CacheServer server, CacheSnapshot snapshot) {
+        _server = server;
+        _snapshot = snapshot;
+    }
+
+    /**
+     *
+     */
+    public void run() {
+        Runtime.getRuntime().addShutdownHook(new Thread("CacheSnapshot") {
+            public void run() {
+                save();
+            }
+        });
+
+        while (true) {
+            try {
+                Thread.sleep(CacheConfiguration.getSnapshotDelay());
+            } catch (InterruptedException e) {
+            }
+
+            save();
+        }
+    }
+
+    /**
+     *
+     */
+    private void save() {
+        try {
+            _snapshot.save(_server.cache());
+        } catch (Exception e) {
+            log.error("snapshot to " + _snapshot.getFile() + " failed: " + e.getMessage());
+        }
+    }
+}
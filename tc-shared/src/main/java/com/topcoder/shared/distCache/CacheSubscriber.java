@@ -0,0 +1,31 @@
+package com.topcoder.shared.distCache;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ *  implemented by clients that keep copies of cached values (a near
+ *  cache on a web node, for example) so that the cache server can tell
+ *  them when those copies are no longer good.  Subscribers register
+ *  through {@link CacheClient#subscribe}.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CachePublisher
+ */
+public interface CacheSubscriber
+        extends Remote {
+    /**
+     *  the given keys were set or removed
+     * @param keys
+     * @throws RemoteException
+     */
+    public void keysChanged(String[] keys)
+            throws RemoteException;
+
+    /**
+     *  the whole cache was cleared
+     * @throws RemoteException
+     */
+    public void cleared()
+            throws RemoteException;
+}
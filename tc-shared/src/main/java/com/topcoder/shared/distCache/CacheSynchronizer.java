@@ -3,8 +3,15 @@ package com.topcoder.shared.distCache;
 import com.topcoder.shared.util.logging.Logger;
 
 import java.rmi.RemoteException;
+import java.util.ArrayList;
 
 /**
+ *  keeps the cache up to date with the peer's by pulling the peer's
+ *  {@link ReplicationLog}.  it remembers the last sequence number it
+ *  applied, so after a lost connection it carries on from there; only
+ *  when the peer no longer has those changes does it copy the whole
+ *  cache over again.
+ *
  * @author orb
  * @version  $Revision: 31146 $
  */
@@ -13,14 +20,33 @@ public class CacheSynchronizer
     private static Logger log = Logger.getLogger(CacheSynchronizer.class);
     CacheServer _server;
     int _delay;
+    int _batch;
+    /** the epoch of the peer's log, 0 until we've read it */
+    long _epoch = 0;
+    /** the next sequence number to read from the peer's log */
+    long _seq = 0;
 
     /**
      *
      * @param server
      */
     public CacheSynchronizer(CacheServer server) {
+        this(server, null);
+    }
+
+    /**
+     *
+     * @param server
+     * @param position where the peer's log was when the cache was copied from it, null if it wasn't
+     */
+    public CacheSynchronizer(CacheServer server, long[] position) {
         _server = server;
         _delay = CacheConfiguration.getSynchronizationDelay();
+        _batch = CacheConfiguration.getSyncBatchSize();
+        if (position != null) {
+            _epoch = position[0];
+            _seq = position[1];
+        }
     }
 
     /**
@@ -44,7 +70,7 @@ public class CacheSynchronizer
     }
 
     /**
-     *
+     *  pull changes until we've caught up
      */
     public void syncUp() {
         Cache cache = _server.cache();
@@ -53,8 +79,6 @@ public class CacheSynchronizer
             return;
         }
 
-
-        log.info("Sync - local size is " + cache.size());
         CacheServerSync remote = _server.getPeer();
 
         if (remote == null) {
@@ -63,17 +87,77 @@ public class CacheSynchronizer
         }
 
         try {
-            CachedValue[] cached = remote.synchronize();
-            boolean cleared = remote.getCleared();
-            log.info("TOSYNC: " + cached.length);
-            if (cleared)
+            long start = _seq;
+            boolean resynced = false;
+            while (true) {
+                ReplicationLog.Batch batch = remote.pull(_epoch, _seq, _batch);
+                if (batch.isResync()) {
+                    if (resynced) {
+                        // we can't keep up, try again next time
+                        log.warn("peer log moved on during resync");
+                        break;
+                    }
+                    resync(cache, remote);
+                    resynced = true;
+                    start = _seq;
+                    continue;
+                }
+                if (batch.getEpoch() != _epoch) {
+                    log.info("peer log started over, reading it from the start");
+                    start = 0;
+                }
+                apply(cache, batch.getEntries());
+                _epoch = batch.getEpoch();
+                _seq = batch.getNext();
+                if (!batch.hasMore()) {
+                    break;
+                }
+            }
+            if (_seq > start) {
+                log.info("Sync - applied " + (_seq - start) + " changes, local size is " + cache.size());
+            }
+        } catch (RemoteException e) {
+            log.error("Error in sync, will resume from " + _seq + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     *  start over from a copy of the peer's cache
+     */
+    private void resync(Cache cache, CacheServerSync remote)
+            throws RemoteException {
+        long time = System.currentTimeMillis();
+        long[] position = remote.getPosition();
+        Cache copy = remote.getCache();
+        ArrayList entries = copy.getEntries();
+        cache.clear();
+        cache.integrateChanges((CachedValue[]) entries.toArray(new CachedValue[entries.size()]));
+        _epoch = position[0];
+        _seq = position[1];
+        log.info("RESYNC: copied " + entries.size() + " values from peer in " +
+                (System.currentTimeMillis() - time) + "ms");
+    }
+
+    /**
+     *  apply changes in order, sets and removes in runs, clears between them
+     */
+    private void apply(Cache cache, ReplicationLog.Entry[] entries) {
+        ArrayList run = new ArrayList(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            if (entries[i].getOp() == ReplicationLog.CLEAR) {
+                integrate(cache, run);
                 cache.clear();
-            else if (cached.length > 0) {
-                cache.integrateChanges(cached);
+            } else {
+                run.add(entries[i].getValue());
             }
+        }
+        integrate(cache, run);
+    }
 
-        } catch (RemoteException e) {
-            log.error("Error in sync: " + e.getMessage());
+    private void integrate(Cache cache, ArrayList values) {
+        if (!values.isEmpty()) {
+            cache.integrateChanges((CachedValue[]) values.toArray(new CachedValue[values.size()]));
+            values.clear();
         }
     }
 
@@ -15,6 +15,13 @@ public class CachedValue
     int _priority = 0;
     long _lastused = 0;
     long _expire = 0;
+    /** when the value was last read, not serialized */
+    transient volatile long _lastaccess = 0;
+    /** the serialized size of the value, 0 if it hasn't been measured.  kept when
+     *  the value goes to a peer so that it doesn't have to be measured again */
+    int _size = 0;
+    /** what the value is about, so it can be removed along with others, null for nothing */
+    String[] _tags = null;
 
     /**
      *  create a cached value for a key/value pair
@@ -62,6 +69,25 @@ public class CachedValue
      */
     public void setValue(Object value) {
         _value = value;
+        _size = 0;
+    }
+
+    /**
+     * Gets the serialized size of the value
+     *
+     * @return the size in bytes, 0 if it hasn't been measured
+     */
+    public int getSize() {
+        return _size;
+    }
+
+    /**
+     * Sets the serialized size of the value
+     *
+     * @param size the size in bytes
+     */
+    public void setSize(int size) {
+        _size = size;
     }
 
     /**
@@ -126,6 +152,53 @@ public class CachedValue
         _lastused = lastused;
     }
 
+    /**
+     * Records that the value was just read
+     */
+    public void touch() {
+        _lastaccess = System.currentTimeMillis();
+    }
+
+    /**
+     *
+     * @return the tags of the value, null if it has none
+     */
+    public String[] getTags() {
+        return _tags;
+    }
+
+    /**
+     *
+     * @param tags
+     */
+    public void setTags(String[] tags) {
+        _tags = tags;
+    }
+
+    /**
+     * Gets when the value was last read, or set if it hasn't been read since
+     *
+     * @return the time in milli
+     */
+    public long getLastAccess() {
+        return Math.max(_lastaccess, _lastused);
+    }
+
+    /**
+     *  a copy to hand to a peer, so that what it gets doesn't change
+     *  when this value is removed
+     * @return
+     */
+    CachedValue copy() {
+        CachedValue copy = new CachedValue(_key, _value, _expire);
+        copy._version = _version;
+        copy._priority = _priority;
+        copy._lastused = _lastused;
+        copy._size = _size;
+        copy._tags = _tags;
+        return copy;
+    }
+
     /**
      *
      * @return
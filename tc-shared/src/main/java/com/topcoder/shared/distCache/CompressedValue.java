@@ -0,0 +1,68 @@
+package com.topcoder.shared.distCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ *  a cached value kept serialized and deflated, to save memory on values
+ *  that are too big to keep as they are.  the cache hands out the
+ *  inflated value, so clients never see this.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see Cache
+ */
+class CompressedValue
+        implements Serializable {
+    private final byte[] _data;
+
+    private CompressedValue(byte[] data) {
+        _data = data;
+    }
+
+    /**
+     *
+     * @param value
+     * @return the compressed value
+     * @throws IOException if the value can't be serialized
+     */
+    static CompressedValue compress(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8192);
+        ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes));
+        out.writeObject(value);
+        out.close();
+        return new CompressedValue(bytes.toByteArray());
+    }
+
+    /**
+     *
+     * @return the value, as it was before it was compressed
+     */
+    Object inflate() {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(_data)));
+            try {
+                return in.readObject();
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("couldn't inflate cached value", e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("couldn't inflate cached value", e);
+        }
+    }
+
+    /**
+     *
+     * @return roughly how many bytes this takes when serialized
+     */
+    int size() {
+        return _data.length + 32;
+    }
+}
@@ -0,0 +1,140 @@
+package com.topcoder.shared.distCache;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ *  maps keys to shards with consistent hashing.  each shard gets a
+ *  number of virtual nodes spread around a ring of ints, and a key
+ *  belongs to the first virtual node at or after its hash.  adding or
+ *  removing a shard only moves the keys of that shard's virtual nodes,
+ *  about 1/n of them, the rest stay where they were.
+ *
+ *  the ring only depends on the shard names and the number of virtual
+ *  nodes, so every client and server built with the same configuration
+ *  agrees on where a key goes.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see ShardedRMIProxy
+ */
+class ConsistentHash {
+    private final int _count;
+    /** sorted positions of the virtual nodes */
+    private final int[] _points;
+    /** the shard of the virtual node at the same index in _points */
+    private final int[] _owners;
+
+    /**
+     *
+     * @param shards the names of the shards
+     * @param vnodes the number of virtual nodes per shard
+     */
+    ConsistentHash(String[] shards, int vnodes) {
+        if (shards.length == 0) {
+            throw new IllegalArgumentException("no shards");
+        }
+        _count = shards.length;
+        // four points from each digest
+        int perShard = (Math.max(vnodes, 1) + 3) / 4 * 4;
+        long[] ring = new long[shards.length * perShard];
+        int n = 0;
+        for (int s = 0; s < shards.length; s++) {
+            for (int i = 0; i < perShard / 4; i++) {
+                byte[] d = md5(shards[s] + "-" + i);
+                for (int j = 0; j < 4; j++) {
+                    int point = ((d[j * 4] & 0xFF) << 24) | ((d[j * 4 + 1] & 0xFF) << 16) |
+                            ((d[j * 4 + 2] & 0xFF) << 8) | (d[j * 4 + 3] & 0xFF);
+                    // point in the high bits, shard in the low ones, so sorting keeps them together
+                    ring[n++] = ((long) point << 32) | s;
+                }
+            }
+        }
+        Arrays.sort(ring);
+        _points = new int[ring.length];
+        _owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            _points[i] = (int) (ring[i] >> 32);
+            _owners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     *
+     * @return the number of shards
+     */
+    int size() {
+        return _count;
+    }
+
+    /**
+     *
+     * @param key
+     * @return the shard the key belongs to
+     */
+    int shardFor(String key) {
+        return _owners[find(hash(key))];
+    }
+
+    /**
+     *  all the shards in the order a key should fall back to them, the
+     *  shard it belongs to first
+     * @param key
+     * @return
+     */
+    int[] shardsFor(String key) {
+        int[] ret = new int[_count];
+        boolean[] seen = new boolean[_count];
+        int found = 0;
+        int start = find(hash(key));
+        for (int i = 0; i < _owners.length && found < _count; i++) {
+            int owner = _owners[(start + i) % _owners.length];
+            if (!seen[owner]) {
+                seen[owner] = true;
+                ret[found++] = owner;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     *  the index of the first virtual node at or after the hash
+     */
+    private int find(int hash) {
+        int i = Arrays.binarySearch(_points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        } else {
+            // several virtual nodes could land on the same point
+            while (i > 0 && _points[i - 1] == hash) {
+                i--;
+            }
+        }
+        return i == _points.length ? 0 : i;
+    }
+
+    /**
+     *  spread the bits of the string hash, it's not good enough by
+     *  itself for keys that only differ at the end
+     */
+    static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static byte[] md5(String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
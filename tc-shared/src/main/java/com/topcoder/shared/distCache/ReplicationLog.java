@@ -0,0 +1,213 @@
+package com.topcoder.shared.distCache;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ *  the changes made to a cache, in order, for a peer to read and apply.
+ *
+ *  every set, remove, expiration and clear is appended with the next
+ *  sequence number.  the log is a ring with a fixed number of entries
+ *  and a limit on the bytes of the values it holds on to; when it's
+ *  full the oldest entries are dropped.  the peer pulls the entries
+ *  after the last sequence it applied, at its own pace, so it can pick
+ *  up where it left off after losing the connection for a while.  if
+ *  what it needs has already been dropped, or the log was started over
+ *  (it has a new epoch), it's told to resync from a copy of the whole
+ *  cache instead.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CacheSynchronizer
+ */
+public class ReplicationLog
+        implements CacheUpdateListener {
+    private static final Logger log = Logger.getLogger(ReplicationLog.class);
+
+    static final byte SET = 1;
+    static final byte REMOVE = 2;
+    static final byte CLEAR = 3;
+
+    /** tells logs that were started over apart */
+    private final long _epoch = new Random().nextLong();
+    private final Entry[] _entries;
+    private final long _maxBytes;
+    /** the sequence number of the next entry */
+    private long _next = 0;
+    private int _count = 0;
+    private long _bytes = 0;
+
+    /**
+     *
+     * @param size     the most entries to keep
+     * @param maxBytes the most bytes of values to keep
+     */
+    public ReplicationLog(int size, long maxBytes) {
+        _entries = new Entry[Math.max(size, 1)];
+        _maxBytes = maxBytes;
+    }
+
+    /**
+     *  a set, or a remove if the value has been emptied
+     * @param value
+     */
+    public void valueUpdated(CachedValue value) {
+        // copy it, the cache will empty the value when it goes
+        CachedValue copy = value.copy();
+        append(new Entry(copy.getValue() == null ? REMOVE : SET, copy));
+    }
+
+    /**
+     *
+     */
+    public void clear() {
+        append(new Entry(CLEAR, null));
+    }
+
+    private synchronized void append(Entry entry) {
+        while (_count > 0 && (_count == _entries.length || _bytes + entry.size() > _maxBytes)) {
+            int oldest = (int) ((_next - _count) % _entries.length);
+            _bytes -= _entries[oldest].size();
+            _entries[oldest] = null;
+            _count--;
+        }
+        entry._seq = _next;
+        _entries[(int) (_next % _entries.length)] = entry;
+        _bytes += entry.size();
+        _next++;
+        _count++;
+    }
+
+    /**
+     *
+     * @return {epoch, the sequence number of the next entry}
+     */
+    public synchronized long[] getPosition() {
+        return new long[]{_epoch, _next};
+    }
+
+    /**
+     *  read the entries from a sequence number on
+     * @param epoch    the epoch of the log the reader was reading, 0 if it hasn't read yet
+     * @param from     the first sequence number to read
+     * @param max      the most entries to return
+     * @param maxBytes roughly the most bytes of values to return
+     * @return the entries, or a batch that says to resync
+     */
+    public synchronized Batch read(long epoch, long from, int max, long maxBytes) {
+        long oldest = _next - _count;
+        if (epoch != _epoch) {
+            // a reader that's new to this log can still read it all if nothing was dropped yet
+            if (oldest > 0) {
+                return new Batch(_epoch, _next, true, new Entry[0], false);
+            }
+            from = 0;
+        } else if (from < oldest || from > _next) {
+            log.info("peer needs " + from + ", log has " + oldest + " to " + _next + " - resync");
+            return new Batch(_epoch, _next, true, new Entry[0], false);
+        }
+        int n = (int) Math.min(max, _next - from);
+        long bytes = 0;
+        int i = 0;
+        for (; i < n && (i == 0 || bytes < maxBytes); i++) {
+            bytes += _entries[(int) ((from + i) % _entries.length)].size();
+        }
+        Entry[] ret = new Entry[i];
+        for (int j = 0; j < i; j++) {
+            ret[j] = _entries[(int) ((from + j) % _entries.length)];
+        }
+        return new Batch(_epoch, from + i, false, ret, from + i < _next);
+    }
+
+    /**
+     *  one change
+     */
+    static class Entry
+            implements Serializable {
+        private long _seq;
+        private final byte _op;
+        private final CachedValue _value;
+
+        private Entry(byte op, CachedValue value) {
+            _op = op;
+            _value = value;
+        }
+
+        long getSeq() {
+            return _seq;
+        }
+
+        byte getOp() {
+            return _op;
+        }
+
+        /**
+         *
+         * @return the value set, or the emptied value removed, null for a clear
+         */
+        CachedValue getValue() {
+            return _value;
+        }
+
+        private int size() {
+            return _value == null ? 0 : _value.getSize();
+        }
+    }
+
+    /**
+     *  what a peer gets back when it reads the log
+     */
+    public static class Batch
+            implements Serializable {
+        private final long _epoch;
+        private final long _next;
+        private final boolean _resync;
+        private final Entry[] _entries;
+        private final boolean _more;
+
+        private Batch(long epoch, long next, boolean resync, Entry[] entries, boolean more) {
+            _epoch = epoch;
+            _next = next;
+            _resync = resync;
+            _entries = entries;
+            _more = more;
+        }
+
+        /**
+         *
+         * @return the epoch of the log
+         */
+        long getEpoch() {
+            return _epoch;
+        }
+
+        /**
+         *
+         * @return the sequence number to read from next time
+         */
+        long getNext() {
+            return _next;
+        }
+
+        /**
+         *
+         * @return true if the reader has to start over from a copy of the cache
+         */
+        boolean isResync() {
+            return _resync;
+        }
+
+        Entry[] getEntries() {
+            return _entries;
+        }
+
+        /**
+         *
+         * @return whether there are more entries to read right away
+         */
+        boolean hasMore() {
+            return _more;
+        }
+    }
+}
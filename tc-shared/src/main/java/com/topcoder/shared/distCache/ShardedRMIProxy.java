@@ -0,0 +1,558 @@
+package com.topcoder.shared.distCache;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *  spreads the keys of a CacheClient over several shards.  each key
+ *  goes to the shard the {@link ConsistentHash} ring gives it; each
+ *  shard is itself usually a {@link GenericRMIProxy} over a primary and
+ *  a replica.
+ *
+ *  a shard that can't be reached is skipped for a while and its keys go
+ *  to the next shard on the ring, which starts out without them and
+ *  fills up as they get set again.  the keys set there are remembered, and
+ *  taken out of it once both shards are up again, so that the copies left
+ *  there aren't served the next time the shard they belong to goes down.
+ *  until then removes go to both.  the batch operations make one call
+ *  per shard involved.  operations that aren't about one key (clearCache,
+ *  getKeys, size, subscribe, invalidateByTag...) go to every shard and the
+ *  results are put together.  the invalidations (clearCache, invalidateByTag,
+ *  invalidateByPrefix) a shard misses while it's down are made when it's back.
+ *
+ *  @version  $Revision: 85038 $
+ *  @see CacheClientFactory
+ */
+public class ShardedRMIProxy
+        implements InvocationHandler {
+    private static Logger log = Logger.getLogger(ShardedRMIProxy.class);
+    static final int RETRY_DELAY = 10000;
+    /** the most keys set on the wrong shard to remember */
+    static final int MAX_STRAYS = 100000;
+    /** the most invalidations to remember for a shard, past that it's cleared instead */
+    static final int MAX_MISSED = 1000;
+
+    private final String[] _names;
+    private final CacheClient[] _shards;
+    private final ConsistentHash _ring;
+    /** when each shard may be tried again, 0 if it's up */
+    private final AtomicLongArray _downUntil;
+    /** keys set while the shard they belong to was down, and the shard they were set on */
+    private final ConcurrentHashMap<String, Integer> _strays = new ConcurrentHashMap<String, Integer>();
+    /** 1 for the shards that got more strays than we could remember, they get cleared instead */
+    private final AtomicIntegerArray _strayOverflow;
+    /** the invalidations each shard missed while it was down */
+    private final List<List<Invocation>> _missed;
+
+    /**
+     *
+     * @param names  the names of the shards, they decide where keys go
+     * @param shards the client for each shard
+     * @param vnodes the number of virtual nodes per shard
+     */
+    public ShardedRMIProxy(String[] names, CacheClient[] shards, int vnodes) {
+        _names = names;
+        _shards = shards;
+        _ring = new ConsistentHash(names, vnodes);
+        _downUntil = new AtomicLongArray(shards.length);
+        _strayOverflow = new AtomicIntegerArray(shards.length);
+        _missed = new ArrayList<List<Invocation>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            _missed.add(new ArrayList<Invocation>());
+        }
+    }
+
+    /**
+     *  create a CacheClient that spreads keys over the given shards
+     * @param names
+     * @param shards
+     * @param vnodes
+     * @return
+     */
+    public static CacheClient create(String[] names, CacheClient[] shards, int vnodes) {
+        Class iface = CacheClient.class;
+        return (CacheClient) Proxy.newProxyInstance(
+                iface.getClassLoader(),
+                new Class[]{iface},
+                new ShardedRMIProxy(names, shards, vnodes));
+    }
+
+    /**
+     *  invoke a method on the shard(s) it's for
+     * @param proxy
+     * @param method
+     * @param args
+     * @return
+     * @throws Throwable
+     */
+    public Object invoke(Object proxy, Method method, Object[] args)
+            throws Throwable {
+        if (method.getDeclaringClass() == Object.class) {
+            if (method.getName().equals("equals")) {
+                return Boolean.valueOf(proxy == args[0]);
+            }
+            return method.invoke(this, args);
+        }
+        String name = method.getName();
+        if (name.equals("getAll")) {
+            return getAll((Collection) args[0]);
+        } else if (name.equals("setAll") || name.equals("removeAll")) {
+            batch(method, args);
+            return null;
+        } else if (args != null && args.length > 0 && args[0] instanceof String) {
+            return route((String) args[0], method, args);
+        } else {
+            return broadcast(method, args);
+        }
+    }
+
+    /**
+     *  the shard a key goes to right now, the one it belongs to unless
+     *  that one is down
+     * @param key
+     * @return
+     */
+    int shardFor(String key) {
+        int shard = _ring.shardFor(key);
+        if (isUp(shard)) {
+            return shard;
+        }
+        int[] order = _ring.shardsFor(key);
+        for (int i = 1; i < order.length; i++) {
+            if (isUp(order[i])) {
+                return order[i];
+            }
+        }
+        // everything is down, might as well try the right one
+        return shard;
+    }
+
+    private boolean isUp(int shard) {
+        long until = _downUntil.get(shard);
+        return until == 0 || until < System.currentTimeMillis();
+    }
+
+    private void markDown(int shard, Throwable t) {
+        log.warn("cache shard " + _names[shard] + " is down: " + t.getMessage());
+        _downUntil.set(shard, System.currentTimeMillis() + RETRY_DELAY);
+    }
+
+    private void markUp(int shard) {
+        long until = _downUntil.get(shard);
+        if (until != 0 && _downUntil.compareAndSet(shard, until, 0)) {
+            log.info("cache shard " + _names[shard] + " is back");
+            replayMissed(shard);
+            purgeStrays();
+        }
+    }
+
+    /**
+     *  remember that a key was set on a shard other than its own
+     */
+    private void addStray(String key, int shard) {
+        if (shard == _ring.shardFor(key)) {
+            return;
+        }
+        if (_strays.size() < MAX_STRAYS) {
+            _strays.put(key, new Integer(shard));
+        } else if (_strayOverflow.getAndSet(shard, 1) == 0) {
+            log.warn("too many keys set on cache shard " + _names[shard] + " while their shards are down, " +
+                    "it will be cleared when they're back");
+        }
+    }
+
+    /**
+     *  take the keys set on the wrong shard out of it, if the shard they
+     *  belong to takes writes again and the one they were set on can be reached.
+     *  they're taken out of the shard they belong to as well, what it had from
+     *  before it went down is older than what was set meanwhile.
+     */
+    private void purgeStrays() {
+        boolean allUp = true;
+        for (int shard = 0; shard < _shards.length; shard++) {
+            allUp &= _downUntil.get(shard) == 0;
+        }
+        Map<Integer, List> byShard = new HashMap<Integer, List>();
+        Map<Integer, List> byOwner = new HashMap<Integer, List>();
+        for (Map.Entry<String, Integer> e : _strays.entrySet()) {
+            int owner = _ring.shardFor(e.getKey());
+            if (_downUntil.get(owner) == 0 && _downUntil.get(e.getValue().intValue()) == 0) {
+                group(byShard, e.getValue(), e.getKey());
+                group(byOwner, new Integer(owner), e.getKey());
+            }
+        }
+        for (Map.Entry<Integer, List> e : byOwner.entrySet()) {
+            try {
+                _shards[e.getKey().intValue()].removeAll(e.getValue());
+            } catch (Exception ex) {
+                // at worst a value from before it went down, until it's set again
+                log.warn("couldn't remove the keys set elsewhere while cache shard " + _names[e.getKey().intValue()] +
+                        " was down: " + ex.getMessage());
+            }
+        }
+        for (Map.Entry<Integer, List> e : byShard.entrySet()) {
+            try {
+                _shards[e.getKey().intValue()].removeAll(e.getValue());
+                for (Object key : e.getValue()) {
+                    _strays.remove(key, e.getKey());
+                }
+                log.info("removed " + e.getValue().size() + " keys set on cache shard " + _names[e.getKey().intValue()] +
+                        " while their shards were down");
+            } catch (Exception ex) {
+                // try again when a shard comes back next
+                log.warn("couldn't remove the keys set on cache shard " + _names[e.getKey().intValue()] +
+                        " while their shards were down: " + ex.getMessage());
+            }
+        }
+        if (allUp) {
+            // we don't know which keys they were
+            for (int shard = 0; shard < _shards.length; shard++) {
+                if (_strayOverflow.get(shard) == 1) {
+                    try {
+                        _shards[shard].clearCache();
+                        _strayOverflow.set(shard, 0);
+                    } catch (Exception ex) {
+                        log.warn("couldn't clear cache shard " + _names[shard] + ": " + ex.getMessage());
+                    }
+                }
+            }
+        }
+    }
+
+    private static void group(Map<Integer, List> groups, Integer shard, Object key) {
+        List keys = groups.get(shard);
+        if (keys == null) {
+            keys = new ArrayList();
+            groups.put(shard, keys);
+        }
+        keys.add(key);
+    }
+
+    /**
+     *  remember an invalidation a shard missed
+     */
+    private void addMissed(int shard, Method method, Object[] args) {
+        List<Invocation> missed = _missed.get(shard);
+        synchronized (missed) {
+            if (method.getName().equals("clearCache") || missed.size() >= MAX_MISSED) {
+                // clearing makes up for everything
+                missed.clear();
+                try {
+                    missed.add(new Invocation(CacheClient.class.getMethod("clearCache", new Class[0]), new Object[0]));
+                } catch (NoSuchMethodException e) {
+                    throw new IllegalStateException(e.getMessage());
+                }
+            } else if (missed.isEmpty() || !missed.get(0).method.getName().equals("clearCache")) {
+                missed.add(new Invocation(method, args));
+            }
+        }
+    }
+
+    /**
+     *  make the invalidations a shard missed while it was down
+     */
+    private void replayMissed(int shard) {
+        List<Invocation> missed = _missed.get(shard);
+        List<Invocation> todo;
+        synchronized (missed) {
+            todo = new ArrayList<Invocation>(missed);
+            missed.clear();
+        }
+        for (int i = 0; i < todo.size(); i++) {
+            Invocation invocation = todo.get(i);
+            try {
+                invocation.method.invoke(_shards[shard], invocation.args);
+            } catch (Exception e) {
+                log.warn("couldn't make the invalidations cache shard " + _names[shard] + " missed: " + e.getMessage());
+                synchronized (missed) {
+                    // before anything missed meanwhile
+                    missed.addAll(0, todo.subList(i, todo.size()));
+                }
+                return;
+            }
+        }
+        if (!todo.isEmpty()) {
+            log.info("made " + todo.size() + " invalidations cache shard " + _names[shard] + " missed");
+        }
+    }
+
+    private static boolean isInvalidation(Method method) {
+        String name = method.getName();
+        return name.equals("clearCache") || name.equals("invalidateByTag") || name.equals("invalidateByPrefix");
+    }
+
+    /**
+     *  call the method on one shard
+     * @return the result
+     * @throws RemoteException if the shard can't be reached, after it's marked down
+     */
+    private Object call(int shard, Method method, Object[] args)
+            throws Throwable {
+        try {
+            Object ret = method.invoke(_shards[shard], args);
+            markUp(shard);
+            return ret;
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RemoteException) {
+                markDown(shard, cause);
+            }
+            throw cause;
+        }
+    }
+
+    private Object route(String key, Method method, Object[] args)
+            throws Throwable {
+        boolean set = method.getName().startsWith("set");
+        if (method.getName().equals("remove")) {
+            removeStray(key, method, args);
+        }
+        RemoteException last = null;
+        int previous = -1;
+        for (int i = 0; i < _shards.length; i++) {
+            int shard = shardFor(key);
+            if (shard == previous) {
+                // nowhere else to go
+                break;
+            }
+            try {
+                Object ret = call(shard, method, args);
+                if (set) {
+                    addStray(key, shard);
+                }
+                return ret;
+            } catch (RemoteException e) {
+                last = e;
+                previous = shard;
+            }
+        }
+        throw last;
+    }
+
+    /**
+     *  remove a key from the shard it was set on while its own was down
+     */
+    private void removeStray(String key, Method method, Object[] args) {
+        Integer shard = _strays.get(key);
+        if (shard != null && shard.intValue() != shardFor(key)) {
+            try {
+                call(shard.intValue(), method, args);
+                _strays.remove(key, shard);
+            } catch (Throwable t) {
+                // it's taken out when the shards are back
+            }
+        }
+    }
+
+    private Object broadcast(Method method, Object[] args)
+            throws Throwable {
+        Class type = method.getReturnType();
+        Object ret = null;
+        int sum = 0;
+        boolean any = false;
+        ArrayList list = new ArrayList();
+        Map<Object, long[]> usage = new HashMap<Object, long[]>();
+        RemoteException last = null;
+        int reached = 0;
+        boolean anyUp = false;
+        for (int shard = 0; shard < _shards.length; shard++) {
+            anyUp |= isUp(shard);
+        }
+        for (int shard = 0; shard < _shards.length; shard++) {
+            if (anyUp && !isUp(shard)) {
+                if (isInvalidation(method)) {
+                    addMissed(shard, method, args);
+                }
+                continue;
+            }
+            try {
+                Object o = call(shard, method, args);
+                reached++;
+                if (o instanceof Integer) {
+                    sum += ((Integer) o).intValue();
+                } else if (o instanceof Boolean) {
+                    any |= ((Boolean) o).booleanValue();
+                } else if (o instanceof Collection) {
+                    list.addAll((Collection) o);
+                } else if (o instanceof Map) {
+                    // memory usage, add up the counts of each prefix
+                    for (Object e : ((Map) o).entrySet()) {
+                        Map.Entry entry = (Map.Entry) e;
+                        long[] add = (long[]) entry.getValue();
+                        long[] total = usage.get(entry.getKey());
+                        if (total == null) {
+                            usage.put(entry.getKey(), add.clone());
+                        } else {
+                            for (int i = 0; i < total.length; i++) {
+                                total[i] += add[i];
+                            }
+                        }
+                    }
+                } else if (o != null) {
+                    ret = o;
+                }
+            } catch (RemoteException e) {
+                last = e;
+                if (isInvalidation(method)) {
+                    addMissed(shard, method, args);
+                }
+            }
+        }
+        if (reached == 0 && last != null) {
+            throw last;
+        }
+        if (type == Integer.TYPE) {
+            return new Integer(sum);
+        } else if (type == Boolean.TYPE) {
+            return Boolean.valueOf(any);
+        } else if (Collection.class.isAssignableFrom(type)) {
+            return list;
+        } else if (Map.class.isAssignableFrom(type)) {
+            return usage;
+        }
+        return ret;
+    }
+
+    /**
+     *  split keys up by the shard they go to
+     */
+    private Map<Integer, List> split(Collection keys) {
+        Map<Integer, List> ret = new HashMap<Integer, List>();
+        for (Iterator it = keys.iterator(); it.hasNext();) {
+            Object key = it.next();
+            Integer shard = new Integer(shardFor((String) key));
+            List l = ret.get(shard);
+            if (l == null) {
+                l = new ArrayList();
+                ret.put(shard, l);
+            }
+            l.add(key);
+        }
+        return ret;
+    }
+
+    private Map getAll(Collection keys)
+            throws Throwable {
+        Method getAll = CacheClient.class.getMethod("getAll", new Class[]{Collection.class});
+        Map ret = new HashMap();
+        Collection todo = keys;
+        RemoteException last = null;
+        // keys of a shard that turns out to be down go around again, to the next shard
+        for (int i = 0; i < _shards.length && !todo.isEmpty(); i++) {
+            List failed = new ArrayList();
+            for (Map.Entry<Integer, List> e : split(todo).entrySet()) {
+                try {
+                    ret.putAll((Map) call(e.getKey().intValue(), getAll, new Object[]{e.getValue()}));
+                } catch (RemoteException re) {
+                    last = re;
+                    failed.addAll(e.getValue());
+                }
+            }
+            todo = failed;
+        }
+        if (!todo.isEmpty()) {
+            throw last;
+        }
+        return ret;
+    }
+
+    /**
+     *  setAll(Map, long) or removeAll(Collection)
+     */
+    private void batch(Method method, Object[] args)
+            throws Throwable {
+        boolean set = method.getName().equals("setAll");
+        Map values = set ? (Map) args[0] : null;
+        Collection todo = set ? values.keySet() : (Collection) args[0];
+        if (!set) {
+            removeStrays(todo);
+        }
+        RemoteException last = null;
+        for (int i = 0; i < _shards.length && !todo.isEmpty(); i++) {
+            List failed = new ArrayList();
+            for (Map.Entry<Integer, List> e : split(todo).entrySet()) {
+                Object[] shardArgs;
+                if (set) {
+                    Map part = new HashMap();
+                    for (Object key : e.getValue()) {
+                        part.put(key, values.get(key));
+                    }
+                    shardArgs = new Object[]{part, args[1]};
+                } else {
+                    shardArgs = new Object[]{e.getValue()};
+                }
+                try {
+                    call(e.getKey().intValue(), method, shardArgs);
+                    if (set) {
+                        for (Object key : e.getValue()) {
+                            addStray((String) key, e.getKey().intValue());
+                        }
+                    }
+                } catch (RemoteException re) {
+                    last = re;
+                    failed.addAll(e.getValue());
+                }
+            }
+            todo = failed;
+        }
+        if (!todo.isEmpty()) {
+            throw last;
+        }
+    }
+
+    /**
+     *  remove keys from the shards they were set on while their own were down
+     */
+    private void removeStrays(Collection keys) throws NoSuchMethodException {
+        Method removeAll = CacheClient.class.getMethod("removeAll", new Class[]{Collection.class});
+        Map<Integer, List> byShard = new HashMap<Integer, List>();
+        for (Object key : keys) {
+            Integer shard = _strays.get(key);
+            if (shard != null && shard.intValue() != shardFor((String) key)) {
+                List l = byShard.get(shard);
+                if (l == null) {
+                    l = new ArrayList();
+                    byShard.put(shard, l);
+                }
+                l.add(key);
+            }
+        }
+        for (Map.Entry<Integer, List> e : byShard.entrySet()) {
+            try {
+                call(e.getKey().intValue(), removeAll, new Object[]{e.getValue()});
+                for (Object key : e.getValue()) {
+                    _strays.remove(key, e.getKey());
+                }
+            } catch (Throwable t) {
+                // they're taken out when the shards are back
+            }
+        }
+    }
+
+    /**
+     *  a call to make later
+     */
+    private static class Invocation {
+        private final Method method;
+        private final Object[] args;
+
+        private Invocation(Method method, Object[] args) {
+            this.method = method;
+            this.args = args;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package com.topcoder.shared.distCache;
 
+import java.util.Random;
+
 /**
  * @author orb
  * @version  $Revision: 31146 $
@@ -10,6 +12,23 @@ public class TimeIt {
      * @param args
      */
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-threads")) {
+            int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+            for (int threads = 1; threads <= 64; threads *= 2) {
+                System.out.println("[" + threads + " threads] " + throughput(threads, seconds * 1000) + " ops/s");
+            }
+            return;
+        }
+
+        if (args.length > 0 && args[0].equals("-shards")) {
+            int max = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+            boolean rmi = args.length > 2 && args[2].equals("-rmi");
+            for (int shards = 1; shards <= max; shards++) {
+                System.out.println("[" + shards + " shards] " + sharded(shards, rmi, 5000));
+            }
+            return;
+        }
+
         int[] times = {10000};
 
         if (args.length > 0) {
@@ -63,5 +82,123 @@ public class TimeIt {
         return current;
     }
 
+    /**
+     *  run gets and sets (9 to 1) against a full cache from several threads
+     * @param threads the number of threads
+     * @param total   how long to run, in milli
+     * @return the operations per second
+     */
+    static long throughput(int threads, final int total) {
+        final int keys = 50000;
+        final Cache cache = new Cache(keys);
+        for (int i = 0; i < keys; i++) {
+            cache.update("key." + i, new Integer(i), i % 7 + 1, System.currentTimeMillis(), 600000);
+        }
+
+        final long[] counts = new long[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int index = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    Random random = new Random(index);
+                    long end = System.currentTimeMillis() + total;
+                    long count = 0;
+                    while ((count & 1023) != 0 || System.currentTimeMillis() < end) {
+                        // a few more keys than fit, so sets evict
+                        int i = random.nextInt(keys + keys / 10);
+                        if (random.nextInt(10) == 0) {
+                            cache.update("key." + i, new Integer(i), i % 7 + 1, System.currentTimeMillis(), 600000);
+                        } else {
+                            cache.get("key." + i);
+                        }
+                        count++;
+                    }
+                    counts[index] = count;
+                }
+            };
+        }
+        long start = System.currentTimeMillis();
+        for (Thread worker : workers) {
+            worker.start();
+        }
+        long ops = 0;
+        for (int t = 0; t < threads; t++) {
+            try {
+                workers[t].join();
+            } catch (InterruptedException e) {
+            }
+            ops += counts[t];
+        }
+        return ops * 1000 / Math.max(1, System.currentTimeMillis() - start);
+    }
 
+    /**
+     *  read through a sharded client, setting whatever is missing, with
+     *  each shard holding at most 10000 values and 100000 keys in use,
+     *  most reads going to a small part of them.  the shards are in this
+     *  jvm, reached directly or through rmi over loopback.
+     * @param count  the number of shards
+     * @param rmi    whether to go through rmi
+     * @param total  how long to run, in milli
+     * @return throughput, hit rate and how many keys moved compared to one shard less
+     */
+    static String sharded(int count, boolean rmi, int total) {
+        final int keys = 100000;
+        String[] names = new String[count];
+        CacheClient[] shards = new CacheClient[count];
+        SimpleCacheClientImpl[] servers = new SimpleCacheClientImpl[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                names[i] = "localhost:" + (8501 + i);
+                servers[i] = new SimpleCacheClientImpl(10000);
+                shards[i] = rmi ? (CacheClient) java.rmi.server.UnicastRemoteObject.exportObject(servers[i], 0) : servers[i];
+            }
+            CacheClient client = ShardedRMIProxy.create(names, shards, CacheConfiguration.getVirtualNodes());
+
+            Random random = new Random(count);
+            long hits = 0;
+            long gets = 0;
+            long end = System.currentTimeMillis() + total;
+            long start = System.currentTimeMillis();
+            while ((gets & 255) != 0 || System.currentTimeMillis() < end) {
+                // squaring skews the reads towards the low keys
+                double d = random.nextDouble();
+                String key = "key." + (int) (d * d * keys);
+                if (client.get(key) == null) {
+                    client.set(key, key, 600000);
+                } else {
+                    hits++;
+                }
+                gets++;
+            }
+            long elapsed = Math.max(1, System.currentTimeMillis() - start);
+
+            int moved = 0;
+            if (count > 1) {
+                String[] fewer = new String[count - 1];
+                System.arraycopy(names, 0, fewer, 0, fewer.length);
+                ConsistentHash before = new ConsistentHash(fewer, CacheConfiguration.getVirtualNodes());
+                ConsistentHash after = new ConsistentHash(names, CacheConfiguration.getVirtualNodes());
+                for (int i = 0; i < keys; i++) {
+                    if (before.shardFor("key." + i) != after.shardFor("key." + i)) {
+                        moved++;
+                    }
+                }
+            }
+            return (gets * 1000 / elapsed) + " gets/s, hit rate " + (hits * 100 / gets) + "%, size " +
+                    client.size() + ", " + (moved * 100 / keys) + "% of keys moved";
+        } catch (java.rmi.RemoteException e) {
+            return "failed: " + e.getMessage();
+        } finally {
+            if (rmi) {
+                for (int i = 0; i < count; i++) {
+                    try {
+                        java.rmi.server.UnicastRemoteObject.unexportObject(servers[i], true);
+                    } catch (Exception e) {
+                    }
+                }
+            }
+        }
+    }
 }
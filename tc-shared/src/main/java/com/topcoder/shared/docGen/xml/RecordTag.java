@@ -1,5 +1,8 @@
 package com.topcoder.shared.docGen.xml;
 
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
 import java.util.*;
 
 /**
@@ -156,6 +159,43 @@ public class RecordTag extends Tag {
         return retVal.toString();
     }
 
+    /**
+     * Sends the document getXML() would write to the handler as SAX events,
+     * so it can be transformed without building and parsing the string.
+     *
+     * @param handler
+     * @throws SAXException
+     */
+    public void toSAX(ContentHandler handler) throws SAXException {
+        handler.startDocument();
+        toSAXProlog(handler);
+        toSAXElement(handler, true);
+        handler.endDocument();
+    }
+
+    /**
+     * Sends what comes before the root element in getXML(), nothing here.
+     *
+     * @param handler
+     * @throws SAXException
+     */
+    protected void toSAXProlog(ContentHandler handler) throws SAXException {
+    }
+
+    void toSAX(ContentHandler handler, boolean filter) throws SAXException {
+        toSAXElement(handler, filter);
+        handler.characters(NEWLINE, 0, 1);
+    }
+
+    private void toSAXElement(ContentHandler handler, boolean filter) throws SAXException {
+        handler.startElement("", this.name, this.name, NO_ATTRIBUTES);
+        handler.characters(NEWLINE, 0, 1);
+        for (int i = 0; i < elementList.size(); i++) {
+            ((Tag) elementList.get(i)).toSAX(handler, filter);
+        }
+        handler.endElement("", this.name, this.name);
+    }
+
     private String createOffset(int offSet) {
         StringBuffer offSetString = new StringBuffer();
         try {
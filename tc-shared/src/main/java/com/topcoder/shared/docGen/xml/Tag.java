@@ -1,7 +1,15 @@
 package com.topcoder.shared.docGen.xml;
 
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
 abstract class Tag {
 
+    static final Attributes NO_ATTRIBUTES = new AttributesImpl();
+    static final char[] NEWLINE = {'\n'};
+
     abstract String getXML();
 
     abstract String getXML(int offSet);
@@ -10,4 +18,14 @@ abstract class Tag {
 
     abstract String getXML(boolean filter, int offSet);
 
+    /**
+     * Sends the same elements and text as getXML(filter) would write
+     * to the handler as SAX events.
+     *
+     * @param handler
+     * @param filter
+     * @throws SAXException
+     */
+    abstract void toSAX(ContentHandler handler, boolean filter) throws SAXException;
+
 }
@@ -1,5 +1,8 @@
 package com.topcoder.shared.docGen.xml;
 
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
+
 import java.text.FieldPosition;
 import java.text.SimpleDateFormat;
 
@@ -241,6 +244,22 @@ public final class ValueTag extends Tag {
         }
     }
 
+    /**
+     *
+     * @param handler
+     * @param filterOn
+     * @throws SAXException
+     */
+    final void toSAX(ContentHandler handler, boolean filterOn) throws SAXException {
+        handler.startElement("", this.name, this.name, NO_ATTRIBUTES);
+        if (this.value != null) {
+            String text = filterOn ? filterControlChars(this.value) : this.value;
+            handler.characters(text.toCharArray(), 0, text.length());
+        }
+        handler.endElement("", this.name, this.name);
+        handler.characters(NEWLINE, 0, 1);
+    }
+
     /**
      *
      * @param filterOn
@@ -338,5 +357,31 @@ public final class ValueTag extends Tag {
         }
     }
 
+    /**
+     * Replaces the characters filterChars() does when filtering, without
+     * escaping markup, for text that isn't parsed.
+     *
+     * @param str
+     * @return
+     */
+    private static String filterControlChars(String str) {
+        StringBuffer buffer = null;
+        for (int i = 0; i < str.length(); i++) {
+            int thisCode = (int) str.charAt(i);
+            if ((thisCode > 31 && thisCode < 127) || thisCode == 9 || thisCode == 10 || thisCode == 13) {
+                if (buffer != null) {
+                    buffer.append((char) thisCode);
+                }
+            } else {
+                if (buffer == null) {
+                    buffer = new StringBuffer(str.length() + 16);
+                    buffer.append(str.substring(0, i));
+                }
+                buffer.append("[\\u").append(thisCode).append("]");
+            }
+        }
+        return buffer == null ? str : buffer.toString();
+    }
+
 }
 
@@ -1,5 +1,7 @@
 package com.topcoder.shared.docGen.xml;
 
+import org.xml.sax.ContentHandler;
+import org.xml.sax.SAXException;
 
 /**
  * @author Steve Burrows
@@ -46,6 +48,10 @@ public final class XMLDocument extends RecordTag {
     }
 
 
+    protected void toSAXProlog(ContentHandler handler) throws SAXException {
+        handler.processingInstruction("cocoon-process", "type=\"xslt\"");
+    }
+
     /**
      *
      * @param offSet
@@ -1,14 +1,19 @@
 package com.topcoder.shared.docGen.xml.xsl;
 
-import com.topcoder.shared.distCache.Cache;
 import com.topcoder.shared.util.logging.Logger;
 
 import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * XSLTransformerCache.java
  * <p/>
  * Description: A Singleton Cache for XSLTransformerWrappers
+ * <p/>
+ * The wrappers are thread-safe, so a cached one is handed to every thread
+ * that asks for it.  A wrapper is compiled again when its file changes.
  *
  * @author Steve Burrows (chuck)
  * @version 1.0
@@ -16,16 +21,15 @@ import java.io.FileNotFoundException;
 
 public class XSLTransformerCache {
 
-    private static Cache cache = null;
-    private static final int DEFAULT_EXPIRE_TIME = 1000 * 60 * 60 * 6;  //cache em for 6 hours
     private static final int MAX_CACHE_SIZE = 100;
-    private static XSLTransformerCache xslTransformerCache = null;
+    private static final XSLTransformerCache xslTransformerCache = new XSLTransformerCache();
     private static Logger log = Logger.getLogger(XSLTransformerCache.class);
 
+    private final Map<String, Entry> cache = new ConcurrentHashMap<String, Entry>();
+
 
     /* Singleton -- the constructor is private, must use getInstance. */
     private XSLTransformerCache() {
-        cache = new Cache(MAX_CACHE_SIZE);
     }
 
 
@@ -35,14 +39,14 @@ public class XSLTransformerCache {
      * @return
      */
     public static XSLTransformerCache getInstance() {
-        if (xslTransformerCache == null) xslTransformerCache = new XSLTransformerCache();
         return xslTransformerCache;
     }
 
 
     /**
      * Get the XSLTransformerWrapper indicated by the cacheKey.
-     * If the XSLTransformerWrapper does not exist in the cache, it is created and put in the cache.
+     * If the XSLTransformerWrapper does not exist in the cache, or its file has changed,
+     * it is created and put in the cache.
      * This method artificially requires that the cacheKey be the path/filename of the xsl template
      * this is not strictly necessary, but we would need another method taking both a key and
      * a template stream.
@@ -53,27 +57,49 @@ public class XSLTransformerCache {
      */
     public XSLTransformerWrapper getXSLTransformerWrapper(String fileName)
             throws Exception {
-        log.debug("XSLTransformerCache.getXSLTransformerWrapper for " + fileName);
-        XSLTransformerWrapper result = null;
         if (fileName == null) throw new Exception("The file name can not be null.");
-        result = (XSLTransformerWrapper) (cache.get(fileName));
-        if (result == null) {
-            java.io.File file = new java.io.File(fileName);
-            if (!file.exists()) throw new FileNotFoundException("Unable to find file " + fileName + ".");
-            result = new XSLTransformerWrapper(file);
+        Entry entry = cache.get(fileName);
+        if (entry != null && !entry.wrapper.isModified()) {
+            entry.lastUsed = System.currentTimeMillis();
+            return entry.wrapper;
+        }
+
+        java.io.File file = new java.io.File(fileName);
+        if (!file.exists()) {
+            cache.remove(fileName);
+            throw new FileNotFoundException("Unable to find file " + fileName + ".");
         }
-        log.debug("adding " + fileName + " to cache.");
-        cache.update(fileName, result, DEFAULT_EXPIRE_TIME);
+        log.debug("compiling " + fileName + (entry == null ? "" : ", it has changed"));
+        XSLTransformerWrapper result = new XSLTransformerWrapper(file);
+        if (entry == null && cache.size() >= MAX_CACHE_SIZE) {
+            removeLeastRecentlyUsed();
+        }
+        cache.put(fileName, new Entry(result));
         log.debug("cache size is now: " + cache.size());
         return result;
     }
 
+    private void removeLeastRecentlyUsed() {
+        String oldest = null;
+        long oldestUse = Long.MAX_VALUE;
+        for (Iterator<Map.Entry<String, Entry>> it = cache.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<String, Entry> e = it.next();
+            if (e.getValue().lastUsed < oldestUse) {
+                oldest = e.getKey();
+                oldestUse = e.getValue().lastUsed;
+            }
+        }
+        if (oldest != null) {
+            cache.remove(oldest);
+        }
+    }
+
 
     /**
      * Remove all XSLTransformerWrapper instances from the cache.
      */
     public void clear() throws Exception {
-        cache.clearCache();
+        cache.clear();
     }
 
     /**
@@ -86,4 +112,13 @@ public class XSLTransformerCache {
     }
 
 
+    private static class Entry {
+        private final XSLTransformerWrapper wrapper;
+        private volatile long lastUsed = System.currentTimeMillis();
+
+        private Entry(XSLTransformerWrapper wrapper) {
+            this.wrapper = wrapper;
+        }
+    }
+
 }
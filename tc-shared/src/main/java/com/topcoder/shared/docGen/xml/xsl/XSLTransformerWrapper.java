@@ -1,6 +1,10 @@
 package com.topcoder.shared.docGen.xml.xsl;
 
+import com.topcoder.shared.docGen.xml.RecordTag;
+
 import javax.xml.transform.*;
+import javax.xml.transform.sax.SAXTransformerFactory;
+import javax.xml.transform.sax.TransformerHandler;
 import javax.xml.transform.stream.StreamResult;
 import javax.xml.transform.stream.StreamSource;
 import java.io.*;
@@ -17,20 +21,37 @@ import org.apache.xml.utils.WrappedRuntimeException;
  *
  * Description: Wrapper class for rendering an XML data source using an XSL template.
  *
+ * The template is compiled once into a javax.xml.transform.Templates object,
+ * which is thread-safe, and every transformation gets a transformer of its own
+ * from it, so one wrapper can be used by any number of threads at once.
+ *
  * @author  James Lee (jameslee@cs.stanford.edu)
  * @version  $Revision: 31146 $
  *
  */
 public class XSLTransformerWrapper {
     /**
-     * The actual transformer object that is being wrapped
+     * The compiled template the transformers are created from
+     */
+    protected Templates templates;
+
+    /**
+     * The factory that compiled the template, for transforming SAX events
+     */
+    private TransformerFactory transformerFactory;
+
+    /**
+     * The file the template was read from, null if it came from a stream
      */
-    protected Transformer transformer;
+    private File xslFile;
 
     /**
-     * Creates a transformer with the specified XSL template.  Internally,
-     * a javax.xml.transform.Transformer object is created, and that's
-     * used for the actual XSL transformations.
+     * When the file was last modified, as of reading it
+     */
+    private long lastModified;
+
+    /**
+     * Compiles the specified XSL template.
      *
      * @param xslInputStream  the input stream containing the XSL template
      * @throws Exception
@@ -38,10 +59,10 @@ public class XSLTransformerWrapper {
     public XSLTransformerWrapper(InputStream xslInputStream)
             throws Exception {
         try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            this.transformerFactory = TransformerFactory.newInstance();
             Source xslSource = new StreamSource(xslInputStream);
 
-            this.transformer = transformerFactory.newTransformer(xslSource);
+            this.templates = transformerFactory.newTemplates(xslSource);
         } catch (TransformerConfigurationException e) {
             throw e;
         }
@@ -49,9 +70,8 @@ public class XSLTransformerWrapper {
 
 
     /**
-     * Creates a transformer with the specified XSL template.  Internally,
-     * a javax.xml.transform.Transformer object is created, and that's
-     * used for the actual XSL transformations.
+     * Compiles the specified XSL template, and remembers when the file
+     * was modified so that isModified() can tell when it changes.
      *
      * @param xslFile  the input file containing the XSL template
      * @throws Exception
@@ -59,10 +79,12 @@ public class XSLTransformerWrapper {
     public XSLTransformerWrapper(File xslFile)
             throws Exception {
         try {
-            TransformerFactory transformerFactory = TransformerFactory.newInstance();
+            this.xslFile = xslFile;
+            this.lastModified = xslFile.lastModified();
+            this.transformerFactory = TransformerFactory.newInstance();
             Source xslSource = new StreamSource(xslFile);
 
-            this.transformer = transformerFactory.newTransformer(xslSource);
+            this.templates = transformerFactory.newTemplates(xslSource);
         } catch (TransformerConfigurationException e) {
             //killing most of the stack trace cuz it's just too much
             //and not very informative.
@@ -75,6 +97,16 @@ public class XSLTransformerWrapper {
         }
     }
 
+    /**
+     * Whether the template file has changed since it was compiled.
+     *
+     * @return true if the file has been modified or removed, false if it hasn't
+     * or the template didn't come from a file
+     */
+    public boolean isModified() {
+        return xslFile != null && xslFile.lastModified() != lastModified;
+    }
+
     /**
      * Transforms the specified XML data and sends the output of the transformation
      * to the specified target OutputStream.
@@ -88,7 +120,7 @@ public class XSLTransformerWrapper {
         try {
             Source xmlSource = new StreamSource(xmlInputStream);
             Result result = new StreamResult(targetOutputStream);
-            transformer.transform(xmlSource, result);
+            templates.newTransformer().transform(xmlSource, result);
         } catch (TransformerException e) {
             throw e;
         }
@@ -108,12 +140,44 @@ public class XSLTransformerWrapper {
         try {
             Source xmlSource = new StreamSource(xmlInputReader);
             Result result = new StreamResult(targetOutputStream);
-            transformer.transform(xmlSource, result);
+            templates.newTransformer().transform(xmlSource, result);
         } catch (TransformerException e) {
             throw e;
         }
     }
 
+    /**
+     * Transforms the specified document and sends the output of the transformation
+     * to the specified target OutputStream.  The document is fed to the transformer
+     * as SAX events, rather than written out with getXML() and parsed again.
+     *
+     * @param document  the source XML data
+     * @param targetOutputStream  the output stream that receives the transformed result
+     *
+     * @throws Exception
+     */
+    public void transform(RecordTag document, OutputStream targetOutputStream)
+            throws Exception {
+        if (!transformerFactory.getFeature(SAXTransformerFactory.FEATURE)) {
+            transform(new StringReader(document.getXML()), targetOutputStream);
+            return;
+        }
+        TransformerHandler handler;
+        //the factory isn't thread-safe, creating the handler is quick
+        synchronized (transformerFactory) {
+            handler = ((SAXTransformerFactory) transformerFactory).newTransformerHandler(templates);
+        }
+        handler.setResult(new StreamResult(targetOutputStream));
+        try {
+            document.toSAX(handler);
+        } catch (SAXException e) {
+            if (e.getException() instanceof TransformerException) {
+                throw e.getException();
+            }
+            throw e;
+        }
+    }
+
 
 
     private SourceLocator getRootSourceLocator(Throwable exception) {
@@ -98,7 +98,8 @@ public class EmailEngine {
 
     /**
      * This function actually contacts a SMTP server and transmits the
-     * message.
+     * message.  The connection to the server is kept open and used for
+     * the messages that follow, see SmtpConnectionPool.
      * @param host
      * @param port
      * @param from
@@ -113,21 +114,11 @@ public class EmailEngine {
     private static void send(boolean isHtml, String host, int port,
                              Address from, Address[] to, Address[] cc, Address[] bcc,
                              String subject, String data) throws SendFailedException, Exception {
-        Address[] ret = new Address[0];
-        javax.mail.Session eMailSession = null;
-        Transport eMailTransport = null;
+        SmtpConnectionPool pool = SmtpConnectionPool.getPool(host, port);
         javax.mail.internet.MimeMessage eMailMessage = null;
-        Properties props = new Properties();
-        props.put("mail.smtp.host", host);
-        props.put("mail.transport.protocol", SMTP_HOST_TYPE);
-        props.put("mail.host", host);
-        props.put("mail.from", from);
 
         try {
-            eMailSession = javax.mail.Session.getDefaultInstance(props, null);
-            eMailMessage = new MimeMessage(eMailSession);
-            eMailTransport = eMailSession.getTransport(SMTP_HOST_TYPE);
-            eMailTransport.connect(host, 25, "", "");
+            eMailMessage = new MimeMessage(pool.getSession());
             eMailMessage.setRecipients(javax.mail.Message.RecipientType.TO, to);
             if (cc != null)
                 eMailMessage.setRecipients(javax.mail.Message.RecipientType.CC, cc);
@@ -143,21 +134,37 @@ public class EmailEngine {
             eMailMessage.setText(data, "utf-8");
             }
             eMailMessage.setHeader("Content-Transfer-Encoding", "8bit");
-            eMailTransport.send(eMailMessage);
+            eMailMessage.saveChanges();
+            pool.send(eMailMessage);
         } catch (NoSuchProviderException e) {
             log.error("SMTP transport type not accepted", e);
             throw new Exception("Internal configuration error. SMTP transport not accepted.");
         } catch (MessagingException e) {
             log.error("Failed to contact SMTP server", e);
             throw new Exception("Possible configuration error. SMTP server is not responding.");
-        } finally {
-            if (eMailTransport != null) {
-                try {
-                    eMailTransport.close();
-                } catch (Exception ignore) {
-                }
-            }
         }
     }
+
+    /**
+     * Close the SMTP connections kept open between messages.  They are
+     * opened again as needed.
+     */
+    public static void closeConnections() {
+        SmtpConnectionPool.closeAll();
+    }
+
+    /**
+     * @return how many SMTP connections have been opened
+     */
+    public static long getConnectionsOpened() {
+        return SmtpConnectionPool.getConnectionsOpened();
+    }
+
+    /**
+     * @return how many messages have been handed to an SMTP server
+     */
+    public static long getMessagesSent() {
+        return SmtpConnectionPool.getMessagesSent();
+    }
 }
 
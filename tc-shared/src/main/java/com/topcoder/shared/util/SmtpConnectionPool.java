@@ -0,0 +1,208 @@
+package com.topcoder.shared.util;
+
+import com.topcoder.shared.util.logging.Logger;
+
+import javax.mail.Message;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.Transport;
+import java.util.Properties;
+import java.util.ResourceBundle;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps SMTP connections open between messages, so that sending a message
+ * doesn't cost a connect, a greeting and a quit every time.
+ *
+ * A connection is given back to the pool after each message and used again
+ * for the next one, until it has sent <code>smtp_pool_messages</code> messages
+ * (servers tend to limit how many they take per connection) or has been idle for
+ * <code>smtp_pool_idle</code> milliseconds (servers drop idle connections).  At most
+ * <code>smtp_pool_size</code> idle connections are kept per server.  These are read from
+ * the EmailEngineConfig resource bundle.
+ *
+ * @version  $Revision: 85038 $
+ * @see EmailEngine
+ */
+class SmtpConnectionPool {
+    private static Logger log = Logger.getLogger(SmtpConnectionPool.class);
+
+    private static final ConcurrentHashMap<String, SmtpConnectionPool> pools =
+            new ConcurrentHashMap<String, SmtpConnectionPool>();
+
+    private static final AtomicLong opened = new AtomicLong();
+    private static final AtomicLong sent = new AtomicLong();
+
+    private final String host;
+    private final int port;
+    private final Session session;
+    private final int maxIdle;
+    private final int maxMessages;
+    private final long maxIdleTime;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    private SmtpConnectionPool(String host, int port) {
+        this.host = host;
+        this.port = port;
+        Properties props = new Properties();
+        props.put("mail.smtp.host", host);
+        props.put("mail.smtp.port", String.valueOf(port));
+        props.put("mail.transport.protocol", EmailEngine.SMTP_HOST_TYPE);
+        props.put("mail.host", host);
+        this.session = Session.getInstance(props, null);
+        this.maxIdle = getConfig("smtp_pool_size", 4);
+        this.maxMessages = getConfig("smtp_pool_messages", 100);
+        this.maxIdleTime = getConfig("smtp_pool_idle", 30000);
+    }
+
+    /**
+     * @param host the SMTP server
+     * @param port its port
+     * @return the pool of connections to the server
+     */
+    static SmtpConnectionPool getPool(String host, int port) {
+        String key = host + ":" + port;
+        SmtpConnectionPool pool = pools.get(key);
+        if (pool == null) {
+            pool = new SmtpConnectionPool(host, port);
+            SmtpConnectionPool existing = pools.putIfAbsent(key, pool);
+            if (existing != null) {
+                pool = existing;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Close the idle connections of every pool.
+     */
+    static void closeAll() {
+        for (SmtpConnectionPool pool : pools.values()) {
+            Connection c;
+            while ((c = pool.idle.poll()) != null) {
+                pool.idleCount.decrementAndGet();
+                c.close();
+            }
+        }
+    }
+
+    /**
+     * @return how many SMTP connections have been opened
+     */
+    static long getConnectionsOpened() {
+        return opened.get();
+    }
+
+    /**
+     * @return how many messages have been sent through pooled connections
+     */
+    static long getMessagesSent() {
+        return sent.get();
+    }
+
+    /**
+     * @return the session to build messages with
+     */
+    Session getSession() {
+        return session;
+    }
+
+    /**
+     * Send a message over a pooled connection.  If a connection that had been
+     * sitting in the pool fails, the message is tried once more over a new one,
+     * since the server has probably closed it.
+     *
+     * @param message the message, with its changes saved
+     * @throws MessagingException if it can't be sent
+     */
+    void send(Message message) throws MessagingException {
+        Connection c = borrow();
+        try {
+            c.transport.sendMessage(message, message.getAllRecipients());
+        } catch (javax.mail.SendFailedException e) {
+            // the server turned down addresses, don't send it again
+            c.close();
+            throw e;
+        } catch (MessagingException e) {
+            c.close();
+            if (c.messages == 0) {
+                throw e;
+            }
+            log.debug("pooled connection to " + host + " failed, trying a new one: " + e.getMessage());
+            c = connect();
+            try {
+                c.transport.sendMessage(message, message.getAllRecipients());
+            } catch (MessagingException e1) {
+                c.close();
+                throw e1;
+            }
+        }
+        sent.incrementAndGet();
+        release(c);
+    }
+
+    private Connection borrow() throws MessagingException {
+        long now = System.currentTimeMillis();
+        Connection c;
+        while ((c = idle.poll()) != null) {
+            idleCount.decrementAndGet();
+            if (c.lastUsed + maxIdleTime > now) {
+                return c;
+            }
+            c.close();
+        }
+        return connect();
+    }
+
+    private Connection connect() throws MessagingException {
+        Transport transport = session.getTransport(EmailEngine.SMTP_HOST_TYPE);
+        transport.connect(host, port, "", "");
+        opened.incrementAndGet();
+        return new Connection(transport);
+    }
+
+    private void release(Connection c) {
+        c.messages++;
+        c.lastUsed = System.currentTimeMillis();
+        if (c.messages >= maxMessages) {
+            c.close();
+        } else if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            c.close();
+        } else {
+            idle.offer(c);
+        }
+    }
+
+    private static int getConfig(String name, int defaultValue) {
+        try {
+            return Integer.parseInt(ResourceBundle.getBundle("EmailEngineConfig").getString(name).trim());
+        } catch (Exception e) {
+            return defaultValue;
+        }
+    }
+
+    /**
+     * An open connection and what it has done.
+     */
+    private static class Connection {
+        private final Transport transport;
+        private int messages = 0;
+        private long lastUsed = System.currentTimeMillis();
+
+        private Connection(Transport transport) {
+            this.transport = transport;
+        }
+
+        private void close() {
+            try {
+                transport.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+}
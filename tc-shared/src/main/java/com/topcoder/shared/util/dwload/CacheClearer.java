@@ -12,11 +12,16 @@ package com.topcoder.shared.util.dwload;
 
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.rmi.RemoteException;
 import java.util.Set;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
 
+import com.topcoder.shared.dataAccess.DataAccessConstants;
+import com.topcoder.shared.dataAccess.RequestCoalescer;
+import com.topcoder.shared.distCache.CacheClient;
+import com.topcoder.shared.distCache.CacheClientFactory;
 import com.topcoder.shared.util.TCContext;
 import com.topcoder.shared.util.TCResourceBundle;
 import com.topcoder.shared.util.logging.Logger;
@@ -27,10 +32,19 @@ import com.topcoder.shared.util.logging.Logger;
  * Note: The process no longer run locally but instead the CacheAdmin mbean 
  * located in the cache server is used.
  * 
+ * When the web cache is the distCache, <code>invalidateByTag</code> and
+ * <code>invalidateByCommand</code> remove exactly the entries for the given values or
+ * commands, in one call, using the indexes kept by the cache server.  Otherwise they fall
+ * back to <code>removelike</code>.
+ * 
+ * All of them also forget the stale values kept by the {@link RequestCoalescer} of this
+ * JVM for the entries removed.
+ * 
  * @author rfairfax, pulky
  */
 public class CacheClearer {
     private static final Logger log = Logger.getLogger(CacheClearer.class);
+    private static final String DIST_CACHE_CLIENT = "com.topcoder.web.common.cache.DistCacheClient";
 
     /**
      * Creates a new instance of CacheClearer
@@ -44,6 +58,7 @@ public class CacheClearer {
      * @param s the string compare and remove items
      */
     public static void removelike(String s) {
+        RequestCoalescer.getInstance().invalidateLike(s);
         InitialContext ctx = null;
         TCResourceBundle b = new TCResourceBundle("cache");
         try {
@@ -96,6 +111,9 @@ public class CacheClearer {
      * @param s the set of strings to compare and remove items
      */
     public static void removelike(Set<String> s) {
+        for (String st : s) {
+            RequestCoalescer.getInstance().invalidateLike(st);
+        }
         InitialContext ctx = null;
         TCResourceBundle b = new TCResourceBundle("cache");
         try {
@@ -142,7 +160,61 @@ public class CacheClearer {
             TCContext.close(ctx);
         }
     }
-}
 
+    /**
+     * Removes the entries for requests that had any of the specified values as a property,
+     * for example coder ids or round ids.
+     * 
+     * @param s the values
+     */
+    public static void invalidateByTag(Set<String> s) {
+        if (!isDistCache()) {
+            removelike(s);
+            return;
+        }
+        //we don't know which keys had the tags
+        RequestCoalescer.getInstance().clear();
+        try {
+            CacheClient client = CacheClientFactory.createCacheClient();
+            int count = client.invalidateByTag(s.toArray(new String[s.size()]));
+            log.info("removed " + count + " entries tagged " + s);
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    /**
+     * Removes the entries for the specified commands, and for commands whose names start
+     * with them.  Unlike <code>removelike</code> it doesn't remove the entries of commands
+     * that merely contain them, or of queries with those names run by other commands, so
+     * it is only for exact command names.
+     * 
+     * @param s the command names
+     */
+    public static void invalidateByCommand(Set<String> s) {
+        if (!isDistCache()) {
+            removelike(s);
+            return;
+        }
+        String[] prefixes = new String[s.size() * 2];
+        int i = 0;
+        for (String command : s) {
+            // requests are keyed by command first, both by the web cache (see dist.RequestAddress)
+            // and by Request.getCacheKey()
+            prefixes[i++] = "/" + DataAccessConstants.COMMAND + "=" + command;
+            prefixes[i++] = DataAccessConstants.COMMAND + "=" + command;
+            RequestCoalescer.getInstance().invalidateLike(DataAccessConstants.COMMAND + "=" + command);
+        }
+        try {
+            CacheClient client = CacheClientFactory.createCacheClient();
+            int count = client.invalidateByPrefix(prefixes);
+            log.info("removed " + count + " entries for commands " + s);
+        } catch (RemoteException e) {
+            throw new RuntimeException(e);
+        }
+    }
 
+    private static boolean isDistCache() {
+        return DIST_CACHE_CLIENT.equals(new TCResourceBundle("cache").getProperty("cache_client_class", ""));
+    }
+}
@@ -1,5 +1,6 @@
 package com.topcoder.web.query.request;
 
+import com.topcoder.shared.dataAccess.CommandDefinitionCache;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.web.common.BaseProcessor;
@@ -69,6 +70,7 @@ public class ModifyCommand extends BaseProcessor {
                         c.setCommandDesc(getCommandId(), getCommandDesc(), getDb());
                         c.setCommandGroupId(getCommandId(), getGroupId(), getDb());
                     }
+                    CommandDefinitionCache.invalidateAll();
                 }
             } else {
                 if (!isNewCommand()) {
@@ -1,5 +1,6 @@
 package com.topcoder.web.query.request;
 
+import com.topcoder.shared.dataAccess.CommandDefinitionCache;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.web.common.BaseProcessor;
@@ -79,13 +80,16 @@ public class ModifyCommandQuery extends BaseProcessor {
                         cqb = (CommandQueryBean) getCurrentQueryList().get(j);
                         cq.setSortOrder(cqb.getCommandId(), cqb.getQueryId(), cqb.getSortOrder(), getDb());
                     }
+                    CommandDefinitionCache.invalidateAll();
                 }
             } else if (step != null && step.equals(Constants.NEW_STEP)) {
                 checkQueryIds(getCurrentQueryList(), q);
                 cq.createCommandQuery(getCommandId(), getQueryId(), getDb());
+                CommandDefinitionCache.invalidateAll();
             } else if (step != null && step.equals(Constants.REMOVE_STEP)) {
                 checkQueryIds(getCurrentQueryList(), q);
                 cq.removeCommandQuery(getCommandId(), getQueryId(), getDb());
+                CommandDefinitionCache.invalidateAll();
             }
             setCurrentQueryList(cq.getQueriesForCommand(getCommandId(), getDb()));
             setOtherQueryList(q.getAllQueries(false, getDb()));
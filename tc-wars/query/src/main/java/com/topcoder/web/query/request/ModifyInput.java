@@ -1,5 +1,6 @@
 package com.topcoder.web.query.request;
 
+import com.topcoder.shared.dataAccess.CommandDefinitionCache;
 import com.topcoder.shared.dataAccess.DataAccessConstants;
 import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.web.common.BaseProcessor;
@@ -75,6 +76,7 @@ public class ModifyInput extends BaseProcessor {
                         i.setInputDesc(getInputId(), getInputDesc(), getDb());
                         i.setDataTypeId(getInputId(), getDataTypeId(), getDb());
                     }
+                    CommandDefinitionCache.invalidateAll();
                 }
             } else {
                 if (!isNewInput()) {
@@ -1,5 +1,6 @@
 package com.topcoder.web.query.request;
 
+import com.topcoder.shared.dataAccess.CommandDefinitionCache;
 import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.web.common.BaseProcessor;
 import com.topcoder.web.common.TCWebException;
@@ -77,6 +78,7 @@ public class ModifyQuery extends BaseProcessor {
                         q.setName(getQueryId(), getName(), getDb());
                         q.setRanking(getQueryId(), isRanking() ? 1 : 0, getDb());
                     }
+                    CommandDefinitionCache.invalidateAll();
                 }
             } else {
                 if (!isNewQuery()) {
@@ -1,5 +1,6 @@
 package com.topcoder.web.query.request;
 
+import com.topcoder.shared.dataAccess.CommandDefinitionCache;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.logging.Logger;
 import com.topcoder.web.common.BaseProcessor;
@@ -86,13 +87,16 @@ public class ModifyQueryInput extends BaseProcessor {
                         qi.setOptional(qib.getQueryId(), qib.getInputId(), qib.isOptional() ? 'Y' : 'N', getDb());
                         qi.setSortOrder(qib.getQueryId(), qib.getInputId(), qib.getSortOrder(), getDb());
                     }
+                    CommandDefinitionCache.invalidateAll();
                 }
             } else if (step != null && step.equals(Constants.NEW_STEP)) {
                 checkInputId(getInputId(), i);
                 qi.createQueryInput(getQueryId(), getInputId(), getDb());
+                CommandDefinitionCache.invalidateAll();
             } else if (step != null && step.equals(Constants.REMOVE_STEP)) {
                 checkInputId(getInputId(), i);
                 qi.removeQueryInput(getQueryId(), getInputId(), getDb());
+                CommandDefinitionCache.invalidateAll();
             }
 
             setCurrentInputList(qi.getInputsForQuery(getQueryId(), getDb()));
@@ -0,0 +1,303 @@
+package com.topcoder.web.tc.controller.legacy;
+
+import com.topcoder.shared.dataAccess.Request;
+import com.topcoder.shared.util.logging.Logger;
+import com.topcoder.web.common.cache.CacheClient;
+import com.topcoder.web.common.cache.CacheClientFactory;
+import com.topcoder.web.common.cache.MaxAge;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the graphs made by {@link GraphServlet}.
+ * <p/>
+ * The graphs most recently used are kept in memory, up to <code>MAX_ENTRIES</code>
+ * of them for at most <code>MAX_AGE</code>, in front of the distributed cache
+ * which keeps them for all the servers.  A graph is rendered only when neither
+ * has it.  The rating and problem graphs, which only change with the data warehouse
+ * loads, stay in the distributed cache as long as anything else; the others are made
+ * from live registration data, so they are only kept there for <code>MAX_AGE</code>.
+ * <p/>
+ * Graphs are kept by their parameters, sorted and with the blank ones left out,
+ * so that the same graph asked for in different ways is only rendered once.
+ * Each one has an ETag, made from its content so that it's the same on every
+ * server, and the time it was made, for the servlet to answer conditional requests.
+ * <p/>
+ * How often each kind of graph is asked for, found and rendered, and how long
+ * rendering takes, is counted, see {@link #getStatistics()}.
+ *
+ * @version $Revision: 64822 $
+ */
+final class GraphCache {
+    private static final Logger log = Logger.getLogger(GraphCache.class);
+
+    private static final int MAX_ENTRIES = 256;
+    private static final long MAX_AGE = MaxAge.HOUR.age();
+    private static final int LOG_INTERVAL = 1000;
+    private static final Set<String> LONG_LIVED = new HashSet<String>(Arrays.asList(new String[]{
+            "rating_distribution_graph", "rating_distribution_graph_profile",
+            "rating_distribution_graph_design_profile", "rating_distribution_graph_dev_profile",
+            "rating_distribution_graph_dark", "rating_history_graph", "problem_distribution_graph"}));
+
+    private static final Map<String, CachedGraph> graphs = new LinkedHashMap<String, CachedGraph>(MAX_ENTRIES, 0.75f, true) {
+        protected boolean removeEldestEntry(Map.Entry<String, CachedGraph> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    private static final Map<String, Statistics> statistics = new ConcurrentHashMap<String, Statistics>();
+
+    private static CacheClient client = null;
+
+    private GraphCache() {
+    }
+
+    /**
+     * Get a graph, rendering it if it isn't cached.
+     *
+     * @param dataRequest the graph (its command) and its parameters
+     * @return the graph
+     * @throws Exception if the graph is unknown or can't be generated
+     */
+    static CachedGraph get(Request dataRequest) throws Exception {
+        String key = getCacheKey(dataRequest);
+
+        CachedGraph graph;
+        synchronized (graphs) {
+            graph = graphs.get(key);
+            if (graph != null && graph.created + MAX_AGE < System.currentTimeMillis()) {
+                graphs.remove(key);
+                graph = null;
+            }
+        }
+        //counted once we know it's a graph, so unknown commands don't pile up here
+        Statistics stats;
+        if (graph != null) {
+            stats = getStatistics(dataRequest.getContentHandle());
+            stats.localHits.incrementAndGet();
+        } else {
+            byte[] image = getFromCache(key);
+            if (image != null) {
+                stats = getStatistics(dataRequest.getContentHandle());
+                stats.cacheHits.incrementAndGet();
+            } else {
+                long start = System.currentTimeMillis();
+                image = GraphServlet.render(dataRequest);
+                long time = System.currentTimeMillis() - start;
+                stats = getStatistics(dataRequest.getContentHandle());
+                stats.renders.incrementAndGet();
+                stats.renderTime.addAndGet(time);
+                if (log.isDebugEnabled()) {
+                    log.debug("rendered " + dataRequest.getContentHandle() + " in " + time + " ms");
+                }
+                addToCache(key, image, LONG_LIVED.contains(dataRequest.getContentHandle()) ? MaxAge.MAX : MaxAge.HOUR);
+            }
+            graph = new CachedGraph(image);
+            synchronized (graphs) {
+                graphs.put(key, graph);
+            }
+        }
+
+        if (stats.requests.incrementAndGet() % LOG_INTERVAL == 0) {
+            log.info("graph " + dataRequest.getContentHandle() + ": " + stats);
+        }
+        return graph;
+    }
+
+    /**
+     * @return the statistics of each kind of graph, by command
+     */
+    static Map<String, Statistics> getStatistics() {
+        return new TreeMap<String, Statistics>(statistics);
+    }
+
+    /**
+     * Count a request for a graph the browser already had.
+     *
+     * @param dataRequest the graph, which must have been got with {@link #get(Request)}
+     */
+    static void countNotModified(Request dataRequest) {
+        getStatistics(dataRequest.getContentHandle()).notModified.incrementAndGet();
+    }
+
+    /**
+     * Forget the graphs kept in memory on this server.
+     */
+    static void clear() {
+        synchronized (graphs) {
+            graphs.clear();
+        }
+    }
+
+    private static Statistics getStatistics(String command) {
+        Statistics stats = statistics.get(command);
+        if (stats == null) {
+            synchronized (statistics) {
+                stats = statistics.get(command);
+                if (stats == null) {
+                    stats = new Statistics();
+                    statistics.put(command, stats);
+                }
+            }
+        }
+        return stats;
+    }
+
+    private static String getCacheKey(Request dataRequest) {
+        StringBuffer sb = new StringBuffer(100);
+        sb.append("graph:");
+        //the same order whatever order they came in
+        TreeMap t = new TreeMap(dataRequest.getProperties());
+        for (Iterator it = t.entrySet().iterator(); it.hasNext();) {
+            Map.Entry me = (Map.Entry) it.next();
+            String value = me.getValue().toString().trim();
+            if (value.length() > 0) {
+                sb.append(me.getKey().toString());
+                sb.append("=");
+                sb.append(value);
+                sb.append("|");
+            }
+        }
+        return sb.toString();
+    }
+
+    private static byte[] getFromCache(String key) {
+        byte[] ret = null;
+        connectToCache();
+        try {
+            ret = (byte[]) client.get(key);
+        } catch (Exception e) {
+            log.error("ERROR GETTING OBJECT FROM CACHE");
+        }
+        if (ret != null) {
+            if (log.isDebugEnabled()) {
+                log.debug("graph found in cache");
+            }
+        }
+        return ret;
+    }
+
+    private static void connectToCache() {
+        if (client == null) {
+            try {
+                client = CacheClientFactory.create();
+            } catch (Exception e) {
+                log.error("ERROR INITIALIZING CACHE CLIENT");
+            }
+        }
+    }
+
+    private static void addToCache(String key, byte[] value, MaxAge maxAge) {
+        connectToCache();
+        try {
+            client.set(key, value, maxAge);
+        } catch (Exception e) {
+            log.error("ERROR ADDING OBJECT TO CACHE");
+        }
+    }
+
+    /**
+     * A graph, with what's needed to answer conditional requests for it.
+     */
+    static final class CachedGraph {
+        private final byte[] image;
+        private final String eTag;
+        // HTTP dates are in seconds
+        private final long lastModified = System.currentTimeMillis() / 1000 * 1000;
+        private final long created = System.currentTimeMillis();
+
+        private CachedGraph(byte[] image) {
+            this.image = image;
+            CRC32 crc = new CRC32();
+            crc.update(image);
+            this.eTag = "\"" + Long.toHexString(crc.getValue()) + "-" + Integer.toHexString(image.length) + "\"";
+        }
+
+        /**
+         * @return the graph as a PNG image, which must not be changed
+         */
+        byte[] getImage() {
+            return image;
+        }
+
+        /**
+         * @return the ETag of the graph, quoted
+         */
+        String getETag() {
+            return eTag;
+        }
+
+        /**
+         * @return when the graph was made or loaded from the distributed cache
+         */
+        long getLastModified() {
+            return lastModified;
+        }
+    }
+
+    /**
+     * The counts for a kind of graph.
+     */
+    static final class Statistics {
+        private final AtomicLong requests = new AtomicLong();
+        private final AtomicLong localHits = new AtomicLong();
+        private final AtomicLong cacheHits = new AtomicLong();
+        private final AtomicLong renders = new AtomicLong();
+        private final AtomicLong renderTime = new AtomicLong();
+        private final AtomicLong notModified = new AtomicLong();
+
+        long getRequests() {
+            return requests.get();
+        }
+
+        long getLocalHits() {
+            return localHits.get();
+        }
+
+        long getCacheHits() {
+            return cacheHits.get();
+        }
+
+        long getRenders() {
+            return renders.get();
+        }
+
+        /**
+         * @return the total time spent rendering, in milliseconds
+         */
+        long getRenderTime() {
+            return renderTime.get();
+        }
+
+        /**
+         * @return how many requests were answered with 304 Not Modified
+         */
+        long getNotModified() {
+            return notModified.get();
+        }
+
+        /**
+         * @return the share of requests that didn't need a render
+         */
+        double getHitRate() {
+            long n = requests.get();
+            return n == 0 ? 0 : (double) (n - renders.get()) / n;
+        }
+
+        public String toString() {
+            long n = Math.max(renders.get(), 1);
+            return requests.get() + " requests, " + localHits.get() + " local hits, " + cacheHits.get()
+                    + " cache hits, " + renders.get() + " renders (" + renderTime.get() / n + " ms average), "
+                    + notModified.get() + " not modified, " + Math.round(getHitRate() * 100) + "% hit rate";
+        }
+    }
+}
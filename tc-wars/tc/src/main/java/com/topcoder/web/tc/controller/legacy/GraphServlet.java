@@ -16,8 +16,6 @@ import com.topcoder.web.common.NavigationException;
 import com.topcoder.web.common.SessionInfo;
 import com.topcoder.web.common.TCRequest;
 import com.topcoder.web.common.TCResponse;
-import com.topcoder.web.common.cache.CacheClient;
-import com.topcoder.web.common.cache.CacheClientFactory;
 import com.topcoder.web.common.security.WebAuthentication;
 import org.faceless.graph.BarGraph;
 import org.faceless.graph.Graph;
@@ -41,6 +39,10 @@ import java.util.Map;
 
 /**
  * A servlet to generate graph images
+ * <p/>
+ * Graphs are kept in {@link GraphCache}, and browsers are told to check back
+ * with the ETag or date of the one they have, which gets them a 304 if it
+ * hasn't changed.
  *
  * @author Greg Paul
  * @version $Revision: 64822 $
@@ -74,8 +76,6 @@ public final class GraphServlet extends BaseServlet {
     private static final Style titleStyleDark = new Style(Color.black, "Verdana", Font.PLAIN, 18);
     private static Logger log = Logger.getLogger(GraphServlet.class);
 
-    private static CacheClient client = null;
-
     public synchronized void init(ServletConfig config) throws ServletException {
         if (log.isDebugEnabled()) {
             log.debug("SERVLET INIT CALLED");
@@ -86,17 +86,17 @@ public final class GraphServlet extends BaseServlet {
     protected void process(HttpServletRequest request, HttpServletResponse response)
             throws IOException, ServletException {
         ServletOutputStream o = null;
-        byte[] result = null;
+        GraphCache.CachedGraph result = null;
         Request dataRequest = null;
         WebAuthentication authentication;
         SessionInfo info;
 
         try {
-            Graph.setLicenseKey(LICENSE_KEY);
             dataRequest = new Request(request.getParameterMap());
 
             TCRequest tcRequest = HttpObjectFactory.createRequest(request);
-            TCResponse tcResponse = HttpObjectFactory.createUnCachedResponse(response);
+            //not uncached, we say below how the browser may cache the graph
+            TCResponse tcResponse = HttpObjectFactory.createResponse(response);
             //set up security objects and session info
             authentication = createAuthentication(tcRequest, tcResponse);
             TCSubject user = getUser(authentication.getActiveUser().getId());
@@ -105,146 +105,141 @@ public final class GraphServlet extends BaseServlet {
 
             log.info("[*** graph *** " + dataRequest.getContentHandle() + " *** " + info.getHandle() + " ***]");
 
-            /***********************************************************************/
-            if (dataRequest.getContentHandle().equals("rating_distribution_graph")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsDistribution(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("rating_distribution_graph_profile")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsDistributionProfile(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("rating_distribution_graph_design_profile")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsDistributionProfileDesign(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("rating_distribution_graph_dev_profile")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsDistributionProfileDevelopment(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("rating_distribution_graph_dark")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsDistributionDark(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("rating_history_graph")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getRatingsHistory(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("problem_distribution_graph")) {
-                result = getFromCache(dataRequest);
-                if (result == null) {
-                    result = getProblemDistribution(dataRequest);
-                }
-                addToCache(dataRequest, result);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("school_membership")) {
-                result = getSchoolMembership(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("pro_interest_graph")) {
-                result = getProInterest(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("student_interest_graph")) {
-                result = getStudentInterest(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("pro_industry_graph")) {
-                result = getProIndustry(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("pro_title_graph")) {
-                result = getProTitle(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("pro_area_interest_graph")) {
-                result = getProAreaInterest(dataRequest);
+            result = GraphCache.get(dataRequest);
+            //the browser may keep the graph, but has to check with us that it's still good
+            response.setHeader("Cache-Control", "private, max-age=0, must-revalidate");
+            response.setHeader("ETag", result.getETag());
+            response.setDateHeader("Last-Modified", result.getLastModified());
+            if (isNotModified(request, result)) {
+                GraphCache.countNotModified(dataRequest);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
             }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("pro_referral_graph")) {
-                result = getProReferral(dataRequest);
-            }
-            /***********************************************************************/
-            else if (dataRequest.getContentHandle().equals("student_referral_graph")) {
-                result = getStudentReferral(dataRequest);
-            }
-            /***********************************************************************/
-            else {
-                throw new NavigationException("unknown graph: " + dataRequest.getContentHandle());
-            }
-            response.setContentType("image/gif");
             response.setHeader("content-disposition", "inline; filename=graph.png");
             response.setContentType("image/png");
+            response.setContentLength(result.getImage().length);
             o = response.getOutputStream();
-            o.write(result);
+            o.write(result.getImage());
         } catch (Exception e) {
             e.printStackTrace();
         }
 
     }
 
-    private static byte[] getFromCache(RequestInt dataRequest) {
-        byte[] ret = null;
-        connectToCache();
-        try {
-            ret = (byte[]) client.get(getCacheKey(dataRequest));
-        } catch (Exception e) {
-            log.error("ERROR GETTING OBJECT FROM CACHE");
-        }
-        if (ret != null) {
-            if (log.isDebugEnabled()) {
-                log.debug("graph found in cache");
+    /**
+     * @return whether the browser already has this graph, by If-None-Match if it
+     * sent one, otherwise by If-Modified-Since
+     */
+    private static boolean isNotModified(HttpServletRequest request, GraphCache.CachedGraph graph) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            String[] tags = ifNoneMatch.split(",");
+            for (int i = 0; i < tags.length; i++) {
+                String tag = tags[i].trim();
+                if (tag.equals("*") || tag.equals(graph.getETag()) || tag.equals("W/" + graph.getETag())) {
+                    return true;
+                }
             }
+            return false;
         }
-        return ret;
-    }
-
-    private static void connectToCache() {
-        if (client == null) {
-            try {
-                client = CacheClientFactory.create();
-            } catch (Exception e) {
-                log.error("ERROR INITIALIZING CACHE CLIENT");
-            }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            return ifModifiedSince >= graph.getLastModified();
+        } catch (IllegalArgumentException e) {
+            //not a date, ignore it
+            return false;
         }
     }
 
-    private static String getCacheKey(RequestInt dataRequest) {
-        return "graph:" + dataRequest.toString();
+    /**
+     * Generate a graph in this process, as the servlet would for a request with
+     * the same parameters.  This lets other pages put graphs in what they make
+     * without a request to the servlet; checking that the user may see the graph
+     * is up to them.
+     *
+     * @param dataRequest the graph (its command) and its parameters
+     * @return the graph as a PNG image, which must not be changed
+     * @throws Exception if the graph is unknown or can't be generated
+     */
+    public static byte[] getGraph(Request dataRequest) throws Exception {
+        return GraphCache.get(dataRequest).getImage();
     }
 
-    private static void addToCache(RequestInt dataRequest, byte[] value) {
-        connectToCache();
-        try {
-            client.set(getCacheKey(dataRequest), value); //1 week
-        } catch (Exception e) {
-            log.error("ERROR GETTING OBJECT FROM CACHE");
+    /**
+     * Render a graph, without looking in the caches, see {@link GraphCache}.
+     *
+     * @param dataRequest the graph (its command) and its parameters
+     * @return the graph as a PNG image
+     * @throws Exception if the graph is unknown or can't be generated
+     */
+    static byte[] render(Request dataRequest) throws Exception {
+        byte[] result = null;
+        Graph.setLicenseKey(LICENSE_KEY);
+        /***********************************************************************/
+        if (dataRequest.getContentHandle().equals("rating_distribution_graph")) {
+            result = getRatingsDistribution(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("rating_distribution_graph_profile")) {
+            result = getRatingsDistributionProfile(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("rating_distribution_graph_design_profile")) {
+            result = getRatingsDistributionProfileDesign(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("rating_distribution_graph_dev_profile")) {
+            result = getRatingsDistributionProfileDevelopment(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("rating_distribution_graph_dark")) {
+            result = getRatingsDistributionDark(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("rating_history_graph")) {
+            result = getRatingsHistory(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("problem_distribution_graph")) {
+            result = getProblemDistribution(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("school_membership")) {
+            result = getSchoolMembership(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("pro_interest_graph")) {
+            result = getProInterest(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("student_interest_graph")) {
+            result = getStudentInterest(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("pro_industry_graph")) {
+            result = getProIndustry(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("pro_title_graph")) {
+            result = getProTitle(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("pro_area_interest_graph")) {
+            result = getProAreaInterest(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("pro_referral_graph")) {
+            result = getProReferral(dataRequest);
+        }
+        /***********************************************************************/
+        else if (dataRequest.getContentHandle().equals("student_referral_graph")) {
+            result = getStudentReferral(dataRequest);
+        }
+        /***********************************************************************/
+        else {
+            throw new NavigationException("unknown graph: " + dataRequest.getContentHandle());
         }
+        return result;
     }
 
     private static byte[] getSchoolMembership(RequestInt dataRequest) throws NavigationException {
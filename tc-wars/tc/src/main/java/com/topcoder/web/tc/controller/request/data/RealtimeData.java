@@ -5,6 +5,7 @@ package com.topcoder.web.tc.controller.request.data;
 
 import com.topcoder.shared.dataAccess.DataAccess;
 import com.topcoder.shared.dataAccess.Request;
+import com.topcoder.shared.dataAccess.ResultSetHandler;
 import com.topcoder.shared.dataAccess.resultSet.ResultSetContainer;
 import com.topcoder.shared.util.DBMS;
 import com.topcoder.web.common.CachedDataAccess;
@@ -23,6 +24,7 @@ import com.topcoder.web.common.security.TCSAuthorization;
 import com.topcoder.web.tc.Constants;
 import com.topcoder.web.tc.controller.request.Base;
 
+import java.io.OutputStream;
 import java.util.*;
 
 /**
@@ -33,8 +35,12 @@ import java.util.*;
  * This is wrapper for BasicData that with non-cashed logic. It simply replicate all BasicData logic with replacing
  * call to CachedDataAccess with call to non-cached DataAccess.
  * </p>
+ * <p>
+ * Version 1.1 changes: the rows are written as they are read from the database rather than once they have all been
+ * read, and can also be written as CSV.
+ * </p>
  * @author sokol
- * @version 1.0
+ * @version 1.1
  */
 public class RealtimeData extends Base {
 
@@ -55,59 +61,74 @@ public class RealtimeData extends Base {
         // Use new data resource BUGR-5379
         RealtimeDataResource resource = new RealtimeDataResource(r.getContentHandle(), ds);
         if (new TCSAuthorization(SecurityHelper.getUserSubject(getUser().getId())).hasPermission(resource)) {
-            // Use non-cached data access BUGR-5379
-            Map<String, ResultSetContainer> m = new DataAccess(getDataSource(ds)).getData(r);
-            ResultSetContainer rsc;
-            String key;
-            Iterator it = m.keySet().iterator();
-            // we're just giving them one thing at a time so the command should only have
-            // one query associated with it.
             String type = getRequest().getParameter(Constants.DATA_RETURN_TYPE);
             if (String.valueOf(true).equalsIgnoreCase(getRequest().getParameter("json"))) {
                 // this is to provide some backward compatibility. we don't really want people to use it anymore
                 type = "json";
             }
-            if ("json".equalsIgnoreCase(type)) {
+            if (ResultSetContainerConverter.JSON.equalsIgnoreCase(type)) {
                 getResponse().setContentType("application/json");
+            } else if (ResultSetContainerConverter.CSV.equalsIgnoreCase(type)) {
+                getResponse().setContentType("text/csv; charset=UTF-8");
             } else {
                 getResponse().setContentType("text/xml");
             }
-            if (it.hasNext()) {
-                key = (String) it.next();
-                rsc = m.get(key);
-                if (key.equals("dd_round_results")) {
-                    if ("json".equalsIgnoreCase(type)) {
-                        ResultSetContainerConverter.writeJSONhidingPayments(rsc, r.getContentHandle(), "paid",
-                                "coder_id", getHideUsersList(rsc), getResponse().getOutputStream());
-                    } else {
-                        ResultSetContainerConverter.writeXMLhidingPayments(rsc, r.getContentHandle(), "paid",
-                                "coder_id", getHideUsersList(rsc), getResponse().getOutputStream());
-                    }
-                } else if (key.equals("dd_design_rating_history") || key.equals("dd_development_rating_history")
-                        || key.equals("dd_track_rating_history")) {
-                    if ("json".equalsIgnoreCase(type)) {
-                        ResultSetContainerConverter.writeJSONhidingPayments(rsc, r.getContentHandle(), "payment",
-                                "coder_id", getHideUsersList(rsc), getResponse().getOutputStream());
-                    } else {
-                        ResultSetContainerConverter.writeXMLhidingPayments(rsc, r.getContentHandle(), "payment",
-                                "coder_id", getHideUsersList(rsc), getResponse().getOutputStream());
-                    }
-                } else {
-                    if ("json".equalsIgnoreCase(type)) {
-                        ResultSetContainerConverter.writeJSON(rsc, r.getContentHandle(), getResponse()
-                                .getOutputStream());
-                    } else {
-                        ResultSetContainerConverter.writeXML(rsc, r.getContentHandle(), getResponse()
-                                .getOutputStream());
+            final String format = type;
+            final String name = r.getContentHandle();
+            final OutputStream os = getResponse().getOutputStream();
+            // Use non-cached data access BUGR-5379, the rows are written as they are read
+            new DataAccess(getDataSource(ds)).getData(r, new ResultSetHandler() {
+                private boolean written = false;
+
+                public void handle(String queryName, ResultSetContainer.Cursor cursor) throws Exception {
+                    // we're just giving them one thing at a time so the command should only have
+                    // one query associated with it.
+                    if (!written) {
+                        written = true;
+                        writeData(queryName, cursor, name, format, os);
                     }
                 }
-            }
+            });
             getResponse().flushBuffer();
         } else {
             throw new PermissionException(getUser(), resource);
         }
     }
 
+    /**
+     * Writes the rows of a query.  The payments in some feeds are hidden for the users who asked for it, those
+     * rows are read in whole to find out who these users are; the others are written as they are read.
+     * @param key the query name
+     * @param cursor the rows
+     * @param name the feed name
+     * @param type the format to write in
+     * @param os where to write them
+     * @throws Exception if any error occurs while reading or writing the rows
+     */
+    private void writeData(String key, ResultSetContainer.Cursor cursor, String name, String type, OutputStream os)
+            throws Exception {
+        String paymentCol;
+        if (key.equals("dd_round_results")) {
+            paymentCol = "paid";
+        } else if (key.equals("dd_design_rating_history") || key.equals("dd_development_rating_history")
+                || key.equals("dd_track_rating_history")) {
+            paymentCol = "payment";
+        } else {
+            ResultSetContainerConverter.write(type, cursor, name, os);
+            return;
+        }
+        ResultSetContainer rsc = new ResultSetContainer(cursor);
+        if (ResultSetContainerConverter.JSON.equalsIgnoreCase(type)) {
+            ResultSetContainerConverter.writeJSONhidingPayments(rsc, name, paymentCol, "coder_id",
+                    getHideUsersList(rsc), os);
+        } else if (ResultSetContainerConverter.CSV.equalsIgnoreCase(type)) {
+            ResultSetContainerConverter.writeCSVhidingPayments(rsc, paymentCol, "coder_id", getHideUsersList(rsc), os);
+        } else {
+            ResultSetContainerConverter.writeXMLhidingPayments(rsc, name, paymentCol, "coder_id",
+                    getHideUsersList(rsc), os);
+        }
+    }
+
     /**
      * Retrieves list of users whose payment should be hidden.
      * @param rsc the result set container
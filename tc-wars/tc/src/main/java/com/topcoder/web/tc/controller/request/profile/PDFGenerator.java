@@ -27,6 +27,7 @@ import com.topcoder.shared.util.ApplicationServer;
 import com.topcoder.shared.util.DBMS;
 import com.topcoder.shared.util.TCContext;
 import com.topcoder.web.common.*;
+import com.topcoder.web.common.cache.StaticAssetCache;
 import com.topcoder.web.common.model.SoftwareComponent;
 import com.topcoder.web.common.render.DataTypeRenderer;
 import com.topcoder.web.common.render.NodeElementRenderer;
@@ -36,19 +37,24 @@ import com.topcoder.web.ejb.fileconversion.FileConversion;
 import com.topcoder.web.ejb.resume.ResumeServices;
 import com.topcoder.web.ejb.user.User;
 import com.topcoder.web.tc.Constants;
+import com.topcoder.web.tc.controller.legacy.GraphServlet;
 import com.topcoder.web.tc.model.*;
 
 import javax.naming.InitialContext;
 import java.awt.*;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.net.URL;
 import java.rmi.RemoteException;
 import java.text.DecimalFormat;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author rfairfax
@@ -59,6 +65,24 @@ public class PDFGenerator extends BaseProcessor {
     private boolean includeHeader = true;
     private boolean inResume = false;
 
+    /**
+     * the instructions, and what they were converted to
+     */
+    private static volatile byte[][] convertedInstructions = null;
+
+    /**
+     * runs the queries of getConfig that don't depend on each other at the same time,
+     * when all its threads are busy the queries are run by the caller
+     */
+    private static final ThreadPoolExecutor dataExecutor = new ThreadPoolExecutor(0, 16, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "PDFGenerator-data");
+                    t.setDaemon(true);
+                    return t;
+                }
+            }, new ThreadPoolExecutor.CallerRunsPolicy());
+
     private static HeaderFooter header = new HeaderFooter(new Phrase("  "), false);
     private static HeaderFooter footer = new HeaderFooter(new Phrase("  "), false);
 
@@ -142,7 +166,7 @@ public class PDFGenerator extends BaseProcessor {
     }
 
     private void drawPageOne(Document doc, PlacementConfig info) throws Exception {
-        Image logo = Image.getInstance("http://" + ApplicationServer.SERVER_NAME + "/i/profiles/topcoder_logo_tagline.jpg");
+        Image logo = Image.getInstance(StaticAssetCache.get("/i/profiles/topcoder_logo_tagline.jpg"));
         logo.setAlignment(Element.ALIGN_CENTER);
         logo.scalePercent(60f);
         Paragraph p = new Paragraph(" ");
@@ -221,20 +245,19 @@ public class PDFGenerator extends BaseProcessor {
         includeHeader = false;
         doc.newPage();
 
-        URL u = new URL("http://" + ApplicationServer.SERVER_NAME + "/i/profiles/instructions.doc");
-
-
-        InputStream is = u.openStream();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        int ch;
-        while ((ch = is.read()) >= 0) {
-            baos.write(ch);
-        }
+        byte[] doc = StaticAssetCache.get("/i/profiles/instructions.doc");
 
+        //convert it again only if it has been loaded again
+        byte[][] converted = convertedInstructions;
         byte[] result;
-        InitialContext ctx = TCContext.getContext(ApplicationServer.SECURITY_CONTEXT_FACTORY, ApplicationServer.FILE_CONVERSION_PROVIDER_URL);
-        FileConversion filebean = (FileConversion) createEJB(ctx, FileConversion.class);
-        result = filebean.convertDoc(baos.toByteArray(), "doc");
+        if (converted != null && converted[0] == doc) {
+            result = converted[1];
+        } else {
+            InitialContext ctx = TCContext.getContext(ApplicationServer.SECURITY_CONTEXT_FACTORY, ApplicationServer.FILE_CONVERSION_PROVIDER_URL);
+            FileConversion filebean = (FileConversion) createEJB(ctx, FileConversion.class);
+            result = filebean.convertDoc(doc, "doc");
+            convertedInstructions = new byte[][]{doc, result};
+        }
 
         PdfReader reader = new PdfReader(result);
 
@@ -391,7 +414,7 @@ public class PDFGenerator extends BaseProcessor {
         ranking.addCell(inner);
         ranking.addCell(" ");
 
-        Image chart = Image.getInstance("http://" + ApplicationServer.SERVER_NAME + "/graph?c=rating_distribution_graph_profile&width=600&height=400&rt=" + info.getRating() + "&hn=" + info.getHandle());
+        Image chart = getChart("rating_distribution_graph_profile", String.valueOf(info.getRating()), info.getHandle());
 //        ranking.addCell(chart);
         //ranking.addCell(new Phrase("* line indicates " + info.getHandle() + "'s rating", FontFactory.getFont(FontFactory.HELVETICA, 12, Font.NORMAL, Color.black)));
 
@@ -1146,7 +1169,7 @@ public class PDFGenerator extends BaseProcessor {
         general.addCell(" ");
         top.addCell(general);
 
-        Image chart = Image.getInstance("http://" + ApplicationServer.SERVER_NAME + "/graph?c=" + command + "&width=600&height=400&rt=" + gen.getRating() + "&hn=" + info.getHandle());
+        Image chart = getChart(command, gen.getRating(), info.getHandle());
         top.addCell(chart);
 
         page.addCell(top);
@@ -1309,6 +1332,70 @@ public class PDFGenerator extends BaseProcessor {
 
         config.setUserID(uid);
 
+        // start the queries that don't depend on anything else, the rest of the
+        // configuration is loaded in the meantime
+        String designComponent = getRequest().getParameter("design_component");
+        String developmentComponent = getRequest().getParameter("development_component");
+        int cid = Integer.parseInt(StringUtils.checkNull(getRequest().getParameter("component")));
+
+        Request r = new Request();
+        r.setContentHandle("Coder_Alg_Data");
+        r.setProperty("cr", Integer.toString(uid));
+        Future<Map<String, ResultSetContainer>> algorithmData = fetch(getDWDataAccess(), r);
+
+        Future<Map<String, ResultSetContainer>> designData = null;
+        Future<Map<String, ResultSetContainer>> designProject = null;
+        Future<Map<String, ResultSetContainer>> designDocumentation = null;
+        if (designComponent != null && designComponent.trim().length() > 0) {
+            r = new Request();
+            r.setContentHandle("Coder_Des_Data");
+            r.setProperty("cr", Integer.toString(uid));
+            r.setProperty(Constants.PHASE_ID, String.valueOf(SoftwareComponent.DESIGN_PHASE));
+            designData = fetch(getDWDataAccess(), r);
+
+            r = new Request();
+            r.setContentHandle("comp_contest_details");
+            r.setProperty("pj", designComponent);
+            designProject = fetch(getTCSDWDataAccess(), r);
+
+            r = new Request();
+            r.setContentHandle("example_component_info");
+            r.setProperty("pj", designComponent);
+            designDocumentation = fetch(getTCSCatalogDataAccess(), r);
+        }
+
+        Future<Map<String, ResultSetContainer>> developmentData = null;
+        Future<Map<String, ResultSetContainer>> developmentProject = null;
+        Future<Map<String, ResultSetContainer>> developmentDocumentation = null;
+        if (developmentComponent != null && developmentComponent.trim().length() > 0) {
+            r = new Request();
+            r.setContentHandle("Coder_Dev_Data");
+            r.setProperty("cr", Integer.toString(uid));
+            r.setProperty(Constants.PHASE_ID, String.valueOf(SoftwareComponent.DEV_PHASE));
+            developmentData = fetch(getDWDataAccess(), r);
+
+            r = new Request();
+            r.setContentHandle("comp_contest_details");
+            r.setProperty("pj", developmentComponent);
+            developmentProject = fetch(getTCSDWDataAccess(), r);
+
+            r = new Request();
+            r.setContentHandle("example_component_info");
+            r.setProperty("pj", developmentComponent);
+            developmentDocumentation = fetch(getTCSCatalogDataAccess(), r);
+        }
+
+        r = new Request();
+        r.setContentHandle("placement_profile_stats");
+        r.setProperty("cr", String.valueOf(uid));
+        Future<Map<String, ResultSetContainer>> profileStats = fetch(getDWDataAccess(), r);
+
+        r = new Request();
+        r.setContentHandle("placement_problem_details");
+        r.setProperty("cr", String.valueOf(uid));
+        r.setProperty("pm", String.valueOf(cid));
+        Future<Map<String, ResultSetContainer>> problemDetails = fetch(getDWDataAccess(), r);
+
         InitialContext ctx = TCContext.getInitial();
         User userbean = (User) createEJB(ctx, User.class);
 
@@ -1333,7 +1420,7 @@ public class PDFGenerator extends BaseProcessor {
         //load skills
         CoderSkill skillbean = (CoderSkill) createEJB(ctx, CoderSkill.class);
 
-        Request r = new Request();
+        r = new Request();
         r.setContentHandle("skill_types");
 
         ResultSetContainer rsc = (ResultSetContainer) getDataAccess().getData(r).get("skill_types");
@@ -1358,10 +1445,7 @@ public class PDFGenerator extends BaseProcessor {
         ComponentContestDetails example = null;
 
         // load algorithm competition stats
-        r = new Request();
-        r.setContentHandle("Coder_Alg_Data");
-        r.setProperty("cr", Integer.toString(uid));
-        data = getDWDataAccess().getData(r);
+        data = get(algorithmData);
 
         general = getGeneralStats((ResultSetContainer) data.get("Coder_Alg_Data"), true);
         if (general != null) {
@@ -1369,13 +1453,8 @@ public class PDFGenerator extends BaseProcessor {
         }
 
         // load design competition stats
-        String component = getRequest().getParameter("design_component");
-        if (component != null && component.trim().length() > 0) {
-            r = new Request();
-            r.setContentHandle("Coder_Des_Data");
-            r.setProperty("cr", Integer.toString(uid));
-            r.setProperty(Constants.PHASE_ID, String.valueOf(SoftwareComponent.DESIGN_PHASE));
-            data = getDWDataAccess().getData(r);
+        if (designData != null) {
+            data = get(designData);
 
             general = getGeneralStats((ResultSetContainer) data.get("Coder_Des_Data"), false);
             if (general != null) { // null if have not competed
@@ -1387,19 +1466,13 @@ public class PDFGenerator extends BaseProcessor {
                 config.setDesign(design);
 
                 // load design project info
-                r = new Request();
-                r.setContentHandle("comp_contest_details");
-                r.setProperty("pj", StringUtils.checkNull(getRequest().getParameter("design_component")));
-                data = getTCSDWDataAccess().getData(r);
+                data = get(designProject);
 
                 ResultSetContainer projectInfo = (ResultSetContainer) data.get("project_info");
                 ResultSetContainer submissions = (ResultSetContainer) data.get("submissions");
                 ResultSetContainer reviewers = (ResultSetContainer) data.get("reviewers_for_project");
 
-                r = new Request();
-                r.setContentHandle("example_component_info");
-                r.setProperty("pj", StringUtils.checkNull(getRequest().getParameter("design_component")));
-                data = getTCSCatalogDataAccess().getData(r);
+                data = get(designDocumentation);
 
                 ResultSetContainer documentation = (ResultSetContainer) data.get("example_component_info");
 
@@ -1409,13 +1482,8 @@ public class PDFGenerator extends BaseProcessor {
         }
 
         // load development competition stats
-        component = getRequest().getParameter("development_component");
-        if (component != null && component.trim().length() > 0) {
-            r = new Request();
-            r.setContentHandle("Coder_Dev_Data");
-            r.setProperty("cr", Integer.toString(uid));
-            r.setProperty(Constants.PHASE_ID, String.valueOf(SoftwareComponent.DEV_PHASE));
-            data = getDWDataAccess().getData(r);
+        if (developmentData != null) {
+            data = get(developmentData);
 
             general = getGeneralStats((ResultSetContainer) data.get("Coder_Dev_Data"), false);
             if (general != null) { // null if have not competed
@@ -1427,19 +1495,13 @@ public class PDFGenerator extends BaseProcessor {
                 config.setDevelopment(development);
 
                 // load development project info
-                r = new Request();
-                r.setContentHandle("comp_contest_details");
-                r.setProperty("pj", StringUtils.checkNull(getRequest().getParameter("development_component")));
-                data = getTCSDWDataAccess().getData(r);
+                data = get(developmentProject);
 
                 ResultSetContainer projectInfo = (ResultSetContainer) data.get("project_info");
                 ResultSetContainer submissions = (ResultSetContainer) data.get("submissions");
                 ResultSetContainer reviewers = (ResultSetContainer) data.get("reviewers_for_project");
 
-                r = new Request();
-                r.setContentHandle("example_component_info");
-                r.setProperty("pj", StringUtils.checkNull(getRequest().getParameter("development_component")));
-                data = getTCSCatalogDataAccess().getData(r);
+                data = get(developmentDocumentation);
 
                 ResultSetContainer documentation = (ResultSetContainer) data.get("example_component_info");
 
@@ -1447,7 +1509,7 @@ public class PDFGenerator extends BaseProcessor {
 
                 r = new Request();
                 r.setContentHandle("testcase_results");
-                r.setProperty("pj", StringUtils.checkNull(getRequest().getParameter("development_component")));
+                r.setProperty("pj", developmentComponent);
                 r.setProperty("cr", Integer.toString(example.getWinnerId()));
                 data = getTCSDWDataAccess().getData(r);
 
@@ -1477,13 +1539,9 @@ public class PDFGenerator extends BaseProcessor {
         }
 
         //load competition stats
-        r = new Request();
-        r.setContentHandle("placement_profile_stats");
-        r.setProperty("cr", String.valueOf(uid));
-
         DecimalFormat formatter = new DecimalFormat("#.##");
 
-        rsc = (ResultSetContainer) getDWDataAccess().getData(r).get("placement_profile_stats");
+        rsc = get(profileStats).get("placement_profile_stats");
 
         config.setNumContests(rsc.getStringItem(0, "num_ratings"));
         config.setRating(rsc.getIntItem(0, "rating"));
@@ -1502,15 +1560,9 @@ public class PDFGenerator extends BaseProcessor {
         config.setSubmissionSuccessRatio(rsc.getStringItem(0, "problems_correct") + " of " + rsc.getStringItem(0, "problems_submitted") + " (" + formatter.format(rsc.getDoubleItem(0, "problems_correct") / rsc.getDoubleItem(0, "problems_submitted") * 100.0) + "%)");
 
         //load problem stats
-        int cid = Integer.parseInt(StringUtils.checkNull(getRequest().getParameter("component")));
 
         //load solution?
-        r = new Request();
-        r.setContentHandle("placement_problem_details");
-        r.setProperty("cr", String.valueOf(uid));
-        r.setProperty("pm", String.valueOf(cid));
-
-        rsc = (ResultSetContainer) getDWDataAccess().getData(r).get("placement_problem_details");
+        rsc = get(problemDetails).get("placement_problem_details");
         config.setProblemName(rsc.getStringItem(0, "desc"));
         config.setAvgTimeToSubmit(formatTime(rsc.getIntItem(0, "avg_time")));
         config.setSubmissionPercent(formatter.format(rsc.getDoubleItem(0, "problems_submitted") / rsc.getDoubleItem(0, "coder_count") * 100.0) + "%");
@@ -1826,6 +1878,44 @@ public class PDFGenerator extends BaseProcessor {
         return ret;
     }
 
+    /**
+     * Run a query on another thread.
+     */
+    private static Future<Map<String, ResultSetContainer>> fetch(final DataAccessInt dai, final Request r) {
+        return dataExecutor.submit(new Callable<Map<String, ResultSetContainer>>() {
+            public Map<String, ResultSetContainer> call() throws Exception {
+                return dai.getData(r);
+            }
+        });
+    }
+
+    /**
+     * Wait for a query started by fetch.
+     */
+    private static Map<String, ResultSetContainer> get(Future<Map<String, ResultSetContainer>> data) throws Exception {
+        try {
+            return data.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Generate a rating distribution chart here, rather than through a request to the graph servlet.
+     */
+    private static Image getChart(String command, String rating, String handle) throws Exception {
+        Request r = new Request();
+        r.setContentHandle(command);
+        r.setProperty("width", "600");
+        r.setProperty("height", "400");
+        r.setProperty("rt", rating);
+        r.setProperty("hn", handle);
+        return Image.getInstance(GraphServlet.getGraph(r));
+    }
+
     protected static DataAccessInt getTCSCatalogDataAccess() throws Exception {
         DataAccessInt dAccess = null;
         dAccess = new DataAccess(DBMS.TCS_OLTP_DATASOURCE_NAME);
@@ -1857,6 +1947,9 @@ public class PDFGenerator extends BaseProcessor {
 
         boolean lastWasResume = false;
 
+        // added to every page, so it's in the document once
+        Image footerimg;
+
         public void onStartPage(PdfWriter writer, Document document) {
             try {
                 log.debug("start page(" + writer.getPageNumber() + ") - includeHeader: " + includeHeader);
@@ -1886,11 +1979,13 @@ public class PDFGenerator extends BaseProcessor {
 
                 if (!lastWasResume) {
                     //super.onEndPage(writer, document);
-                    Image footerimg = Image.getInstance("http://" + ApplicationServer.SERVER_NAME + "/i/profiles/topcoder_logo_footer.jpg");
-                    footerimg.setAlignment(Element.ALIGN_LEFT);
-                    footerimg.scalePercent(70f);
+                    if (footerimg == null) {
+                        footerimg = Image.getInstance(StaticAssetCache.get("/i/profiles/topcoder_logo_footer.jpg"));
+                        footerimg.setAlignment(Element.ALIGN_LEFT);
+                        footerimg.scalePercent(70f);
 
-                    footerimg.setAbsolutePosition(45, 30);
+                        footerimg.setAbsolutePosition(45, 30);
+                    }
 
                     cb = writer.getDirectContent();
                     cb.beginText();